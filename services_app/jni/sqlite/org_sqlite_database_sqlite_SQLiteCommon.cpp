@@ -1098,6 +1098,152 @@ namespace org_opendatakit {
         }
     }
 
+    // must match the android.database.Cursor FIELD_TYPE_... values used by SQLiteConnection.java
+    static const jbyte BIND_TYPE_NULL = 0;
+    static const jbyte BIND_TYPE_INTEGER = 1;
+    static const jbyte BIND_TYPE_FLOAT = 2;
+    static const jbyte BIND_TYPE_STRING = 3;
+    static const jbyte BIND_TYPE_BLOB = 4;
+
+    // Returns SQLITE_NOMEM with an OutOfMemoryError already pending if the value
+    // could not be accessed; the caller must not throw another exception.
+    static int bindArgumentObject(JNIEnv *env, sqlite3_stmt* statement, int index, jbyte type,
+                                  jobject valueObject) {
+        if ( valueObject == nullptr ) {
+            return sqlite3_bind_null(statement, index);
+        }
+
+        int err;
+        if ( type == BIND_TYPE_STRING ) {
+            jstring valueString = static_cast<jstring>(valueObject);
+            jsize valueLength = env->GetStringLength(valueString);
+            const jchar* value = env->GetStringChars(valueString, nullptr);
+            if ( value == nullptr ) {
+                return SQLITE_NOMEM;
+            }
+            err = sqlite3_bind_text16(statement, index, value, valueLength * sizeof(jchar),
+                                      SQLITE_TRANSIENT);
+            env->ReleaseStringChars(valueString, value);
+        } else {
+            jbyteArray valueArray = static_cast<jbyteArray>(valueObject);
+            jsize valueLength = env->GetArrayLength(valueArray);
+            jbyte* value = env->GetByteArrayElements(valueArray, nullptr);
+            if ( value == nullptr ) {
+                return SQLITE_NOMEM;
+            }
+            err = sqlite3_bind_blob(statement, index, value, valueLength, SQLITE_TRANSIENT);
+            env->ReleaseByteArrayElements(valueArray, value, JNI_ABORT);
+        }
+        return err;
+    }
+
+    /**
+     * Bind the first count parameters of a statement in one JNI call.
+     *
+     * types[i] holds the type of parameter i+1. Integer values are taken from
+     * longValues[i], float values from doubleValues[i], and string (jstring) and
+     * blob (jbyteArray) values from objectValues[i].
+     *
+     * SQLiteConnection.java only calls nativeBindArguments if nativeHasBindArguments
+     * can be called when the library is loaded; libraries built before this entry
+     * point was added bind one argument per JNI call instead.
+     */
+    void bindArguments(JNIEnv *env, jlong connectionPtr, jlong statementPtr, jint count,
+                       jbyteArray typesArray, jlongArray longValuesArray,
+                       jdoubleArray doubleValuesArray, jobjectArray objectValuesArray) {
+        LogRegion rgn("bindArguments");
+
+        ActiveConnection connection(connectionPtr);
+
+        if ( connection.get() == nullptr ) {
+            jniThrowException(env,
+                              "org/sqlite/database/sqlite/SQLiteException",
+                              "Connection already closed");
+            return;
+        }
+
+        sqlite3_stmt* statement = getActiveStatement(statementPtr);
+        if ( statement == nullptr ) {
+            jniThrowException(env,
+                              "org/sqlite/database/sqlite/SQLiteException",
+                              "Statement already finalized");
+            return;
+        }
+
+        if ( env->GetArrayLength(typesArray) < count ||
+             env->GetArrayLength(longValuesArray) < count ||
+             env->GetArrayLength(doubleValuesArray) < count ||
+             env->GetArrayLength(objectValuesArray) < count ) {
+            jniThrowException(env,
+                              "org/sqlite/database/sqlite/SQLiteException",
+                              "bindArguments value arrays are too short");
+            return;
+        }
+
+        jbyte* types = env->GetByteArrayElements(typesArray, nullptr);
+        jlong* longValues = env->GetLongArrayElements(longValuesArray, nullptr);
+        jdouble* doubleValues = env->GetDoubleArrayElements(doubleValuesArray, nullptr);
+
+        if ( types == nullptr || longValues == nullptr || doubleValues == nullptr ) {
+            if ( types != nullptr ) {
+                env->ReleaseByteArrayElements(typesArray, types, JNI_ABORT);
+            }
+            if ( longValues != nullptr ) {
+                env->ReleaseLongArrayElements(longValuesArray, longValues, JNI_ABORT);
+            }
+            if ( doubleValues != nullptr ) {
+                env->ReleaseDoubleArrayElements(doubleValuesArray, doubleValues, JNI_ABORT);
+            }
+            // an OutOfMemoryError is already pending
+            return;
+        }
+
+        int err = SQLITE_OK;
+        const char* message = nullptr;
+        for ( jsize i = 0 ; i < count && err == SQLITE_OK ; ++i ) {
+            int index = i + 1;
+            switch ( types[i] ) {
+            case BIND_TYPE_NULL:
+                err = sqlite3_bind_null(statement, index);
+                message = "Error while binding null value";
+                break;
+            case BIND_TYPE_INTEGER:
+                err = sqlite3_bind_int64(statement, index, longValues[i]);
+                message = "Error while binding long value";
+                break;
+            case BIND_TYPE_FLOAT:
+                err = sqlite3_bind_double(statement, index, doubleValues[i]);
+                message = "Error while binding double value";
+                break;
+            case BIND_TYPE_STRING:
+            case BIND_TYPE_BLOB: {
+                    ScopedLocalRef<jobject> valueObject(env,
+                        env->GetObjectArrayElement(objectValuesArray, i));
+                    err = bindArgumentObject(env, statement, index, types[i], valueObject.get());
+                    message = (types[i] == BIND_TYPE_STRING) ?
+                        "Error while binding string value" : "Error while binding blob value";
+                }
+                break;
+            default:
+                err = SQLITE_MISUSE;
+                message = "Unrecognized bind argument type";
+                break;
+            }
+        }
+
+        env->ReleaseByteArrayElements(typesArray, types, JNI_ABORT);
+        env->ReleaseLongArrayElements(longValuesArray, longValues, JNI_ABORT);
+        env->ReleaseDoubleArrayElements(doubleValuesArray, doubleValues, JNI_ABORT);
+
+        if ( env->ExceptionCheck() ) {
+            // accessing a value failed and threw (e.g., OutOfMemoryError); report that
+            return;
+        }
+        if (err != SQLITE_OK) {
+            throw_sqlite3_exception_db(env, connectionPtr, connection.get(), message);
+        }
+    }
+
     void resetAndClearBindings(JNIEnv *env, jlong connectionPtr, jlong statementPtr) {
         LogRegion rgn("resetAndClearBindings");
 
@@ -47,6 +47,10 @@ void bindString(JNIEnv* env, jlong connectionPtr, jlong statementPtr, int index,
 void bindBlob(JNIEnv* env, jlong connectionPtr, jlong statementPtr, int index,
       jbyteArray valueArray);
 
+void bindArguments(JNIEnv* env, jlong connectionPtr, jlong statementPtr, jint count,
+      jbyteArray typesArray, jlongArray longValuesArray,
+      jdoubleArray doubleValuesArray, jobjectArray objectValuesArray);
+
 void resetAndClearBindings(JNIEnv* env, jlong connectionPtr, jlong statementPtr);
 
 // internal sqlite error code
@@ -37,6 +37,7 @@ using org_opendatakit::bindLong;
 using org_opendatakit::bindDouble;
 using org_opendatakit::bindString;
 using org_opendatakit::bindBlob;
+using org_opendatakit::bindArguments;
 using org_opendatakit::resetAndClearBindings;
 using org_opendatakit::executeNonQuery;
 using org_opendatakit::executeForLong;
@@ -180,6 +181,32 @@ JNIEXPORT void JNICALL Java_org_sqlite_database_sqlite_SQLiteConnection_nativeBi
     bindBlob(env, connectionPtr, statementPtr, index, valueArray);
 }
 
+/*
+ * Class:     org_sqlite_database_sqlite_SQLiteConnection
+ * Method:    nativeBindArguments
+ * Signature: (JJI[B[J[D[Ljava/lang/Object;)V
+ */
+JNIEXPORT void JNICALL Java_org_sqlite_database_sqlite_SQLiteConnection_nativeBindArguments
+  (JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr, jint count,
+        jbyteArray typesArray, jlongArray longValuesArray,
+        jdoubleArray doubleValuesArray, jobjectArray objectValuesArray) {
+
+    bindArguments(env, connectionPtr, statementPtr, count, typesArray, longValuesArray,
+        doubleValuesArray, objectValuesArray);
+}
+
+/*
+ * Class:     org_sqlite_database_sqlite_SQLiteConnection
+ * Method:    nativeHasBindArguments
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_sqlite_database_sqlite_SQLiteConnection_nativeHasBindArguments
+  (JNIEnv* env, jclass clazz) {
+
+    // only linkable if this library provides nativeBindArguments
+    return JNI_TRUE;
+}
+
 /*
  * Class:     org_sqlite_database_sqlite_SQLiteConnection
  * Method:    nativeResetStatementAndClearBindings
@@ -133,6 +133,22 @@ JNIEXPORT void JNICALL Java_org_sqlite_database_sqlite_SQLiteConnection_nativeBi
 JNIEXPORT void JNICALL Java_org_sqlite_database_sqlite_SQLiteConnection_nativeBindBlob
   (JNIEnv *, jclass, jlong, jlong, jint, jbyteArray);
 
+/*
+ * Class:     org_sqlite_database_sqlite_SQLiteConnection
+ * Method:    nativeBindArguments
+ * Signature: (JJI[B[J[D[Ljava/lang/Object;)V
+ */
+JNIEXPORT void JNICALL Java_org_sqlite_database_sqlite_SQLiteConnection_nativeBindArguments
+  (JNIEnv *, jclass, jlong, jlong, jint, jbyteArray, jlongArray, jdoubleArray, jobjectArray);
+
+/*
+ * Class:     org_sqlite_database_sqlite_SQLiteConnection
+ * Method:    nativeHasBindArguments
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_sqlite_database_sqlite_SQLiteConnection_nativeHasBindArguments
+  (JNIEnv *, jclass);
+
 /*
  * Class:     org_sqlite_database_sqlite_SQLiteConnection
  * Method:    nativeResetStatementAndClearBindings
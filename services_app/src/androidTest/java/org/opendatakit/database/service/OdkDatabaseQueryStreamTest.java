@@ -0,0 +1,168 @@
+package org.opendatakit.database.service;
+
+import android.content.ContentValues;
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.consts.IntentConsts;
+import org.opendatakit.database.data.ColumnList;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.QueryBounds;
+import org.opendatakit.services.database.service.AidlDbExtensionInterface;
+import org.opendatakit.services.database.service.OdkDatabaseService;
+import org.opendatakit.services.database.service.QueryResultStream;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Streams query results through the AidlDbExtensionInterface binder of the database service
+ * and reads them back with the QueryResultStream.Reader.
+ */
+@RunWith(AndroidJUnit4.class) public class OdkDatabaseQueryStreamTest
+    extends OdkDatabaseTestAbstractBase {
+
+   private static final String TABLE_LOCAL = "tablestream";
+   private static final String COLUMN_NAME = "name";
+   private static final String COLUMN_COUNT = "count";
+   private static final int ROW_COUNT = 500;
+
+   private UserDbInterface serviceInterface;
+   private AidlDbExtensionInterface extensionInterface;
+   private DbHandle dbHandle;
+
+   protected void setUpBefore() {
+      try {
+         serviceInterface = bindToDbService();
+         dbHandle = serviceInterface.openDatabase(APPNAME);
+         extensionInterface = bindToExtensionInterface();
+
+         serviceInterface.createLocalOnlyTableWithColumns(APPNAME, dbHandle, TABLE_LOCAL,
+             new ColumnList(Arrays.asList(
+                 new Column(COLUMN_NAME, COLUMN_NAME, ElementDataType.string.name(), "[]"),
+                 new Column(COLUMN_COUNT, COLUMN_COUNT, ElementDataType.integer.name(), "[]"))));
+         for (int i = 0; i < ROW_COUNT; ++i) {
+            ContentValues cv = new ContentValues();
+            cv.put(COLUMN_NAME, (i % 10 == 0) ? null : "row " + i);
+            cv.put(COLUMN_COUNT, i);
+            serviceInterface.insertLocalOnlyRow(APPNAME, dbHandle, TABLE_LOCAL, cv);
+         }
+      } catch (Exception e) {
+         e.printStackTrace();
+         fail(e.getMessage());
+      }
+   }
+
+   protected void tearDownBefore() {
+      try {
+         if (dbHandle != null) {
+            serviceInterface.deleteLocalOnlyTable(APPNAME, dbHandle, TABLE_LOCAL);
+            serviceInterface.closeDatabase(APPNAME, dbHandle);
+         }
+      } catch (Exception e) {
+         e.printStackTrace();
+         fail(e.getMessage());
+      }
+   }
+
+   private AidlDbExtensionInterface bindToExtensionInterface() throws Exception {
+      Intent bind_intent = new Intent(OdkDatabaseService.ACTION_BIND_EXTENSION_INTERFACE);
+      bind_intent.setClassName(IntentConsts.Database.DATABASE_SERVICE_PACKAGE,
+          IntentConsts.Database.DATABASE_SERVICE_CLASS);
+      IBinder service = mServiceRule.bindService(bind_intent);
+      assertNotNull(service);
+      return AidlDbExtensionInterface.Stub.asInterface(service);
+   }
+
+   @Test public void testSimpleQueryAsStreamReturnsEveryRow() throws Exception {
+      ParcelFileDescriptor pfd = extensionInterface.simpleQueryAsStream(APPNAME, dbHandle,
+          "SELECT " + COLUMN_NAME + ", " + COLUMN_COUNT + " FROM L_" + TABLE_LOCAL
+              + " WHERE " + COLUMN_COUNT + " >= ? ORDER BY " + COLUMN_COUNT,
+          new BindArgs(new Object[] { 5 }), null, null);
+      assertNotNull(pfd);
+
+      InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+      try {
+         QueryResultStream.Reader reader = new QueryResultStream.Reader(in);
+         assertEquals(Arrays.asList(COLUMN_NAME, COLUMN_COUNT),
+             Arrays.asList(reader.getColumns()));
+
+         int expected = 5;
+         String[] row;
+         while ((row = reader.nextRow()) != null) {
+            assertEquals((expected % 10 == 0) ? null : "row " + expected, row[0]);
+            assertEquals(Integer.toString(expected), row[1]);
+            ++expected;
+         }
+         assertEquals(ROW_COUNT, expected);
+      } finally {
+         in.close();
+      }
+   }
+
+   @Test public void testPrivilegedSimpleQueryAsStreamHonorsQueryBounds() throws Exception {
+      ParcelFileDescriptor pfd = extensionInterface.privilegedSimpleQueryAsStream(APPNAME,
+          dbHandle, "SELECT " + COLUMN_COUNT + " FROM L_" + TABLE_LOCAL + " ORDER BY "
+              + COLUMN_COUNT + " DESC", null,
+          new QueryBounds(3, 1), null);
+
+      InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+      try {
+         QueryResultStream.Reader reader = new QueryResultStream.Reader(in);
+         List<String> counts = Arrays.asList(reader.nextRow()[0], reader.nextRow()[0],
+             reader.nextRow()[0]);
+         assertEquals(Arrays.asList(Integer.toString(ROW_COUNT - 2),
+             Integer.toString(ROW_COUNT - 3), Integer.toString(ROW_COUNT - 4)), counts);
+         assertNull(reader.nextRow());
+      } finally {
+         in.close();
+      }
+   }
+
+   @Test public void testInvalidQueryIsReportedByTheCall() throws Exception {
+      try {
+         extensionInterface.simpleQueryAsStream(APPNAME, dbHandle,
+             "SELECT * FROM L_" + TABLE_LOCAL + "_not_a_table", null, null, null);
+         fail("expected the query failure to be reported by the binder call");
+      } catch (RemoteException | RuntimeException e) {
+         // expected
+      }
+   }
+
+   @Test public void testAbandonedStreamsDoNotBlockLaterOnes() throws Exception {
+      // more unread streams than there are writer threads, each larger than a pipe buffer
+      String sql = "SELECT * FROM L_" + TABLE_LOCAL + " AS A, L_" + TABLE_LOCAL
+          + " AS B WHERE B." + COLUMN_COUNT + " < 10";
+      for (int i = 0; i < 8; ++i) {
+         ParcelFileDescriptor pfd = extensionInterface.simpleQueryAsStream(APPNAME, dbHandle,
+             sql, null, null, null);
+         // closing the read end without reading makes the writer fail promptly
+         pfd.close();
+      }
+
+      ParcelFileDescriptor pfd = extensionInterface.simpleQueryAsStream(APPNAME, dbHandle,
+          "SELECT COUNT(*) FROM L_" + TABLE_LOCAL, null, null, null);
+      InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+      try {
+         QueryResultStream.Reader reader = new QueryResultStream.Reader(in);
+         String[] row = reader.nextRow();
+         assertNotNull(row);
+         assertEquals(Integer.toString(ROW_COUNT), row[0]);
+         assertNull(reader.nextRow());
+      } finally {
+         in.close();
+      }
+   }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.instance.provider;
+
+import android.Manifest;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.GrantPermissionRule;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.TestConsts;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.DatabaseConstants;
+import org.opendatakit.database.RoleConsts;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.provider.InstanceColumns;
+import org.opendatakit.provider.InstanceProviderAPI;
+import org.opendatakit.services.database.AndroidConnectFactory;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+import org.opendatakit.services.utilities.ChangeNotificationCoalescer;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Applies batches of status updates through the InstanceProvider and checks
+ * that they are committed (or rolled back) as a whole and that each batch
+ * sends a single change notification for its table.
+ */
+@RunWith(AndroidJUnit4.class)
+public class InstanceProviderTest {
+
+  private static final String APPNAME = TestConsts.APPNAME;
+  private static final String TABLE_ID = "instanceProviderTable";
+  private static final String COLUMN_NAME = "col1";
+  private static final String activeUser = "anonymous";
+  private static final String currentLocale = "en_US";
+  private static final DbHandle uniqueKey = new DbHandle(
+      InstanceProviderTest.class.getSimpleName() + AndroidConnectFactory.INTERNAL_TYPE_SUFFIX);
+
+  @Rule
+  public GrantPermissionRule writeRuntimePermissionRule = GrantPermissionRule .grant(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+  @Rule
+  public GrantPermissionRule readtimePermissionRule = GrantPermissionRule .grant(Manifest.permission.READ_EXTERNAL_STORAGE);
+
+  private OdkConnectionInterface db;
+  private ContentResolver resolver;
+  private Uri tableUri;
+  private List<String> instanceIds = new ArrayList<String>();
+
+  /**
+   * Counts the notifications of the table's uri (and its descendants)
+   */
+  private static class CountingObserver extends ContentObserver {
+    final AtomicInteger changeCount = new AtomicInteger();
+
+    CountingObserver() {
+      // notified on the thread that dispatches the change
+      super(null);
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+      changeCount.incrementAndGet();
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    ODKFileUtils.verifyExternalStorageAvailability();
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+
+    // Used to ensure that the singleton has been initialized properly
+    AndroidConnectFactory.configure();
+
+    // +1 referenceCount if db is returned (non-null)
+    db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .getConnection(APPNAME, uniqueKey);
+
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column(COLUMN_NAME, COLUMN_NAME, "string", "[]"));
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumns(db, TABLE_ID, columns);
+
+    for (int i = 0; i < 2; ++i) {
+      String rowId = UUID.randomUUID().toString();
+      ContentValues cv = new ContentValues();
+      cv.put(COLUMN_NAME, "row " + i);
+      ODKDatabaseImplUtils.get().insertRowWithId(db, TABLE_ID, orderedColumns, cv, rowId,
+          activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+
+      // the uploads entry that the provider's query would otherwise create
+      Map<String,Object> upload = new HashMap<String,Object>();
+      upload.put(InstanceColumns.DATA_INSTANCE_ID, rowId);
+      upload.put(InstanceColumns.DATA_TABLE_TABLE_ID, TABLE_ID);
+      db.insertOrThrow(DatabaseConstants.UPLOADS_TABLE_NAME, null, upload);
+
+      Cursor c = db.rawQuery("SELECT " + InstanceColumns._ID + " FROM "
+          + DatabaseConstants.UPLOADS_TABLE_NAME + " WHERE "
+          + InstanceColumns.DATA_INSTANCE_ID + "=?", new Object[] { rowId });
+      try {
+        c.moveToFirst();
+        instanceIds.add(c.getString(0));
+      } finally {
+        c.close();
+      }
+    }
+
+    resolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+    tableUri = Uri.withAppendedPath(InstanceProviderAPI.CONTENT_URI, APPNAME + "/" + TABLE_ID);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (db != null) {
+      try {
+        ODKDatabaseImplUtils.get().deleteTableAndAllData(db, TABLE_ID);
+      } finally {
+        db.releaseReference();
+      }
+    }
+  }
+
+  private ContentProviderOperation newStatusUpdate(Uri uri) {
+    return ContentProviderOperation.newUpdate(uri)
+        .withValue(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMITTED).build();
+  }
+
+  private String getPublishStatus(String instanceId) {
+    Cursor c = db.rawQuery("SELECT " + InstanceColumns.XML_PUBLISH_STATUS + " FROM "
+        + DatabaseConstants.UPLOADS_TABLE_NAME + " WHERE " + InstanceColumns._ID + "=?",
+        new Object[] { instanceId });
+    try {
+      c.moveToFirst();
+      return c.getString(0);
+    } finally {
+      c.close();
+    }
+  }
+
+  private void waitForNotifications() throws InterruptedException {
+    Thread.sleep(4 * ChangeNotificationCoalescer.COALESCING_WINDOW_MILLIS);
+  }
+
+  @Test
+  public void testAppliedBatchIsCommittedAndNotifiedOnce() throws Exception {
+    CountingObserver observer = new CountingObserver();
+    resolver.registerContentObserver(tableUri, true, observer);
+    try {
+      ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+      for (String instanceId : instanceIds) {
+        operations.add(newStatusUpdate(Uri.withAppendedPath(tableUri, instanceId)));
+      }
+      // each update is routed to the batch's connection; were it not, it would
+      // wait on the write lock that the batch holds and fail
+      ContentProviderResult[] results = resolver.applyBatch(InstanceProviderAPI.AUTHORITY,
+          operations);
+      assertEquals(2, results.length);
+      assertEquals(1, results[0].count.intValue());
+      assertEquals(1, results[1].count.intValue());
+
+      waitForNotifications();
+      assertEquals(1, observer.changeCount.get());
+    } finally {
+      resolver.unregisterContentObserver(observer);
+    }
+
+    for (String instanceId : instanceIds) {
+      assertEquals(InstanceColumns.STATUS_SUBMITTED, getPublishStatus(instanceId));
+    }
+  }
+
+  @Test
+  public void testFailedBatchIsRolledBack() throws Exception {
+    CountingObserver observer = new CountingObserver();
+    resolver.registerContentObserver(tableUri, true, observer);
+    try {
+      ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(
+          Arrays.asList(newStatusUpdate(Uri.withAppendedPath(tableUri, instanceIds.get(0))),
+              newStatusUpdate(Uri.withAppendedPath(InstanceProviderAPI.CONTENT_URI,
+                  APPNAME + "/" + TABLE_ID + "_not_a_table/" + instanceIds.get(1)))));
+      try {
+        resolver.applyBatch(InstanceProviderAPI.AUTHORITY, operations);
+        fail("expected the update of the missing table to fail the batch");
+      } catch (SQLException | OperationApplicationException e) {
+        // expected
+      }
+
+      waitForNotifications();
+      assertEquals(0, observer.changeCount.get());
+      assertNull(getPublishStatus(instanceIds.get(0)));
+
+      // the batch no longer owns this thread: a plain update commits on its own
+      ContentValues cv = new ContentValues();
+      cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMITTED);
+      assertEquals(1, resolver.update(Uri.withAppendedPath(tableUri, instanceIds.get(0)), cv,
+          null, null));
+
+      waitForNotifications();
+      assertEquals(1, observer.changeCount.get());
+    } finally {
+      resolver.unregisterContentObserver(observer);
+    }
+
+    assertEquals(InstanceColumns.STATUS_SUBMITTED, getPublishStatus(instanceIds.get(0)));
+  }
+}
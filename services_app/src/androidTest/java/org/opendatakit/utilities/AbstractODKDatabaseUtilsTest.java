@@ -6611,6 +6611,166 @@ public abstract class AbstractODKDatabaseUtilsTest {
     }
   }
 
+  /*
+   * Create a table whose rows have NULL and repeated values of col0, some of which also
+   * have a checkpoint row with the same _id (and col0)
+   */
+  private OrderedColumns createQueryAfterTable(String tableId)
+      throws ActionNotAuthorizedException, InterruptedException {
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column("col0", "col0", ElementDataType.integer.name(), "[]"));
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumns(db, tableId, columns);
+
+    for (int i = 0; i < 12; ++i) {
+      String rowId = LocalizationUtils.genUUID();
+      ContentValues cvValues = new ContentValues();
+      if (i % 4 == 0) {
+        cvValues.putNull("col0");
+      } else {
+        cvValues.put("col0", i % 3);
+      }
+      ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cvValues, rowId,
+          activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+      if (i % 3 == 0) {
+        // savepoint timestamps have millisecond resolution
+        Thread.sleep(2);
+        ODKDatabaseImplUtils.get().insertCheckpointRowWithId(db, tableId, orderedColumns,
+            cvValues, rowId, activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+      }
+    }
+    return orderedColumns;
+  }
+
+  /*
+   * The _id/_savepoint_timestamp of every row of the table, in the given order
+   */
+  private List<String> getExpectedQueryAfterRows(String tableId, String orderBy) {
+    List<String> rows = new ArrayList<String>();
+    Cursor c = db.rawQuery("SELECT " + DataTableColumns.ID + ", "
+        + DataTableColumns.SAVEPOINT_TIMESTAMP + " FROM " + tableId + " ORDER BY " + orderBy,
+        null);
+    try {
+      while (c.moveToNext()) {
+        rows.add(c.getString(0) + "/" + c.getString(1));
+      }
+    } finally {
+      c.close();
+    }
+    return rows;
+  }
+
+  /*
+   * The _id/_savepoint_timestamp of every row of the table, read one page at a time
+   */
+  private List<String> getQueryAfterRowsInPages(String tableId, OrderedColumns orderedColumns,
+      String[] orderByKeys, String[] orderByDirs, int pageSize, int rowCount) {
+    ODKDatabaseImplUtils.AccessContext accessContext = ODKDatabaseImplUtils.get()
+        .getAccessContext(db, tableId, activeUser, RoleConsts.USER_ROLES_LIST);
+    List<String> adminColumns = ODKDatabaseImplUtils.get().getAdminColumns();
+    String[] adminColArr = adminColumns.toArray(new String[adminColumns.size()]);
+    int nKeys = (orderByKeys == null) ? 0 : orderByKeys.length;
+
+    List<String> rows = new ArrayList<String>();
+    Object[] lastKey = null;
+    // more pages than that would mean rows are repeated
+    for (int page = 0; page <= rowCount; ++page) {
+      BaseTable baseTable = ODKDatabaseImplUtils.get().queryAfter(db, tableId, null, null,
+          orderByKeys, orderByDirs, lastKey, pageSize, accessContext, null);
+      UserTable table = new UserTable(baseTable, orderedColumns, adminColArr);
+      assertTrue(table.getNumberOfRows() <= pageSize);
+      if (table.getNumberOfRows() == 0) {
+        return rows;
+      }
+      TypedRow last = null;
+      for (int i = 0; i < table.getNumberOfRows(); ++i) {
+        last = table.getRowAtIndex(i);
+        rows.add(last.getRawStringByKey(DataTableColumns.ID) + "/"
+            + last.getRawStringByKey(DataTableColumns.SAVEPOINT_TIMESTAMP));
+      }
+      // the cursor token of the next page
+      lastKey = new Object[nKeys + 2];
+      for (int k = 0; k < nKeys; ++k) {
+        lastKey[k] = last.getRawStringByKey(orderByKeys[k]);
+      }
+      lastKey[nKeys] = last.getRawStringByKey(DataTableColumns.ID);
+      lastKey[nKeys + 1] = last.getRawStringByKey(DataTableColumns.SAVEPOINT_TIMESTAMP);
+    }
+    fail("queryAfter did not reach the end of the table");
+    return rows;
+  }
+
+  /*
+   * Test paging through rows in ascending order when the ordering column has NULLs
+   */
+  @Test
+  public void testQueryAfterAscendingWithNullKeys_ExpectPass()
+      throws ActionNotAuthorizedException, InterruptedException {
+    String tableId = testTable;
+    OrderedColumns orderedColumns = createQueryAfterTable(tableId);
+
+    List<String> expected = getExpectedQueryAfterRows(tableId, "col0 ASC, "
+        + DataTableColumns.ID + " ASC, " + DataTableColumns.SAVEPOINT_TIMESTAMP + " ASC");
+    for (int pageSize = 1; pageSize <= 4; ++pageSize) {
+      assertEquals(expected, getQueryAfterRowsInPages(tableId, orderedColumns,
+          new String[] { "col0" }, new String[] { "ASC" }, pageSize, expected.size()));
+    }
+
+    // Drop the table now that the test is done
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+  }
+
+  /*
+   * Test paging through rows in descending order when the ordering column has NULLs
+   */
+  @Test
+  public void testQueryAfterDescendingWithNullKeys_ExpectPass()
+      throws ActionNotAuthorizedException, InterruptedException {
+    String tableId = testTable;
+    OrderedColumns orderedColumns = createQueryAfterTable(tableId);
+
+    List<String> expected = getExpectedQueryAfterRows(tableId, "col0 DESC, "
+        + DataTableColumns.ID + " ASC, " + DataTableColumns.SAVEPOINT_TIMESTAMP + " ASC");
+    for (int pageSize = 1; pageSize <= 4; ++pageSize) {
+      assertEquals(expected, getQueryAfterRowsInPages(tableId, orderedColumns,
+          new String[] { "col0" }, new String[] { "DESC" }, pageSize, expected.size()));
+    }
+
+    // Drop the table now that the test is done
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+  }
+
+  /*
+   * Test that a page boundary between the checkpoint rows of an _id neither skips nor
+   * repeats any of them
+   */
+  @Test
+  public void testQueryAfterCheckpointRowsWithDuplicateIds_ExpectPass()
+      throws ActionNotAuthorizedException, InterruptedException {
+    String tableId = testTable;
+    OrderedColumns orderedColumns = createQueryAfterTable(tableId);
+
+    List<String> expected = getExpectedQueryAfterRows(tableId,
+        DataTableColumns.ID + " ASC, " + DataTableColumns.SAVEPOINT_TIMESTAMP + " ASC");
+    int nIds = 0;
+    String lastId = null;
+    for (String row : expected) {
+      String id = row.substring(0, row.indexOf('/'));
+      if (!id.equals(lastId)) {
+        ++nIds;
+        lastId = id;
+      }
+    }
+    assertTrue(nIds < expected.size());
+
+    // every page boundary falls between two rows, some of them with the same _id
+    assertEquals(expected, getQueryAfterRowsInPages(tableId, orderedColumns, null, null, 1,
+        expected.size()));
+
+    // Drop the table now that the test is done
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+  }
+
   @Test
   public void testMemoryLeakCyclingSubset_ExpectPass() throws ActionNotAuthorizedException {
     int maxIterations = 200;
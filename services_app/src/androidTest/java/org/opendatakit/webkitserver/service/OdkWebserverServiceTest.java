@@ -22,6 +22,8 @@ import org.opendatakit.TestConsts;
 import org.opendatakit.consts.WebkitServerConsts;
 import org.opendatakit.httpclientandroidlib.HttpStatus;
 import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.webkitservice.service.OdkWebkitServerService;
+import org.opendatakit.services.webkitservice.service.WebkitServerExtensionInterface;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.utilities.StaticStateManipulator;
 
@@ -32,7 +34,10 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -182,6 +187,23 @@ public class OdkWebserverServiceTest {
         }
     }
 
+    @Test
+    public void testMetricsOverExtensionInterface() throws Exception {
+        Intent bind_intent = new Intent(OdkWebkitServerService.ACTION_BIND_EXTENSION_INTERFACE);
+        bind_intent.setClassName(WebkitServerConsts.WEBKITSERVER_SERVICE_PACKAGE,
+            WebkitServerConsts.WEBKITSERVER_SERVICE_CLASS);
+        IBinder service = mServiceRule.bindService(bind_intent);
+        assertNotNull(service);
+        WebkitServerExtensionInterface extensionInterface =
+            WebkitServerExtensionInterface.Stub.asInterface(service);
+
+        extensionInterface.resetMetrics();
+        Map<?,?> metrics = ODKFileUtils.mapper.readValue(extensionInterface.getMetrics(),
+            Map.class);
+        assertEquals(0L, ((Number) metrics.get("requests")).longValue());
+        assertNotNull(metrics.get("latency"));
+    }
+
     @Test
     public void testServingHelloWorldHtml() {
         ODKFileUtils.verifyExternalStorageAvailability();
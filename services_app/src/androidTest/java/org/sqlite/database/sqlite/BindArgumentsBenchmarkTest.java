@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sqlite.database.sqlite;
+
+import android.database.Cursor;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.TestConsts;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.database.OperationLog;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares binding a wide row one native call per argument against binding
+ * it with a single nativeBindArguments call. When the loaded libsqliteX.so
+ * predates nativeBindArguments, only the per-argument path is timed.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BindArgumentsBenchmarkTest {
+
+  private static final String TAG = "BindArgumentsBenchmarkTest";
+  private static final String APPNAME = TestConsts.APPNAME;
+  private static final String SESSION = "bindArgumentsBenchmark";
+
+  private static final int COLUMNS = 120;
+  private static final int ROWS = 1000;
+  private static final int ROUNDS = 3;
+
+  private File dbFile;
+  private SQLiteConnection db;
+
+  @Before
+  public void setUp() throws Exception {
+    ODKFileUtils.verifyExternalStorageAvailability();
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+
+    dbFile = new File(ODKFileUtils.getWebDbFolder(APPNAME), SESSION + ".sqlite");
+    deleteDatabaseFiles();
+
+    SQLiteDatabaseConfiguration configuration = new SQLiteDatabaseConfiguration(APPNAME,
+        dbFile.getAbsolutePath(), SQLiteConnectionBase.ENABLE_WRITE_AHEAD_LOGGING |
+        SQLiteConnectionBase.OPEN_READWRITE | SQLiteConnectionBase.CREATE_IF_NECESSARY |
+        SQLiteConnectionBase.NO_LOCALIZED_COLLATORS, SESSION);
+    db = new SQLiteConnection(configuration, new OperationLog(APPNAME), null, SESSION);
+    db.open();
+
+    StringBuilder b = new StringBuilder("CREATE TABLE bench (");
+    for (int i = 0; i < COLUMNS; ++i) {
+      b.append((i == 0) ? "" : ",").append("c").append(i);
+      switch (i % 3) {
+      case 0:
+        b.append(" TEXT");
+        break;
+      case 1:
+        b.append(" INTEGER");
+        break;
+      default:
+        b.append(" REAL");
+        break;
+      }
+    }
+    b.append(")");
+    db.execSQL(b.toString(), null);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    SQLiteConnection.setNativeBindArgumentsEnabled(true);
+    if (db != null) {
+      db.releaseReference();
+    }
+    deleteDatabaseFiles();
+  }
+
+  private void deleteDatabaseFiles() {
+    for (String suffix : new String[] { "", "-wal", "-shm", "-journal" }) {
+      File f = new File(dbFile.getAbsolutePath() + suffix);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  private List<Object[]> buildRows() {
+    List<Object[]> rows = new ArrayList<Object[]>(ROWS);
+    for (int r = 0; r < ROWS; ++r) {
+      Object[] row = new Object[COLUMNS];
+      for (int i = 0; i < COLUMNS; ++i) {
+        switch (i % 3) {
+        case 0:
+          row[i] = (r % 10 == 0) ? null : ("value " + r + "." + i);
+          break;
+        case 1:
+          row[i] = (long) (r * COLUMNS + i);
+          break;
+        default:
+          row[i] = r + i / 1000.0;
+          break;
+        }
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  private long timeInserts(String sql, List<Object[]> rows, boolean nativeBindArguments) {
+    SQLiteConnection.setNativeBindArgumentsEnabled(nativeBindArguments);
+    db.execSQL("DELETE FROM bench", null);
+    long start = System.nanoTime();
+    db.beginTransaction(SQLiteConnectionBase.TRANSACTION_MODE_IMMEDIATE, null);
+    try {
+      db.executeBatch(sql, rows, null);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    long elapsed = System.nanoTime() - start;
+    assertEquals(ROWS, db.executeForLong("SELECT COUNT(*) FROM bench", null, null));
+    return elapsed;
+  }
+
+  private void verifyRow(Object[] expected) {
+    Cursor c = db.rawQuery("SELECT * FROM bench WHERE c1 = ?", new Object[] { expected[1] }, null);
+    try {
+      assertEquals(1, c.getCount());
+      c.moveToFirst();
+      for (int i = 0; i < COLUMNS; ++i) {
+        switch (i % 3) {
+        case 0:
+          assertEquals(expected[i], c.isNull(i) ? null : c.getString(i));
+          break;
+        case 1:
+          assertEquals(expected[i], c.getLong(i));
+          break;
+        default:
+          assertEquals((Double) expected[i], c.getDouble(i), 0.0);
+          break;
+        }
+      }
+    } finally {
+      c.close();
+    }
+  }
+
+  @Test
+  public void testBindArgumentsBenchmark() {
+    StringBuilder b = new StringBuilder("INSERT INTO bench VALUES (");
+    for (int i = 0; i < COLUMNS; ++i) {
+      b.append((i == 0) ? "?" : ",?");
+    }
+    b.append(")");
+    String sql = b.toString();
+    List<Object[]> rows = buildRows();
+
+    boolean singleCallAvailable = SQLiteConnection.isNativeBindArgumentsAvailable();
+
+    // warm up both paths and verify that they store the same values
+    timeInserts(sql, rows, false);
+    verifyRow(rows.get(ROWS - 1));
+    if (singleCallAvailable) {
+      timeInserts(sql, rows, true);
+      verifyRow(rows.get(ROWS - 1));
+    }
+
+    long perArgument = Long.MAX_VALUE;
+    long singleCall = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; ++round) {
+      perArgument = Math.min(perArgument, timeInserts(sql, rows, false));
+      if (singleCallAvailable) {
+        singleCall = Math.min(singleCall, timeInserts(sql, rows, true));
+      }
+    }
+
+    WebLogger.getLogger(APPNAME).i(TAG, ROWS + " rows x " + COLUMNS + " columns: "
+        + "per-argument binding " + (perArgument / 1000000L) + " ms, "
+        + (singleCallAvailable ? "single-call binding " + (singleCall / 1000000L) + " ms" :
+        "single-call binding is not provided by the loaded native library"));
+  }
+}
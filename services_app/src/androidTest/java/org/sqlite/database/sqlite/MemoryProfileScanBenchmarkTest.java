@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sqlite.database.sqlite;
+
+import android.database.Cursor;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.TestConsts;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.database.OperationLog;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Times large table scans (an aggregate over every row and a sort that spills
+ * into temp storage) under each SQLiteMemoryProfile. Each profile gets its own
+ * database file so that its page size takes effect. Like the ODK databases, the
+ * file is under the external opendatakit folder, so the profiles are timed
+ * without their memory-mapped window.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MemoryProfileScanBenchmarkTest {
+
+  private static final String TAG = "MemoryProfileScanBenchmarkTest";
+  private static final String APPNAME = TestConsts.APPNAME;
+  private static final String SESSION = "memoryProfileBenchmark";
+
+  private static final int ROWS = 50000;
+  private static final int ROUNDS = 3;
+
+  private File dbFile;
+  private SQLiteConnection db;
+
+  @Before
+  public void setUp() throws Exception {
+    ODKFileUtils.verifyExternalStorageAvailability();
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+
+    dbFile = new File(ODKFileUtils.getWebDbFolder(APPNAME), SESSION + ".sqlite");
+    deleteDatabaseFiles();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    closeDatabase();
+    deleteDatabaseFiles();
+  }
+
+  private void closeDatabase() {
+    if (db != null) {
+      db.releaseReference();
+      db = null;
+    }
+  }
+
+  private void deleteDatabaseFiles() {
+    for (String suffix : new String[] { "", "-wal", "-shm", "-journal" }) {
+      File f = new File(dbFile.getAbsolutePath() + suffix);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  private void openDatabase(SQLiteMemoryProfile profile) {
+    SQLiteDatabaseConfiguration configuration = new SQLiteDatabaseConfiguration(APPNAME,
+        dbFile.getAbsolutePath(), SQLiteConnectionBase.ENABLE_WRITE_AHEAD_LOGGING |
+        SQLiteConnectionBase.OPEN_READWRITE | SQLiteConnectionBase.CREATE_IF_NECESSARY |
+        SQLiteConnectionBase.NO_LOCALIZED_COLLATORS, SESSION);
+    configuration.applyMemoryProfile(profile);
+    // the database lives on external storage, where AndroidOdkConnection never maps it
+    configuration.mmapSize = 0L;
+    db = new SQLiteConnection(configuration, new OperationLog(APPNAME), null, SESSION);
+    db.open();
+  }
+
+  private void populate() {
+    db.execSQL("CREATE TABLE bench (id TEXT PRIMARY KEY, c0 TEXT, c1 INTEGER, c2 REAL, "
+        + "c3 TEXT, c4 TEXT)", null);
+    List<Object[]> rows = new ArrayList<Object[]>(ROWS);
+    for (int r = 0; r < ROWS; ++r) {
+      rows.add(new Object[] { "uuid:" + r, "some text value for row " + r, (long) r,
+          (r * 7919L % ROWS) / 3.0, "location " + (r % 97), (r % 5 == 0) ? null : "note " + r });
+    }
+    db.beginTransaction(SQLiteConnectionBase.TRANSACTION_MODE_IMMEDIATE, null);
+    try {
+      db.executeBatch("INSERT INTO bench VALUES (?,?,?,?,?,?)", rows, null);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    // start every profile from a fully checkpointed database file
+    db.executeForLong("PRAGMA wal_checkpoint(TRUNCATE)", null, null);
+  }
+
+  private long timeAggregateScan() {
+    long start = System.nanoTime();
+    long total = db.executeForLong(
+        "SELECT SUM(length(c0)) + SUM(c1) + COUNT(c4) FROM bench WHERE c3 LIKE 'loc%'", null, null);
+    long elapsed = System.nanoTime() - start;
+    assertEquals(expectedAggregate(), total);
+    return elapsed;
+  }
+
+  private long timeSortedScan() {
+    long start = System.nanoTime();
+    Cursor c = db.rawQuery("SELECT id, c2 FROM bench ORDER BY c3 DESC, c2 LIMIT 20", null, null);
+    try {
+      assertEquals(20, c.getCount());
+    } finally {
+      c.close();
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static long expectedAggregate() {
+    long sum = 0L;
+    for (int r = 0; r < ROWS; ++r) {
+      sum += ("some text value for row " + r).length() + r + ((r % 5 == 0) ? 0 : 1);
+    }
+    return sum;
+  }
+
+  @Test
+  public void testMemoryProfileScanBenchmark() {
+    StringBuilder b = new StringBuilder();
+    b.append(ROWS).append(" rows, best of ").append(ROUNDS).append(":");
+    for (SQLiteMemoryProfile profile : SQLiteMemoryProfile.values()) {
+      closeDatabase();
+      deleteDatabaseFiles();
+      openDatabase(profile);
+      populate();
+
+      // reopen so that the scans start from an empty page cache
+      closeDatabase();
+      openDatabase(profile);
+
+      long aggregate = Long.MAX_VALUE;
+      long sorted = Long.MAX_VALUE;
+      for (int round = 0; round < ROUNDS; ++round) {
+        aggregate = Math.min(aggregate, timeAggregateScan());
+        sorted = Math.min(sorted, timeSortedScan());
+      }
+      b.append(" ").append(profile.name())
+          .append(" (page ").append(db.executeForLong("PRAGMA page_size", null, null))
+          .append(") aggregate ").append(aggregate / 1000000L)
+          .append(" ms, sorted ").append(sorted / 1000000L).append(" ms;");
+    }
+    WebLogger.getLogger(APPNAME).i(TAG, b.toString());
+  }
+}
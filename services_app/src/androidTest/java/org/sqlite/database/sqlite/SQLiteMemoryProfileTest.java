@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sqlite.database.sqlite;
+
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.TestConsts;
+import org.opendatakit.services.database.OperationLog;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the PRAGMAs that a SQLiteMemoryProfile applies when a connection is opened, and
+ * that a connection opened without one keeps the SQLite defaults.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SQLiteMemoryProfileTest {
+
+  private static final String APPNAME = TestConsts.APPNAME;
+  private static final String SESSION = "memoryProfileTest";
+
+  private File dbFile;
+  private SQLiteConnection db;
+
+  @Before
+  public void setUp() throws Exception {
+    ODKFileUtils.verifyExternalStorageAvailability();
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+
+    dbFile = new File(ODKFileUtils.getWebDbFolder(APPNAME), SESSION + ".sqlite");
+    deleteDatabaseFiles();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    closeDatabase();
+    deleteDatabaseFiles();
+  }
+
+  private void closeDatabase() {
+    if (db != null) {
+      db.releaseReference();
+      db = null;
+    }
+  }
+
+  private void deleteDatabaseFiles() {
+    for (String suffix : new String[] { "", "-wal", "-shm", "-journal" }) {
+      File f = new File(dbFile.getAbsolutePath() + suffix);
+      if (f.exists()) {
+        f.delete();
+      }
+    }
+  }
+
+  private void openDatabase(SQLiteMemoryProfile profile) {
+    SQLiteDatabaseConfiguration configuration = new SQLiteDatabaseConfiguration(APPNAME,
+        dbFile.getAbsolutePath(), SQLiteConnectionBase.ENABLE_WRITE_AHEAD_LOGGING |
+        SQLiteConnectionBase.OPEN_READWRITE | SQLiteConnectionBase.CREATE_IF_NECESSARY |
+        SQLiteConnectionBase.NO_LOCALIZED_COLLATORS, SESSION);
+    configuration.applyMemoryProfile(profile);
+    db = new SQLiteConnection(configuration, new OperationLog(APPNAME), null, SESSION);
+    db.open();
+  }
+
+  private long pragma(String name) {
+    return db.executeForLong("PRAGMA " + name, null, null);
+  }
+
+  private void assertSQLiteDefaults() {
+    assertEquals(0L, pragma("mmap_size"));
+    assertEquals(0L, pragma("temp_store"));
+    long cacheSize = pragma("cache_size");
+    for (SQLiteMemoryProfile profile : SQLiteMemoryProfile.values()) {
+      assertNotEquals(profile.name(), -((long) profile.cacheSizeKib), cacheSize);
+    }
+  }
+
+  @Test
+  public void testNoProfileKeepsSQLiteDefaults() {
+    openDatabase(null);
+    assertSQLiteDefaults();
+    assertEquals(SQLiteGlobal.getDefaultPageSize(), pragma("page_size"));
+  }
+
+  @Test
+  public void testProfileSettingsAreApplied() {
+    for (SQLiteMemoryProfile profile : SQLiteMemoryProfile.values()) {
+      closeDatabase();
+      deleteDatabaseFiles();
+      openDatabase(profile);
+
+      String msg = profile.name();
+      assertEquals(msg, -((long) profile.cacheSizeKib), pragma("cache_size"));
+      assertEquals(msg, profile.tempStoreInMemory ? 2L : 0L, pragma("temp_store"));
+      assertEquals(msg, (profile.pageSize != 0L) ? profile.pageSize :
+          SQLiteGlobal.getDefaultPageSize(), pragma("page_size"));
+      long mmapSize = pragma("mmap_size");
+      if (profile.mmapSize == 0L) {
+        assertEquals(msg, 0L, mmapSize);
+      } else {
+        // capped by SQLITE_MAX_MMAP_SIZE in the native library
+        assertTrue(msg, mmapSize > 0L && mmapSize <= profile.mmapSize);
+      }
+    }
+  }
+
+  @Test
+  public void testNoProfileAfterProfileRestoresDefaults() {
+    openDatabase(SQLiteMemoryProfile.LARGE);
+    closeDatabase();
+
+    // the page size persists in the file; the per-connection settings do not
+    openDatabase(null);
+    assertSQLiteDefaults();
+  }
+}
@@ -68,6 +68,10 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.security.KeyStore;
 import java.text.SimpleDateFormat;
@@ -83,9 +87,19 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -718,6 +732,28 @@ public abstract class NanoHTTPD {
 
     }
 
+    /**
+     * Find byte index separating header from body. It must be the last byte
+     * of the first two sequential new lines.
+     */
+    private static int findHeaderEnd(final byte[] buf, int rlen) {
+        int splitbyte = 0;
+        while (splitbyte + 1 < rlen) {
+
+            // RFC2616
+            if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && splitbyte + 3 < rlen && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
+                return splitbyte + 4;
+            }
+
+            // tolerance
+            if (buf[splitbyte] == '\n' && buf[splitbyte + 1] == '\n') {
+                return splitbyte + 2;
+            }
+            splitbyte++;
+        }
+        return 0;
+    }
+
     protected class HTTPSession implements IHTTPSession {
 
         private static final int REQUEST_BUFFER_LEN = 512;
@@ -983,6 +1019,7 @@ public abstract class NanoHTTPD {
         @Override
         public void execute() throws IOException {
             Response r = null;
+            long startNanos = System.nanoTime();
             try {
                 // Read the first 8192 bytes.
                 // The full header should fit in here.
@@ -1010,6 +1047,7 @@ public abstract class NanoHTTPD {
                     safeClose(this.outputStream);
                     throw new SocketException("NanoHttpd Shutdown");
                 }
+                startNanos = System.nanoTime();
                 while (read > 0) {
                     this.rlen += read;
                     this.splitbyte = findHeaderEnd(buf, this.rlen);
@@ -1073,6 +1111,7 @@ public abstract class NanoHTTPD {
                     r.setGzipEncoding(useGzipWhenAccepted(r) && acceptEncoding != null && acceptEncoding.contains("gzip"));
                     r.setKeepAlive(keepAlive);
                     r.send(this.outputStream);
+                    recordMetrics(r, startNanos);
                 }
                 if (!keepAlive || r.isCloseConnection()) {
                     throw new SocketException("NanoHttpd Shutdown");
@@ -1096,6 +1135,7 @@ public abstract class NanoHTTPD {
             } catch (ResponseException re) {
                 Response resp = newFixedLengthResponse(re.getStatus(), NanoHTTPD.MIME_PLAINTEXT, re.getMessage());
                 resp.send(this.outputStream);
+                recordMetrics(resp, startNanos);
                 safeClose(this.outputStream);
             } finally {
                 safeClose(r);
@@ -1103,26 +1143,9 @@ public abstract class NanoHTTPD {
             }
         }
 
-        /**
-         * Find byte index separating header from body. It must be the last byte
-         * of the first two sequential new lines.
-         */
-        private int findHeaderEnd(final byte[] buf, int rlen) {
-            int splitbyte = 0;
-            while (splitbyte + 1 < rlen) {
-
-                // RFC2616
-                if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && splitbyte + 3 < rlen && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
-                    return splitbyte + 4;
-                }
-
-                // tolerance
-                if (buf[splitbyte] == '\n' && buf[splitbyte + 1] == '\n') {
-                    return splitbyte + 2;
-                }
-                splitbyte++;
-            }
-            return 0;
+        private void recordMetrics(Response r, long startNanos) {
+            NanoHTTPD.this.metrics.record(r.getMimeType(), r.getStatus().getRequestStatus(), r.bodySourceBytes, r.bodyWireBytes, r.encodeAsGzip,
+                    System.nanoTime() - startNanos);
         }
 
         /**
@@ -1577,6 +1600,35 @@ public abstract class NanoHTTPD {
 
         }
 
+        /**
+         * Output stream that counts the bytes written to the wrapped
+         * OutputStream.
+         */
+        private static class CountingOutputStream extends FilterOutputStream {
+
+            private long count;
+
+            public CountingOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                ++count;
+            }
+
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                count += len;
+            }
+
+            public long getCount() {
+                return count;
+            }
+        }
+
         /**
          * Output stream that will automatically send every write to the wrapped
          * OutputStream according to chunked transfer:
@@ -1671,6 +1723,14 @@ public abstract class NanoHTTPD {
 
         private boolean keepAlive;
 
+        /**
+         * Body bytes read from data, and written to the client (after any
+         * gzip and chunked encoding), for WebServerMetrics.
+         */
+        private long bodySourceBytes;
+
+        private long bodyWireBytes;
+
         /**
          * Creates a fixed length response if totalBytes>=0, otherwise chunked.
          */
@@ -1756,67 +1816,11 @@ public abstract class NanoHTTPD {
          * Sends given response to the socket.
          */
         protected void send(OutputStream outputStream) {
-            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-            StringBuilder b = new StringBuilder();
-
             try {
-                if (this.status == null) {
-                    throw new Error("sendResponse(): Status can't be null.");
-                }
-
-                // Use CopyWriter for logging instead of PrintWriter
-                //CopyWriter cw = new CopyWriter(outputStream, getOdkAppName());
-                PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(outputStream, new ContentType(this.mimeType).getEncoding())), false);
-
-                // Http Response
-                //cw.append("HTTP/1.1 ").append(this.status.getDescription()).append(" \r\n");
-                pw.append("HTTP/1.1 ").append(this.status.getDescription()).append(" \r\n");
-
-                if (this.mimeType != null) {
-                    if (this.mimeType.toLowerCase(Locale.ENGLISH).contains("charset=utf-8")) {
-                        //printHeader(cw, "Content-Type", this.mimeType);
-                        printHeader(pw, "Content-Type", this.mimeType);
-                    } else {
-                        printHeader(pw, "Content-Type", this.mimeType +"; charset=utf-8");
-                    }
-                }
-                if (getHeader("date") == null) {
-                    //printHeader(cw, "Date", gmtFrmt.format(new Date()));
-                    printHeader(pw, "Date", gmtFrmt.format(new Date()));
-                }
-                for (Entry<String, String> entry : this.header.entrySet()) {
-                    //printHeader(cw, entry.getKey(), entry.getValue());
-                    printHeader(pw, entry.getKey(), entry.getValue());
-                }
-                if (getHeader("connection") == null) {
-                    //printHeader(cw, "Connection", (this.keepAlive ? "keep-alive" : "close"));
-                    printHeader(pw, "Connection", (this.keepAlive ? "keep-alive" : "close"));
-                }
-                if (getHeader("content-length") != null) {
-                    encodeAsGzip = false;
-                }
-                if (encodeAsGzip) {
-                    //printHeader(cw, "Content-Encoding", "gzip");
-                    printHeader(pw, "Content-Encoding", "gzip");
-                    setChunkedTransfer(true);
-                }
-                long pending = this.data != null ? this.contentLength : 0;
-                if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
-                    //printHeader(cw, "Transfer-Encoding", "chunked");
-                    printHeader(pw, "Transfer-Encoding", "chunked");
-                } else if (!encodeAsGzip) {
-                    //pending = sendContentLengthHeaderIfNotAlreadyPresent(cw, pending);
-                    pending = sendContentLengthHeaderIfNotAlreadyPresent(pw, pending);
-                }
-                //cw.append("\r\n");
-                pw.append("\r\n");
-                //cw.flush();
-                pw.flush();
+                long pending = sendHeaders(outputStream);
                 sendBodyWithCorrectTransferAndEncoding(outputStream, pending);
                 //cw.flush();
-                pw.flush();
+                outputStream.flush();
                 //cw.logResponse(getOdkAppName());
                 safeClose(this.data);
             } catch (IOException ioe) {
@@ -1824,6 +1828,75 @@ public abstract class NanoHTTPD {
             }
         }
 
+        /**
+         * Sends the status line and headers of this response.
+         *
+         * @param outputStream
+         *            the OutputStream to send the headers to
+         * @return the number of body bytes that should follow, or -1 if the
+         *         body is chunked or gzipped.
+         * @throws IOException
+         *             if something goes wrong while sending the headers.
+         */
+        protected long sendHeaders(OutputStream outputStream) throws IOException {
+            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+            if (this.status == null) {
+                throw new Error("sendResponse(): Status can't be null.");
+            }
+
+            // Use CopyWriter for logging instead of PrintWriter
+            //CopyWriter cw = new CopyWriter(outputStream, getOdkAppName());
+            PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(outputStream, new ContentType(this.mimeType).getEncoding())), false);
+
+            // Http Response
+            //cw.append("HTTP/1.1 ").append(this.status.getDescription()).append(" \r\n");
+            pw.append("HTTP/1.1 ").append(this.status.getDescription()).append(" \r\n");
+
+            if (this.mimeType != null) {
+                if (this.mimeType.toLowerCase(Locale.ENGLISH).contains("charset=utf-8")) {
+                    //printHeader(cw, "Content-Type", this.mimeType);
+                    printHeader(pw, "Content-Type", this.mimeType);
+                } else {
+                    printHeader(pw, "Content-Type", this.mimeType +"; charset=utf-8");
+                }
+            }
+            if (getHeader("date") == null) {
+                //printHeader(cw, "Date", gmtFrmt.format(new Date()));
+                printHeader(pw, "Date", gmtFrmt.format(new Date()));
+            }
+            for (Entry<String, String> entry : this.header.entrySet()) {
+                //printHeader(cw, entry.getKey(), entry.getValue());
+                printHeader(pw, entry.getKey(), entry.getValue());
+            }
+            if (getHeader("connection") == null) {
+                //printHeader(cw, "Connection", (this.keepAlive ? "keep-alive" : "close"));
+                printHeader(pw, "Connection", (this.keepAlive ? "keep-alive" : "close"));
+            }
+            if (getHeader("content-length") != null) {
+                encodeAsGzip = false;
+            }
+            if (encodeAsGzip) {
+                //printHeader(cw, "Content-Encoding", "gzip");
+                printHeader(pw, "Content-Encoding", "gzip");
+                setChunkedTransfer(true);
+            }
+            long pending = this.data != null ? this.contentLength : 0;
+            if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
+                //printHeader(cw, "Transfer-Encoding", "chunked");
+                printHeader(pw, "Transfer-Encoding", "chunked");
+            } else if (!encodeAsGzip) {
+                //pending = sendContentLengthHeaderIfNotAlreadyPresent(cw, pending);
+                pending = sendContentLengthHeaderIfNotAlreadyPresent(pw, pending);
+            }
+            //cw.append("\r\n");
+            pw.append("\r\n");
+            //cw.flush();
+            pw.flush();
+            return pending;
+        }
+
         @SuppressWarnings("static-method")
         protected void printHeader(PrintWriter pw, String key, String value) {
             pw.append(key).append(": ").append(value).append("\r\n");
@@ -1861,13 +1934,18 @@ public abstract class NanoHTTPD {
             return size;
         }
 
-        private void sendBodyWithCorrectTransferAndEncoding(OutputStream outputStream, long pending) throws IOException {
-            if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
-                ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream);
-                sendBodyWithCorrectEncoding(chunkedOutputStream, -1);
-                chunkedOutputStream.finish();
-            } else {
-                sendBodyWithCorrectEncoding(outputStream, pending);
+        protected void sendBodyWithCorrectTransferAndEncoding(OutputStream outputStream, long pending) throws IOException {
+            CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+            try {
+                if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
+                    ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(countingOutputStream);
+                    sendBodyWithCorrectEncoding(chunkedOutputStream, -1);
+                    chunkedOutputStream.finish();
+                } else {
+                    sendBodyWithCorrectEncoding(countingOutputStream, pending);
+                }
+            } finally {
+                this.bodyWireBytes = countingOutputStream.getCount();
             }
         }
 
@@ -1905,6 +1983,7 @@ public abstract class NanoHTTPD {
                     break;
                 }
                 outputStream.write(buff, 0, read);
+                this.bodySourceBytes += read;
                 if (!sendEverything) {
                     pending -= read;
                 }
@@ -1958,11 +2037,11 @@ public abstract class NanoHTTPD {
      */
     public class ServerRunnable implements Runnable {
 
-        private final int timeout;
+        protected final int timeout;
 
-        private IOException bindException;
+        protected IOException bindException;
 
-        private boolean hasBinded = false;
+        protected boolean hasBinded = false;
 
         public ServerRunnable(int timeout) {
             this.timeout = timeout;
@@ -1992,6 +2071,280 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * The runnable that will be used for the main listening thread when the
+     * server is in non-blocking mode.
+     * <p/>
+     * <p>
+     * A single thread accepts connections and waits, through a
+     * {@link Selector}, for idle keep-alive connections to become readable.
+     * A readable connection is handed to a bounded pool of worker threads,
+     * which runs the usual {@link HTTPSession} over it in blocking mode, so
+     * that serve(), file I/O and gzip never run on the selector thread and
+     * responses are streamed to the client exactly as in blocking mode. Once
+     * the response has been sent the connection is returned to the selector.
+     * This avoids holding a thread (and its stack) per idle keep-alive
+     * connection.
+     * </p>
+     */
+    public class SelectorServerRunnable extends ServerRunnable {
+
+        /**
+         * Maximum time to block in select() before checking for shutdown and
+         * idle connections (in milliseconds).
+         */
+        private static final int SELECT_INTERVAL = 1000;
+
+        /**
+         * Maximum number of connections served concurrently.
+         */
+        private static final int MAX_WORKER_THREADS = 8;
+
+        /**
+         * How long an idle worker thread is kept alive (in milliseconds).
+         */
+        private static final long WORKER_KEEP_ALIVE = 60000L;
+
+        private final ServerSocketChannel serverChannel;
+
+        private final ThreadPoolExecutor workers;
+
+        /**
+         * Connections that a worker has finished with and that are waiting
+         * to be registered with the selector again.
+         */
+        private final Queue<SelectorConnection> returned = new ConcurrentLinkedQueue<SelectorConnection>();
+
+        /**
+         * Connections that are currently being served by a worker.
+         */
+        private final Set<SelectorConnection> active = Collections.newSetFromMap(new ConcurrentHashMap<SelectorConnection, Boolean>());
+
+        private volatile Selector selector;
+
+        public SelectorServerRunnable(int timeout, ServerSocketChannel serverChannel) {
+            super(timeout);
+            this.serverChannel = serverChannel;
+            this.workers = new ThreadPoolExecutor(MAX_WORKER_THREADS, MAX_WORKER_THREADS, WORKER_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "NanoHttpd Worker #" + this.count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            this.workers.allowCoreThreadTimeOut(true);
+        }
+
+        /**
+         * Wake the selector so that the listening thread notices shutdown.
+         */
+        public void wakeup() {
+            Selector s = this.selector;
+            if (s != null) {
+                s.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.selector = Selector.open();
+                myServerSocket.bind(hostname != null ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
+                this.serverChannel.configureBlocking(false);
+                this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+                hasBinded = true;
+            } catch (IOException e) {
+                safeClose(this.selector);
+                this.bindException = e;
+                return;
+            }
+            List<SelectorConnection> ready = new ArrayList<SelectorConnection>();
+            try {
+                while (!NanoHTTPD.this.myServerSocket.isClosed()) {
+                    this.selector.select(SELECT_INTERVAL);
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            // a channel must be deregistered before it can
+                            // be put back into blocking mode
+                            key.cancel();
+                            ready.add((SelectorConnection) key.attachment());
+                        }
+                    }
+                    if (!ready.isEmpty()) {
+                        // flush the cancelled keys
+                        this.selector.selectNow();
+                        for (SelectorConnection connection : ready) {
+                            dispatch(connection);
+                        }
+                        ready.clear();
+                    }
+                    registerReturnedConnections();
+                    closeIdleConnections();
+                }
+            } catch (IOException e) {
+                NanoHTTPD.LOG.log(Level.SEVERE, "Selector failure, stopping the listener", e);
+            } finally {
+                this.workers.shutdownNow();
+                for (SelectionKey key : this.selector.keys()) {
+                    if (key.attachment() instanceof SelectorConnection) {
+                        ((SelectorConnection) key.attachment()).close();
+                    }
+                }
+                for (SelectorConnection connection : ready) {
+                    connection.close();
+                }
+                SelectorConnection connection;
+                while ((connection = this.returned.poll()) != null) {
+                    connection.close();
+                }
+                for (SelectorConnection activeConnection : this.active) {
+                    activeConnection.close();
+                }
+                safeClose(this.serverChannel);
+                safeClose(this.selector);
+            }
+        }
+
+        private void accept() {
+            SocketChannel channel = null;
+            try {
+                channel = this.serverChannel.accept();
+                if (channel == null) {
+                    return;
+                }
+                if (this.timeout > 0) {
+                    channel.socket().setSoTimeout(this.timeout);
+                }
+                SelectorConnection connection = new SelectorConnection(channel);
+                register(connection);
+            } catch (IOException e) {
+                NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
+                safeClose(channel);
+            }
+        }
+
+        private void register(SelectorConnection connection) throws IOException {
+            connection.channel.configureBlocking(false);
+            connection.channel.register(this.selector, SelectionKey.OP_READ, connection);
+            connection.lastActivity = System.currentTimeMillis();
+        }
+
+        private void dispatch(final SelectorConnection connection) {
+            try {
+                connection.channel.configureBlocking(true);
+                this.active.add(connection);
+                this.workers.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        serve(connection);
+                    }
+                });
+            } catch (IOException e) {
+                NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
+                this.active.remove(connection);
+                connection.close();
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                this.active.remove(connection);
+                connection.close();
+            }
+        }
+
+        /**
+         * Runs on a worker thread: serve the request(s) available on the
+         * connection, then hand it back to the selector thread.
+         */
+        private void serve(SelectorConnection connection) {
+            boolean keepOpen = false;
+            try {
+                do {
+                    connection.session.execute();
+                    // the session closes the socket if it could not respond
+                } while (connection.channel.isOpen() && connection.session.inputStream.available() > 0);
+                keepOpen = connection.channel.isOpen();
+            } catch (Exception e) {
+                // see ClientHandler.run()
+                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage())) && !(e instanceof SocketTimeoutException)) {
+                    NanoHTTPD.LOG.log(Level.SEVERE, "Communication with the client broken, or an bug in the handler code", e);
+                }
+            } finally {
+                this.active.remove(connection);
+            }
+            if (keepOpen && !NanoHTTPD.this.myServerSocket.isClosed()) {
+                this.returned.add(connection);
+                wakeup();
+            } else {
+                connection.close();
+            }
+        }
+
+        private void registerReturnedConnections() {
+            SelectorConnection connection;
+            while ((connection = this.returned.poll()) != null) {
+                try {
+                    register(connection);
+                } catch (IOException e) {
+                    NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
+                    connection.close();
+                }
+            }
+        }
+
+        private void closeIdleConnections() {
+            if (this.timeout <= 0) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (SelectionKey key : this.selector.keys()) {
+                if (key.isValid() && key.attachment() instanceof SelectorConnection) {
+                    SelectorConnection connection = (SelectorConnection) key.attachment();
+                    if (now - connection.lastActivity > this.timeout) {
+                        key.cancel();
+                        connection.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * A client connection and the session that serves it; the session's
+         * buffered input carries over between requests.
+         */
+        private class SelectorConnection {
+
+            private final SocketChannel channel;
+
+            private final HTTPSession session;
+
+            private long lastActivity;
+
+            SelectorConnection(SocketChannel channel) throws IOException {
+                this.channel = channel;
+                Socket socket = channel.socket();
+                this.session = new HTTPSession(NanoHTTPD.this.tempFileManagerFactory.create(), socket.getInputStream(), socket.getOutputStream(),
+                        socket.getInetAddress());
+            }
+
+            void close() {
+                safeClose(this.channel);
+            }
+        }
+    }
+
     /**
      * A temp file.
      * <p/>
@@ -2210,6 +2563,19 @@ public abstract class NanoHTTPD {
 
     private Thread myThread;
 
+    /**
+     * Wait for requests from a single selector thread and serve them from a
+     * bounded worker pool instead of the AsyncRunner.
+     */
+    private boolean nonBlocking = false;
+
+    private volatile SelectorServerRunnable mySelectorRunnable;
+
+    /**
+     * Request counters and latency histograms.
+     */
+    private volatile WebServerMetrics metrics = new WebServerMetrics();
+
     /**
      * Pluggable strategy for asynchronously executing requests.
      */
@@ -2278,6 +2644,21 @@ public abstract class NanoHTTPD {
         return new ServerRunnable(timeout);
     }
 
+    /**
+     * Instantiate the server runnable used in non-blocking mode, can be
+     * overwritten by subclasses to provide a subclass of the
+     * SelectorServerRunnable.
+     * 
+     * @param timeout
+     *            the idle timeout to use for connections.
+     * @param serverChannel
+     *            the unbound server channel to listen on.
+     * @return the server runnable.
+     */
+    protected SelectorServerRunnable createSelectorServerRunnable(final int timeout, final ServerSocketChannel serverChannel) {
+        return new SelectorServerRunnable(timeout, serverChannel);
+    }
+
     /**
      * Decode parameters from a URL, handing the case where a single parameter
      * name might have been supplied several times, by return lists of values.
@@ -2387,6 +2768,32 @@ public abstract class NanoHTTPD {
         this.serverSocketFactory = new SecureServerSocketFactory(sslServerSocketFactory, sslProtocols);
     }
 
+    /**
+     * Call before start() to wait for requests on idle connections from a
+     * single selector thread and serve them from a bounded pool of worker
+     * threads (see {@link SelectorServerRunnable}) rather than handing each
+     * accepted socket to the AsyncRunner. HTTPS is not supported in this mode.
+     */
+    public void setNonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+    }
+
+    public boolean isNonBlocking() {
+        return nonBlocking;
+    }
+
+    public WebServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Record into the given metrics, e.g., to accumulate across restarts of
+     * the server.
+     */
+    public void setMetrics(WebServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * Create a response with unknown length (using HTTP 1.1 chunking).
      */
@@ -2527,10 +2934,21 @@ public abstract class NanoHTTPD {
      *             if the socket is in use.
      */
     public void start(final int timeout, boolean daemon) throws IOException {
-        this.myServerSocket = this.getServerSocketFactory().create();
-        this.myServerSocket.setReuseAddress(true);
+        ServerRunnable serverRunnable;
+        if (this.nonBlocking) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            this.myServerSocket = serverChannel.socket();
+            this.myServerSocket.setReuseAddress(true);
+
+            this.mySelectorRunnable = createSelectorServerRunnable(timeout, serverChannel);
+            serverRunnable = this.mySelectorRunnable;
+        } else {
+            this.myServerSocket = this.getServerSocketFactory().create();
+            this.myServerSocket.setReuseAddress(true);
 
-        ServerRunnable serverRunnable = createServerRunnable(timeout);
+            this.mySelectorRunnable = null;
+            serverRunnable = createServerRunnable(timeout);
+        }
         this.myThread = new Thread(serverRunnable);
         this.myThread.setDaemon(daemon);
         this.myThread.setName("NanoHttpd Main Listener");
@@ -2556,6 +2974,10 @@ public abstract class NanoHTTPD {
         try {
             safeClose(this.myServerSocket);
             this.asyncRunner.closeAll();
+            SelectorServerRunnable selectorRunnable = this.mySelectorRunnable;
+            if (selectorRunnable != null) {
+                selectorRunnable.wakeup();
+            }
             if (this.myThread != null) {
                 this.myThread.join();
             }
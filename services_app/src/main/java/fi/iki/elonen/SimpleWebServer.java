@@ -47,6 +47,7 @@ import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -100,6 +101,20 @@ public class SimpleWebServer extends NanoHTTPD {
 
   protected List<File> rootDirs;
 
+  /**
+   * Index file resolution and rendered listings for recently visited
+   * directories, keyed by absolute path. Least-recently used entries are
+   * dropped once MAX_CACHED_DIRECTORIES is exceeded.
+   */
+  @SuppressWarnings("serial")
+  private final Map<String, DirectoryState> directoryStates =
+      new LinkedHashMap<String, DirectoryState>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DirectoryState> eldest) {
+          return size() > MAX_CACHED_DIRECTORIES;
+        }
+      };
+
   public SimpleWebServer(String host, int port, File wwwroot, boolean quiet, String cors) {
     this(host, port, Collections.singletonList(wwwroot), quiet, cors);
   }
@@ -149,14 +164,50 @@ public class SimpleWebServer extends NanoHTTPD {
     return newUri;
   }
 
+  /**
+   * Returns the cached state for the directory, discarding it if the
+   * directory has been modified since it was recorded.
+   */
+  private DirectoryState getDirectoryState(File directory) {
+    String key = directory.getAbsolutePath();
+    long lastModified = directory.lastModified();
+    synchronized (directoryStates) {
+      DirectoryState state = directoryStates.get(key);
+      if (state == null || !state.isCurrent(lastModified)) {
+        state = new DirectoryState(lastModified);
+        directoryStates.put(key, state);
+      }
+      return state;
+    }
+  }
+
   private String findIndexFileInDirectory(File directory) {
-    for (String fileName : SimpleWebServer.INDEX_FILE_NAMES) {
-      File indexFile = new File(directory, fileName);
-      if (indexFile.isFile()) {
-        return fileName;
+    DirectoryState state = getDirectoryState(directory);
+    synchronized (state) {
+      if (!state.indexResolved) {
+        state.indexFile = null;
+        for (String fileName : SimpleWebServer.INDEX_FILE_NAMES) {
+          File indexFile = new File(directory, fileName);
+          if (indexFile.isFile()) {
+            state.indexFile = fileName;
+            break;
+          }
+        }
+        state.indexResolved = true;
+      }
+      return state.indexFile;
+    }
+  }
+
+  private String getDirectoryListing(String uri, File directory) {
+    DirectoryState state = getDirectoryState(directory);
+    synchronized (state) {
+      if (state.listing == null || !uri.equals(state.listingUri)) {
+        state.listing = listDirectory(uri, directory);
+        state.listingUri = uri;
       }
+      return state.listing;
     }
-    return null;
   }
 
   protected Response getForbiddenResponse(String s) {
@@ -301,7 +352,7 @@ public class SimpleWebServer extends NanoHTTPD {
       if (indexFile == null) {
         if (f.canRead()) {
           // No index file, list the directory if it is readable
-          return newFixedLengthResponse(Response.Status.OK, NanoHTTPD.MIME_HTML, listDirectory(uri, f));
+          return newFixedLengthResponse(Response.Status.OK, NanoHTTPD.MIME_HTML, getDirectoryListing(uri, f));
         } else {
           return getForbiddenResponse("No directory listing.");
         }
@@ -508,6 +559,38 @@ public class SimpleWebServer extends NanoHTTPD {
     return System.getProperty(ACCESS_CONTROL_ALLOW_HEADER_PROPERTY_NAME, DEFAULT_ALLOWED_HEADERS);
   }
 
+  private static final int MAX_CACHED_DIRECTORIES = 256;
+
+  /**
+   * Directory mtimes may only have 1-2 second resolution (e.g., FAT-formatted
+   * SD cards). State recorded within this window of the mtime is not reused,
+   * since a later change could leave the mtime unchanged.
+   */
+  private static final long MTIME_RESOLUTION_MS = 2000L;
+
+  /**
+   * What we know about a directory as of its lastModified() time. File sizes
+   * shown in the listing are those at the time it was rendered.
+   */
+  private static final class DirectoryState {
+    final long lastModified;
+    final long recordedAt;
+    boolean indexResolved = false;
+    String indexFile;
+    String listingUri;
+    String listing;
+
+    DirectoryState(long lastModified) {
+      this.lastModified = lastModified;
+      this.recordedAt = System.currentTimeMillis();
+    }
+
+    boolean isCurrent(long currentLastModified) {
+      return currentLastModified != 0L && lastModified == currentLastModified
+          && recordedAt - lastModified > MTIME_RESOLUTION_MS;
+    }
+  }
+
   private final static String ALLOWED_METHODS = "GET, POST, PUT, DELETE, OPTIONS, HEAD";
 
   private final static int MAX_AGE = 42 * 60 * 60;
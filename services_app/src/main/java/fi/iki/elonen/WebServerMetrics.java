@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package fi.iki.elonen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Request counters and latency histograms for the local web server.
+ * <p>
+ * Recording only touches atomic counters (no locks, no allocation once a
+ * MIME type / status pair has been seen), so it is always enabled. Latency
+ * covers parsing the request, serving it and writing the whole response,
+ * in both the blocking and the non-blocking mode.
+ */
+public final class WebServerMetrics {
+
+  private static final int MAX_STATUS_CODE = 600;
+
+  private static final String UNKNOWN_MIME_TYPE = "unknown";
+
+  private final long startTimeMillis = System.currentTimeMillis();
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong bodyBytesSent = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final AtomicLong gzipResponses = new AtomicLong();
+  private final AtomicLong gzipBytesIn = new AtomicLong();
+  private final AtomicLong gzipBytesOut = new AtomicLong();
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  private final ConcurrentHashMap<String, AtomicReferenceArray<ResponseStats>> byMimeType =
+      new ConcurrentHashMap<String, AtomicReferenceArray<ResponseStats>>();
+
+  /**
+   * Record one completed request.
+   *
+   * @param mimeType      MIME type of the response (may be null)
+   * @param status        HTTP status code of the response
+   * @param sourceBytes   body bytes read from the response data
+   * @param wireBytes     body bytes written to the client
+   * @param gzip          true if the body was gzip-encoded
+   * @param elapsedNanos  time taken to serve the request
+   */
+  public void record(String mimeType, int status, long sourceBytes, long wireBytes,
+      boolean gzip, long elapsedNanos) {
+    requests.incrementAndGet();
+    bodyBytesSent.addAndGet(wireBytes);
+    if (status == NanoHTTPD.Response.Status.NOT_MODIFIED.getRequestStatus()) {
+      notModified.incrementAndGet();
+    }
+    if (gzip) {
+      gzipResponses.incrementAndGet();
+      gzipBytesIn.addAndGet(sourceBytes);
+      gzipBytesOut.addAndGet(wireBytes);
+    }
+    latency.record(elapsedNanos);
+
+    ResponseStats stats = getResponseStats(mimeType, status);
+    stats.count.incrementAndGet();
+    stats.bytes.addAndGet(wireBytes);
+    stats.latency.record(elapsedNanos);
+  }
+
+  private ResponseStats getResponseStats(String mimeType, int status) {
+    String key = (mimeType == null) ? UNKNOWN_MIME_TYPE : mimeType;
+    AtomicReferenceArray<ResponseStats> byStatus = byMimeType.get(key);
+    if (byStatus == null) {
+      AtomicReferenceArray<ResponseStats> created =
+          new AtomicReferenceArray<ResponseStats>(MAX_STATUS_CODE);
+      byStatus = byMimeType.putIfAbsent(key, created);
+      if (byStatus == null) {
+        byStatus = created;
+      }
+    }
+    int idx = (status < 0 || status >= MAX_STATUS_CODE) ? 0 : status;
+    ResponseStats stats = byStatus.get(idx);
+    if (stats == null) {
+      byStatus.compareAndSet(idx, null, new ResponseStats());
+      stats = byStatus.get(idx);
+    }
+    return stats;
+  }
+
+  /**
+   * Clear all counters and histograms. Concurrent recordings may be split
+   * across the reset.
+   */
+  public void reset() {
+    requests.set(0L);
+    bodyBytesSent.set(0L);
+    notModified.set(0L);
+    gzipResponses.set(0L);
+    gzipBytesIn.set(0L);
+    gzipBytesOut.set(0L);
+    latency.reset();
+    byMimeType.clear();
+  }
+
+  /**
+   * @return a point-in-time copy of the metrics as nested maps, suitable for
+   * serializing to JSON. Latencies are reported in microseconds.
+   */
+  public Map<String, Object> snapshot() {
+    Map<String, Object> result = new TreeMap<String, Object>();
+    result.put("uptimeMillis", System.currentTimeMillis() - startTimeMillis);
+    result.put("requests", requests.get());
+    result.put("bodyBytesSent", bodyBytesSent.get());
+    result.put("notModified", notModified.get());
+    result.put("gzipResponses", gzipResponses.get());
+    long in = gzipBytesIn.get();
+    long out = gzipBytesOut.get();
+    result.put("gzipBytesIn", in);
+    result.put("gzipBytesOut", out);
+    result.put("gzipRatio", (in == 0L) ? 0.0 : ((double) out) / in);
+    result.put("latency", latency.snapshot());
+
+    List<Map<String, Object>> responses = new ArrayList<Map<String, Object>>();
+    for (Map.Entry<String, AtomicReferenceArray<ResponseStats>> e : byMimeType.entrySet()) {
+      AtomicReferenceArray<ResponseStats> byStatus = e.getValue();
+      for (int status = 0; status < byStatus.length(); ++status) {
+        ResponseStats stats = byStatus.get(status);
+        if (stats == null) {
+          continue;
+        }
+        Map<String, Object> entry = new TreeMap<String, Object>();
+        entry.put("mimeType", e.getKey());
+        entry.put("status", status);
+        entry.put("count", stats.count.get());
+        entry.put("bodyBytesSent", stats.bytes.get());
+        entry.put("latency", stats.latency.snapshot());
+        responses.add(entry);
+      }
+    }
+    result.put("responses", responses);
+    return result;
+  }
+
+  private static final class ResponseStats {
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final LatencyHistogram latency = new LatencyHistogram();
+  }
+
+  /**
+   * Log-linear (HDR-style) histogram of latencies in microseconds. Each power
+   * of two is split into SUB_BUCKETS linear buckets, bounding the relative
+   * error of a reported percentile to 1/SUB_BUCKETS.
+   */
+  static final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** values below this are recorded exactly */
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    /** largest power of two tracked (2^36 us is about 19 hours) */
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKET_COUNT =
+        LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void record(long elapsedNanos) {
+      long micros = Math.max(0L, elapsedNanos / 1000L);
+      counts.incrementAndGet(bucketIndex(micros));
+      total.incrementAndGet();
+      sumMicros.addAndGet(micros);
+      long max = maxMicros.get();
+      while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+        max = maxMicros.get();
+      }
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKET_COUNT; ++i) {
+        counts.set(i, 0L);
+      }
+      total.set(0L);
+      sumMicros.set(0L);
+      maxMicros.set(0L);
+    }
+
+    static int bucketIndex(long micros) {
+      if (micros < LINEAR_LIMIT) {
+        return (int) micros;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      if (exponent > MAX_EXPONENT) {
+        return BUCKET_COUNT - 1;
+      }
+      int shift = exponent - SUB_BUCKET_BITS;
+      int subBucket = (int) (micros >>> shift) - SUB_BUCKETS;
+      return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value that maps to the given bucket
+     */
+    static long bucketUpperBound(int index) {
+      if (index < LINEAR_LIMIT) {
+        return index;
+      }
+      int offset = index - LINEAR_LIMIT;
+      int shift = offset / SUB_BUCKETS + 1;
+      long subBucket = (offset % SUB_BUCKETS) + SUB_BUCKETS;
+      return ((subBucket + 1) << shift) - 1;
+    }
+
+    Map<String, Object> snapshot() {
+      long[] copy = new long[BUCKET_COUNT];
+      long n = 0L;
+      for (int i = 0; i < BUCKET_COUNT; ++i) {
+        copy[i] = counts.get(i);
+        n += copy[i];
+      }
+      Map<String, Object> result = new TreeMap<String, Object>();
+      result.put("count", n);
+      result.put("meanMicros", (n == 0L) ? 0L : sumMicros.get() / Math.max(1L, total.get()));
+      result.put("maxMicros", maxMicros.get());
+      for (double p : PERCENTILES) {
+        result.put("p" + (p == Math.floor(p) ? Integer.toString((int) p) : Double.toString(p)),
+            percentile(copy, n, p));
+      }
+      return result;
+    }
+
+    private static long percentile(long[] copy, long n, double p) {
+      if (n == 0L) {
+        return 0L;
+      }
+      long rank = (long) Math.ceil((p / 100.0) * n);
+      long seen = 0L;
+      for (int i = 0; i < copy.length; ++i) {
+        seen += copy[i];
+        if (seen >= rank) {
+          return bucketUpperBound(i);
+        }
+      }
+      return bucketUpperBound(copy.length - 1);
+    }
+  }
+}
@@ -14,9 +14,13 @@
 
 package org.opendatakit.services.database;
 
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Build;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.utilities.StaticStateManipulator;
 import org.opendatakit.utilities.StaticStateManipulator.IStaticFieldManipulator;
+import org.sqlite.database.sqlite.SQLiteMemoryProfile;
 
 public final class AndroidConnectFactory  extends OdkConnectionFactoryAbstractClass {
   private static final String TAG = AndroidConnectFactory.class.getSimpleName();
@@ -35,10 +39,77 @@ public final class AndroidConnectFactory  extends OdkConnectionFactoryAbstractCl
     });
   }
 
+  /**
+   * Device setting holding the name of the database memory profile
+   * (see {@link SQLiteMemoryProfile}), "auto" to choose by device class,
+   * or "default" (or no setting) to leave the SQLite defaults.
+   */
+  public static final String KEY_DATABASE_MEMORY_PROFILE = "common.database_memory_profile";
+
+  /**
+   * Value of {@link #KEY_DATABASE_MEMORY_PROFILE} that chooses the profile by device class.
+   */
+  public static final String DATABASE_MEMORY_PROFILE_AUTO = "auto";
+
+  /**
+   * Device setting holding the slow-query threshold in milliseconds
+   * (see {@link StatementMetrics}); 0 disables slow-query logging.
+   */
+  public static final String KEY_DATABASE_SLOW_QUERY_MILLIS = "common.database_slow_query_millis";
+
+  /**
+   * Device setting holding the number of seconds after which a query run through
+   * the database service is cancelled; 0 lets queries run to completion.
+   */
+  public static final String KEY_DATABASE_QUERY_TIMEOUT_SECONDS =
+      "common.database_query_timeout_seconds";
+
+  /**
+   * Device setting holding the number of query-only connections pooled per appName
+   * for reads that need not see uncommitted changes; 0 disables the pool.
+   */
+  public static final String KEY_DATABASE_READER_CONNECTIONS =
+      "common.database_reader_connections";
+
+  /**
+   * Memory profile for this class of device; used when an appName's setting is "auto".
+   */
+  private static volatile SQLiteMemoryProfile deviceMemoryProfile = SQLiteMemoryProfile.STANDARD;
+
   public static void configure() {
     // just to get the static initialization block (above) to run
   }
 
+  /**
+   * As {@link #configure()}, and also choose the memory profile for this class of device.
+   *
+   * @param context
+   */
+  public static void configure(Context context) {
+    configure();
+    deviceMemoryProfile = detectMemoryProfile(context);
+  }
+
+  /**
+   * @return the memory profile for this class of device
+   */
+  public static SQLiteMemoryProfile getDeviceMemoryProfile() {
+    return deviceMemoryProfile;
+  }
+
+  private static SQLiteMemoryProfile detectMemoryProfile(Context context) {
+    try {
+      ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+      boolean isLowRamDevice = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) &&
+          am.isLowRamDevice();
+      return SQLiteMemoryProfile.forDevice(isLowRamDevice, am.getMemoryClass(),
+          context.getResources().getConfiguration().smallestScreenWidthDp);
+    } catch (Throwable t) {
+      // e.g., called before the context is fully initialized
+      return SQLiteMemoryProfile.STANDARD;
+    }
+  }
+
   /**
    * @return the database schema version that the application expects
    */
@@ -72,7 +143,15 @@ public final class AndroidConnectFactory  extends OdkConnectionFactoryAbstractCl
    @Override
    protected OdkConnectionInterface openDatabase(AppNameSharedStateContainer appNameSharedStateContainer,
        String sessionQualifier) {
+      // null unless a profile was selected for the appName
+      return AndroidOdkConnection.openDatabase(appNameSharedStateContainer,
+          sessionQualifier, appNameSharedStateContainer.getMemoryProfile());
+   }
+
+   @Override
+   protected OdkConnectionInterface openQueryOnlyDatabase(
+       AppNameSharedStateContainer appNameSharedStateContainer, String sessionQualifier) {
       return AndroidOdkConnection.openDatabase(appNameSharedStateContainer,
-          sessionQualifier);
+          sessionQualifier, appNameSharedStateContainer.getMemoryProfile(), true);
    }
 }
@@ -15,14 +15,20 @@
 package org.opendatakit.services.database;
 
 import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.Environment;
+import android.os.OperationCanceledException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.sqlite.database.SQLException;
 import org.sqlite.database.sqlite.SQLiteConnectionBase;
 import org.sqlite.database.sqlite.SQLiteDatabaseConfiguration;
 import org.sqlite.database.sqlite.SQLiteException;
+import org.sqlite.database.sqlite.SQLiteMemoryProfile;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 public final class AndroidOdkConnection implements OdkConnectionInterface {
@@ -33,10 +39,19 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
    * One reference immediately held on stack after creation.
    * One reference will be added when we put this into the OdkConnectionFactoryInterface session map
    */
-  final OperationLog operationLog;
+  final OperationRing operationLog;
   final String appName;
   final SQLiteConnectionBase db;
   final String sessionQualifier;
+  /**
+   * Orders this connection's write transactions with those of the appName's
+   * other connections.
+   */
+  final WriteTransactionQueue writeTransactionQueue;
+  /**
+   * True if the connection cannot write; its transactions are not queued.
+   */
+  final boolean queryOnly;
   int referenceCount = 1;
   final Object initializationMutex = new Object();
   boolean initializationComplete = false;
@@ -51,6 +66,31 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
 
   public static AndroidOdkConnection openDatabase(
       AppNameSharedStateContainer appNameSharedStateContainer, String sessionQualifier) {
+    return openDatabase(appNameSharedStateContainer, sessionQualifier, null);
+  }
+
+  /**
+   * @param appNameSharedStateContainer
+   * @param sessionQualifier
+   * @param memoryProfile the memory profile to apply, or null for the SQLite defaults
+   * @return the opened connection
+   */
+  public static AndroidOdkConnection openDatabase(
+      AppNameSharedStateContainer appNameSharedStateContainer, String sessionQualifier,
+      SQLiteMemoryProfile memoryProfile) {
+    return openDatabase(appNameSharedStateContainer, sessionQualifier, memoryProfile, false);
+  }
+
+  /**
+   * @param appNameSharedStateContainer
+   * @param sessionQualifier
+   * @param memoryProfile the memory profile to apply, or null for the SQLite defaults
+   * @param queryOnly true if the connection should reject statements that modify the database
+   * @return the opened connection
+   */
+  public static AndroidOdkConnection openDatabase(
+      AppNameSharedStateContainer appNameSharedStateContainer, String sessionQualifier,
+      SQLiteMemoryProfile memoryProfile, boolean queryOnly) {
 
     String appName = appNameSharedStateContainer.getAppName();
     String dbFilePath = getDbFilePath(appName);
@@ -59,6 +99,17 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
         SQLiteConnectionBase.ENABLE_WRITE_AHEAD_LOGGING |
             SQLiteConnectionBase.OPEN_READWRITE | SQLiteConnectionBase.CREATE_IF_NECESSARY |
             SQLiteConnectionBase.NO_LOCALIZED_COLLATORS, sessionQualifier);
+    configuration.applyMemoryProfile(memoryProfile);
+    if (configuration.mmapSize != 0L && !isOnInternalStorage(dbFilePath)) {
+      // a mapped page of a file on external storage raises SIGBUS if the media goes away.
+      // The ODK databases are all under the external opendatakit folder, so this always applies.
+      configuration.mmapSize = 0L;
+    }
+    configuration.setQueryOnly(queryOnly);
+    if (WalCheckpointer.isEnabled()) {
+      // the background checkpointer keeps the WAL in check; writers never checkpoint inline
+      configuration.setWalAutoCheckpoint(0);
+    }
 
     boolean success = false;
     SQLiteConnectionBase db = null;
@@ -72,7 +123,9 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
       // this isn't going to throw an exception
       AndroidOdkConnection connection = new AndroidOdkConnection(
           appNameSharedStateContainer.getSessionMutex(), appName,
-          appNameSharedStateContainer.getOperationLog(), db, sessionQualifier);
+          appNameSharedStateContainer.getOperationLog(),
+          appNameSharedStateContainer.getWriteTransactionQueue(), queryOnly, db,
+          sessionQualifier);
       success = true;
       return connection;
     } finally {
@@ -84,11 +137,27 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     }
   }
 
+  /**
+   * @param dbFilePath
+   * @return true if the database file is under the device's data directory
+   */
+  static boolean isOnInternalStorage(String dbFilePath) {
+    try {
+      String dataDir = Environment.getDataDirectory().getCanonicalPath() + File.separator;
+      return new File(dbFilePath).getCanonicalPath().startsWith(dataDir);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
   private AndroidOdkConnection(Object mutex, String appName, OperationLog operationLog,
+                               WriteTransactionQueue writeTransactionQueue, boolean queryOnly,
                                SQLiteConnectionBase db, String sessionQualifier) {
     this.mutex = mutex;
     this.appName = appName;
-    this.operationLog = operationLog;
+    this.operationLog = operationLog.openRing();
+    this.writeTransactionQueue = writeTransactionQueue;
+    this.queryOnly = queryOnly;
     this.db = db;
     this.sessionQualifier = sessionQualifier;
   }
@@ -249,7 +318,7 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
 
   private void commonWrapUpConnection(String action) throws Throwable {
     final int cookie = operationLog
-        .beginOperation(sessionQualifier, "commonWrapUpConnection(\"" + action + "\")", null, null);
+        .beginCall(sessionQualifier, "commonWrapUpConnection", action, null);
 
     try {
       if (isOpen()) {
@@ -258,8 +327,8 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
             endTransaction();
           }
         } finally {
-          final int innerCookie = operationLog.beginOperation(sessionQualifier,
-              "commonWrapUpConnection(\"" + action + "\") -- close", null, null);
+          final int innerCookie = operationLog.beginCall(sessionQualifier,
+              "commonWrapUpConnection.close", action, null);
 
           try {
             // invoke method
@@ -286,6 +355,9 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
       }
     } finally {
       operationLog.endOperation(cookie);
+      operationLog.retire();
+      // in case the transaction could not be ended
+      writeTransactionQueue.release(this);
     }
   }
 
@@ -331,7 +403,7 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
 
   public void setVersion(int version) throws SQLiteException {
     final int cookie = operationLog
-        .beginOperation(sessionQualifier, "setVersion(" + version + ")", null, null);
+        .beginCall(sessionQualifier, "setVersion", null, null, "version", version);
 
     try {
       // invoke method
@@ -361,15 +433,20 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
 
   public void beginTransactionExclusive() throws SQLException {
     boolean success = false;
+    boolean queued = false;
     final int cookie = operationLog
         .beginOperation(sessionQualifier, "beginTransactionExclusive()", null, null);
 
     try {
+      queued = acquireWriteTransaction();
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
       internalBeginTransactionExclusive();
       success = true;
     } catch (Throwable t) {
+      if (queued) {
+        writeTransactionQueue.release(this);
+      }
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
         throw t;
@@ -398,15 +475,22 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
 
   public void beginTransactionNonExclusive() throws SQLException {
     boolean success = false;
+    boolean queued = false;
     final int cookie = operationLog
         .beginOperation(sessionQualifier, "beginTransactionNonExclusive()", null, null);
 
     try {
+      // the database utilities write within these transactions; a deferred transaction
+      // that upgrades to a write would otherwise wait in SQLite's busy handler.
+      queued = acquireWriteTransaction();
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
       internalBeginTransactionNonExclusive();
       success = true;
     } catch (Throwable t) {
+      if (queued) {
+        writeTransactionQueue.release(this);
+      }
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
         throw t;
@@ -452,6 +536,93 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     }
   }
 
+  /**
+   * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+   * @return
+   */
+  private void internalBeginBulkSession() {
+    synchronized (mutex) {
+      db.beginBulkSession();
+    }
+  }
+
+  public void beginBulkSession() throws SQLiteException {
+    final int cookie = operationLog.beginOperation(sessionQualifier, "beginBulkSession()", null, null);
+
+    try {
+      // invoke method
+      // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+      internalBeginBulkSession();
+    } catch (Throwable t) {
+      operationLog.failOperation(cookie, t);
+      if (t instanceof SQLiteException) {
+        throw t;
+      } else {
+        throw new SQLiteException("unexpected", t);
+      }
+    } finally {
+      operationLog.endOperation(cookie);
+    }
+  }
+
+  /**
+   * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+   * @return
+   */
+  private void internalEndBulkSession() {
+    synchronized (mutex) {
+      db.endBulkSession();
+    }
+  }
+
+  public void endBulkSession() throws SQLiteException {
+    final int cookie = operationLog.beginOperation(sessionQualifier, "endBulkSession()", null, null);
+
+    try {
+      // invoke method
+      // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+      internalEndBulkSession();
+    } catch (Throwable t) {
+      operationLog.failOperation(cookie, t);
+      if (t instanceof SQLiteException) {
+        throw t;
+      } else {
+        throw new SQLiteException("unexpected", t);
+      }
+    } finally {
+      operationLog.endOperation(cookie);
+    }
+  }
+
+  /**
+   * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+   * @return
+   */
+  private boolean internalInBulkSession() {
+    synchronized (mutex) {
+      return db.inBulkSession();
+    }
+  }
+
+  public boolean inBulkSession() throws SQLiteException {
+    final int cookie = operationLog.beginOperation(sessionQualifier, "inBulkSession()", null, null);
+
+    try {
+      // invoke method
+      // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+      return internalInBulkSession();
+    } catch (Throwable t) {
+      operationLog.failOperation(cookie, t);
+      if (t instanceof SQLiteException) {
+        throw t;
+      } else {
+        throw new SQLiteException("unexpected", t);
+      }
+    } finally {
+      operationLog.endOperation(cookie);
+    }
+  }
+
   /**
    * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
    * @return
@@ -508,6 +679,41 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
       }
     } finally {
       operationLog.endOperation(cookie);
+      releaseWriteTransactionIfEnded();
+    }
+  }
+
+  /**
+   * Wait for this connection's turn to write, unless it cannot write or already
+   * holds the write transaction (the new transaction is then nested).
+   * Not within the mutex, as that would block all other use of this connection.
+   *
+   * @return true if the turn was acquired by this call
+   */
+  private boolean acquireWriteTransaction() {
+    if (queryOnly || writeTransactionQueue.isOwner(this)) {
+      return false;
+    }
+    writeTransactionQueue.acquire(this, sessionQualifier);
+    return true;
+  }
+
+  /**
+   * Admit the next queued writer once the outermost write transaction has ended.
+   */
+  private void releaseWriteTransactionIfEnded() {
+    if (!writeTransactionQueue.isOwner(this)) {
+      return;
+    }
+    boolean ended;
+    try {
+      ended = !internalIsOpen() || !internalInTransaction();
+    } catch (Throwable t) {
+      // the connection cannot be within a usable transaction
+      ended = true;
+    }
+    if (ended) {
+      writeTransactionQueue.release(this);
     }
   }
 
@@ -525,19 +731,7 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
 
   public int update(String table, Map<String, Object> values, String whereClause,
       Object[] whereArgs) {
-    StringBuilder b = new StringBuilder();
-    b.append("delete(\"").append(table).append("\",...,");
-    if (whereClause == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(whereClause).append("\",");
-    }
-    if (whereArgs == null) {
-      b.append("null)");
-    } else {
-      b.append("...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginCall(sessionQualifier, "update", table, whereClause);
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
@@ -566,19 +760,7 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
   }
 
   public int delete(String table, String whereClause, Object[] whereArgs) {
-    StringBuilder b = new StringBuilder();
-    b.append("delete(\"").append(table).append("\",");
-    if (whereClause == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(whereClause).append("\",");
-    }
-    if (whereArgs == null) {
-      b.append("null)");
-    } else {
-      b.append("...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginCall(sessionQualifier, "delete", table, whereClause);
 
     try {
       // invoke method
@@ -608,14 +790,8 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
 
   public void replaceOrThrow(String table, String nullColumnHack, Map<String, Object> initialValues)
       throws SQLException {
-    StringBuilder b = new StringBuilder();
-    b.append("replaceOrThrow(\"").append(table).append("\",");
-    if (nullColumnHack == null) {
-      b.append("null,...)");
-    } else {
-      b.append("\"").append(nullColumnHack).append("\",...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginCall(sessionQualifier, "replaceOrThrow", table,
+        nullColumnHack);
 
     try {
       // invoke method
@@ -645,14 +821,8 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
 
   public void insertOrThrow(String table, String nullColumnHack, Map<String, Object> values)
       throws SQLException {
-    StringBuilder b = new StringBuilder();
-    b.append("insertOrThrow(\"").append(table).append("\",");
-    if (nullColumnHack == null) {
-      b.append("null,...)");
-    } else {
-      b.append("\"").append(nullColumnHack).append("\",...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginCall(sessionQualifier, "insertOrThrow", table,
+        nullColumnHack);
 
     try {
       // invoke method
@@ -682,14 +852,7 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
   }
 
   public void execSQL(String sql, Object[] bindArgs) throws SQLException {
-    StringBuilder b = new StringBuilder();
-    b.append("execSQL(\"").append(sql).append("\",");
-    if (bindArgs == null) {
-      b.append("null)");
-    } else {
-      b.append("...)");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginOperation(sessionQualifier, "execSQL", sql, bindArgs);
 
     try {
       // invoke method
@@ -711,26 +874,52 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
    * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
    * @return
    */
-  private Cursor internalRawQuery(String sql, Object[] selectionArgs) {
+  private int[] internalExecuteBatch(String sql, List<Object[]> bindArgsList) {
     synchronized (mutex) {
-      return db.rawQuery(sql, selectionArgs, null);
+      return db.executeBatch(sql, bindArgsList, null);
     }
   }
 
-  public Cursor rawQuery(String sql, Object[] selectionArgs) {
-    StringBuilder b = new StringBuilder();
-    b.append("rawQuery(\"").append(sql).append("\",");
-    if (selectionArgs == null) {
-      b.append("null)");
-    } else {
-      b.append("...)");
+  public int[] executeBatch(String sql, List<Object[]> bindArgsList) throws SQLException {
+    final int cookie = operationLog.beginCall(sessionQualifier, "executeBatch", sql, null,
+        "rows", (bindArgsList == null) ? 0 : bindArgsList.size());
+
+    try {
+      // invoke method
+      // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+      return internalExecuteBatch(sql, bindArgsList);
+    } catch (Throwable t) {
+      operationLog.failOperation(cookie, t);
+      if (t instanceof SQLiteException) {
+        throw t;
+      } else {
+        throw new SQLiteException("unexpected", t);
+      }
+    } finally {
+      operationLog.endOperation(cookie);
     }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+  }
+
+  /**
+   * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+   * @return
+   */
+  private int[] internalInsertBatchWithOnConflict(String table, String[] columns,
+      List<Object[]> rows, int conflictAlgorithm) {
+    synchronized (mutex) {
+      return db.insertBatchWithOnConflict(table, columns, rows, conflictAlgorithm);
+    }
+  }
+
+  public int[] insertBatchWithOnConflict(String table, String[] columns, List<Object[]> rows,
+      int conflictAlgorithm) throws SQLException {
+    final int cookie = operationLog.beginCall(sessionQualifier, "insertBatchWithOnConflict",
+        table, null, "rows", (rows == null) ? 0 : rows.size());
 
     try {
       // invoke method
       // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
-      return internalRawQuery(sql, selectionArgs);
+      return internalInsertBatchWithOnConflict(table, columns, rows, conflictAlgorithm);
     } catch (Throwable t) {
       operationLog.failOperation(cookie, t);
       if (t instanceof SQLiteException) {
@@ -743,6 +932,41 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     }
   }
 
+  /**
+   * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+   * @return
+   */
+  private Cursor internalRawQuery(String sql, Object[] selectionArgs,
+      CancellationSignal cancellationSignal) {
+    synchronized (mutex) {
+      return db.rawQuery(sql, selectionArgs, cancellationSignal);
+    }
+  }
+
+  public Cursor rawQuery(String sql, Object[] selectionArgs) {
+    return rawQuery(sql, selectionArgs, null);
+  }
+
+  public Cursor rawQuery(String sql, Object[] selectionArgs,
+      CancellationSignal cancellationSignal) {
+    final int cookie = operationLog.beginOperation(sessionQualifier, "rawQuery", sql, selectionArgs);
+
+    try {
+      // invoke method
+      // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+      return internalRawQuery(sql, selectionArgs, cancellationSignal);
+    } catch (Throwable t) {
+      operationLog.failOperation(cookie, t);
+      if (t instanceof SQLiteException || t instanceof OperationCanceledException) {
+        throw t;
+      } else {
+        throw new SQLiteException("unexpected", t);
+      }
+    } finally {
+      operationLog.endOperation(cookie);
+    }
+  }
+
   /**
    * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
    * @return
@@ -756,44 +980,7 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
 
   public Cursor query(String table, String[] columns, String selection, Object[] selectionArgs,
       String groupBy, String having, String orderBy, String limit) {
-    StringBuilder b = new StringBuilder();
-    b.append("query(\"").append(table).append("\",");
-    if (columns == null) {
-      b.append("null,");
-    } else {
-      b.append("...,");
-    }
-    if (selection == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(selection).append("\",");
-    }
-    if (selectionArgs == null) {
-      b.append("null,");
-    } else {
-      b.append("...,");
-    }
-    if (groupBy == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(groupBy).append("\",");
-    }
-    if (having == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(having).append("\",");
-    }
-    if (orderBy == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(orderBy).append("\",");
-    }
-    if (limit == null) {
-      b.append("null)");
-    } else {
-      b.append("\"").append(limit).append("\")");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginCall(sessionQualifier, "query", table, selection);
 
     try {
       // invoke method
@@ -826,44 +1013,8 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
 
   public Cursor queryDistinct(String table, String[] columns, String selection,
       Object[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
-    StringBuilder b = new StringBuilder();
-    b.append("queryDistinct(\"").append(table).append("\",");
-    if (columns == null) {
-      b.append("null,");
-    } else {
-      b.append("...,");
-    }
-    if (selection == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(selection).append("\",");
-    }
-    if (selectionArgs == null) {
-      b.append("null,");
-    } else {
-      b.append("...,");
-    }
-    if (groupBy == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(groupBy).append("\",");
-    }
-    if (having == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(having).append("\",");
-    }
-    if (orderBy == null) {
-      b.append("null,");
-    } else {
-      b.append("\"").append(orderBy).append("\",");
-    }
-    if (limit == null) {
-      b.append("null)");
-    } else {
-      b.append("\"").append(limit).append("\")");
-    }
-    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+    final int cookie = operationLog.beginCall(sessionQualifier, "queryDistinct", table,
+        selection);
 
     try {
       // invoke method
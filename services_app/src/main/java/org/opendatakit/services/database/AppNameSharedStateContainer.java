@@ -15,6 +15,7 @@
 package org.opendatakit.services.database;
 
 import org.opendatakit.database.service.DbHandle;
+import org.sqlite.database.sqlite.SQLiteMemoryProfile;
 
 import java.util.Map;
 import java.util.TreeMap;
@@ -54,12 +55,24 @@ public final class AppNameSharedStateContainer {
 
    private final OperationLog operationLog;
 
-   private String beginTransactionSessionQualifier = null;
-   private Long beginTransactionThreadId = null;
+   private final WalCheckpointer walCheckpointer;
 
-   AppNameSharedStateContainer(String appName) {
+   private final WriteTransactionQueue writeTransactionQueue;
+
+   private final ReaderPool readerPool;
+
+   /**
+    * Memory profile chosen in the device settings for this appName,
+    * or null to use the profile for the device class.
+    */
+   private volatile SQLiteMemoryProfile memoryProfile = null;
+
+   AppNameSharedStateContainer(String appName, OdkConnectionFactoryAbstractClass factory) {
       this.appName = appName;
       this.operationLog = new OperationLog(appName);
+      this.walCheckpointer = new WalCheckpointer(this, factory);
+      this.writeTransactionQueue = new WriteTransactionQueue(appName);
+      this.readerPool = new ReaderPool(this, factory);
    }
 
    /**
@@ -89,6 +102,9 @@ public final class AppNameSharedStateContainer {
          dbConnectionExisting = sessionQualifierConnectionMap.get(sessionQualifier);
 
          if (dbConnectionExisting == null) {
+            if ( sessionQualifierConnectionMap.isEmpty() ) {
+               walCheckpointer.start();
+            }
             sessionQualifierConnectionMap.put(sessionQualifier, dbConnection);
             // this map now holds a reference
             dbConnection.acquireReference();
@@ -137,6 +153,7 @@ public final class AppNameSharedStateContainer {
     */
    boolean moveIntoPendingDestruction( OdkConnectionInterface dbConnection ) {
       OdkConnectionInterface reference = null;
+      boolean lastConnection = false;
       synchronized (appNameMutex) {
          // add the connection to the pending destruction list
          pendingDestruction.put(dbConnection, System.currentTimeMillis());
@@ -144,9 +161,15 @@ public final class AppNameSharedStateContainer {
          reference = sessionQualifierConnectionMap.remove(dbConnection.getSessionQualifier());
 
          if ( sessionQualifierConnectionMap.isEmpty() ) {
+            walCheckpointer.stop();
             operationLog.clearOperations();
+            lastConnection = true;
          }
       }
+      if ( lastConnection ) {
+         // outside of the mutex; this closes connections
+         readerPool.closeAll();
+      }
       // and report back whether the connection needs to have -1 reference adjustment.
       return ( reference != null );
    }
@@ -163,13 +186,12 @@ public final class AppNameSharedStateContainer {
       synchronized (appNameMutex) {
          b.append("\n---------------- ").append(appName).append(" ---------------------\n\n");
          operationLog.dump(b, true);
+         operationLog.getStatementMetrics().dump(b, 10);
+         walCheckpointer.dump(b);
+         writeTransactionQueue.dump(b);
+         readerPool.dump(b);
 
-         b.append("beginTransactionSessionQualifier ")
-             .append(beginTransactionSessionQualifier)
-             .append("\n");
-         b.append("beginTransactionThreadId ")
-             .append(beginTransactionThreadId)
-             .append("\n-----active------------------\n\n");
+         b.append("\n-----active------------------\n\n");
 
          for (String sessionQualifier : sessionQualifierConnectionMap.keySet()) {
             OdkConnectionInterface dbConnection = sessionQualifierConnectionMap
@@ -204,11 +226,24 @@ public final class AppNameSharedStateContainer {
       return operationLog;
    }
 
-   void setBeginTransactionSession(String sessionQualifier) {
-      synchronized (appNameMutex) {
-         beginTransactionSessionQualifier = sessionQualifier;
-         beginTransactionThreadId = Thread.currentThread().getId();
-      }
+   WalCheckpointer getWalCheckpointer() {
+      return walCheckpointer;
+   }
+
+   SQLiteMemoryProfile getMemoryProfile() {
+      return memoryProfile;
+   }
+
+   void setMemoryProfile(SQLiteMemoryProfile memoryProfile) {
+      this.memoryProfile = memoryProfile;
+   }
+
+   WriteTransactionQueue getWriteTransactionQueue() {
+      return writeTransactionQueue;
+   }
+
+   ReaderPool getReaderPool() {
+      return readerPool;
    }
 
   /**
@@ -216,14 +251,12 @@ public final class AppNameSharedStateContainer {
    * @return
    */
    private String internalGetSessionQualifier() {
-      synchronized (appNameMutex) {
-         if (beginTransactionSessionQualifier != null) {
-            return beginTransactionSessionQualifier;
-         }
-      }
-      return null;
+      return writeTransactionQueue.getOwnerSessionQualifier();
    }
 
+   /**
+    * Remove the session that holds the write transaction (abandoning that transaction).
+    */
    void releaseBeginTransactionSession() {
       String sessionQualifier = null;
       try {
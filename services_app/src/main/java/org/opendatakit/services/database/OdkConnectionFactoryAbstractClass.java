@@ -21,6 +21,7 @@ import org.opendatakit.utilities.ODKFileUtils;
 import org.sqlite.database.sqlite.SQLiteCantOpenDatabaseException;
 import org.sqlite.database.sqlite.SQLiteDatabaseLockedException;
 import org.sqlite.database.sqlite.SQLiteException;
+import org.sqlite.database.sqlite.SQLiteMemoryProfile;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -114,6 +115,17 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
   protected abstract OdkConnectionInterface openDatabase(
           AppNameSharedStateContainer appNameSharedStateContainer, String sessionQualifier);
 
+  /**
+   * Open a connection that rejects statements that modify the database. It is not
+   * entered into the session map.
+   *
+   * @param appNameSharedStateContainer
+   * @param sessionQualifier
+   * @return
+   */
+  protected abstract OdkConnectionInterface openQueryOnlyDatabase(
+          AppNameSharedStateContainer appNameSharedStateContainer, String sessionQualifier);
+
   /**
    * This handle is suitable for non-service uses.
    *
@@ -156,7 +168,7 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
     }
   }
 
-  private static String getDbFilePath(String appName) {
+  static String getDbFilePath(String appName) {
     File dbFile = new File(ODKFileUtils.getWebDbFolder(appName),
             ODKFileUtils.getNameOfSQLiteDatabase());
     String dbFilePath = dbFile.getAbsolutePath();
@@ -170,6 +182,21 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
     return dbLockFilePath;
   }
 
+  /**
+   * @param appName
+   * @return the shared state for this appName, creating it if necessary
+   */
+  private AppNameSharedStateContainer getAppNameSharedStateContainer(String appName) {
+    synchronized (mutex) {
+      AppNameSharedStateContainer appNameSharedStateContainer = appNameSharedStateMap.get(appName);
+      if (appNameSharedStateContainer == null) {
+        appNameSharedStateContainer = new AppNameSharedStateContainer(appName, this);
+        appNameSharedStateMap.put(appName, appNameSharedStateContainer);
+      }
+      return appNameSharedStateContainer;
+    }
+  }
+
   /**
    * Create a new connection and insert it into the connection-map.
    * If the initialization logic should be run on this connection,
@@ -397,13 +424,7 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
 
     AppNameSharedStateContainer appNameSharedStateContainer = null;
     {
-      synchronized (mutex) {
-        appNameSharedStateContainer = appNameSharedStateMap.get(appName);
-        if (appNameSharedStateContainer == null) {
-          appNameSharedStateContainer = new AppNameSharedStateContainer(appName);
-          appNameSharedStateMap.put(appName, appNameSharedStateContainer);
-        }
-      }
+      appNameSharedStateContainer = getAppNameSharedStateContainer(appName);
 
       dbConnection = appNameSharedStateContainer.getExisting(sessionQualifier);
 
@@ -589,6 +610,57 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
     return !sessionQualifiers.isEmpty();
   }
 
+  @Override
+  public final void setMemoryProfile(String appName, SQLiteMemoryProfile profile) {
+    if (appName == null) {
+      throw new IllegalArgumentException("appName cannot be null!");
+    }
+    getAppNameSharedStateContainer(appName).setMemoryProfile(profile);
+  }
+
+  @Override
+  public final void requestWalTruncation(String appName) {
+    AppNameSharedStateContainer appNameSharedStateContainer = null;
+    synchronized (mutex) {
+      appNameSharedStateContainer = appNameSharedStateMap.get(appName);
+    }
+    if (appNameSharedStateContainer != null) {
+      appNameSharedStateContainer.getWalCheckpointer().requestTruncate();
+    }
+  }
+
+  @Override
+  public final StatementMetrics getStatementMetrics(String appName) {
+    if (appName == null) {
+      throw new IllegalArgumentException("appName cannot be null!");
+    }
+    return getAppNameSharedStateContainer(appName).getOperationLog().getStatementMetrics();
+  }
+
+  @Override
+  public final void setReaderConnectionLimit(String appName, int limit) {
+    if (appName == null) {
+      throw new IllegalArgumentException("appName cannot be null!");
+    }
+    getAppNameSharedStateContainer(appName).getReaderPool().setMaxReaders(limit);
+  }
+
+  @Override
+  public final OdkConnectionInterface getReaderConnection(String appName) {
+    if (appName == null) {
+      throw new IllegalArgumentException("appName cannot be null!");
+    }
+    return getAppNameSharedStateContainer(appName).getReaderPool().acquire();
+  }
+
+  @Override
+  public final void releaseReaderConnection(String appName, OdkConnectionInterface dbConnection) {
+    if (appName == null) {
+      throw new IllegalArgumentException("appName cannot be null!");
+    }
+    getAppNameSharedStateContainer(appName).getReaderPool().release(dbConnection);
+  }
+
   @Override
   public final boolean removeAllDatabaseServiceConnections() {
     HashSet<String> appNames = new HashSet<String>();
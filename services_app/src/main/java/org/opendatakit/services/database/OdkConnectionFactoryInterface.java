@@ -1,6 +1,7 @@
 package org.opendatakit.services.database;
 
 import org.opendatakit.database.service.DbHandle;
+import org.sqlite.database.sqlite.SQLiteMemoryProfile;
 
 /**
  * Factory interface that provides database connections and manages them.
@@ -81,6 +82,58 @@ public interface OdkConnectionFactoryInterface {
     */
    boolean removeAllDatabaseServiceConnections();
 
+   /**
+    * Set the memory profile (page cache, memory-mapped I/O, temp_store) for
+    * connections to this appName's database that are opened after this call.
+    *
+    * @param appName
+    * @param profile the profile, or null to use the one for the device class
+    */
+   void setMemoryProfile(String appName, SQLiteMemoryProfile profile);
+
+   /**
+    * Request that the write-ahead log for this appName be checkpointed and
+    * truncated to zero length once the database next becomes idle.
+    * Invoked when a sync (or another bulk update) completes.
+    *
+    * @param appName
+    */
+   void requestWalTruncation(String appName);
+
+   /**
+    * @param appName
+    * @return the latency histograms of the statements run against this appName's database
+    */
+   StatementMetrics getStatementMetrics(String appName);
+
+   /**
+    * Set the number of query-only connections pooled for this appName.
+    *
+    * @param appName
+    * @param limit the number of connections; 0 disables the pool
+    */
+   void setReaderConnectionLimit(String appName, int limit);
+
+   /**
+    * Obtain a pooled connection for reads that need not see the uncommitted
+    * changes of any session. It runs against the last committed state and
+    * is not blocked by an open write transaction.
+    *
+    * @param appName
+    * @return the connection, which must be handed back to
+    * {@link #releaseReaderConnection(String, OdkConnectionInterface)}; or null
+    * if none is available (read on the session's own connection instead).
+    */
+   OdkConnectionInterface getReaderConnection(String appName);
+
+   /**
+    * Return a connection obtained from {@link #getReaderConnection(String)}.
+    *
+    * @param appName
+    * @param dbConnection
+    */
+   void releaseReaderConnection(String appName, OdkConnectionInterface dbConnection);
+
    /**
     * Remove all open database connections.
     * See {removeConnection(String, DbHandle)}
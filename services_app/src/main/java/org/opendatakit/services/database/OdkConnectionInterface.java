@@ -1,8 +1,10 @@
 package org.opendatakit.services.database;
 
 import android.database.Cursor;
+import android.os.CancellationSignal;
 import org.sqlite.database.SQLException;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -115,6 +117,33 @@ public interface OdkConnectionInterface {
 
     boolean inTransaction() throws SQLException;
 
+   /**
+    * Begin a bulk session for a privileged bulk operation (e.g., applying server
+    * changes during sync or importing a table). Until {@link #endBulkSession()},
+    * commits are not fsync'd (synchronous=NORMAL), the page cache is enlarged and
+    * temporary storage is kept in memory.
+    *
+    * Does nothing if a bulk session is already open. Must not be called within a
+    * transaction.
+    *
+    * @throws SQLException
+    */
+    void beginBulkSession() throws SQLException;
+
+   /**
+    * End the bulk session: restore full durability and run a FULL checkpoint of
+    * the write-ahead log, which makes the session's commits durable. Also done
+    * when the connection is closed.
+    *
+    * Does nothing if no bulk session is open. Must not be called within a
+    * transaction.
+    *
+    * @throws SQLException
+    */
+    void endBulkSession() throws SQLException;
+
+    boolean inBulkSession() throws SQLException;
+
     void setTransactionSuccessful() throws SQLException;
 
     void endTransaction() throws SQLException;
@@ -131,8 +160,45 @@ public interface OdkConnectionInterface {
 
     void execSQL(String sql, Object[] bindArgs) throws SQLException;
 
+   /**
+    * Execute the same INSERT, UPDATE or DELETE statement once for each set of bind
+    * arguments, preparing the statement only once.
+    *
+    * @param sql the statement to execute
+    * @param bindArgsList one array of bind arguments per execution
+    * @return the number of rows changed by each execution
+    * @throws SQLException
+    */
+    int[] executeBatch(String sql, List<Object[]> bindArgsList) throws SQLException;
+
+   /**
+    * Insert many rows that supply the same columns, preparing the INSERT statement only once.
+    *
+    * @param table the table to insert into
+    * @param columns the column names
+    * @param rows one array of values per row, in the order of columns
+    * @param conflictAlgorithm one of the SQLiteConnectionBase.CONFLICT_... values
+    * @return the number of rows inserted by each execution
+    * @throws SQLException
+    */
+    int[] insertBatchWithOnConflict(String table, String[] columns, List<Object[]> rows,
+        int conflictAlgorithm) throws SQLException;
+
     Cursor rawQuery(String sql, Object[] selectionArgs) throws SQLException;
 
+   /**
+    * Run a query that can be abandoned from another thread.
+    *
+    * @param sql
+    * @param selectionArgs
+    * @param cancellationSignal signal that interrupts the executing statement, or null
+    * @return
+    * @throws SQLException
+    * @throws android.os.OperationCanceledException if the signal was cancelled
+    */
+    Cursor rawQuery(String sql, Object[] selectionArgs, CancellationSignal cancellationSignal)
+        throws SQLException;
+
     Cursor query(String table, String[] columns, String selection, Object[] selectionArgs,
                            String groupBy, String having, String orderBy, String limit) throws SQLException;
 
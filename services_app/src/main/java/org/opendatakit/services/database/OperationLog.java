@@ -14,33 +14,52 @@
 
 package org.opendatakit.services.database;
 
-import org.opendatakit.logging.WebLogger;
-import org.sqlite.database.sqlite.SQLiteDebug;
-
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Extracted from the SQLiteDatabase class.
  * Thread-safe.
+ * <p>
+ * Each connection records its operations in its own lock-free
+ * OperationRing (see {@link #openRing()}). This class only tracks the
+ * rings of an appName and merges them, most recent first, when dumped.
  *
  * @author mitchellsundt@gmail.com
  */
 public final class OperationLog {
 
    private static final int MAX_RECENT_OPERATIONS = 60;
-   private static final int COOKIE_GENERATION_SHIFT = 8;
-   private static final int COOKIE_INDEX_MASK = 0xff;
-   private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
-
 
-   private final OperationLogEntry[] mOperations = new OperationLogEntry[MAX_RECENT_OPERATIONS];
+   /**
+    * Number of closed connections whose recent operations are retained
+    */
+   private static final int MAX_RETIRED_RINGS = 8;
+
+   private static final Comparator<OperationLogEntry> MOST_RECENT_FIRST =
+       new Comparator<OperationLogEntry>() {
+         @Override
+         public int compare(OperationLogEntry lhs, OperationLogEntry rhs) {
+            long delta = rhs.mStartNanos - lhs.mStartNanos;
+            return (delta < 0L) ? -1 : ((delta == 0L) ? 0 : 1);
+         }
+       };
 
    private final String appName;
-   private int mIndex;
-   private int mGeneration;
+
+   private final StatementMetrics statementMetrics = new StatementMetrics();
+
+   private final ConcurrentLinkedQueue<OperationRing> mLiveRings =
+       new ConcurrentLinkedQueue<OperationRing>();
+   private final ConcurrentLinkedQueue<OperationRing> mRetiredRings =
+       new ConcurrentLinkedQueue<OperationRing>();
+
   /**
-   * Access only within synchronized mOperations
+   * Access only within synchronized opens
    *
    * tracks the number of opens in the last 65 seconds
    */
@@ -49,7 +68,7 @@ public final class OperationLog {
   private int lastOpenIdx = 0;
 
   /**
-   * Access only within synchronized mOperations
+   * Access only within synchronized opens
    *
    * tracks the number of closes in the last 65 seconds
    */
@@ -57,109 +76,92 @@ public final class OperationLog {
   private int totalCloses = 0;
   private int lastCloseIdx = 0;
 
+  /**
+   * Activity time of the rings that have been discarded
+   */
+  private volatile long mDiscardedActivityNanos = System.nanoTime();
+
    public OperationLog(String appName) {
       this.appName = appName;
    }
 
+   String getAppName() {
+      return appName;
+   }
+
    /**
-    * Invoked when AppNameSharedStateContainer becomes empty
+    * @return the latency histograms of the statements run against this appName's database
     */
-   public void clearOperations() {
-      synchronized (mOperations) {
-         for ( int i = 0 ; i < mOperations.length ; ++i ) {
-            mOperations[i] = null;
-         }
-      }
+   public StatementMetrics getStatementMetrics() {
+      return statementMetrics;
    }
 
-   public int beginOperation(String sessionQualifier, String kind, String sql, Object[] bindArgs) {
-      synchronized (mOperations) {
-         final int index = (mIndex + 1) % MAX_RECENT_OPERATIONS;
-         OperationLogEntry operation = mOperations[index];
-         if (operation == null) {
-            operation = new OperationLogEntry();
-            mOperations[index] = operation;
-         } else {
-            operation.mFinished = false;
-            operation.mThrowable = null;
-            if (operation.mBindArgs != null) {
-               operation.mBindArgs.clear();
-            }
-         }
-         operation.mSessionQualifier = sessionQualifier;
-         operation.mStartTime = System.currentTimeMillis();
-         operation.mKind = kind;
-         operation.mThreadId = Thread.currentThread().getId();
-         operation.mSql = sql;
-         if (bindArgs != null) {
-            if (operation.mBindArgs == null) {
-               operation.mBindArgs = new ArrayList<Object>();
-            } else {
-               operation.mBindArgs.clear();
-            }
-            for (int i = 0; i < bindArgs.length; i++) {
-               final Object arg = bindArgs[i];
-               if (arg != null && arg instanceof byte[]) {
-                  // Don't hold onto the real byte array longer than necessary.
-                  operation.mBindArgs.add(EMPTY_BYTE_ARRAY);
-               } else {
-                  operation.mBindArgs.add(arg);
-               }
-            }
-         }
-         operation.mCookie = newOperationCookieLocked(index);
-         mIndex = index;
-         return operation.mCookie;
-      }
+   /**
+    * Create the operation ring for a new connection.
+    *
+    * @return the ring; the connection should retire() it when it is closed.
+    */
+   public OperationRing openRing() {
+      OperationRing ring = new OperationRing(this);
+      mLiveRings.add(ring);
+      return ring;
    }
 
-   public void failOperation(int cookie, Throwable t) {
-      String logString = null;
-      final OperationLogEntry operation = getOperationLocked(cookie);
-      if (operation != null) {
-         operation.mThrowable = t;
-         logString = logOperationLocked(operation, null);
-      }
-      if (logString != null) {
-         WebLogger.getLogger(appName).i("operationLog",
-             "failOperation: " + logString);
+   void retire(OperationRing ring) {
+      if (mLiveRings.remove(ring)) {
+         mRetiredRings.add(ring);
+         while (mRetiredRings.size() > MAX_RETIRED_RINGS) {
+            discard(mRetiredRings.poll());
+         }
       }
-      // silently ignore if not found -- we are processing requests too fast!
    }
 
-   public void endOperation(int cookie) {
-      String logString = null;
-      final OperationLogEntry operation = getOperationLocked(cookie);
-      if (operation != null) {
-         if (endOperationDeferLogLocked(operation)) {
-            logString = logOperationLocked(operation, null);
+   private void discard(OperationRing ring) {
+      if (ring != null) {
+         long last = ring.getLastActivityNanos();
+         if (last - mDiscardedActivityNanos > 0L) {
+            mDiscardedActivityNanos = last;
          }
       }
-      if ( logString != null ) {
-         WebLogger.getLogger(appName).i("operationLog",
-             "endOperation (long runtime): " + logString);
+   }
+
+   /**
+    * Invoked when AppNameSharedStateContainer becomes empty
+    */
+   public void clearOperations() {
+      OperationRing ring;
+      while ((ring = mRetiredRings.poll()) != null) {
+         discard(ring);
       }
-      // silently ignore if not found -- we are processing requests too fast!
    }
 
-   public void endOperationDeferLogAdditional(int cookie, String logString) {
-      final OperationLogEntry operation = getOperationLocked(cookie);
-      boolean shouldLog = false;
-      if (operation != null) {
-         shouldLog = endOperationDeferLogLocked(operation);
+   /**
+    * Computed on demand from the rings; never written on the operation path.
+    *
+    * @return the System.nanoTime() at which an operation most recently began or ended.
+    */
+   public long getLastActivityNanos() {
+      long last = mDiscardedActivityNanos;
+      for (OperationRing ring : mLiveRings) {
+         long t = ring.getLastActivityNanos();
+         if (t - last > 0L) {
+            last = t;
+         }
       }
-      if ( logString != null && shouldLog ) {
-         WebLogger.getLogger(appName).i("operationLog",
-             "endOperation (long runtime): " + logString);
+      for (OperationRing ring : mRetiredRings) {
+         long t = ring.getLastActivityNanos();
+         if (t - last > 0L) {
+            last = t;
+         }
       }
-      // silently ignore if not found -- we are processing requests too fast!
+      return last;
    }
 
   /**
    * Function to track the number of new connection opens within the last 65 seconds
    */
   public void tickOpen() {
-    synchronized (mOperations) {
+    synchronized (opens) {
       long now = System.currentTimeMillis();
       int idx = (int) ((now & 0xE000L) >> 13);
 
@@ -176,7 +178,7 @@ public final class OperationLog {
    * Function to track the number of connection closes within the last 65 seconds
    */
   public void tickClose() {
-    synchronized (mOperations) {
+    synchronized (opens) {
       long now = System.currentTimeMillis();
       int idx = (int) ((now & 0xE000L) >> 13);
 
@@ -189,32 +191,8 @@ public final class OperationLog {
     }
   }
 
-   public void logOperation(int cookie, String detail) {
-      final OperationLogEntry operation = getOperationLocked(cookie);
-      String logString = null;
-      if (operation != null) {
-         logString = logOperationLocked(operation, detail);
-      }
-      if (logString != null) {
-         WebLogger.getLogger(appName).i("operationLog", logString);
-      }
-      // silently ignore if not found -- we are processing requests too fast!
-   }
-
-   public String describeCurrentOperation() {
-      synchronized (mOperations) {
-         final OperationLogEntry operation = mOperations[mIndex];
-         if (operation != null && !operation.mFinished) {
-            StringBuilder msg = new StringBuilder();
-            operation.describe(msg, false);
-            return msg.toString();
-         }
-         return null;
-      }
-   }
-
    public void dump(StringBuilder b, boolean verbose) {
-      synchronized (mOperations) {
+      synchronized (opens) {
         //////////////////////////////////////////////////////
         // Display a time histogram of the number of opens and closes
         // in the last 65 seconds.
@@ -245,90 +223,29 @@ public final class OperationLog {
 
         b.append("Total opens: ").append(totalOpens).append(" closes: ").append(totalCloses)
             .append(" currently active: ").append(totalOpens-totalCloses).append("\n\n");
-
-        b.append("  Most recently executed operations:\n");
-         int index = mIndex;
-         OperationLogEntry operation = mOperations[index];
-         if (operation != null) {
-            int n = 0;
-            do {
-               b.append(" ").append(n).append(": ");
-               operation.describe(b, verbose);
-               b.append("\n");
-               if (index > 0) {
-                  index -= 1;
-               } else {
-                  index = MAX_RECENT_OPERATIONS - 1;
-               }
-               n += 1;
-               operation = mOperations[index];
-            } while (operation != null && n < MAX_RECENT_OPERATIONS);
-         } else {
-            b.append("    <none>\n");
-         }
       }
-   }
 
-   /**
-    * This is ONLY called within a synchronized(mOperations){} block.
-    *
-    * @param operation
-    * @return
-    */
-   private boolean endOperationDeferLogLocked(OperationLogEntry operation) {
-      if (operation != null) {
-         if ( !operation.mFinished ) {
-            operation.mEndTime = System.currentTimeMillis();
-            operation.mFinished = true;
-         }
-         return SQLiteDebug.shouldLogSlowQuery(operation.mEndTime - operation.mStartTime);
+      List<OperationLogEntry> operations = new ArrayList<OperationLogEntry>();
+      for (OperationRing ring : mLiveRings) {
+         ring.snapshot(operations);
       }
-      return false;
-   }
-
-   /**
-    * This is ONLY called within a synchronized(mOperations){} block.
-    *
-    * @param operation
-    * @param detail
-    */
-   private String logOperationLocked(OperationLogEntry operation, String detail) {
-      StringBuilder msg = new StringBuilder();
-      operation.describe(msg, false);
-      if (detail != null) {
-         msg.append(", ").append(detail);
+      for (OperationRing ring : mRetiredRings) {
+         ring.snapshot(operations);
       }
-      return msg.toString();
-   }
-
-   /**
-    * This is ONLY called within a synchronized(mOperations){} block.
-    *
-    * @param index
-    * @return
-    */
-   private int newOperationCookieLocked(int index) {
-      final int generation = mGeneration++;
-      return generation << COOKIE_GENERATION_SHIFT | index;
-   }
+      Collections.sort(operations, MOST_RECENT_FIRST);
 
-   /**
-    * This is ONLY called within a synchronized(mOperations){} block.
-    *
-    * @param cookie
-    * @return
-    */
-   private OperationLogEntry getOperationLocked(int cookie) {
-     final int index = cookie & COOKIE_INDEX_MASK;
-     synchronized (mOperations) {
-       if (index >= mOperations.length) {
-         return null;
-       }
-       final OperationLogEntry operation = mOperations[index];
-       if (operation == null) {
-         return null;
-       }
-       return operation.mCookie == cookie ? operation : null;
-     }
+      final long nowNanos = System.nanoTime();
+      final long nowMillis = System.currentTimeMillis();
+      b.append("  Most recently executed operations:\n");
+      if (operations.isEmpty()) {
+         b.append("    <none>\n");
+      } else {
+         final int count = Math.min(operations.size(), MAX_RECENT_OPERATIONS);
+         for (int n = 0; n < count; ++n) {
+            b.append(" ").append(n).append(": ");
+            operations.get(n).describe(b, verbose, nowNanos, nowMillis);
+            b.append("\n");
+         }
+      }
    }
 }
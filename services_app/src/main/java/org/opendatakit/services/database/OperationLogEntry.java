@@ -18,61 +18,116 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
 
 /**
+ * One slot of an OperationRing. The slot is filled in place by the thread
+ * that claimed it; only references, primitives and System.nanoTime() stamps
+ * are recorded. Bind arguments are copied into a buffer owned by the slot,
+ * with byte[] values replaced by an empty array so that blobs are not held
+ * onto. All formatting is done by describe() when the log is dumped.
+ *
  * @author mitchellsundt@gmail.com
  */
 final class OperationLogEntry {
 
    /**
-    * SimpleDateFormat is not thread-safe. synchronize
-    * on it before accessing it.
+    * SimpleDateFormat is not thread-safe. Construct a new one for each use.
     */
    public static void getFormattedStartTime(StringBuilder b, long startTime) {
-     // the format() return is a String overlaying a common buffer.
-     // the string content can change unexpectedly. Access it only
-     // within this synchronized section.
      SimpleDateFormat restrictedDateFormat =
          new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
      b.append(restrictedDateFormat.format(new Date(startTime)));
    }
 
+   /**
+    * Sequence number of the operation held in this slot, or -1 while the
+    * slot is being (re)written. Written last by the claiming thread.
+    */
+   public volatile long mSeq = -1L;
+
    public long mThreadId;
    public String mSessionQualifier;
-   public long mStartTime;
-   public long mEndTime;
+   public long mStartNanos;
+   public long mEndNanos;
    public String mKind;
    public String mSql;
-   public ArrayList<Object> mBindArgs;
-   public boolean mFinished;
+   /**
+    * Copy of the bind arguments; only the first mBindArgCount are valid.
+    * Reused by later operations in the same slot.
+    */
+   public Object[] mBindArgs;
+   /**
+    * Number of bind arguments, or -1 if there were none
+    */
+   public int mBindArgCount = -1;
+   /**
+    * True if the operation is an API call; formatted as kind(name,clause,value) by describe()
+    */
+   public boolean mIsCall;
+   public String mDetailName;
+   public String mDetailClause;
+   /**
+    * Label of mDetailValue, or null if the call has no value
+    */
+   public String mDetailValueLabel;
+   public long mDetailValue;
+   public String mResultLabel;
+   public long mResultCount;
+   /**
+    * Total that mResultCount is out of, or -1
+    */
+   public long mResultTotal = -1L;
+   public volatile boolean mFinished;
    public Throwable mThrowable;
-   public int mCookie;
 
-   public void describe(StringBuilder msg, boolean verbose) {
+   /**
+    * @param msg
+    * @param verbose     true to include the bind arguments
+    * @param nowNanos    System.nanoTime() at the time of the dump
+    * @param nowMillis   System.currentTimeMillis() at the time of the dump
+    */
+   public void describe(StringBuilder msg, boolean verbose, long nowNanos, long nowMillis) {
       msg.append(mKind);
+      if (mIsCall) {
+         msg.append("(");
+         describeDetail(msg, mDetailName);
+         if (mDetailClause != null) {
+            msg.append(",");
+            describeDetail(msg, mDetailClause);
+         }
+         if (mDetailValueLabel != null) {
+            msg.append(",").append(mDetailValueLabel).append("=").append(mDetailValue);
+         }
+         msg.append(")");
+      }
       if (mFinished) {
-         msg.append(" took ").append(mEndTime - mStartTime).append("ms");
+         msg.append(" took ").append((mEndNanos - mStartNanos) / 1000000L).append("ms");
       } else {
-         msg.append(" started ").append(System.currentTimeMillis() - mStartTime)
+         msg.append(" started ").append((nowNanos - mStartNanos) / 1000000L)
              .append("ms ago");
       }
       msg.append(" - ").append(getStatus());
+      if (mFinished && mResultLabel != null) {
+         msg.append(", ").append(mResultLabel).append("=").append(mResultCount);
+         if (mResultTotal >= 0L) {
+            msg.append(" of ").append(mResultTotal);
+         }
+      }
       msg.append("\n      threadId:").append(mThreadId)
           .append(", sessionQualifier:").append(mSessionQualifier);
       msg.append(", startTime:");
-      getFormattedStartTime(msg, mStartTime);
+      getFormattedStartTime(msg, nowMillis - (nowNanos - mStartNanos) / 1000000L);
       if (mSql != null) {
          msg.append(", sql=\"")
              .append(AppNameSharedStateContainer.trimSqlForDisplay(mSql)).append("\"");
       }
-      if (verbose && mBindArgs != null && mBindArgs.size() != 0) {
+      if (verbose && mBindArgCount > 0) {
          msg.append(", bindArgs=[");
-         final int count = mBindArgs.size();
+         final int count = mBindArgCount;
          for (int i = 0; i < count; i++) {
-            final Object arg = mBindArgs.get(i);
+            final Object arg = mBindArgs[i];
             if (i != 0) {
                msg.append(", ");
             }
@@ -108,6 +163,14 @@ final class OperationLogEntry {
       }
    }
 
+   private static void describeDetail(StringBuilder msg, String arg) {
+      if (arg == null) {
+         msg.append("null");
+      } else {
+         msg.append("\"").append(arg).append("\"");
+      }
+   }
+
    private String getStatus() {
       if (!mFinished) {
          return "running";
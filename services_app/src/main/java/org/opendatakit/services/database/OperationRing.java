@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database;
+
+import org.opendatakit.logging.WebLogger;
+import org.sqlite.database.sqlite.SQLiteDebug;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The recent operations of a single connection.
+ * <p>
+ * A fixed ring of preallocated entries. Each operation claims the next slot
+ * with an atomic increment and fills it in place with its sql, its call
+ * arguments (strings and primitives) and System.nanoTime() stamps; there is
+ * no lock on the begin/end path. Bind arguments are copied into a buffer
+ * owned by the slot (byte[] values are not retained), which is only
+ * reallocated when an operation has more arguments than it holds. Nothing is
+ * formatted until the owning OperationLog is dumped (or an operation fails
+ * or runs long).
+ * <p>
+ * Readers (dump) see a best-effort snapshot: a slot that is rewritten while
+ * it is being copied is skipped.
+ */
+public final class OperationRing {
+
+   private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+
+   private static final int RING_SIZE = 32;
+   private static final int INDEX_MASK = RING_SIZE - 1;
+
+   private final OperationLog operationLog;
+   private final OperationLogEntry[] mEntries = new OperationLogEntry[RING_SIZE];
+   private final AtomicLong mNextSeq = new AtomicLong(0L);
+
+   private volatile long mLastActivityNanos = System.nanoTime();
+   private volatile boolean mRetired = false;
+
+   OperationRing(OperationLog operationLog) {
+      this.operationLog = operationLog;
+      for (int i = 0; i < RING_SIZE; ++i) {
+         mEntries[i] = new OperationLogEntry();
+      }
+   }
+
+   /**
+    * Record the start of a SQL statement.
+    *
+    * @param sessionQualifier
+    * @param kind     a constant describing the operation
+    * @param sql      the statement (not copied)
+    * @param bindArgs the bind arguments (copied, without any byte[] values)
+    * @return cookie to pass to the fail and end methods
+    */
+   public int beginOperation(String sessionQualifier, String kind, String sql, Object[] bindArgs) {
+      final long seq = mNextSeq.getAndIncrement();
+      final OperationLogEntry operation = claim(seq, sessionQualifier, kind);
+      operation.mSql = sql;
+      operation.mIsCall = false;
+      copyBindArgs(operation, bindArgs);
+      return publish(operation, seq);
+   }
+
+   /**
+    * Record the start of an API call, formatted as kind("name","clause") when
+    * the log is dumped.
+    *
+    * @param sessionQualifier
+    * @param kind   a constant naming the call
+    * @param name   e.g., the table or statement the call acts on
+    * @param clause e.g., the where clause of the call, or null
+    * @return cookie to pass to the fail and end methods
+    */
+   public int beginCall(String sessionQualifier, String kind, String name, String clause) {
+      return beginCall(sessionQualifier, kind, name, clause, null, 0L);
+   }
+
+   /**
+    * Record the start of an API call, formatted as kind("name","clause",valueLabel=value)
+    * when the log is dumped.
+    *
+    * @param sessionQualifier
+    * @param kind       a constant naming the call
+    * @param name       e.g., the table or statement the call acts on
+    * @param clause     e.g., the where clause of the call, or null
+    * @param valueLabel a constant naming the value (e.g., "rows"), or null if there is none
+    * @param value
+    * @return cookie to pass to the fail and end methods
+    */
+   public int beginCall(String sessionQualifier, String kind, String name, String clause,
+       String valueLabel, long value) {
+      final long seq = mNextSeq.getAndIncrement();
+      final OperationLogEntry operation = claim(seq, sessionQualifier, kind);
+      operation.mSql = null;
+      operation.mIsCall = true;
+      operation.mDetailName = name;
+      operation.mDetailClause = clause;
+      operation.mDetailValueLabel = valueLabel;
+      operation.mDetailValue = value;
+      copyBindArgs(operation, null);
+      return publish(operation, seq);
+   }
+
+   private OperationLogEntry claim(long seq, String sessionQualifier, String kind) {
+      final OperationLogEntry operation = mEntries[(int) (seq & INDEX_MASK)];
+      operation.mSeq = -1L;
+      operation.mFinished = false;
+      operation.mThrowable = null;
+      operation.mResultLabel = null;
+      operation.mResultTotal = -1L;
+      operation.mSessionQualifier = sessionQualifier;
+      operation.mKind = kind;
+      operation.mDetailName = null;
+      operation.mDetailClause = null;
+      operation.mDetailValueLabel = null;
+      operation.mThreadId = Thread.currentThread().getId();
+      return operation;
+   }
+
+   private int publish(OperationLogEntry operation, long seq) {
+      operation.mStartNanos = System.nanoTime();
+      mLastActivityNanos = operation.mStartNanos;
+      operation.mSeq = seq;
+      return (int) seq;
+   }
+
+   private static void copyBindArgs(OperationLogEntry operation, Object[] bindArgs) {
+      Object[] buffer = operation.mBindArgs;
+      final int oldCount = operation.mBindArgCount;
+      if (bindArgs == null) {
+         operation.mBindArgCount = -1;
+         // drop the references held for the previous operation in this slot
+         for (int i = 0; i < oldCount; ++i) {
+            buffer[i] = null;
+         }
+         return;
+      }
+      final int count = bindArgs.length;
+      if (buffer == null || buffer.length < count) {
+         buffer = new Object[Math.max(count, 8)];
+         operation.mBindArgs = buffer;
+      }
+      for (int i = 0; i < count; ++i) {
+         final Object arg = bindArgs[i];
+         // Don't hold onto the real byte array longer than necessary.
+         buffer[i] = (arg instanceof byte[]) ? EMPTY_BYTE_ARRAY : arg;
+      }
+      for (int i = count; i < oldCount; ++i) {
+         buffer[i] = null;
+      }
+      operation.mBindArgCount = count;
+   }
+
+   public void failOperation(int cookie, Throwable t) {
+      final OperationLogEntry operation = getOperation(cookie);
+      if (operation != null) {
+         operation.mThrowable = t;
+         WebLogger.getLogger(operationLog.getAppName()).i("operationLog",
+             "failOperation: " + describe(operation));
+      }
+      // silently ignore if not found -- we are processing requests too fast!
+   }
+
+   public void endOperation(int cookie) {
+      endOperation(cookie, null, 0L);
+   }
+
+   /**
+    * End an operation, recording a count (e.g., changedRows) that is
+    * reported alongside it.
+    *
+    * @param cookie
+    * @param resultLabel name of the count, or null
+    * @param resultCount
+    */
+   public void endOperation(int cookie, String resultLabel, long resultCount) {
+      endOperation(cookie, resultLabel, resultCount, -1L);
+   }
+
+   /**
+    * End an operation, recording a count out of a total (e.g., executed
+    * statements of a batch) that is reported alongside it.
+    *
+    * @param cookie
+    * @param resultLabel name of the count, or null
+    * @param resultCount
+    * @param resultTotal the total, or -1
+    */
+   public void endOperation(int cookie, String resultLabel, long resultCount, long resultTotal) {
+      final long now = System.nanoTime();
+      mLastActivityNanos = now;
+      final OperationLogEntry operation = getOperation(cookie);
+      if (operation != null && !operation.mFinished) {
+         operation.mEndNanos = now;
+         operation.mResultLabel = resultLabel;
+         operation.mResultCount = resultCount;
+         operation.mResultTotal = resultTotal;
+         operation.mFinished = true;
+         if (SQLiteDebug.shouldLogSlowQuery((now - operation.mStartNanos) / 1000000L)) {
+            WebLogger.getLogger(operationLog.getAppName()).i("operationLog",
+                "endOperation (long runtime): " + describe(operation));
+         }
+      }
+      // silently ignore if not found -- we are processing requests too fast!
+   }
+
+   public void logOperation(int cookie, String detail) {
+      final OperationLogEntry operation = getOperation(cookie);
+      if (operation != null) {
+         String logString = describe(operation);
+         if (detail != null) {
+            logString = logString + ", " + detail;
+         }
+         WebLogger.getLogger(operationLog.getAppName()).i("operationLog", logString);
+      }
+      // silently ignore if not found -- we are processing requests too fast!
+   }
+
+   public String describeCurrentOperation() {
+      final long seq = mNextSeq.get() - 1L;
+      if (seq < 0L) {
+         return null;
+      }
+      final OperationLogEntry operation = getOperation((int) seq);
+      if (operation != null && !operation.mFinished) {
+         return describe(operation);
+      }
+      return null;
+   }
+
+   public void tickOpen() {
+      operationLog.tickOpen();
+   }
+
+   public void tickClose() {
+      operationLog.tickClose();
+   }
+
+   /**
+    * Invoked when the connection is closed. The ring's history remains
+    * visible in the dump until it is displaced by other retired rings.
+    */
+   public void retire() {
+      if (!mRetired) {
+         mRetired = true;
+         operationLog.retire(this);
+      }
+   }
+
+   public StatementMetrics getStatementMetrics() {
+      return operationLog.getStatementMetrics();
+   }
+
+   long getLastActivityNanos() {
+      return mLastActivityNanos;
+   }
+
+   /**
+    * Append copies of the entries currently in the ring.
+    *
+    * @param snapshot
+    */
+   void snapshot(List<OperationLogEntry> snapshot) {
+      for (OperationLogEntry operation : mEntries) {
+         final long seq = operation.mSeq;
+         if (seq < 0L) {
+            continue;
+         }
+         OperationLogEntry copy = new OperationLogEntry();
+         copy.mThreadId = operation.mThreadId;
+         copy.mSessionQualifier = operation.mSessionQualifier;
+         copy.mKind = operation.mKind;
+         copy.mSql = operation.mSql;
+         final Object[] bindArgs = operation.mBindArgs;
+         final int bindArgCount = operation.mBindArgCount;
+         if (bindArgs != null && bindArgCount > 0 && bindArgCount <= bindArgs.length) {
+            copy.mBindArgs = Arrays.copyOf(bindArgs, bindArgCount);
+            copy.mBindArgCount = bindArgCount;
+         }
+         copy.mIsCall = operation.mIsCall;
+         copy.mDetailName = operation.mDetailName;
+         copy.mDetailClause = operation.mDetailClause;
+         copy.mDetailValueLabel = operation.mDetailValueLabel;
+         copy.mDetailValue = operation.mDetailValue;
+         copy.mStartNanos = operation.mStartNanos;
+         copy.mFinished = operation.mFinished;
+         copy.mEndNanos = operation.mEndNanos;
+         copy.mResultLabel = operation.mResultLabel;
+         copy.mResultCount = operation.mResultCount;
+         copy.mResultTotal = operation.mResultTotal;
+         copy.mThrowable = operation.mThrowable;
+         if (operation.mSeq == seq) {
+            copy.mSeq = seq;
+            snapshot.add(copy);
+         }
+      }
+   }
+
+   private OperationLogEntry getOperation(int cookie) {
+      final OperationLogEntry operation = mEntries[cookie & INDEX_MASK];
+      final long seq = operation.mSeq;
+      return (seq >= 0L && (int) seq == cookie) ? operation : null;
+   }
+
+   private static String describe(OperationLogEntry operation) {
+      StringBuilder msg = new StringBuilder();
+      operation.describe(msg, false, System.nanoTime(), System.currentTimeMillis());
+      return msg.toString();
+   }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A small pool of query-only connections for one appName.
+ * <p>
+ * Reads that do not need to see a session's uncommitted changes are run on
+ * these connections. In WAL mode a reader works from a snapshot of the last
+ * commit and never takes the write lock, so these reads proceed while a write
+ * transaction (e.g., a sync) is open on another connection. The connections
+ * are opened with PRAGMA query_only and cannot begin a write, even by mistake.
+ * <p>
+ * Like the WAL checkpointer's connection, pooled connections are not entered
+ * into the session map. They are opened on demand, up to the pool limit, and
+ * closed when the last session connection of the appName is removed. A caller
+ * that finds every connection in use waits a short while for one to be
+ * returned, then gives up and reads on its own connection instead.
+ */
+final class ReaderPool {
+
+   private static final String TAG = ReaderPool.class.getSimpleName();
+
+   static final String SESSION_QUALIFIER_PREFIX = "reader";
+
+   /**
+    * Number of pooled connections used when an appName has no setting
+    */
+   static final int DEFAULT_MAX_READERS = 3;
+
+   /**
+    * Give up waiting for a pooled connection after this long
+    */
+   static final long MAX_WAIT_MILLIS = 1000L;
+
+   private final AppNameSharedStateContainer appNameSharedStateContainer;
+   private final OdkConnectionFactoryAbstractClass factory;
+
+   /**
+    * All of the following are accessed only within synchronized(this)
+    */
+   private final ArrayDeque<OdkConnectionInterface> idle = new ArrayDeque<OdkConnectionInterface>();
+   private final Set<OdkConnectionInterface> inUse =
+       Collections.newSetFromMap(new IdentityHashMap<OdkConnectionInterface, Boolean>());
+   /**
+    * in-use connections that are to be closed rather than pooled when they are returned
+    */
+   private final Set<OdkConnectionInterface> closeOnRelease =
+       Collections.newSetFromMap(new IdentityHashMap<OdkConnectionInterface, Boolean>());
+   private int maxReaders = DEFAULT_MAX_READERS;
+   private int opening = 0;
+   private int nextReaderId = 0;
+
+   private long acquisitions = 0L;
+   private long contendedAcquisitions = 0L;
+   private long timedOutAcquisitions = 0L;
+   private long totalWaitNanos = 0L;
+   private long maxWaitNanos = 0L;
+   private long openedCount = 0L;
+   private long openFailures = 0L;
+   private int peakInUse = 0;
+
+   ReaderPool(AppNameSharedStateContainer appNameSharedStateContainer,
+       OdkConnectionFactoryAbstractClass factory) {
+      this.appNameSharedStateContainer = appNameSharedStateContainer;
+      this.factory = factory;
+   }
+
+   /**
+    * @param limit the number of pooled connections; 0 disables the pool
+    */
+   synchronized void setMaxReaders(int limit) {
+      maxReaders = Math.max(0, limit);
+      notifyAll();
+   }
+
+   /**
+    * Obtain a query-only connection. Every non-null result must be handed back
+    * with {@link #release(OdkConnectionInterface)}.
+    *
+    * @return the connection, or null if the pool is disabled, unable to open one, or every
+    * connection stayed in use for {@link #MAX_WAIT_MILLIS} (the caller should then read on
+    * its own connection).
+    */
+   OdkConnectionInterface acquire() {
+      final String appName = appNameSharedStateContainer.getAppName();
+      final long startNanos = System.nanoTime();
+      String sessionQualifier;
+      synchronized (this) {
+         boolean waited = false;
+         for (;;) {
+            if (maxReaders == 0) {
+               return null;
+            }
+            if (!idle.isEmpty()) {
+               // most recently used first; its page cache is the warmest
+               OdkConnectionInterface db = idle.pollLast();
+               inUse.add(db);
+               recordAcquisition(startNanos, waited);
+               return db;
+            }
+            if (inUse.size() + opening < maxReaders) {
+               ++opening;
+               sessionQualifier = SESSION_QUALIFIER_PREFIX + (++nextReaderId) +
+                   OdkConnectionFactoryInterface.INTERNAL_TYPE_SUFFIX;
+               recordAcquisition(startNanos, waited);
+               break;
+            }
+            waited = true;
+            long waitedMillis = (System.nanoTime() - startNanos) / 1000000L;
+            if (waitedMillis >= MAX_WAIT_MILLIS) {
+               ++timedOutAcquisitions;
+               factory.logWarn(appName, TAG + ": gave up after waiting " + waitedMillis +
+                   " ms for one of " + maxReaders + " reader connections");
+               return null;
+            }
+            try {
+               wait(MAX_WAIT_MILLIS - waitedMillis);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               return null;
+            }
+         }
+      }
+
+      // open outside of the pool's monitor
+      OdkConnectionInterface db = null;
+      boolean failed = false;
+      try {
+         if (new File(OdkConnectionFactoryAbstractClass.getDbFilePath(appName)).exists()) {
+            // never (re)create a database that has been deleted
+            db = factory.openQueryOnlyDatabase(appNameSharedStateContainer, sessionQualifier);
+         }
+      } catch (Throwable t) {
+         failed = true;
+         factory.logError(appName, TAG + ": unable to open " + sessionQualifier + ": " +
+             t.toString());
+         factory.printStackTrace(appName, t);
+      } finally {
+         synchronized (this) {
+            --opening;
+            if (db != null) {
+               ++openedCount;
+               inUse.add(db);
+               peakInUse = Math.max(peakInUse, inUse.size());
+            } else {
+               if (failed) {
+                  ++openFailures;
+               }
+               notifyAll();
+            }
+         }
+      }
+      return db;
+   }
+
+   private void recordAcquisition(long startNanos, boolean waited) {
+      final long waitNanos = System.nanoTime() - startNanos;
+      ++acquisitions;
+      if (waited) {
+         ++contendedAcquisitions;
+      }
+      totalWaitNanos += waitNanos;
+      maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+      peakInUse = Math.max(peakInUse, inUse.size() + opening);
+   }
+
+   /**
+    * Return a connection obtained from {@link #acquire()}.
+    *
+    * @param db
+    */
+   void release(OdkConnectionInterface db) {
+      boolean healthy;
+      try {
+         // a caller that left a transaction open would pin an old snapshot
+         healthy = db.isOpen() && !db.inTransaction();
+      } catch (Throwable t) {
+         healthy = false;
+      }
+      boolean close;
+      synchronized (this) {
+         if (!inUse.remove(db)) {
+            throw new IllegalArgumentException("connection was not obtained from this pool");
+         }
+         boolean retired = closeOnRelease.remove(db);
+         close = retired || !healthy ||
+             (idle.size() + inUse.size() + opening >= maxReaders);
+         if (!close) {
+            idle.addLast(db);
+         }
+         notifyAll();
+      }
+      if (close) {
+         // opened outside the session map; this closes it.
+         db.releaseReference();
+      }
+   }
+
+   /**
+    * Close the idle connections; the ones in use are closed when they are returned.
+    * Invoked when the last session connection of the appName is removed.
+    */
+   void closeAll() {
+      List<OdkConnectionInterface> toClose;
+      synchronized (this) {
+         toClose = new ArrayList<OdkConnectionInterface>(idle);
+         idle.clear();
+         closeOnRelease.addAll(inUse);
+      }
+      for (OdkConnectionInterface db : toClose) {
+         try {
+            db.releaseReference();
+         } catch (Throwable t) {
+            factory.printStackTrace(appNameSharedStateContainer.getAppName(), t);
+         }
+      }
+   }
+
+   synchronized void dump(StringBuilder b) {
+      b.append("reader pool: ").append(inUse.size()).append(" in use, ")
+          .append(idle.size()).append(" idle, limit ").append(maxReaders)
+          .append(" (peak ").append(peakInUse).append(")\n");
+      b.append("  acquired=").append(acquisitions)
+          .append(" contended=").append(contendedAcquisitions)
+          .append(" timedOut=").append(timedOutAcquisitions)
+          .append(" opened=").append(openedCount)
+          .append(" openFailures=").append(openFailures).append("\n");
+      if (acquisitions != 0L) {
+         b.append("  wait avg ").append(totalWaitNanos / acquisitions / 1000L)
+             .append(" us, max ").append(maxWaitNanos / 1000000L).append(" ms\n");
+      }
+   }
+}
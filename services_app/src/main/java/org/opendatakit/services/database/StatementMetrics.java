@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+/**
+ * Latency histograms and row counts of the SQL statements run against one
+ * appName's database, keyed by statement shape: the SQL text with literals
+ * replaced by ? and whitespace collapsed.
+ * <p>
+ * A statement whose text has been seen before is recorded with atomic
+ * counters only (no locks, no allocation), so this is always enabled.
+ * SQLiteConnection logs statements that exceed the slow-query threshold,
+ * together with their query plan, at most once a minute per shape.
+ */
+public final class StatementMetrics {
+
+   /**
+    * Default slow-query threshold
+    */
+   public static final long DEFAULT_SLOW_QUERY_MILLIS = 1000L;
+
+   /**
+    * Minimum interval between slow-query reports of the same shape
+    */
+   static final long SLOW_QUERY_LOG_INTERVAL_MILLIS = 60000L;
+
+   /**
+    * Statements of any further shapes are recorded under OTHER_SHAPE
+    */
+   static final int MAX_SHAPES = 256;
+   static final String OTHER_SHAPE = "<other>";
+
+   /**
+    * Bound on the SQL text to shape lookup cache
+    */
+   private static final int MAX_CACHED_SQL = 1024;
+
+   private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\?( ?, ?\\?)+");
+
+   /**
+    * Compares the totals captured in the sort keys; the live counters
+    * may change while sorting.
+    */
+   private static final Comparator<long[]> MOST_TIME_FIRST = new Comparator<long[]>() {
+      @Override
+      public int compare(long[] lhs, long[] rhs) {
+         return (lhs[0] > rhs[0]) ? -1 : ((lhs[0] == rhs[0]) ? 0 : 1);
+      }
+   };
+
+   private final long startTimeMillis = System.currentTimeMillis();
+
+   private final AtomicLong statements = new AtomicLong();
+   private final AtomicLong slowStatements = new AtomicLong();
+
+   /**
+    * Threshold in nanoseconds; Long.MAX_VALUE if slow-query logging is disabled
+    */
+   private volatile long slowQueryNanos = DEFAULT_SLOW_QUERY_MILLIS * 1000000L;
+
+   private final ConcurrentHashMap<String, ShapeStats> byShape =
+       new ConcurrentHashMap<String, ShapeStats>();
+
+   /**
+    * SQL text (exactly as executed) to the stats of its shape
+    */
+   private final ConcurrentHashMap<String, ShapeStats> bySql =
+       new ConcurrentHashMap<String, ShapeStats>();
+
+   /**
+    * @param millis statements taking at least this long are logged; 0 or less disables logging
+    */
+   public void setSlowQueryThresholdMillis(long millis) {
+      slowQueryNanos = (millis > 0L) ? millis * 1000000L : Long.MAX_VALUE;
+   }
+
+   public long getSlowQueryThresholdMillis() {
+      long nanos = slowQueryNanos;
+      return (nanos == Long.MAX_VALUE) ? 0L : nanos / 1000000L;
+   }
+
+   /**
+    * Record one executed statement.
+    *
+    * @param sql          the statement
+    * @param elapsedNanos time taken to execute it
+    * @param rowsReturned rows returned to the caller
+    * @param rowsChanged  rows inserted, updated or deleted
+    * @param failed       true if the statement threw
+    * @return true if the statement was slow and should be reported; false if it was fast
+    * or its shape was reported recently.
+    */
+   public boolean record(String sql, long elapsedNanos, long rowsReturned, long rowsChanged,
+       boolean failed) {
+      statements.incrementAndGet();
+      ShapeStats stats = getShapeStats(sql);
+      stats.latency.record(elapsedNanos);
+      stats.rowsReturned.addAndGet(rowsReturned);
+      stats.rowsChanged.addAndGet(rowsChanged);
+      if (failed) {
+         stats.failed.incrementAndGet();
+      }
+      if (elapsedNanos < slowQueryNanos) {
+         return false;
+      }
+      slowStatements.incrementAndGet();
+      stats.slow.incrementAndGet();
+      long now = System.currentTimeMillis();
+      long last = stats.lastReported.get();
+      return (now - last >= SLOW_QUERY_LOG_INTERVAL_MILLIS) &&
+          stats.lastReported.compareAndSet(last, now);
+   }
+
+   private ShapeStats getShapeStats(String sql) {
+      ShapeStats stats = bySql.get(sql);
+      if (stats != null) {
+         return stats;
+      }
+      String shape = normalize(sql);
+      stats = byShape.get(shape);
+      if (stats == null) {
+         if (byShape.size() >= MAX_SHAPES) {
+            shape = OTHER_SHAPE;
+         }
+         ShapeStats created = new ShapeStats(shape);
+         stats = byShape.putIfAbsent(shape, created);
+         if (stats == null) {
+            stats = created;
+         }
+      }
+      if (bySql.size() >= MAX_CACHED_SQL) {
+         // statements with inlined literals; start over rather than grow without bound
+         bySql.clear();
+      }
+      bySql.put(sql, stats);
+      return stats;
+   }
+
+   /**
+    * Reduce a statement to its shape: string and numeric literals become ?,
+    * runs of whitespace become a single space and lists of placeholders
+    * (e.g., IN (?,?,?)) become ?,...
+    *
+    * @param sql
+    * @return the shape of the statement
+    */
+   static String normalize(String sql) {
+      final int len = sql.length();
+      StringBuilder b = new StringBuilder(len);
+      int i = 0;
+      while (i < len) {
+         char c = sql.charAt(i);
+         if (c == '\'') {
+            // string literal; '' is an escaped quote
+            ++i;
+            while (i < len) {
+               if (sql.charAt(i) == '\'') {
+                  if (i + 1 < len && sql.charAt(i + 1) == '\'') {
+                     i += 2;
+                     continue;
+                  }
+                  break;
+               }
+               ++i;
+            }
+            ++i;
+            b.append('?');
+         } else if (c == '"' || c == '`' || c == '[') {
+            // quoted identifier; keep it
+            char close = (c == '[') ? ']' : c;
+            int end = sql.indexOf(close, i + 1);
+            end = (end < 0) ? len : end + 1;
+            b.append(sql, i, end);
+            i = end;
+         } else if (Character.isWhitespace(c)) {
+            while (i < len && Character.isWhitespace(sql.charAt(i))) {
+               ++i;
+            }
+            if (b.length() != 0 && i < len) {
+               b.append(' ');
+            }
+         } else if (Character.isDigit(c) && (b.length() == 0 || !isIdentifierChar(b.charAt(
+             b.length() - 1)))) {
+            while (i < len && (isIdentifierChar(sql.charAt(i)) || sql.charAt(i) == '.')) {
+               ++i;
+            }
+            b.append('?');
+         } else {
+            b.append(c);
+            ++i;
+         }
+      }
+      return PLACEHOLDER_LIST.matcher(b).replaceAll("?,...");
+   }
+
+   private static boolean isIdentifierChar(char c) {
+      return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+   }
+
+   /**
+    * Clear all counters and histograms. Concurrent recordings may be split
+    * across the reset.
+    */
+   public void reset() {
+      statements.set(0L);
+      slowStatements.set(0L);
+      bySql.clear();
+      byShape.clear();
+   }
+
+   private List<ShapeStats> sortedShapes() {
+      List<ShapeStats> shapes = new ArrayList<ShapeStats>(byShape.values());
+      List<long[]> keys = new ArrayList<long[]>(shapes.size());
+      for (int i = 0; i < shapes.size(); ++i) {
+         keys.add(new long[] { shapes.get(i).latency.getSumMicros(), i });
+      }
+      Collections.sort(keys, MOST_TIME_FIRST);
+      List<ShapeStats> sorted = new ArrayList<ShapeStats>(shapes.size());
+      for (long[] key : keys) {
+         sorted.add(shapes.get((int) key[1]));
+      }
+      return sorted;
+   }
+
+   /**
+    * @return a point-in-time copy of the metrics as nested maps, suitable for
+    * serializing to JSON. Shapes are ordered by total execution time, largest first.
+    * Latencies are reported in microseconds.
+    */
+   public Map<String, Object> snapshot() {
+      Map<String, Object> result = new TreeMap<String, Object>();
+      result.put("uptimeMillis", System.currentTimeMillis() - startTimeMillis);
+      result.put("statements", statements.get());
+      result.put("slowStatements", slowStatements.get());
+      result.put("slowQueryThresholdMillis", getSlowQueryThresholdMillis());
+
+      List<Map<String, Object>> shapes = new ArrayList<Map<String, Object>>();
+      for (ShapeStats stats : sortedShapes()) {
+         Map<String, Object> entry = new TreeMap<String, Object>();
+         entry.put("sql", stats.shape);
+         entry.put("failed", stats.failed.get());
+         entry.put("slow", stats.slow.get());
+         entry.put("rowsReturned", stats.rowsReturned.get());
+         entry.put("rowsChanged", stats.rowsChanged.get());
+         entry.put("latency", stats.latency.snapshot());
+         shapes.add(entry);
+      }
+      result.put("shapes", shapes);
+      return result;
+   }
+
+   /**
+    * Summary of the most expensive statement shapes for dumpsys.
+    *
+    * @param b
+    * @param maxShapes
+    */
+   public void dump(StringBuilder b, int maxShapes) {
+      b.append("Statement metrics: ").append(statements.get()).append(" statements, ")
+          .append(slowStatements.get()).append(" slow (threshold ")
+          .append(getSlowQueryThresholdMillis()).append(" ms), ")
+          .append(byShape.size()).append(" shapes\n");
+      List<ShapeStats> shapes = sortedShapes();
+      for (int i = 0; i < shapes.size() && i < maxShapes; ++i) {
+         ShapeStats stats = shapes.get(i);
+         b.append("  ").append(stats.latency.getCount()).append("x total ")
+             .append(stats.latency.getSumMicros() / 1000L).append(" ms, p99 ")
+             .append(stats.latency.percentile(99.0)).append(" us, rows ")
+             .append(stats.rowsReturned.get()).append("/").append(stats.rowsChanged.get())
+             .append(": ").append(AppNameSharedStateContainer.trimSqlForDisplay(stats.shape))
+             .append("\n");
+      }
+   }
+
+   private static final class ShapeStats {
+      final String shape;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong rowsReturned = new AtomicLong();
+      final AtomicLong rowsChanged = new AtomicLong();
+      final AtomicLong failed = new AtomicLong();
+      final AtomicLong slow = new AtomicLong();
+      final AtomicLong lastReported = new AtomicLong(Long.MIN_VALUE / 2L);
+
+      ShapeStats(String shape) {
+         this.shape = shape;
+      }
+   }
+
+   /**
+    * Histogram of latencies in microseconds with one bucket per power of two.
+    * Coarser than the web server's histogram, but small enough to keep one
+    * per statement shape. Percentiles report the upper bound of their bucket.
+    */
+   static final class LatencyHistogram {
+
+      /**
+       * bucket i holds values in [2^(i-1), 2^i); 2^38 us is about 3 days
+       */
+      private static final int BUCKET_COUNT = 39;
+
+      private static final double[] PERCENTILES = { 50.0, 90.0, 99.0 };
+
+      private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+      private final AtomicLong sumMicros = new AtomicLong();
+      private final AtomicLong maxMicros = new AtomicLong();
+
+      void record(long elapsedNanos) {
+         long micros = Math.max(0L, elapsedNanos / 1000L);
+         counts.incrementAndGet(bucketIndex(micros));
+         sumMicros.addAndGet(micros);
+         long max = maxMicros.get();
+         while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+         }
+      }
+
+      static int bucketIndex(long micros) {
+         int index = 64 - Long.numberOfLeadingZeros(micros);
+         return Math.min(index, BUCKET_COUNT - 1);
+      }
+
+      /**
+       * @return the largest value that maps to the given bucket
+       */
+      static long bucketUpperBound(int index) {
+         return (1L << index) - 1L;
+      }
+
+      long getCount() {
+         long n = 0L;
+         for (int i = 0; i < BUCKET_COUNT; ++i) {
+            n += counts.get(i);
+         }
+         return n;
+      }
+
+      long getSumMicros() {
+         return sumMicros.get();
+      }
+
+      long percentile(double p) {
+         long[] copy = new long[BUCKET_COUNT];
+         long n = 0L;
+         for (int i = 0; i < BUCKET_COUNT; ++i) {
+            copy[i] = counts.get(i);
+            n += copy[i];
+         }
+         return percentile(copy, n, p);
+      }
+
+      Map<String, Object> snapshot() {
+         long[] copy = new long[BUCKET_COUNT];
+         long n = 0L;
+         for (int i = 0; i < BUCKET_COUNT; ++i) {
+            copy[i] = counts.get(i);
+            n += copy[i];
+         }
+         Map<String, Object> result = new TreeMap<String, Object>();
+         result.put("count", n);
+         result.put("totalMicros", sumMicros.get());
+         result.put("meanMicros", (n == 0L) ? 0L : sumMicros.get() / n);
+         result.put("maxMicros", maxMicros.get());
+         for (double p : PERCENTILES) {
+            result.put("p" + (int) p, percentile(copy, n, p));
+         }
+         return result;
+      }
+
+      private static long percentile(long[] copy, long n, double p) {
+         if (n == 0L) {
+            return 0L;
+         }
+         long rank = (long) Math.ceil((p / 100.0) * n);
+         long seen = 0L;
+         for (int i = 0; i < copy.length; ++i) {
+            seen += copy[i];
+            if (seen >= rank) {
+               return bucketUpperBound(i);
+            }
+         }
+         return bucketUpperBound(copy.length - 1);
+      }
+   }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database;
+
+import android.database.Cursor;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs WAL checkpoints for one appName on a background thread so that
+ * writers never pay for a checkpoint inline.
+ * <p>
+ * While the checkpointer is enabled, connections are opened with
+ * wal_autocheckpoint=0. The checkpointer polls while the app has open
+ * connections. Once a write has been committed (PRAGMA data_version changes
+ * when another connection commits) and the database has been idle for a
+ * short while, it runs a PASSIVE checkpoint; if the WAL has grown past a
+ * limit it does so without waiting for idle. A PASSIVE checkpoint never
+ * waits for readers, so if the WAL keeps growing past a higher limit the
+ * checkpointer escalates to a RESTART checkpoint, which waits for readers
+ * and then lets writers start over at the beginning of the WAL. When a sync
+ * completes, a TRUNCATE checkpoint is run at the next idle moment so that
+ * the WAL file is returned to zero length.
+ * <p>
+ * Polls and checkpoints are run on one private connection that is not
+ * entered into the session map; it is opened on the first poll and closed
+ * when the app's last connection is removed. All checkpointers share a
+ * single daemon thread.
+ */
+final class WalCheckpointer {
+
+   private static final String TAG = WalCheckpointer.class.getSimpleName();
+
+   static final String SESSION_QUALIFIER =
+       "walCheckpointer" + OdkConnectionFactoryInterface.INTERNAL_TYPE_SUFFIX;
+
+   /**
+    * How often to check whether a checkpoint is needed
+    */
+   static final long POLL_INTERVAL_MILLIS = 5000L;
+
+   /**
+    * How long the database must be free of operations to be considered idle
+    */
+   static final long IDLE_MILLIS = 2000L;
+
+   /**
+    * Checkpoint (PASSIVE) even when the database is busy once the WAL reaches this size
+    */
+   static final long FORCE_CHECKPOINT_WAL_BYTES = 16L * 1024L * 1024L;
+
+   /**
+    * Checkpoint (RESTART), waiting for readers, once the WAL reaches this size
+    */
+   static final long RESTART_CHECKPOINT_WAL_BYTES = 64L * 1024L * 1024L;
+
+   private static volatile boolean sEnabled = true;
+
+   private static ScheduledExecutorService sExecutor = null;
+
+   private static synchronized ScheduledExecutorService getExecutor() {
+      if (sExecutor == null) {
+         sExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "WalCheckpointer");
+               t.setDaemon(true);
+               t.setPriority(Thread.MIN_PRIORITY);
+               return t;
+            }
+         });
+      }
+      return sExecutor;
+   }
+
+   /**
+    * @return true if connections should be opened with autocheckpoint disabled
+    */
+   static boolean isEnabled() {
+      return sEnabled;
+   }
+
+   /**
+    * Enable or disable background checkpointing. Only affects connections
+    * opened after this call. Intended for tests.
+    *
+    * @param enabled
+    */
+   static void setEnabled(boolean enabled) {
+      sEnabled = enabled;
+   }
+
+   private final AppNameSharedStateContainer appNameSharedStateContainer;
+   private final OdkConnectionFactoryAbstractClass factory;
+   private final File walFile;
+
+   private final Runnable pollTask = new Runnable() {
+      @Override
+      public void run() {
+         poll();
+      }
+   };
+
+   private final Runnable closeTask = new Runnable() {
+      @Override
+      public void run() {
+         closeConnection();
+      }
+   };
+
+   /**
+    * Access only within synchronized(this)
+    */
+   private ScheduledFuture<?> pollFuture = null;
+
+   private volatile boolean truncateRequested = false;
+
+   /**
+    * The private connection used for polls and checkpoints, or null.
+    * Accessed only from the executor thread.
+    */
+   private OdkConnectionInterface db = null;
+
+   /**
+    * PRAGMA data_version as of the end of the last checkpoint.
+    * Accessed only from the executor thread.
+    */
+   private long dataVersionAtLastCheckpoint = -1L;
+
+   /**
+    * True if the last checkpoint could not copy every frame of the WAL into
+    * the database (e.g., because of readers). Accessed only from the executor thread.
+    */
+   private boolean lastCheckpointIncomplete = false;
+
+   /**
+    * Statistics. Access only within synchronized(this)
+    */
+   private long passiveCount = 0L;
+   private long restartCount = 0L;
+   private long truncateCount = 0L;
+   private long failureCount = 0L;
+   private long totalDurationMillis = 0L;
+   private long maxDurationMillis = 0L;
+   private long lastDurationMillis = 0L;
+   private long lastCheckpointTime = 0L;
+   private long lastWalBytesBefore = 0L;
+   private long lastWalBytesAfter = 0L;
+   private long peakWalBytes = 0L;
+
+   WalCheckpointer(AppNameSharedStateContainer appNameSharedStateContainer,
+       OdkConnectionFactoryAbstractClass factory) {
+      this.appNameSharedStateContainer = appNameSharedStateContainer;
+      this.factory = factory;
+      this.walFile = new File(
+          OdkConnectionFactoryAbstractClass.getDbFilePath(appNameSharedStateContainer.getAppName())
+              + "-wal");
+   }
+
+   /**
+    * Begin polling. Invoked when the app's first connection is registered.
+    */
+   synchronized void start() {
+      if (!sEnabled || pollFuture != null) {
+         return;
+      }
+      pollFuture = getExecutor().scheduleWithFixedDelay(pollTask, POLL_INTERVAL_MILLIS,
+          POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Stop polling and close the private connection. Invoked when the app's
+    * last connection is removed. SQLite checkpoints the WAL itself when the
+    * last connection closes.
+    */
+   synchronized void stop() {
+      if (pollFuture != null) {
+         pollFuture.cancel(false);
+         pollFuture = null;
+         getExecutor().execute(closeTask);
+      }
+   }
+
+   /**
+    * Request a TRUNCATE checkpoint at the next idle moment (e.g., after a sync).
+    */
+   void requestTruncate() {
+      truncateRequested = true;
+   }
+
+   long getWalBytes() {
+      return walFile.length();
+   }
+
+   private void poll() {
+      try {
+         String appName = appNameSharedStateContainer.getAppName();
+         if (!new File(OdkConnectionFactoryAbstractClass.getDbFilePath(appName)).exists()) {
+            // never (re)create a database that has been deleted
+            closeConnection();
+            return;
+         }
+         long now = System.nanoTime();
+         long lastActivity = appNameSharedStateContainer.getOperationLog().getLastActivityNanos();
+         boolean idle = (now - lastActivity) >= IDLE_MILLIS * 1000000L;
+         long walBytes = getWalBytes();
+         if (!truncateRequested && walBytes == 0L) {
+            return;
+         }
+         long dataVersion = queryLong("PRAGMA data_version");
+         boolean written = (dataVersion != dataVersionAtLastCheckpoint) || lastCheckpointIncomplete;
+
+         String mode = null;
+         if (truncateRequested && idle) {
+            mode = "TRUNCATE";
+         } else if (written && walBytes >= RESTART_CHECKPOINT_WAL_BYTES) {
+            mode = "RESTART";
+         } else if (written && (idle || walBytes >= FORCE_CHECKPOINT_WAL_BYTES)) {
+            mode = "PASSIVE";
+         }
+         if (mode != null) {
+            checkpoint(mode, walBytes, dataVersion);
+         }
+      } catch (Throwable t) {
+         // never let an exception cancel the periodic task
+         factory.logError(appNameSharedStateContainer.getAppName(),
+             "WAL checkpoint failed: " + t.toString());
+         factory.printStackTrace(appNameSharedStateContainer.getAppName(), t);
+         // reopen on the next poll
+         closeConnection();
+         synchronized (this) {
+            ++failureCount;
+         }
+      }
+   }
+
+   private OdkConnectionInterface getConnection() {
+      if (db == null) {
+         db = factory.openDatabase(appNameSharedStateContainer, SESSION_QUALIFIER);
+      }
+      return db;
+   }
+
+   private void closeConnection() {
+      if (db != null) {
+         try {
+            // opened outside the session map; this closes it.
+            db.releaseReference();
+         } finally {
+            db = null;
+            dataVersionAtLastCheckpoint = -1L;
+         }
+      }
+   }
+
+   private long queryLong(String sql) {
+      Cursor c = getConnection().rawQuery(sql, null);
+      try {
+         return c.moveToFirst() ? c.getLong(0) : -1L;
+      } finally {
+         c.close();
+      }
+   }
+
+   private void checkpoint(String mode, long walBytesBefore, long dataVersion) {
+      String appName = appNameSharedStateContainer.getAppName();
+      if ("TRUNCATE".equals(mode)) {
+         truncateRequested = false;
+      }
+
+      long busy = -1L;
+      long logFrames = -1L;
+      long checkpointedFrames = -1L;
+      long startTime = System.currentTimeMillis();
+      Cursor c = getConnection().rawQuery("PRAGMA wal_checkpoint(" + mode + ")", null);
+      try {
+         if (c.moveToFirst()) {
+            busy = c.getLong(0);
+            logFrames = c.getLong(1);
+            checkpointedFrames = c.getLong(2);
+         }
+      } finally {
+         c.close();
+      }
+      long duration = System.currentTimeMillis() - startTime;
+      long walBytesAfter = getWalBytes();
+      // writes committed while the checkpoint ran are caught by the next poll
+      dataVersionAtLastCheckpoint = dataVersion;
+      lastCheckpointIncomplete = (busy != 0L) || (checkpointedFrames < logFrames);
+
+      synchronized (this) {
+         if ("TRUNCATE".equals(mode)) {
+            ++truncateCount;
+         } else if ("RESTART".equals(mode)) {
+            ++restartCount;
+         } else {
+            ++passiveCount;
+         }
+         totalDurationMillis += duration;
+         maxDurationMillis = Math.max(maxDurationMillis, duration);
+         lastDurationMillis = duration;
+         lastCheckpointTime = startTime;
+         lastWalBytesBefore = walBytesBefore;
+         lastWalBytesAfter = walBytesAfter;
+         peakWalBytes = Math.max(peakWalBytes, walBytesBefore);
+      }
+
+      factory.logInfo(appName,
+          TAG + ": " + mode + " checkpoint took " + duration + " ms; WAL " + walBytesBefore +
+              " -> " + walBytesAfter + " bytes; frames " + checkpointedFrames + "/" + logFrames +
+              ((busy > 0L) ? " (busy)" : ""));
+   }
+
+   synchronized void dump(StringBuilder b) {
+      long count = passiveCount + restartCount + truncateCount;
+      b.append("WAL checkpointer: ")
+          .append(sEnabled ? ((pollFuture != null) ? "active" : "idle") : "disabled")
+          .append(", WAL ").append(getWalBytes()).append(" bytes (peak ")
+          .append(peakWalBytes).append(")\n");
+      b.append("  passive=").append(passiveCount)
+          .append(" restart=").append(restartCount)
+          .append(" truncate=").append(truncateCount)
+          .append(" failed=").append(failureCount)
+          .append(" truncatePending=").append(truncateRequested).append("\n");
+      if (count != 0L) {
+         b.append("  duration avg ").append(totalDurationMillis / count)
+             .append(" ms, max ").append(maxDurationMillis)
+             .append(" ms; last at ").append(lastCheckpointTime)
+             .append(" took ").append(lastDurationMillis)
+             .append(" ms, WAL ").append(lastWalBytesBefore)
+             .append(" -> ").append(lastWalBytesAfter).append(" bytes\n");
+      }
+   }
+}
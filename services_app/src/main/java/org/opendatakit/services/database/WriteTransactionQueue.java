@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database;
+
+import org.opendatakit.logging.WebLogger;
+import org.sqlite.database.sqlite.SQLiteDatabaseLockedException;
+
+import java.util.TreeSet;
+
+/**
+ * Admits the write transactions of one appName one at a time, in the order
+ * in which they were requested. Both the exclusive (BEGIN IMMEDIATE) and the
+ * non-exclusive (BEGIN DEFERRED, which the database utilities use for their
+ * writes) transactions of a session connection are admitted through it.
+ * <p>
+ * SQLite allows a single writer. Without this queue, a connection that wants
+ * to write while another holds the write lock sleeps and retries inside
+ * SQLite's busy handler and fails once busy_timeout has elapsed; retries are
+ * not ordered, so a writer can starve behind a stream of shorter ones. Here
+ * the waiting is done on a ticket: the writer is woken as soon as the
+ * previous write transaction ends, and long waits are logged together with
+ * the connection that is holding the lock.
+ * <p>
+ * The queue is owned by a connection rather than a thread, because a write
+ * transaction may be ended on a different thread than the one that began it.
+ */
+final class WriteTransactionQueue {
+
+   private static final String TAG = WriteTransactionQueue.class.getSimpleName();
+
+   /**
+    * Log a starvation warning each time a writer has waited this much longer
+    */
+   static final long STARVATION_WARNING_MILLIS = 1000L;
+
+   /**
+    * Give up waiting after this long. The same as the connections' busy_timeout,
+    * which bounded a writer's wait before the queue; a longer wait would only pile
+    * up the binder threads of the callers behind a long transaction.
+    */
+   static final long MAX_WAIT_MILLIS = 5000L;
+
+   private final String appName;
+
+   /**
+    * All of the following are accessed only within synchronized(this)
+    */
+   private long nextTicket = 0L;
+   private long nowServing = 0L;
+   private final TreeSet<Long> abandonedTickets = new TreeSet<Long>();
+
+   private Object owner = null;
+   private String ownerSessionQualifier = null;
+   private long ownerThreadId = -1L;
+   private long ownerSinceNanos = 0L;
+   private int waiting = 0;
+
+   private long acquisitions = 0L;
+   private long contendedAcquisitions = 0L;
+   private long starvedAcquisitions = 0L;
+   private long abandonedAcquisitions = 0L;
+   private long totalWaitNanos = 0L;
+   private long maxWaitNanos = 0L;
+   private long totalHoldNanos = 0L;
+   private long maxHoldNanos = 0L;
+   private String maxHoldSessionQualifier = null;
+   private int peakWaiting = 0;
+
+   WriteTransactionQueue(String appName) {
+      this.appName = appName;
+   }
+
+   /**
+    * Wait until the given connection may begin a write transaction.
+    * Every successful call must be paired with a call to {@link #release(Object)}.
+    *
+    * @param connection       the connection that will own the write transaction
+    * @param sessionQualifier the connection's sessionQualifier, for reporting
+    * @throws SQLiteDatabaseLockedException if the wait was abandoned
+    */
+   synchronized void acquire(Object connection, String sessionQualifier) {
+      if (owner == connection) {
+         throw new IllegalStateException("write transaction already held by " + sessionQualifier);
+      }
+      final long threadId = Thread.currentThread().getId();
+      if (owner != null && ownerThreadId == threadId) {
+         // the holder would never be able to end its transaction
+         ++abandonedAcquisitions;
+         throw new SQLiteDatabaseLockedException("write transaction on " + sessionQualifier +
+             " would deadlock: this thread holds the write transaction of " +
+             ownerSessionQualifier);
+      }
+
+      final long startNanos = System.nanoTime();
+      final long ticket = nextTicket++;
+      if (ticket != nowServing) {
+         ++contendedAcquisitions;
+         ++waiting;
+         peakWaiting = Math.max(peakWaiting, waiting);
+         try {
+            long nextWarningMillis = STARVATION_WARNING_MILLIS;
+            while (ticket != nowServing) {
+               long waitedMillis = (System.nanoTime() - startNanos) / 1000000L;
+               if (waitedMillis >= MAX_WAIT_MILLIS) {
+                  abandon(ticket);
+                  throw new SQLiteDatabaseLockedException("gave up waiting " + waitedMillis +
+                      " ms for a write transaction on " + sessionQualifier + ": " +
+                      describeOwner(System.nanoTime()));
+               }
+               if (waitedMillis >= nextWarningMillis) {
+                  if (nextWarningMillis == STARVATION_WARNING_MILLIS) {
+                     ++starvedAcquisitions;
+                  }
+                  WebLogger.getLogger(appName).w(TAG, sessionQualifier + " has waited " +
+                      waitedMillis + " ms for a write transaction (" + (ticket - nowServing) +
+                      " ahead of it): " + describeOwner(System.nanoTime()));
+                  nextWarningMillis += STARVATION_WARNING_MILLIS;
+               }
+               try {
+                  wait(Math.min(nextWarningMillis, MAX_WAIT_MILLIS) - waitedMillis);
+               } catch (InterruptedException e) {
+                  abandon(ticket);
+                  Thread.currentThread().interrupt();
+                  throw new SQLiteDatabaseLockedException(
+                      "interrupted while waiting for a write transaction on " + sessionQualifier);
+               }
+            }
+         } finally {
+            --waiting;
+         }
+      }
+
+      final long now = System.nanoTime();
+      final long waitNanos = now - startNanos;
+      ++acquisitions;
+      totalWaitNanos += waitNanos;
+      maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+
+      owner = connection;
+      ownerSessionQualifier = sessionQualifier;
+      ownerThreadId = threadId;
+      ownerSinceNanos = now;
+   }
+
+   /**
+    * Admit the next writer, if the given connection holds the write transaction.
+    *
+    * @param connection
+    */
+   synchronized void release(Object connection) {
+      if (owner != connection) {
+         return;
+      }
+      final long holdNanos = System.nanoTime() - ownerSinceNanos;
+      totalHoldNanos += holdNanos;
+      if (holdNanos > maxHoldNanos) {
+         maxHoldNanos = holdNanos;
+         maxHoldSessionQualifier = ownerSessionQualifier;
+      }
+
+      owner = null;
+      ownerSessionQualifier = null;
+      ownerThreadId = -1L;
+      advance();
+   }
+
+   synchronized boolean isOwner(Object connection) {
+      return owner == connection;
+   }
+
+   /**
+    * @return the sessionQualifier of the connection holding the write transaction, or null
+    */
+   synchronized String getOwnerSessionQualifier() {
+      return ownerSessionQualifier;
+   }
+
+   /**
+    * A waiter that gives up leaves a hole in the ticket sequence; it is
+    * skipped when its turn comes.
+    */
+   private void abandon(long ticket) {
+      ++abandonedAcquisitions;
+      abandonedTickets.add(ticket);
+   }
+
+   private void advance() {
+      ++nowServing;
+      while (abandonedTickets.remove(nowServing)) {
+         ++nowServing;
+      }
+      notifyAll();
+   }
+
+   private String describeOwner(long nowNanos) {
+      if (owner == null) {
+         return "not held";
+      }
+      return "held by " + ownerSessionQualifier + " (thread " + ownerThreadId + ") for " +
+          ((nowNanos - ownerSinceNanos) / 1000000L) + " ms";
+   }
+
+   synchronized void dump(StringBuilder b) {
+      final long now = System.nanoTime();
+      b.append("write transactions: ").append(describeOwner(now))
+          .append(", waiting=").append(waiting)
+          .append(" (peak ").append(peakWaiting).append(")\n");
+      b.append("  admitted=").append(acquisitions)
+          .append(" contended=").append(contendedAcquisitions)
+          .append(" starved=").append(starvedAcquisitions)
+          .append(" abandoned=").append(abandonedAcquisitions).append("\n");
+      if (acquisitions != 0L) {
+         b.append("  wait avg ").append(totalWaitNanos / acquisitions / 1000000L)
+             .append(" ms, max ").append(maxWaitNanos / 1000000L)
+             .append(" ms; hold avg ").append(totalHoldNanos / acquisitions / 1000000L)
+             .append(" ms, max ").append(maxHoldNanos / 1000000L)
+             .append(" ms (").append(maxHoldSessionQualifier).append(")\n");
+      }
+   }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database.service;
+
+import org.opendatakit.database.service.DbChunk;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Holds the not-yet-fetched DbChunks of return values that exceed the binder transaction limit.
+ * <p>
+ * The chunks of one return value form a transfer, which is tagged with the client process that
+ * produced it. Chunks leave the store when the client fetches them; whole transfers leave it
+ * when they have been held longer than the time-to-live, when room must be made for a newer
+ * transfer within the byte budget (oldest first), or when their owner is released (e.g.,
+ * because the client process died). A transfer that is larger than the budget by itself is
+ * only stored when the store holds nothing else; it is rejected rather than displacing the
+ * transfers of other return values.
+ * <p>
+ * All methods are synchronized; transfers are inserted in arrival order so the oldest are
+ * always at the head of the map.
+ */
+final class ChunkStore {
+
+  /**
+   * Default upper bound on the bytes held in the store
+   */
+  static final long DEFAULT_MAX_BYTES = 32L * 1024L * 1024L;
+
+  /**
+   * Default time a transfer is held before it is discarded
+   */
+  static final long DEFAULT_TTL_MILLIS = 2L * 60L * 1000L;
+
+  /**
+   * The chunks of one return value that have not yet been fetched
+   */
+  private static final class Transfer {
+    final int owner;
+    final long storedAt;
+    final Set<UUID> chunkIds = new HashSet<>();
+    long bytes = 0L;
+
+    Transfer(int owner, long storedAt) {
+      this.owner = owner;
+      this.storedAt = storedAt;
+    }
+  }
+
+  private static final class Entry {
+    final DbChunk chunk;
+    final Transfer transfer;
+    final long bytes;
+
+    Entry(DbChunk chunk, Transfer transfer, long bytes) {
+      this.chunk = chunk;
+      this.transfer = transfer;
+      this.bytes = bytes;
+    }
+  }
+
+  private final long maxBytes;
+  private final long ttlMillis;
+  private final LinkedHashMap<Long, Transfer> transfers = new LinkedHashMap<>();
+  private final HashMap<UUID, Entry> entries = new HashMap<>();
+
+  private long nextTransferId = 0L;
+  private long outstandingBytes = 0L;
+  private long peakBytes = 0L;
+  private long storedCount = 0L;
+  private long fetchedCount = 0L;
+  private long expiredCount = 0L;
+  private long evictedCount = 0L;
+  private long releasedCount = 0L;
+  private long rejectedCount = 0L;
+
+  ChunkStore(long maxBytes, long ttlMillis) {
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttlMillis;
+  }
+
+  private static long sizeOf(DbChunk chunk) {
+    byte[] data = chunk.getData();
+    return (data == null) ? 0L : data.length;
+  }
+
+  /**
+   * Store the chunks of one return value on behalf of the given owner. Older transfers are
+   * discarded, oldest first, if that is needed to keep the store within its byte budget.
+   *
+   * @param owner     identifies the client (process id) that will fetch these chunks
+   * @param chunkList the chunks to hold
+   * @throws IllegalArgumentException if the chunks alone exceed the byte budget while other
+   *                                  transfers are held
+   */
+  synchronized void put(int owner, List<DbChunk> chunkList) {
+    long bytes = 0L;
+    for (DbChunk chunk : chunkList) {
+      bytes += sizeOf(chunk);
+    }
+
+    long now = System.currentTimeMillis();
+    expire(now);
+    if (bytes > maxBytes && !transfers.isEmpty()) {
+      ++rejectedCount;
+      throw new IllegalArgumentException("Return value is too large: " + bytes
+          + " bytes must be held for later retrieval but at most " + maxBytes
+          + " bytes can be held while other return values are waiting to be fetched."
+          + " Request fewer rows (e.g., with a limit and offset).");
+    }
+    // over budget -- drop the oldest transfers
+    Iterator<Transfer> it = transfers.values().iterator();
+    while (outstandingBytes + bytes > maxBytes && it.hasNext()) {
+      Transfer t = it.next();
+      it.remove();
+      evictedCount += t.chunkIds.size();
+      discard(t);
+    }
+
+    Transfer transfer = new Transfer(owner, now);
+    transfers.put(nextTransferId++, transfer);
+    for (DbChunk chunk : chunkList) {
+      Entry e = new Entry(chunk, transfer, sizeOf(chunk));
+      Entry prior = entries.put(chunk.getThisID(), e);
+      if (prior != null) {
+        removeFromTransfer(prior);
+      }
+      transfer.chunkIds.add(chunk.getThisID());
+      transfer.bytes += e.bytes;
+      outstandingBytes += e.bytes;
+      ++storedCount;
+    }
+    peakBytes = Math.max(peakBytes, outstandingBytes);
+  }
+
+  /**
+   * Retrieve and remove a chunk.
+   *
+   * @param id the chunk id
+   * @return the chunk or null if it was never stored, was already fetched, or was discarded
+   */
+  synchronized DbChunk remove(UUID id) {
+    expire(System.currentTimeMillis());
+    Entry e = entries.remove(id);
+    if (e == null) {
+      return null;
+    }
+    removeFromTransfer(e);
+    ++fetchedCount;
+    return e.chunk;
+  }
+
+  /**
+   * Discard all chunks held for the given owner.
+   *
+   * @param owner the client (process id)
+   */
+  synchronized void releaseOwner(int owner) {
+    Iterator<Transfer> it = transfers.values().iterator();
+    while (it.hasNext()) {
+      Transfer t = it.next();
+      if (t.owner == owner) {
+        it.remove();
+        releasedCount += t.chunkIds.size();
+        discard(t);
+      }
+    }
+  }
+
+  /**
+   * Discard transfers that have outlived the time-to-live.
+   *
+   * @return true if chunks remain in the store
+   */
+  synchronized boolean expire() {
+    expire(System.currentTimeMillis());
+    return !entries.isEmpty();
+  }
+
+  private void expire(long now) {
+    Iterator<Transfer> it = transfers.values().iterator();
+    while (it.hasNext()) {
+      Transfer t = it.next();
+      if (now - t.storedAt < ttlMillis) {
+        // transfers are in arrival order; the rest are younger
+        break;
+      }
+      it.remove();
+      expiredCount += t.chunkIds.size();
+      discard(t);
+    }
+  }
+
+  /**
+   * Drop the chunks of a transfer that has been removed from the transfers map.
+   */
+  private void discard(Transfer t) {
+    for (UUID id : t.chunkIds) {
+      entries.remove(id);
+    }
+    outstandingBytes -= t.bytes;
+  }
+
+  /**
+   * Account for a chunk that has been removed from the entries map.
+   */
+  private void removeFromTransfer(Entry e) {
+    Transfer t = e.transfer;
+    t.chunkIds.remove(e.chunk.getThisID());
+    t.bytes -= e.bytes;
+    outstandingBytes -= e.bytes;
+    if (t.chunkIds.isEmpty()) {
+      transfers.values().remove(t);
+    }
+  }
+
+  /**
+   * Discard everything.
+   */
+  synchronized void clear() {
+    releasedCount += entries.size();
+    transfers.clear();
+    entries.clear();
+    outstandingBytes = 0L;
+  }
+
+  synchronized long getOutstandingBytes() {
+    return outstandingBytes;
+  }
+
+  synchronized int getOutstandingChunks() {
+    return entries.size();
+  }
+
+  synchronized int getOutstandingTransfers() {
+    return transfers.size();
+  }
+
+  synchronized void dump(StringBuilder b) {
+    b.append("Chunk store: ").append(entries.size()).append(" chunks in ")
+        .append(transfers.size()).append(" transfers, ")
+        .append(outstandingBytes).append(" of ").append(maxBytes).append(" bytes (peak ")
+        .append(peakBytes).append("), ttl ").append(ttlMillis).append(" ms\n");
+    b.append("  stored=").append(storedCount)
+        .append(" fetched=").append(fetchedCount)
+        .append(" expired=").append(expiredCount)
+        .append(" evicted=").append(evictedCount)
+        .append(" released=").append(releasedCount)
+        .append(" rejected=").append(rejectedCount).append("\n");
+    Map<Integer, long[]> byOwner = new LinkedHashMap<>();
+    for (Transfer t : transfers.values()) {
+      long[] counts = byOwner.get(t.owner);
+      if (counts == null) {
+        counts = new long[2];
+        byOwner.put(t.owner, counts);
+      }
+      counts[0] += t.chunkIds.size();
+      counts[1] += t.bytes;
+    }
+    for (Map.Entry<Integer, long[]> e : byOwner.entrySet()) {
+      b.append("  pid ").append(e.getKey()).append(": ").append(e.getValue()[0])
+          .append(" chunks, ").append(e.getValue()[1]).append(" bytes\n");
+    }
+  }
+}
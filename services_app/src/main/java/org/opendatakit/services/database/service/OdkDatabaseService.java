@@ -16,13 +16,20 @@ package org.opendatakit.services.database.service;
 
 import android.app.Service;
 import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
 import android.util.Log;
 import org.opendatakit.database.service.DbChunk;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,9 +39,32 @@ public final class OdkDatabaseService extends Service {
 
   private static final String LOGTAG = OdkDatabaseService.class.getSimpleName();
 
+  /**
+   * Bind with this action to obtain the {@link AidlDbExtensionInterface} rather than the
+   * AidlDbInterface.
+   */
+  public static final String ACTION_BIND_EXTENSION_INTERFACE =
+      "org.opendatakit.services.database.service.BIND_EXTENSION_INTERFACE";
+
   // A place to store pieces of large tables or other return values that won't fit across the
-  // AIDL call
-  private Map<UUID, DbChunk> parceledChunks;
+  // AIDL call. Bounded in size and age so that abandoned transfers cannot accumulate.
+  private final ChunkStore parceledChunks = new ChunkStore(ChunkStore.DEFAULT_MAX_BYTES,
+      ChunkStore.DEFAULT_TTL_MILLIS);
+
+  // The death recipients linked to the client tokens passed to registerChunkClient, so that
+  // each token is linked only once and can be unlinked when its chunks are released.
+  private final Map<IBinder, IBinder.DeathRecipient> chunkClients = new HashMap<>();
+
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  private final Runnable expireParceledChunks = new Runnable() {
+    @Override
+    public void run() {
+      if (parceledChunks.expire()) {
+        handler.postDelayed(this, ChunkStore.DEFAULT_TTL_MILLIS);
+      }
+    }
+  };
 
   /**
    * change to true expression if you want to debug the database service
@@ -47,13 +77,14 @@ public final class OdkDatabaseService extends Service {
   }
 
   private OdkDatabaseServiceInterface servInterface;
+  private OdkDatabaseServiceExtensionInterface extensionInterface;
   
   @Override
   public void onCreate() {
     super.onCreate();
-    parceledChunks = new HashMap<>();
     servInterface = new OdkDatabaseServiceInterface(this);
-    AndroidConnectFactory.configure();
+    extensionInterface = new OdkDatabaseServiceExtensionInterface(servInterface);
+    AndroidConnectFactory.configure(this);
   }
 
   @Override
@@ -61,10 +92,9 @@ public final class OdkDatabaseService extends Service {
     possiblyWaitForDatabaseServiceDebugger();
     Log.i(LOGTAG, "onBind -- returning interface.");
 
-    if (parceledChunks == null) {
-      parceledChunks = new HashMap<>();
+    if (intent != null && ACTION_BIND_EXTENSION_INTERFACE.equals(intent.getAction())) {
+      return extensionInterface;
     }
-
     return servInterface; 
   }
 
@@ -78,7 +108,7 @@ public final class OdkDatabaseService extends Service {
     // this may be too aggressive, but ensures that WebLogger is released.
     WebLogger.closeAll();
 
-    parceledChunks = null;
+    clearParceledChunks();
 
     return false;
   }
@@ -92,11 +122,34 @@ public final class OdkDatabaseService extends Service {
     // this may be too aggressive, but ensures that WebLogger is released.
     WebLogger.closeAll();
 
-    parceledChunks = null;
+    clearParceledChunks();
+  }
+
+  private void clearParceledChunks() {
+    handler.removeCallbacks(expireParceledChunks);
+    parceledChunks.clear();
+    synchronized (chunkClients) {
+      for (Map.Entry<IBinder, IBinder.DeathRecipient> e : chunkClients.entrySet()) {
+        e.getKey().unlinkToDeath(e.getValue(), 0);
+      }
+      chunkClients.clear();
+    }
+  }
+
+  /**
+   * Reports the chunk store occupancy via
+   * adb shell dumpsys activity service OdkDatabaseService
+   */
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    StringBuilder b = new StringBuilder();
+    parceledChunks.dump(b);
+    writer.print(b.toString());
   }
 
   /**
    * Cache the extra data for a return value that exceeds the 1MB limit of an AIDL call.
+   * Must be called on the binder thread of the client that will retrieve the chunk.
    *
    * @param parceledChunk The extra data to be stored
    */
@@ -106,11 +159,12 @@ public final class OdkDatabaseService extends Service {
       return;
     }
 
-    parceledChunks.put(parceledChunk.getThisID(), parceledChunk);
+    putParceledChunks(Collections.singletonList(parceledChunk));
   }
 
   /**
    * Cache the extra data for a return value that exceeds the 1MB limit of an AIDL call.
+   * Must be called on the binder thread of the client that will retrieve the chunks.
    *
    * @param chunkList The extra data to be stored
    */
@@ -120,29 +174,50 @@ public final class OdkDatabaseService extends Service {
       return;
     }
 
-    for(DbChunk chunk: chunkList) {
-      parceledChunks.put(chunk.getThisID(), chunk);
-    }
+    parceledChunks.put(Binder.getCallingPid(), chunkList);
+    // (re)arm the sweep that discards chunks no one came back for
+    handler.removeCallbacks(expireParceledChunks);
+    handler.postDelayed(expireParceledChunks, ChunkStore.DEFAULT_TTL_MILLIS);
   }
 
   /**
-   * Retrieve a cached chunk
+   * Retrieve and remove a cached chunk
    *
    * @param id The look up key
-   * @return The chunk
+   * @return The chunk or null if it was never stored, has already been retrieved or was discarded
    */
-  public DbChunk getParceledChunk(UUID id) {
-    return parceledChunks.get(id);
+  public DbChunk removeParceledChunk(UUID id) {
+    return parceledChunks.remove(id);
   }
 
   /**
-   * Retrieve and remove a cached chunk
+   * Discard the cached chunks of the calling process when the given client binder dies.
+   * Must be called on the binder thread of that client. Registering the same binder again
+   * has no effect.
    *
-   * @param id The look up key
-   * @return The chunk
+   * @param clientToken a binder owned by the client process
    */
-  public DbChunk removeParceledChunk(UUID id) {
-    return parceledChunks.remove(id);
+  public void releaseParceledChunksOnDeath(final IBinder clientToken) throws RemoteException {
+    final int owner = Binder.getCallingPid();
+    synchronized (chunkClients) {
+      if (chunkClients.containsKey(clientToken)) {
+        return;
+      }
+      IBinder.DeathRecipient recipient = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+          Log.i(LOGTAG, "binderDied -- releasing chunks of pid " + owner);
+          parceledChunks.releaseOwner(owner);
+          synchronized (chunkClients) {
+            if (chunkClients.remove(clientToken) == this) {
+              clientToken.unlinkToDeath(this, 0);
+            }
+          }
+        }
+      };
+      clientToken.linkToDeath(recipient, 0);
+      chunkClients.put(clientToken, recipient);
+    }
   }
 
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database.service;
+
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.QueryBounds;
+import org.opendatakit.database.service.DbChunk;
+import org.opendatakit.database.service.DbHandle;
+
+/**
+ * Binder for the database service calls that are declared in {@link AidlDbExtensionInterface}
+ * rather than in AidlDbInterface. Each call is delegated to the service's
+ * {@link OdkDatabaseServiceInterface} so that both binders report errors the same way.
+ */
+class OdkDatabaseServiceExtensionInterface extends AidlDbExtensionInterface.Stub {
+
+  private final OdkDatabaseServiceInterface servInterface;
+
+  /**
+   * @param servInterface -- the AidlDbInterface binder of the same service
+   */
+  public OdkDatabaseServiceExtensionInterface(OdkDatabaseServiceInterface servInterface) {
+    this.servInterface = servInterface;
+  }
+
+  @Override
+  public ParcelFileDescriptor simpleQueryAsStream(String appName, DbHandle dbHandleName,
+      String sqlCommand, BindArgs sqlBindArgs, QueryBounds sqlQueryBounds, String tableId) throws
+      RemoteException {
+    return servInterface.simpleQueryAsStream(appName, dbHandleName, sqlCommand, sqlBindArgs,
+        sqlQueryBounds, tableId);
+  }
+
+  @Override
+  public ParcelFileDescriptor privilegedSimpleQueryAsStream(String appName,
+      DbHandle dbHandleName, String sqlCommand, BindArgs sqlBindArgs,
+      QueryBounds sqlQueryBounds, String tableId) throws RemoteException {
+    return servInterface.privilegedSimpleQueryAsStream(appName, dbHandleName, sqlCommand,
+        sqlBindArgs, sqlQueryBounds, tableId);
+  }
+
+  @Override
+  public DbChunk simpleQueryAfter(String appName, DbHandle dbHandleName, String tableId,
+      String whereClause, BindArgs sqlBindArgs, String[] orderByElementKeys,
+      String[] orderByDirections, BindArgs lastKey, int pageSize) throws RemoteException {
+    return servInterface.simpleQueryAfter(appName, dbHandleName, tableId, whereClause,
+        sqlBindArgs, orderByElementKeys, orderByDirections, lastKey, pageSize);
+  }
+
+  @Override
+  public void registerChunkClient(IBinder clientToken) throws RemoteException {
+    servInterface.registerChunkClient(clientToken);
+  }
+
+  @Override
+  public void privilegedBeginBulkSession(String appName, DbHandle dbHandleName) throws
+      RemoteException {
+    servInterface.privilegedBeginBulkSession(appName, dbHandleName);
+  }
+
+  @Override
+  public void privilegedEndBulkSession(String appName, DbHandle dbHandleName) throws
+      RemoteException {
+    servInterface.privilegedEndBulkSession(appName, dbHandleName);
+  }
+
+  @Override
+  public String getStatementMetrics(String appName) throws RemoteException {
+    return servInterface.getStatementMetrics(appName);
+  }
+
+  @Override
+  public void resetStatementMetrics(String appName) throws RemoteException {
+    servInterface.resetStatementMetrics(appName);
+  }
+
+  @Override
+  public int cancelQueries(String appName, DbHandle dbHandleName) throws RemoteException {
+    return servInterface.cancelQueries(appName, dbHandleName);
+  }
+}
@@ -16,6 +16,10 @@ package org.opendatakit.services.database.service;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import org.opendatakit.aggregate.odktables.rest.SyncState;
 import org.opendatakit.database.RoleConsts;
 import org.opendatakit.database.data.BaseTable;
@@ -35,13 +39,18 @@ import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.PropertiesSingleton;
+import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.StatementMetrics;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 import org.opendatakit.services.database.utilities.ProviderUtils;
 import org.opendatakit.services.database.utilities.SyncETagsUtils;
 import org.opendatakit.services.utilities.ODKServicesPropertyUtils;
+import org.opendatakit.utilities.ODKFileUtils;
+import org.sqlite.database.sqlite.SQLiteMemoryProfile;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -54,6 +63,22 @@ import java.util.List;
 
 public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
 
+   private static final String TAG = OdkDatabaseServiceImpl.class.getSimpleName();
+
+   /**
+    * Writes streamed query results into their pipes. Bounded, and abandons results whose
+    * client stops reading. Threads exit when idle.
+    */
+   private static final QueryStreamWriters queryStreamWriters = new QueryStreamWriters(
+       QueryStreamWriters.DEFAULT_MAX_WRITERS, QueryStreamWriters.DEFAULT_MAX_QUEUED,
+       QueryStreamWriters.DEFAULT_STALL_TIMEOUT_MILLIS);
+
+   /**
+    * Queries in progress, so that they can be cancelled by the client or on timeout.
+    * Shared by all bindings of the service.
+    */
+   private static final QueryCancellation queryCancellation = new QueryCancellation();
+
    private Context context;
 
    public OdkDatabaseServiceImpl(Context context) {
@@ -99,6 +124,92 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
       return props.getUserSelectedDefaultLocale();
    }
 
+   private SQLiteMemoryProfile getDatabaseMemoryProfile(String appName) {
+      PropertiesSingleton props =
+          CommonToolProperties.get(context, appName);
+      String value = props.getProperty(AndroidConnectFactory.KEY_DATABASE_MEMORY_PROFILE);
+      if (AndroidConnectFactory.DATABASE_MEMORY_PROFILE_AUTO.equalsIgnoreCase(value)) {
+         return AndroidConnectFactory.getDeviceMemoryProfile();
+      }
+      // null (the SQLite defaults) unless a profile is named
+      return SQLiteMemoryProfile.fromSetting(value);
+   }
+
+   private long getDatabaseSlowQueryMillis(String appName) {
+      PropertiesSingleton props =
+          CommonToolProperties.get(context, appName);
+      String value = props.getProperty(AndroidConnectFactory.KEY_DATABASE_SLOW_QUERY_MILLIS);
+      if (value != null && value.length() != 0) {
+         try {
+            return Long.parseLong(value.trim());
+         } catch (NumberFormatException e) {
+            WebLogger.getLogger(appName).w(TAG, "ignoring invalid " +
+                AndroidConnectFactory.KEY_DATABASE_SLOW_QUERY_MILLIS + ": " + value);
+         }
+      }
+      return StatementMetrics.DEFAULT_SLOW_QUERY_MILLIS;
+   }
+
+   private long getDatabaseQueryTimeoutSeconds(String appName) {
+      PropertiesSingleton props =
+          CommonToolProperties.get(context, appName);
+      String value = props.getProperty(AndroidConnectFactory.KEY_DATABASE_QUERY_TIMEOUT_SECONDS);
+      if (value != null && value.length() != 0) {
+         try {
+            return Long.parseLong(value.trim());
+         } catch (NumberFormatException e) {
+            WebLogger.getLogger(appName).w(TAG, "ignoring invalid " +
+                AndroidConnectFactory.KEY_DATABASE_QUERY_TIMEOUT_SECONDS + ": " + value);
+         }
+      }
+      return QueryCancellation.DEFAULT_QUERY_TIMEOUT_SECONDS;
+   }
+
+   /**
+    * @return the configured size of the reader connection pool, or null to leave the default
+    */
+   private Integer getDatabaseReaderConnections(String appName) {
+      PropertiesSingleton props =
+          CommonToolProperties.get(context, appName);
+      String value = props.getProperty(AndroidConnectFactory.KEY_DATABASE_READER_CONNECTIONS);
+      if (value != null && value.length() != 0) {
+         try {
+            return Integer.valueOf(value.trim());
+         } catch (NumberFormatException e) {
+            WebLogger.getLogger(appName).w(TAG, "ignoring invalid " +
+                AndroidConnectFactory.KEY_DATABASE_READER_CONNECTIONS + ": " + value);
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Reads that need not see a session's uncommitted changes run on a pooled
+    * query-only connection, which is not held up by a write transaction (e.g., a
+    * sync) that is open on another connection. If the session's own connection is
+    * within a transaction, the read must be done on that connection.
+    *
+    * @param appName
+    * @param db the session's connection
+    * @return the connection on which to read; hand it to {@link #releaseReader}
+    */
+   private static OdkConnectionInterface acquireReader(String appName, OdkConnectionInterface db) {
+      if (db.inTransaction()) {
+         return db;
+      }
+      OdkConnectionInterface reader = OdkConnectionFactorySingleton
+          .getOdkConnectionFactoryInterface().getReaderConnection(appName);
+      return (reader != null) ? reader : db;
+   }
+
+   private static void releaseReader(String appName, OdkConnectionInterface db,
+       OdkConnectionInterface reader) {
+      if (reader != null && reader != db) {
+         OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .releaseReaderConnection(appName, reader);
+      }
+   }
+
    /**
    * Return the active user or "anonymous" if the user
    * has not been authenticated against the server.
@@ -163,6 +274,18 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
 
       DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
           .generateDatabaseServiceDbHandle();
+      // pick up any change to the device setting for connections opened from now on
+      OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .setMemoryProfile(appName, getDatabaseMemoryProfile(appName));
+      OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .getStatementMetrics(appName).setSlowQueryThresholdMillis(
+          getDatabaseSlowQueryMillis(appName));
+      queryCancellation.setQueryTimeoutSeconds(appName, getDatabaseQueryTimeoutSeconds(appName));
+      Integer readerConnections = getDatabaseReaderConnections(appName);
+      if (readerConnections != null) {
+         OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .setReaderConnectionLimit(appName, readerConnections);
+      }
       try {
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
@@ -182,6 +305,9 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
 
       OdkConnectionInterface db = null;
 
+      // nobody is waiting for the results of queries still running on this handle
+      queryCancellation.release(appName, dbHandleName);
+
       try {
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
@@ -1249,25 +1375,33 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
        {
 
       OdkConnectionInterface db = null;
+      OdkConnectionInterface reader = null;
 
       String activeUser = getActiveUser(appName);
       String rolesList = getInternalRolesList(appName);
 
+      QueryCancellation.Query query = queryCancellation.begin(appName, dbHandleName);
       try {
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
              .getConnection(appName, dbHandleName);
+         reader = acquireReader(appName, db);
 
 
          ODKDatabaseImplUtils.AccessContext accessContext =
-             ODKDatabaseImplUtils.get().getAccessContext(db, tableId, activeUser, rolesList);
+             ODKDatabaseImplUtils.get().getAccessContext(reader, tableId, activeUser, rolesList);
 
          BaseTable result = ODKDatabaseImplUtils.get()
-             .query(db, tableId, sqlCommand,
-                 (bindArgs == null) ? null : bindArgs.bindArgs, sqlQueryBounds, accessContext);
+             .query(reader, tableId, sqlCommand,
+                 (bindArgs == null) ? null : bindArgs.bindArgs, sqlQueryBounds, accessContext,
+                 query.getCancellationSignal());
 
          return result;
+      } catch (OperationCanceledException e) {
+         throw query.explain(e);
       } finally {
+         queryCancellation.end(query);
+         releaseReader(appName, db, reader);
          if (db != null) {
             // release the reference...
             // this does not necessarily close the db handle
@@ -1282,24 +1416,143 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
        {
 
       OdkConnectionInterface db = null;
+      OdkConnectionInterface reader = null;
 
       String activeUser = getActiveUser(appName);
 
+      QueryCancellation.Query query = queryCancellation.begin(appName, dbHandleName);
       try {
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
              .getConnection(appName, dbHandleName);
+         reader = acquireReader(appName, db);
 
          ODKDatabaseImplUtils.AccessContext accessContext = ODKDatabaseImplUtils.get()
-             .getAccessContext(db, tableId, activeUser, RoleConsts.ADMIN_ROLES_LIST);
+             .getAccessContext(reader, tableId, activeUser, RoleConsts.ADMIN_ROLES_LIST);
 
          BaseTable result = ODKDatabaseImplUtils.get()
-             .privilegedQuery(db, tableId, sqlCommand,
+             .privilegedQuery(reader, tableId, sqlCommand,
                  (bindArgs == null) ? null : bindArgs.bindArgs, sqlQueryBounds,
-                 accessContext);
+                 accessContext, query.getCancellationSignal());
+
+         return result;
+      } catch (OperationCanceledException e) {
+         throw query.explain(e);
+      } finally {
+         queryCancellation.end(query);
+         releaseReader(appName, db, reader);
+         if (db != null) {
+            // release the reference...
+            // this does not necessarily close the db handle
+            // or terminate any pending transaction
+            db.releaseReference();
+         }
+      }
+   }
+
+   /**
+    * Keyset (seek) pagination over a table, for browsing views over large tables.
+    * <p>
+    * Returns up to pageSize rows of the table, filtered by the whereClause, that follow
+    * the row identified by lastKey when ordered by the orderByElementKeys and then by
+    * _id and _savepoint_timestamp. Pass null for lastKey to get the first page, and the
+    * values of those columns from the last row of a page to get the next one. Unlike
+    * {@link #simpleQuery} with an offset, the cost of a page does not grow with its depth.
+    *
+    * @param appName
+    * @param dbHandleName
+    * @param tableId
+    * @param whereClause        filter on the rows of the table, or null
+    * @param bindArgs           the selection parameters of the whereClause
+    * @param orderByElementKeys the columns to order by, or null to order only by _id
+    * @param orderByDirections  "ASC" or "DESC" for each of the orderByElementKeys, or null
+    * @param lastKey            the cursor token: the values of the orderByElementKeys, _id
+    *                           and _savepoint_timestamp of the last row of the previous page
+    * @param pageSize           the maximum number of rows to return
+    * @return
+    */
+   public BaseTable simpleQueryAfter(String appName, DbHandle dbHandleName, String tableId,
+       String whereClause, BindArgs bindArgs, String[] orderByElementKeys,
+       String[] orderByDirections, BindArgs lastKey, int pageSize) {
+
+      OdkConnectionInterface db = null;
+      OdkConnectionInterface reader = null;
+
+      String activeUser = getActiveUser(appName);
+      String rolesList = getInternalRolesList(appName);
+
+      QueryCancellation.Query query = queryCancellation.begin(appName, dbHandleName);
+      try {
+         // +1 referenceCount if db is returned (non-null)
+         db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .getConnection(appName, dbHandleName);
+         reader = acquireReader(appName, db);
+
+         ODKDatabaseImplUtils.AccessContext accessContext =
+             ODKDatabaseImplUtils.get().getAccessContext(reader, tableId, activeUser, rolesList);
+
+         BaseTable result = ODKDatabaseImplUtils.get()
+             .queryAfter(reader, tableId, whereClause,
+                 (bindArgs == null) ? null : bindArgs.bindArgs, orderByElementKeys,
+                 orderByDirections, (lastKey == null) ? null : lastKey.bindArgs, pageSize,
+                 accessContext, query.getCancellationSignal());
 
          return result;
+      } catch (OperationCanceledException e) {
+         throw query.explain(e);
+      } finally {
+         queryCancellation.end(query);
+         releaseReader(appName, db, reader);
+         if (db != null) {
+            // release the reference...
+            // this does not necessarily close the db handle
+            // or terminate any pending transaction
+            db.releaseReference();
+         }
+      }
+   }
+
+   /**
+    * Same as {@link #simpleQuery} but, rather than building a BaseTable to be split into
+    * DbChunks, returns the read end of a pipe through which the result set is streamed
+    * (see {@link QueryResultStream}).
+    *
+    * The query is fully evaluated before this returns; the database connection is not
+    * used while the rows are written to the pipe.
+    *
+    * @return the read end of the pipe
+    * @throws IOException if the pipe could not be created
+    */
+   public ParcelFileDescriptor simpleQueryAsStream(String appName, DbHandle dbHandleName,
+       String sqlCommand, BindArgs bindArgs, QueryBounds sqlQueryBounds, String tableId)
+       throws IOException {
+
+      OdkConnectionInterface db = null;
+      OdkConnectionInterface reader = null;
+
+      String activeUser = getActiveUser(appName);
+      String rolesList = getInternalRolesList(appName);
+
+      Cursor c;
+      ODKDatabaseImplUtils.AccessContext accessContext;
+      QueryCancellation.Query query = queryCancellation.begin(appName, dbHandleName);
+      try {
+         // +1 referenceCount if db is returned (non-null)
+         db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .getConnection(appName, dbHandleName);
+         reader = acquireReader(appName, db);
+
+         accessContext =
+             ODKDatabaseImplUtils.get().getAccessContext(reader, tableId, activeUser, rolesList);
+
+         c = ODKDatabaseImplUtils.get()
+             .rawQuery(reader, sqlCommand, (bindArgs == null) ? null : bindArgs.bindArgs,
+                 sqlQueryBounds, accessContext, query.getCancellationSignal());
+      } catch (OperationCanceledException e) {
+         throw query.explain(e);
       } finally {
+         queryCancellation.end(query);
+         releaseReader(appName, db, reader);
          if (db != null) {
             // release the reference...
             // this does not necessarily close the db handle
@@ -1307,6 +1560,123 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
             db.releaseReference();
          }
       }
+
+      return streamQueryResult(appName, c, accessContext.canCreateRow);
+   }
+
+   /**
+    * Same as {@link #privilegedSimpleQuery} but returns the result set through a pipe.
+    * See {@link #simpleQueryAsStream}.
+    *
+    * @return the read end of the pipe
+    * @throws IOException if the pipe could not be created
+    */
+   public ParcelFileDescriptor privilegedSimpleQueryAsStream(String appName,
+       DbHandle dbHandleName, String sqlCommand, BindArgs bindArgs, QueryBounds sqlQueryBounds,
+       String tableId) throws IOException {
+
+      OdkConnectionInterface db = null;
+      OdkConnectionInterface reader = null;
+
+      String activeUser = getActiveUser(appName);
+
+      Cursor c;
+      ODKDatabaseImplUtils.AccessContext accessContext;
+      QueryCancellation.Query query = queryCancellation.begin(appName, dbHandleName);
+      try {
+         // +1 referenceCount if db is returned (non-null)
+         db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .getConnection(appName, dbHandleName);
+         reader = acquireReader(appName, db);
+
+         accessContext = ODKDatabaseImplUtils.get()
+             .getAccessContext(reader, tableId, activeUser, RoleConsts.ADMIN_ROLES_LIST);
+         if (!accessContext.isPrivilegedUser) {
+            accessContext = accessContext.cloneAsPrivilegedUser();
+         }
+
+         c = ODKDatabaseImplUtils.get()
+             .rawQuery(reader, sqlCommand, (bindArgs == null) ? null : bindArgs.bindArgs,
+                 sqlQueryBounds, accessContext, query.getCancellationSignal());
+      } catch (OperationCanceledException e) {
+         throw query.explain(e);
+      } finally {
+         queryCancellation.end(query);
+         releaseReader(appName, db, reader);
+         if (db != null) {
+            // release the reference...
+            // this does not necessarily close the db handle
+            // or terminate any pending transaction
+            db.releaseReference();
+         }
+      }
+
+      return streamQueryResult(appName, c, accessContext.canCreateRow);
+   }
+
+   /**
+    * Cancel the queries that are currently executing on the given dbHandle, e.g.,
+    * because the user has left the view that is waiting for their results. Each
+    * cancelled query fails with an OperationCanceledException and releases its
+    * connection.
+    *
+    * @param appName
+    * @param dbHandleName
+    * @return the number of queries that were cancelled
+    */
+   public int cancelQueries(String appName, DbHandle dbHandleName) {
+      return queryCancellation.cancel(appName, dbHandleName);
+   }
+
+   /**
+    * For support: latency histograms and row counts of the SQL statements run
+    * against this appName's database since the service started (or was reset),
+    * grouped by statement shape. No bind arguments or literal values are included.
+    *
+    * @param appName
+    * @return JSON serialization of {@link StatementMetrics#snapshot()}
+    * @throws JsonProcessingException
+    */
+   public String getStatementMetrics(String appName) throws JsonProcessingException {
+      StatementMetrics metrics = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .getStatementMetrics(appName);
+      return ODKFileUtils.mapper.writeValueAsString(metrics.snapshot());
+   }
+
+   /**
+    * Clear the statement metrics of this appName.
+    *
+    * @param appName
+    */
+   public void resetStatementMetrics(String appName) {
+      OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .getStatementMetrics(appName).reset();
+   }
+
+   /**
+    * Hand the in-memory cursor off to a writer thread that streams it into a pipe.
+    *
+    * @return the read end of the pipe
+    * @throws IllegalStateException if too many query results are already being streamed
+    */
+   private ParcelFileDescriptor streamQueryResult(String appName, Cursor c,
+       boolean canCreateRow) throws IOException {
+      ParcelFileDescriptor[] pipe;
+      try {
+         pipe = ParcelFileDescriptor.createPipe();
+      } catch (IOException e) {
+         c.close();
+         throw e;
+      }
+      try {
+         queryStreamWriters.submit(appName, c, canCreateRow,
+             new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]));
+      } catch (IllegalStateException e) {
+         // the writer has closed the cursor and the write end
+         pipe[0].close();
+         throw e;
+      }
+      return pipe[0];
    }
 
    @Override public void privilegedExecute(String appName, DbHandle dbHandleName, String sqlCommand,
@@ -1477,6 +1847,72 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
              .getConnection(appName, dbHandleName);
          ODKDatabaseImplUtils.get().privilegedUpdateTableETags(db, tableId, schemaETag,
              lastDataETag);
+         if (lastDataETag != null) {
+            // a batch of row changes has been synced; truncate the WAL once the database goes idle
+            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+                .requestWalTruncation(appName);
+         }
+      } finally {
+         if (db != null) {
+            // release the reference...
+            // this does not necessarily close the db handle
+            // or terminate any pending transaction
+            db.releaseReference();
+         }
+      }
+   }
+
+   /**
+    * SYNC and CSV import Only. ADMIN Privileges
+    *
+    * Begin a bulk session on the connection of the database handle. Sync applies a
+    * batch of server changes (and CSV import inserts rows) one row per call, each
+    * in its own transaction; within a bulk session these commits do not wait on an
+    * fsync. Commits made during the session survive an application crash but may
+    * be lost on power failure until {@link #privilegedEndBulkSession} is called (or
+    * the database handle is closed).
+    *
+    * @param appName the app name
+    * @param dbHandleName a database handle to use; must not have an open transaction
+    */
+   public void privilegedBeginBulkSession(String appName, DbHandle dbHandleName) {
+
+      OdkConnectionInterface db = null;
+
+      try {
+         // +1 referenceCount if db is returned (non-null)
+         db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .getConnection(appName, dbHandleName);
+         db.beginBulkSession();
+      } finally {
+         if (db != null) {
+            // release the reference...
+            // this does not necessarily close the db handle
+            // or terminate any pending transaction
+            db.releaseReference();
+         }
+      }
+   }
+
+   /**
+    * SYNC and CSV import Only. ADMIN Privileges
+    *
+    * End the bulk session begun by {@link #privilegedBeginBulkSession}. Returns once
+    * full durability has been restored and the write-ahead log has been synced and
+    * checkpointed (FULL), so every commit of the session is durable.
+    *
+    * @param appName the app name
+    * @param dbHandleName a database handle to use; must not have an open transaction
+    */
+   public void privilegedEndBulkSession(String appName, DbHandle dbHandleName) {
+
+      OdkConnectionInterface db = null;
+
+      try {
+         // +1 referenceCount if db is returned (non-null)
+         db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .getConnection(appName, dbHandleName);
+         db.endBulkSession();
       } finally {
          if (db != null) {
             // release the reference...
@@ -1504,6 +1940,9 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
              .getConnection(appName, dbHandleName);
          ODKDatabaseImplUtils.get().privilegedUpdateTableLastSyncTime(db, tableId);
+         // the table has finished syncing; truncate the WAL once the database goes idle
+         OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .requestWalTruncation(appName);
       } finally {
          if (db != null) {
             // release the reference...
@@ -15,6 +15,8 @@
 package org.opendatakit.services.database.service;
 
 import android.content.ContentValues;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
 import android.os.RemoteException;
@@ -719,6 +721,136 @@ class OdkDatabaseServiceInterface extends AidlDbInterface.Stub {
     }
   }
 
+  /**
+   * Same as simpleQuery, but the entire result set is returned in this one call through
+   * the read end of a pipe (see {@link QueryResultStream}) rather than as DbChunks.
+   * Exposed through {@link AidlDbExtensionInterface}.
+   */
+  public ParcelFileDescriptor simpleQueryAsStream(String appName, DbHandle dbHandleName,
+      String sqlCommand, BindArgs sqlBindArgs, QueryBounds sqlQueryBounds, String tableId) throws
+      RemoteException {
+
+    try {
+      return odkDatabaseServiceImpl.simpleQueryAsStream(appName, dbHandleName, sqlCommand,
+          sqlBindArgs, sqlQueryBounds, tableId);
+    } catch (Exception e) {
+      throw createWrappingRemoteException(appName, dbHandleName, "simpleQueryAsStream", e);
+    }
+  }
+
+  /**
+   * Same as privilegedSimpleQuery, but the entire result set is returned in this one call
+   * through the read end of a pipe (see {@link QueryResultStream}) rather than as DbChunks.
+   * Exposed through {@link AidlDbExtensionInterface}.
+   */
+  public ParcelFileDescriptor privilegedSimpleQueryAsStream(String appName,
+      DbHandle dbHandleName, String sqlCommand, BindArgs sqlBindArgs,
+      QueryBounds sqlQueryBounds, String tableId) throws RemoteException {
+
+    try {
+      return odkDatabaseServiceImpl.privilegedSimpleQueryAsStream(appName, dbHandleName,
+          sqlCommand, sqlBindArgs, sqlQueryBounds, tableId);
+    } catch (Exception e) {
+      throw createWrappingRemoteException(appName, dbHandleName,
+          "privilegedSimpleQueryAsStream", e);
+    }
+  }
+
+  /**
+   * Keyset (seek) paging over a table: the page of rows that follows the row identified
+   * by lastKey (see {@link OdkDatabaseServiceImpl#simpleQueryAfter}).
+   * Exposed through {@link AidlDbExtensionInterface}.
+   */
+  public DbChunk simpleQueryAfter(String appName, DbHandle dbHandleName, String tableId,
+      String whereClause, BindArgs sqlBindArgs, String[] orderByElementKeys,
+      String[] orderByDirections, BindArgs lastKey, int pageSize) throws RemoteException {
+
+    try {
+      BaseTable result = odkDatabaseServiceImpl.simpleQueryAfter(appName, dbHandleName, tableId,
+          whereClause, sqlBindArgs, orderByElementKeys, orderByDirections, lastKey, pageSize);
+      return getAndCacheChunks(result);
+    } catch (Exception e) {
+      throw createWrappingRemoteException(appName, dbHandleName, "simpleQueryAfter", e);
+    }
+  }
+
+  /**
+   * SYNC and CSV import Only. ADMIN Privileges
+   *
+   * Begin a bulk session on the connection of the database handle: until
+   * privilegedEndBulkSession, commits are not fsync'd.
+   * Exposed through {@link AidlDbExtensionInterface}.
+   */
+  public void privilegedBeginBulkSession(String appName, DbHandle dbHandleName) throws
+      RemoteException {
+
+    try {
+      odkDatabaseServiceImpl.privilegedBeginBulkSession(appName, dbHandleName);
+    } catch (Exception e) {
+      throw createWrappingRemoteException(appName, dbHandleName, "privilegedBeginBulkSession", e);
+    }
+  }
+
+  /**
+   * SYNC and CSV import Only. ADMIN Privileges
+   *
+   * End the bulk session, making all of its commits durable.
+   * Exposed through {@link AidlDbExtensionInterface}.
+   */
+  public void privilegedEndBulkSession(String appName, DbHandle dbHandleName) throws
+      RemoteException {
+
+    try {
+      odkDatabaseServiceImpl.privilegedEndBulkSession(appName, dbHandleName);
+    } catch (Exception e) {
+      throw createWrappingRemoteException(appName, dbHandleName, "privilegedEndBulkSession", e);
+    }
+  }
+
+  /**
+   * JSON snapshot of the latency histograms and row counts of the SQL statements run
+   * against this appName's database, grouped by statement shape (for support).
+   * Exposed through {@link AidlDbExtensionInterface}.
+   */
+  public String getStatementMetrics(String appName) throws RemoteException {
+
+    try {
+      return odkDatabaseServiceImpl.getStatementMetrics(appName);
+    } catch (Exception e) {
+      throw createWrappingRemoteException(appName, null, "getStatementMetrics", e);
+    }
+  }
+
+  /**
+   * Clear the statement metrics of this appName.
+   * Exposed through {@link AidlDbExtensionInterface}.
+   */
+  public void resetStatementMetrics(String appName) throws RemoteException {
+
+    try {
+      odkDatabaseServiceImpl.resetStatementMetrics(appName);
+    } catch (Exception e) {
+      throw createWrappingRemoteException(appName, null, "resetStatementMetrics", e);
+    }
+  }
+
+  /**
+   * Cancel the queries currently executing on this dbHandle.
+   * Exposed through {@link AidlDbExtensionInterface}.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @return the number of queries that were cancelled
+   */
+  public int cancelQueries(String appName, DbHandle dbHandleName) throws RemoteException {
+
+    try {
+      return odkDatabaseServiceImpl.cancelQueries(appName, dbHandleName);
+    } catch (Exception e) {
+      throw createWrappingRemoteException(appName, dbHandleName, "cancelQueries", e);
+    }
+  }
+
   @Override
   public void privilegedExecute(String appName, DbHandle dbHandleName,
       String sqlCommand, BindArgs sqlBindArgs) {
@@ -1001,6 +1133,18 @@ class OdkDatabaseServiceInterface extends AidlDbInterface.Stub {
     return odkDatabaseService.removeParceledChunk(chunkID.getUuid());
   }
 
+  /**
+   * Clients that fetch chunked return values may register a binder they own so that any
+   * chunks they have not yet fetched are discarded as soon as their process dies, rather
+   * than when the chunks expire.
+   * Exposed through {@link AidlDbExtensionInterface}.
+   *
+   * @param clientToken a binder owned by the calling process
+   */
+  public void registerChunkClient(IBinder clientToken) throws RemoteException {
+    odkDatabaseService.releaseParceledChunksOnDeath(clientToken);
+  }
+
   private DbChunk getAndCacheChunks(Parcelable data) {
     // Break the results into pieces that will fit over the wire
     List<DbChunk> chunkList = DbChunkUtil.convertToChunks(data, DatabaseConstants.PARCEL_SIZE);
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database.service;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.logging.WebLogger;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queries currently executing on behalf of the database service.
+ * <p>
+ * Each query is given a CancellationSignal that is registered under its
+ * appName and dbHandle. The signal is cancelled when the client asks for the
+ * queries on its dbHandle to be cancelled (e.g., the user has left the view
+ * that requested them), when the dbHandle is closed, or when the query has
+ * run longer than the appName's query timeout. Cancelling interrupts the
+ * statement inside SQLite, so the connection is released promptly.
+ * <p>
+ * All timeouts are run on a single shared daemon thread.
+ */
+final class QueryCancellation {
+
+   private static final String TAG = QueryCancellation.class.getSimpleName();
+
+   /**
+    * Query timeout used when an appName has no setting; 0 disables the timeout.
+    */
+   static final long DEFAULT_QUERY_TIMEOUT_SECONDS = 300L;
+
+   private static ScheduledExecutorService sExecutor = null;
+
+   private static synchronized ScheduledExecutorService getExecutor() {
+      if (sExecutor == null) {
+         sExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "QueryCancellation");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return sExecutor;
+   }
+
+   /**
+    * A query that is in progress.
+    */
+   static final class Query implements Runnable {
+      private final String appName;
+      private final String key;
+      private final long timeoutSeconds;
+      private final CancellationSignal cancellationSignal = new CancellationSignal();
+      private ScheduledFuture<?> timeoutFuture = null;
+      private volatile boolean timedOut = false;
+
+      private Query(String appName, String key, long timeoutSeconds) {
+         this.appName = appName;
+         this.key = key;
+         this.timeoutSeconds = timeoutSeconds;
+      }
+
+      CancellationSignal getCancellationSignal() {
+         return cancellationSignal;
+      }
+
+      /**
+       * Invoked on the executor thread when the timeout elapses.
+       */
+      @Override
+      public void run() {
+         timedOut = true;
+         WebLogger.getLogger(appName).w(TAG, "cancelling query on " + key +
+             " that has run for more than " + timeoutSeconds + " seconds");
+         cancellationSignal.cancel();
+      }
+
+      /**
+       * @param e the exception thrown by the cancelled query
+       * @return an exception that says why the query was cancelled
+       */
+      OperationCanceledException explain(OperationCanceledException e) {
+         OperationCanceledException ex = new OperationCanceledException(timedOut ?
+             ("query exceeded the timeout of " + timeoutSeconds + " seconds") :
+             "query cancelled by request");
+         ex.initCause(e);
+         return ex;
+      }
+   }
+
+   private final ConcurrentHashMap<String, Long> timeoutSecondsByAppName =
+       new ConcurrentHashMap<String, Long>();
+
+   private final ConcurrentHashMap<String, Set<Query>> queriesByHandle =
+       new ConcurrentHashMap<String, Set<Query>>();
+
+   private static String keyOf(String appName, DbHandle dbHandleName) {
+      return appName + ":" + ((dbHandleName == null) ? "-" : dbHandleName.getDatabaseHandle());
+   }
+
+   /**
+    * Set the timeout applied to queries of this appName that start after this call.
+    *
+    * @param appName
+    * @param seconds 0 (or negative) to let queries run to completion
+    */
+   void setQueryTimeoutSeconds(String appName, long seconds) {
+      timeoutSecondsByAppName.put(appName, (seconds < 0L) ? 0L : seconds);
+   }
+
+   long getQueryTimeoutSeconds(String appName) {
+      Long seconds = timeoutSecondsByAppName.get(appName);
+      return (seconds == null) ? DEFAULT_QUERY_TIMEOUT_SECONDS : seconds;
+   }
+
+   /**
+    * Register a query that is about to start. Every call must be paired with
+    * a call to {@link #end(Query)} in a finally block.
+    *
+    * @param appName
+    * @param dbHandleName
+    * @return the query, whose CancellationSignal is to be passed down to the connection
+    */
+   Query begin(String appName, DbHandle dbHandleName) {
+      final String key = keyOf(appName, dbHandleName);
+      final Query query = new Query(appName, key, getQueryTimeoutSeconds(appName));
+
+      Set<Query> queries = queriesByHandle.get(key);
+      if (queries == null) {
+         Set<Query> newQueries =
+             Collections.newSetFromMap(new ConcurrentHashMap<Query, Boolean>());
+         queries = queriesByHandle.putIfAbsent(key, newQueries);
+         if (queries == null) {
+            queries = newQueries;
+         }
+      }
+      queries.add(query);
+
+      if (query.timeoutSeconds > 0L) {
+         query.timeoutFuture = getExecutor().schedule(query, query.timeoutSeconds,
+             TimeUnit.SECONDS);
+      }
+      return query;
+   }
+
+   /**
+    * Unregister a query that has completed, failed or been cancelled.
+    *
+    * @param query
+    */
+   void end(Query query) {
+      if (query.timeoutFuture != null) {
+         query.timeoutFuture.cancel(false);
+      }
+      Set<Query> queries = queriesByHandle.get(query.key);
+      if (queries != null) {
+         queries.remove(query);
+         // an empty set left behind is reused by the next query on the handle
+      }
+   }
+
+   /**
+    * Cancel all queries currently executing on the given dbHandle.
+    *
+    * @param appName
+    * @param dbHandleName
+    * @return the number of queries that were cancelled
+    */
+   int cancel(String appName, DbHandle dbHandleName) {
+      final String key = keyOf(appName, dbHandleName);
+      int count = 0;
+      Set<Query> queries = queriesByHandle.get(key);
+      if (queries != null) {
+         for (Query query : queries) {
+            query.cancellationSignal.cancel();
+            ++count;
+         }
+      }
+      if (count != 0) {
+         WebLogger.getLogger(appName).i(TAG, "cancelled " + count + " queries on " + key);
+      }
+      return count;
+   }
+
+   /**
+    * Forget the dbHandle once it has been closed, cancelling anything still running on it.
+    *
+    * @param appName
+    * @param dbHandleName
+    */
+   void release(String appName, DbHandle dbHandleName) {
+      cancel(appName, dbHandleName);
+      queriesByHandle.remove(keyOf(appName, dbHandleName));
+   }
+}
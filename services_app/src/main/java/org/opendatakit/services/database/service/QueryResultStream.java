@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database.service;
+
+import android.database.Cursor;
+import org.opendatakit.database.utilities.CursorUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Wire format for returning a query result set through a single file descriptor (pipe)
+ * rather than as a series of DbChunks fetched one binder call at a time.
+ * <p>
+ * The stream consists of a header followed by row frames and a terminating frame:
+ * <pre>
+ *   int MAGIC, int VERSION, boolean effectiveAccessCreateRow,
+ *   int columnCount, columnCount x string (element keys)
+ *   ( byte FRAME_ROW, columnCount x string )*
+ *   byte FRAME_END | byte FRAME_ERROR, string message
+ * </pre>
+ * where a string is an int byte length (-1 for null) followed by its UTF-8 bytes.
+ * Values are the same string representations that are placed in a BaseTable Row.
+ * <p>
+ * The reader consumes rows one at a time, so the client never needs to hold
+ * the serialized result in memory.
+ */
+public final class QueryResultStream {
+
+  public static final int MAGIC = 0x4f444b51; // "ODKQ"
+  public static final int VERSION = 1;
+
+  static final byte FRAME_END = 0;
+  static final byte FRAME_ROW = 1;
+  static final byte FRAME_ERROR = 2;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private QueryResultStream() {
+  }
+
+  /**
+   * Writes the entire cursor to the output stream and closes both.
+   * Any failure while reading the cursor is reported in-band to the reader.
+   *
+   * @param c              the (in-memory) result set cursor
+   * @param canCreateRow   the effective access for creating rows in the table
+   * @param out            the write end of the pipe
+   * @throws IOException if the reader has gone away
+   */
+  public static void writeCursor(Cursor c, boolean canCreateRow, OutputStream out)
+      throws IOException {
+    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+    try {
+      int columnCount = c.getColumnCount();
+      String[] columns = new String[columnCount];
+      for (int i = 0; i < columnCount; ++i) {
+        columns[i] = c.getColumnName(i);
+      }
+      writeHeader(dos, columns, canCreateRow);
+
+      String[] rowData = new String[columnCount];
+      try {
+        if (c.moveToFirst()) {
+          do {
+            for (int i = 0; i < columnCount; ++i) {
+              rowData[i] = CursorUtils.getIndexAsString(c, i);
+            }
+            writeRow(dos, rowData);
+          } while (c.moveToNext());
+        }
+      } catch (RuntimeException e) {
+        writeError(dos, e.toString());
+        return;
+      }
+      writeEnd(dos);
+    } finally {
+      c.close();
+      dos.close();
+    }
+  }
+
+  static void writeHeader(DataOutputStream out, String[] columns, boolean canCreateRow)
+      throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeBoolean(canCreateRow);
+    out.writeInt(columns.length);
+    for (String column : columns) {
+      writeString(out, column);
+    }
+  }
+
+  static void writeRow(DataOutputStream out, String[] values) throws IOException {
+    out.writeByte(FRAME_ROW);
+    for (String value : values) {
+      writeString(out, value);
+    }
+  }
+
+  static void writeEnd(DataOutputStream out) throws IOException {
+    out.writeByte(FRAME_END);
+    out.flush();
+  }
+
+  static void writeError(DataOutputStream out, String message) throws IOException {
+    out.writeByte(FRAME_ERROR);
+    writeString(out, message);
+    out.flush();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int len = in.readInt();
+    if (len < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[len];
+    in.readFully(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * Streams rows out of a result set written by {@link #writeCursor}.
+   */
+  public static final class Reader {
+
+    private final DataInputStream in;
+    private final String[] columns;
+    private final boolean effectiveAccessCreateRow;
+    private boolean done = false;
+
+    public Reader(InputStream inputStream) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE));
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a query result stream");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported query result stream version: " + version);
+      }
+      effectiveAccessCreateRow = in.readBoolean();
+      int columnCount = in.readInt();
+      columns = new String[columnCount];
+      for (int i = 0; i < columnCount; ++i) {
+        columns[i] = readString(in);
+      }
+    }
+
+    /**
+     * @return the element keys (column names) of the result set
+     */
+    public String[] getColumns() {
+      return columns;
+    }
+
+    public boolean getEffectiveAccessCreateRow() {
+      return effectiveAccessCreateRow;
+    }
+
+    /**
+     * @return the values of the next row, or null once all rows have been read
+     * @throws IOException if the stream is truncated or the writer reported a failure
+     */
+    public String[] nextRow() throws IOException {
+      if (done) {
+        return null;
+      }
+      byte frame;
+      try {
+        frame = in.readByte();
+      } catch (EOFException e) {
+        throw new IOException("Query result stream truncated", e);
+      }
+      switch (frame) {
+      case FRAME_ROW:
+        String[] values = new String[columns.length];
+        for (int i = 0; i < columns.length; ++i) {
+          values[i] = readString(in);
+        }
+        return values;
+      case FRAME_END:
+        done = true;
+        return null;
+      case FRAME_ERROR:
+        done = true;
+        throw new IOException("Query failed: " + readString(in));
+      default:
+        throw new IOException("Corrupt query result stream (frame " + frame + ")");
+      }
+    }
+
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
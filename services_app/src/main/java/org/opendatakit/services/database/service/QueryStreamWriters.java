@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database.service;
+
+import android.database.Cursor;
+import org.opendatakit.logging.WebLogger;
+
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that write streamed query results (see {@link QueryResultStream}) into their
+ * pipes.
+ * <p>
+ * A pipe only drains as fast as its client reads it, and a client may never read it at all.
+ * The number of writer threads is therefore bounded, as is the number of results waiting for
+ * one, and a result that makes no progress for the stall timeout is abandoned: its writer is
+ * interrupted, which closes the pipe (the write is done through an interruptible FileChannel),
+ * and its cursor is closed. The client then sees a truncated stream, which the
+ * {@link QueryResultStream.Reader} reports as an error.
+ * <p>
+ * All stall checks are run on a single shared daemon thread.
+ */
+final class QueryStreamWriters {
+
+   private static final String TAG = QueryStreamWriters.class.getSimpleName();
+
+   /**
+    * Default maximum number of results being written at once
+    */
+   static final int DEFAULT_MAX_WRITERS = 4;
+
+   /**
+    * Default maximum number of results waiting for a writer
+    */
+   static final int DEFAULT_MAX_QUEUED = 16;
+
+   /**
+    * Default time a result may go without any bytes being written before it is abandoned
+    */
+   static final long DEFAULT_STALL_TIMEOUT_MILLIS = 30000L;
+
+   private static ScheduledExecutorService sWatchdog = null;
+
+   private static synchronized ScheduledExecutorService getWatchdog() {
+      if (sWatchdog == null) {
+         sWatchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, TAG + "-watchdog");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return sWatchdog;
+   }
+
+   private final ThreadPoolExecutor writers;
+   private final long stallTimeoutMillis;
+
+   QueryStreamWriters(int maxWriters, int maxQueued, long stallTimeoutMillis) {
+      this.stallTimeoutMillis = stallTimeoutMillis;
+      final AtomicInteger count = new AtomicInteger();
+      this.writers = new ThreadPoolExecutor(maxWriters, maxWriters, 60L, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(maxQueued), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, TAG + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this.writers.allowCoreThreadTimeOut(true);
+   }
+
+   /**
+    * Write the cursor into the stream on a writer thread. The cursor and the stream are
+    * closed once the result has been written or abandoned.
+    *
+    * @param appName       for logging
+    * @param c             the (in-memory) result set cursor
+    * @param canCreateRow  the effective access for creating rows in the table
+    * @param out           the write end of the pipe
+    * @throws IllegalStateException if too many results are already being written
+    */
+   void submit(String appName, Cursor c, boolean canCreateRow, FileOutputStream out) {
+      Writer writer = new Writer(appName, c, canCreateRow, out);
+      try {
+         writers.execute(writer);
+      } catch (RejectedExecutionException e) {
+         writer.abandon();
+         throw new IllegalStateException("Too many query results are being streamed; "
+             + "read or close the streams already returned before requesting more");
+      }
+      writer.watch(getWatchdog(), stallTimeoutMillis);
+   }
+
+   /**
+    * @return the number of results that are being written or are waiting for a writer
+    */
+   int getPendingCount() {
+      return writers.getActiveCount() + writers.getQueue().size();
+   }
+
+   private final class Writer implements Runnable {
+
+      private final String appName;
+      private final Cursor c;
+      private final boolean canCreateRow;
+      private final FileOutputStream out;
+
+      private volatile long lastProgressMillis = System.currentTimeMillis();
+
+      // guarded by this
+      private Thread thread = null;
+      private boolean finished = false;
+      private ScheduledFuture<?> watch = null;
+
+      Writer(String appName, Cursor c, boolean canCreateRow, FileOutputStream out) {
+         this.appName = appName;
+         this.c = c;
+         this.canCreateRow = canCreateRow;
+         this.out = out;
+      }
+
+      synchronized void watch(ScheduledExecutorService watchdog, long stallTimeoutMillis) {
+         if (finished) {
+            return;
+         }
+         final long timeout = stallTimeoutMillis;
+         watch = watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+               if (System.currentTimeMillis() - lastProgressMillis > timeout) {
+                  WebLogger.getLogger(appName).w(TAG, "query result stream stalled; abandoning it");
+                  abandon();
+               }
+            }
+         }, timeout, timeout, TimeUnit.MILLISECONDS);
+      }
+
+      @Override
+      public void run() {
+         synchronized (this) {
+            if (finished) {
+               return;
+            }
+            thread = Thread.currentThread();
+         }
+         try {
+            // an interrupt of a write to a FileChannel closes the channel (and the pipe)
+            FileChannel channel = out.getChannel();
+            QueryResultStream.writeCursor(c, canCreateRow,
+                new ProgressOutputStream(Channels.newOutputStream(channel)));
+         } catch (IOException e) {
+            // the client closed its end of the pipe or stopped reading
+            WebLogger.getLogger(appName).w(TAG, "query result stream abandoned: " + e.toString());
+         } finally {
+            finish();
+            // discard an interrupt from abandon() that arrived after the write completed
+            Thread.interrupted();
+         }
+      }
+
+      /**
+       * Stop writing the result (or never start) and close the cursor and the pipe.
+       */
+      synchronized void abandon() {
+         if (finished) {
+            return;
+         }
+         if (thread != null) {
+            // the writer closes everything on its way out
+            thread.interrupt();
+            return;
+         }
+         writers.remove(this);
+         finish();
+      }
+
+      private synchronized void finish() {
+         if (finished) {
+            return;
+         }
+         finished = true;
+         thread = null;
+         if (watch != null) {
+            watch.cancel(false);
+            watch = null;
+         }
+         if (!c.isClosed()) {
+            c.close();
+         }
+         try {
+            out.close();
+         } catch (IOException e) {
+            // ignore
+         }
+      }
+
+      private final class ProgressOutputStream extends FilterOutputStream {
+
+         ProgressOutputStream(OutputStream out) {
+            super(out);
+         }
+
+         @Override
+         public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            lastProgressMillis = System.currentTimeMillis();
+         }
+      }
+   }
+}
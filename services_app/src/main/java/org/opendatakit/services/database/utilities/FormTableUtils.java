@@ -15,12 +15,15 @@ import org.sqlite.database.SQLException;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Update the form definitions table based upon the content of the sdcard.
@@ -35,6 +38,11 @@ import java.util.Set;
 public class FormTableUtils {
   private static final String TAG = "FormTableUtils";
 
+  /**
+   * Most formDef.json files parsed at the same time by updateFormDir
+   */
+  private static final int MAX_SCAN_THREADS = 4;
+
   private static void patchUpValues(String appName, HashMap<String, Object>
       values) {
 
@@ -60,8 +68,9 @@ public class FormTableUtils {
           + " does not exist in: " + formFolder);
     }
 
-    // parse the formDef.json
-    FormInfo fiFound = new FormInfo(appName, formDefFile);
+    // parse the formDef.json, unless a file with this content has been parsed already
+    String md5 = ODKFileUtils.getMd5Hash(appName, formDefFile);
+    FormInfo fiFound = FormInfo.getFormInfo(appName, formDefFile, md5);
 
     values.put(FormsColumns.SETTINGS, fiFound.settings);
     values.put(FormsColumns.FORM_VERSION, fiFound.formVersion);
@@ -69,7 +78,6 @@ public class FormTableUtils {
     values.put(FormsColumns.DEFAULT_FORM_LOCALE, fiFound.defaultLocale);
     values.put(FormsColumns.INSTANCE_NAME, fiFound.instanceName);
 
-    String md5 = ODKFileUtils.getMd5Hash(appName, formDefFile);
     values.put(FormsColumns.JSON_MD5_HASH, md5);
     values.put(FormsColumns.DATE, fiFound.lastModificationDate);
     values.put(FormsColumns.FILE_LENGTH, fiFound.fileLength);
@@ -77,7 +85,12 @@ public class FormTableUtils {
     return;
   }
 
-  private static synchronized void insert(String appName, String tableId, String formId) {
+  /**
+   * Scan the formDef.json of the form.
+   *
+   * @return the values of its forms table row
+   */
+  private static HashMap<String, Object> scan(String appName, String tableId, String formId) {
 
     HashMap<String, Object> values = new HashMap<String, Object>();
     values.put(FormsColumns.TABLE_ID, tableId);
@@ -85,6 +98,11 @@ public class FormTableUtils {
 
     // force a scan from disk
     patchUpValues(appName, values);
+    return values;
+  }
+
+  private static synchronized void insert(String appName, String tableId, String formId,
+      HashMap<String, Object> values) {
 
     // first try to see if a record with this filename already exists...
     String[] projection = { FormsColumns.TABLE_ID, FormsColumns.FORM_ID };
@@ -191,14 +209,8 @@ public class FormTableUtils {
     }
   }
 
-  private static synchronized void update(String appName, String tableId, String formId) {
-
-    HashMap<String, Object> values = new HashMap<String, Object>();
-    values.put(FormsColumns.TABLE_ID, tableId);
-    values.put(FormsColumns.FORM_ID, formId);
-
-    // force a scan from disk
-    patchUpValues(appName, values);
+  private static synchronized void update(String appName, String tableId, String formId,
+      HashMap<String, Object> values) {
 
     String[] projection = { FormsColumns.TABLE_ID, FormsColumns.FORM_ID };
     String selection = FormsColumns.TABLE_ID + "=? AND " + FormsColumns.FORM_ID + "=?";
@@ -271,6 +283,114 @@ public class FormTableUtils {
     }
   }
 
+  /**
+   * Record the modification date and length of formDef.json files whose
+   * content is unchanged (their md5 hash matched), so that they are not
+   * hashed again on the next scan.
+   *
+   * @param appName
+   * @param tableId
+   * @param formDefFiles formId to its formDef.json file
+   */
+  private static synchronized void updateFileStats(String appName, String tableId,
+      Map<String, File> formDefFiles) {
+
+    String selection = FormsColumns.TABLE_ID + "=? AND " + FormsColumns.FORM_ID + "=?";
+
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
+    OdkConnectionInterface db = null;
+    try {
+      // +1 referenceCount if db is returned (non-null)
+      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
+      db.beginTransactionNonExclusive();
+      for (Map.Entry<String, File> entry : formDefFiles.entrySet()) {
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        values.put(FormsColumns.DATE, entry.getValue().lastModified());
+        values.put(FormsColumns.FILE_LENGTH, entry.getValue().length());
+        db.update(DatabaseConstants.FORMS_TABLE_NAME, values, selection,
+            new String[] { tableId, entry.getKey() });
+      }
+      db.setTransactionSuccessful();
+    } catch (SQLException e) {
+      throw e;
+    } catch (Exception e) {
+      String msg = e.getMessage();
+      if ( msg == null ) {
+        msg = e.toString();
+      }
+      throw new SQLException("FAILED Update of file dates in " + tableId + " -- " + msg, e);
+    } finally {
+      if (db != null) {
+        try {
+          if (db.inTransaction()) {
+            db.endTransaction();
+          }
+        } finally {
+          try {
+            db.releaseReference();
+          } finally {
+            // this closes the connection
+            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
+                appName, dbHandleName);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Scan the formDef.json files of the given forms, several at a time.
+   *
+   * @param appName
+   * @param tableId
+   * @param formIds
+   * @return formId to the values of its forms table row
+   */
+  private static Map<String, HashMap<String, Object>> scanAll(final String appName,
+      final String tableId, Set<String> formIds) {
+
+    Map<String, HashMap<String, Object>> scanned = new HashMap<String, HashMap<String, Object>>();
+    if (formIds.size() <= 1) {
+      for (String formId : formIds) {
+        scanned.put(formId, scan(appName, tableId, formId));
+      }
+      return scanned;
+    }
+
+    int threads = Math.max(1, Math.min(MAX_SCAN_THREADS,
+        Math.min(formIds.size(), Runtime.getRuntime().availableProcessors())));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      Map<String, Future<HashMap<String, Object>>> futures =
+          new HashMap<String, Future<HashMap<String, Object>>>();
+      for (final String formId : formIds) {
+        futures.put(formId, executor.submit(new Callable<HashMap<String, Object>>() {
+          @Override
+          public HashMap<String, Object> call() throws Exception {
+            return scan(appName, tableId, formId);
+          }
+        }));
+      }
+      for (Map.Entry<String, Future<HashMap<String, Object>>> entry : futures.entrySet()) {
+        try {
+          scanned.put(entry.getKey(), entry.getValue().get());
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw new IllegalStateException("Unable to scan form " + entry.getKey(), cause);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while scanning forms of " + tableId);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return scanned;
+  }
+
   /**
    * This throws an exception on nearly all failures. I.e., the return code will
    * always be true.
@@ -288,7 +408,8 @@ public class FormTableUtils {
     // /////////////////////////////////////////
     // /////////////////////////////////////////
     // collect list of all forms on the sdcard under this tableId...
-    List<File> formDirs = new ArrayList<>();
+    // formId (directory name) to its directory
+    Map<String, File> formDirs = new HashMap<String, File>();
     {
       File formDir = new File(ODKFileUtils.getFormsFolder(appName, tableIdFilter));
       File[] formIdDirs = formDir.listFiles(new FileFilter() {
@@ -296,12 +417,15 @@ public class FormTableUtils {
         @Override
         public boolean accept(File pathname) {
           File formDef = new File(pathname, ODKFileUtils.FORMDEF_JSON_FILENAME);
-          return pathname.isDirectory() && formDef.exists() && formDef.isFile();
+          // isFile() is false if it does not exist
+          return pathname.isDirectory() && formDef.isFile();
         }
       });
 
       if (formIdDirs != null) {
-        formDirs.addAll(Arrays.asList(formIdDirs));
+        for (File f : formIdDirs) {
+          formDirs.put(f.getName(), f);
+        }
       }
     }
 
@@ -310,14 +434,18 @@ public class FormTableUtils {
     Set<String> badFormIds = new HashSet<>();
     Set<String> changedFormIds = new HashSet<>();
     Set<String> duplicateFormIds = new HashSet<>();
+    // unchanged content, but a different modification date or length than recorded
+    Map<String, File> touchedFormDefs = new HashMap<String, File>();
     // 1. If a form is in the database but does not exist in the formDirs list (on the sdcard)
     //    then add it to the badFormIds set -- this set needs to be deleted.
     // 2. If the form exists, check if it has already been processed, as evidenced by being in the
     //    changedFormIds, processedFormIds, or duplicateFormIds lists. If it has, remove it
     //    from these and add it to the duplicateFormIds list.
-    // 2. If the form exists in both, if the md5 hash of the form is unchanged, then remove
-    //    it from the formDirs list, since the matching hash indicates that the file is unchanged
-    //    and the information in the forms table is valid. Add to processedFormIds.
+    // 2. If the form exists in both, and the modification date and length of its formDef.json
+    //    match those recorded in the forms table, or the md5 hash of the form is unchanged,
+    //    then remove it from the formDirs list, since the file is unchanged and the information
+    //    in the forms table is valid. Add to processedFormIds. The md5 hash is only computed
+    //    if the date or length differ; if it matches, the new date and length are recorded.
     // 3. If the form exists in both, but the md5 hash has changed, add it to the changedFormIds
     //    and processedFormIds sets and remove it from the formDirs list. These forms need to be
     //    updated.
@@ -335,8 +463,11 @@ public class FormTableUtils {
         String selection = FormsColumns.TABLE_ID + "=?";
         String[] selectionArgs = { tableIdFilter };
 
-        Cursor c = db.query(DatabaseConstants.FORMS_TABLE_NAME, null, selection, selectionArgs,
-            null, null, null, null);
+        String[] projection = { FormsColumns.FORM_ID, FormsColumns.JSON_MD5_HASH,
+            FormsColumns.DATE, FormsColumns.FILE_LENGTH };
+
+        Cursor c = db.query(DatabaseConstants.FORMS_TABLE_NAME, projection, selection,
+            selectionArgs, null, null, null, null);
 
         if (c == null) {
           WebLogger.getLogger(appName)
@@ -344,13 +475,17 @@ public class FormTableUtils {
         } else {
           try {
             if (c.moveToFirst()) {
+              int idxFormId = c.getColumnIndex(FormsColumns.FORM_ID);
+              int idxJsonMd5Hash = c.getColumnIndex(FormsColumns.JSON_MD5_HASH);
+              int idxDate = c.getColumnIndex(FormsColumns.DATE);
+              int idxFileLength = c.getColumnIndex(FormsColumns.FILE_LENGTH);
               do {
-                String formId = CursorUtils.getIndexAsString(c, c.getColumnIndex(FormsColumns.FORM_ID));
+                String formId = CursorUtils.getIndexAsString(c, idxFormId);
 
                 String formDir = ODKFileUtils.getFormFolder(appName, tableIdFilter, formId);
                 File f = new File(formDir);
                 File formDefJson = new File(f, ODKFileUtils.FORMDEF_JSON_FILENAME);
-                if (!f.exists() || !f.isDirectory() || !formDefJson.exists() || !formDefJson.isFile()) {
+                if (!formDefJson.isFile() || !f.isDirectory()) {
                   // the form definition does not exist
                   badFormIds.add(formId);
                 } else if ( processedIds.contains(formId) ) {
@@ -359,17 +494,27 @@ public class FormTableUtils {
                   // remove it from the changedFormIds set and add it to the
                   // duplicateFormIds set.
                   changedFormIds.remove(formId);
+                  touchedFormDefs.remove(formId);
                   duplicateFormIds.add(formId);
                 } else {
                   // formdef.json exists. See if it is unchanged...
-                  String json_md5 = CursorUtils.getIndexAsString(c, c.getColumnIndex(FormsColumns.JSON_MD5_HASH));
-                  String fileMd5 = ODKFileUtils.getMd5Hash(appName, formDefJson);
-                  if (json_md5 == null || !json_md5.equals(fileMd5)) {
-                    // it HAS changed -- add it to the changed list
+                  String json_md5 = CursorUtils.getIndexAsString(c, idxJsonMd5Hash);
+                  Long date = CursorUtils.getIndexAsType(c, Long.class, idxDate);
+                  Long fileLength = CursorUtils.getIndexAsType(c, Long.class, idxFileLength);
+                  if (json_md5 == null) {
                     changedFormIds.add(formId);
+                  } else if (date == null || fileLength == null ||
+                      date != formDefJson.lastModified() || fileLength != formDefJson.length()) {
+                    String fileMd5 = ODKFileUtils.getMd5Hash(appName, formDefJson);
+                    if (!json_md5.equals(fileMd5)) {
+                      // it HAS changed -- add it to the changed list
+                      changedFormIds.add(formId);
+                    } else {
+                      touchedFormDefs.put(formId, formDefJson);
+                    }
                   }
                   // remove it from the formDirs list
-                  formDirs.remove(f);
+                  formDirs.remove(formId);
                   // and add it to the processed formId list.
                   processedIds.add(formId);
                 }
@@ -405,12 +550,20 @@ public class FormTableUtils {
     // 4. a list of formDirs who have formDef.json files that need to be scanned and added to the
     // form definitions table.
 
+    ////////////////////////////
+    // Parse the formDef.json files of everything that will be inserted or updated.
+    Set<String> toScan = new HashSet<String>();
+    toScan.addAll(duplicateFormIds);
+    toScan.addAll(changedFormIds);
+    toScan.addAll(formDirs.keySet());
+    Map<String, HashMap<String, Object>> scanned = scanAll(appName, tableIdFilter, toScan);
+
     ////////////////////////////
     // The duplicateFormIds should be deleted from the form definitions table.
     // They should then be processed to insert new records into the table.
     for (String formId : duplicateFormIds) {
       delete(appName, tableIdFilter, formId);
-      insert(appName, tableIdFilter, formId);
+      insert(appName, tableIdFilter, formId, scanned.get(formId));
     }
 
     //////////////////////////
@@ -424,16 +577,19 @@ public class FormTableUtils {
     //////////////////////////
     // Update the changed forms
     for ( String formId : changedFormIds ) {
-      update(appName, tableIdFilter, formId);
+      update(appName, tableIdFilter, formId, scanned.get(formId));
+    }
+
+    //////////////////////////
+    // Record the new dates of the unchanged forms
+    if (!touchedFormDefs.isEmpty()) {
+      updateFileStats(appName, tableIdFilter, touchedFormDefs);
     }
 
     ///////////////////////////
     // insert the forms that are new
-    for (int i = 0; i < formDirs.size(); ++i) {
-      File formDir = formDirs.get(i);
-
-      String formId = formDir.getName();
-      insert(appName, tableIdFilter, formId);
+    for (String formId : formDirs.keySet()) {
+      insert(appName, tableIdFilter, formId, scanned.get(formId));
     }
 
     log.i(TAG, "updateFormDir: " + appName + " tableId: " + tableIdFilter + " end");
@@ -17,6 +17,7 @@ package org.opendatakit.services.database.utilities;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.os.CancellationSignal;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonMappingException;
@@ -60,6 +61,7 @@ import org.opendatakit.utilities.LocalizationUtils;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.utilities.StaticStateManipulator;
 import org.opendatakit.utilities.StaticStateManipulator.IStaticFieldManipulator;
+import org.sqlite.database.sqlite.SQLiteConnectionBase;
 import org.sqlite.database.sqlite.SQLiteException;
 
 import java.io.File;
@@ -598,8 +600,43 @@ public final class ODKDatabaseImplUtils {
    */
   public Cursor rawQuery(OdkConnectionInterface db, String sqlCommand, Object[] selectionArgs,
       QueryBounds sqlQueryBounds, AccessContext accessContext) {
+    return rawQuery(db, sqlCommand, selectionArgs, sqlQueryBounds, accessContext, null);
+  }
+
+  /**
+   * Perform a raw query with bind parameters that can be cancelled from another thread.
+   *
+   * @param db
+   * @param sqlCommand
+   * @param selectionArgs
+   * @param sqlQueryBounds offset and max number of rows to return (zero is infinite)
+   * @param accessContext  for managing what effective accesses to return
+   * @param cancellationSignal interrupts whichever statement is executing, or null
+   * @return
+   * @throws android.os.OperationCanceledException if the signal was cancelled
+   */
+  public Cursor rawQuery(OdkConnectionInterface db, String sqlCommand, Object[] selectionArgs,
+      QueryBounds sqlQueryBounds, AccessContext accessContext,
+      CancellationSignal cancellationSignal) {
+    return rawQuery(db, sqlCommand, selectionArgs, sqlQueryBounds, accessContext, null,
+        cancellationSignal);
+  }
 
-    Cursor c = db.rawQuery(sqlCommand + " LIMIT 1", selectionArgs);
+  /**
+   * Perform a raw query with bind parameters whose rows must stay in order.
+   * <p/>
+   * When the result set is filtered, the sqlCommand becomes a subquery, and SQLite does
+   * not carry the order of a subquery through to the query around it; the wrappedOrderBy
+   * is applied to that outer query.
+   *
+   * @param wrappedOrderBy the ORDER BY clause (excluding the ORDER BY itself) of the
+   *                       sqlCommand, with its columns qualified by the alias T, or null
+   */
+  private Cursor rawQuery(OdkConnectionInterface db, String sqlCommand, Object[] selectionArgs,
+      QueryBounds sqlQueryBounds, AccessContext accessContext, String wrappedOrderBy,
+      CancellationSignal cancellationSignal) {
+
+    Cursor c = db.rawQuery(sqlCommand + " LIMIT 1", selectionArgs, cancellationSignal);
     if (c.moveToFirst() ) {
       // see if we have the columns needed to apply row-level filtering
       final boolean hasDefaultAccess = c.getColumnIndex(DataTableColumns.DEFAULT_ACCESS) != -1;
@@ -617,7 +654,7 @@ public final class ODKDatabaseImplUtils {
 
         // no need to filter this resultset
         String sql = applyQueryBounds(sqlCommand, sqlQueryBounds);
-        c = db.rawQuery(sql, selectionArgs);
+        c = db.rawQuery(sql, selectionArgs, cancellationSignal);
         return c;
       }
 
@@ -673,9 +710,12 @@ public final class ODKDatabaseImplUtils {
           }
         }
       }
+      if ( wrappedOrderBy != null ) {
+        b.append(" ORDER BY ").append(wrappedOrderBy);
+      }
       String wrappedSql = b.toString();
       String limitAppliedSql = applyQueryBounds(wrappedSql, sqlQueryBounds);
-      c = db.rawQuery(limitAppliedSql, wrappedSqlArgs.toArray());
+      c = db.rawQuery(limitAppliedSql, wrappedSqlArgs.toArray(), cancellationSignal);
       return c;
     } else {
       // cursor is empty!
@@ -748,10 +788,24 @@ public final class ODKDatabaseImplUtils {
    */
   public BaseTable query(OdkConnectionInterface db, String tableId, String sqlCommand,
       Object[] sqlBindArgs, QueryBounds sqlQueryBounds, AccessContext accessContext) {
+    return query(db, tableId, sqlCommand, sqlBindArgs, sqlQueryBounds, accessContext, null);
+  }
+
+  /**
+   * Same as {@link #query(OdkConnectionInterface, String, String, Object[], QueryBounds,
+   * AccessContext)} but the query can be cancelled from another thread.
+   *
+   * @param cancellationSignal interrupts the executing query, or null
+   * @throws android.os.OperationCanceledException if the signal was cancelled
+   */
+  public BaseTable query(OdkConnectionInterface db, String tableId, String sqlCommand,
+      Object[] sqlBindArgs, QueryBounds sqlQueryBounds, AccessContext accessContext,
+      CancellationSignal cancellationSignal) {
 
     Cursor c = null;
     try {
-      c = rawQuery(db, sqlCommand, sqlBindArgs, sqlQueryBounds, accessContext);
+      c = rawQuery(db, sqlCommand, sqlBindArgs, sqlQueryBounds, accessContext,
+          cancellationSignal);
       BaseTable table = buildBaseTable(db, c, tableId, accessContext.canCreateRow);
       return table;
     } finally {
@@ -776,11 +830,181 @@ public final class ODKDatabaseImplUtils {
    */
   public BaseTable privilegedQuery(OdkConnectionInterface db, String tableId, String sqlCommand,
       Object[] sqlBindArgs, QueryBounds sqlQueryBounds, AccessContext accessContext) {
+    return privilegedQuery(db, tableId, sqlCommand, sqlBindArgs, sqlQueryBounds, accessContext,
+        null);
+  }
+
+  /**
+   * Same as {@link #privilegedQuery(OdkConnectionInterface, String, String, Object[],
+   * QueryBounds, AccessContext)} but the query can be cancelled from another thread.
+   *
+   * @param cancellationSignal interrupts the executing query, or null
+   * @throws android.os.OperationCanceledException if the signal was cancelled
+   */
+  public BaseTable privilegedQuery(OdkConnectionInterface db, String tableId, String sqlCommand,
+      Object[] sqlBindArgs, QueryBounds sqlQueryBounds, AccessContext accessContext,
+      CancellationSignal cancellationSignal) {
 
     if (!accessContext.isPrivilegedUser) {
       accessContext = accessContext.cloneAsPrivilegedUser();
     }
-    return query(db, tableId, sqlCommand, sqlBindArgs, sqlQueryBounds, accessContext);
+    return query(db, tableId, sqlCommand, sqlBindArgs, sqlQueryBounds, accessContext,
+        cancellationSignal);
+  }
+
+  /**
+   * Get the page of rows of the table that follows the given row, in the given order.
+   * <p/>
+   * Unlike a query with an offset, which must step over every row of the preceding
+   * pages, this seeks directly to the first row after lastKey, so every page costs the
+   * same no matter how deep into the table it is. The rows are ordered by the
+   * orderByElementKeys and then by _id and _savepoint_timestamp, which makes the order
+   * total; lastKey holds the values of these columns from the last row of the previous
+   * page (the cursor token).
+   * <p/>
+   * The result set is filtered as for {@link #query(OdkConnectionInterface, String,
+   * String, Object[], QueryBounds, AccessContext)}.
+   *
+   * @param db
+   * @param tableId
+   * @param whereClause        filter on the rows of the table, or null
+   * @param sqlBindArgs        the selection parameters of the whereClause
+   * @param orderByElementKeys the columns to order by, or null to order only by _id
+   * @param orderByDirections  "ASC" or "DESC" for each of the orderByElementKeys, or null
+   *                           for all ascending
+   * @param lastKey            the values of the orderByElementKeys, _id and
+   *                           _savepoint_timestamp of the last row of the previous page,
+   *                           or null to get the first page
+   * @param pageSize           the maximum number of rows to return
+   * @param accessContext      for managing what effective accesses to return
+   * @param cancellationSignal interrupts the executing query, or null
+   * @return
+   * @throws android.os.OperationCanceledException if the signal was cancelled
+   */
+  public BaseTable queryAfter(OdkConnectionInterface db, String tableId, String whereClause,
+      Object[] sqlBindArgs, String[] orderByElementKeys, String[] orderByDirections,
+      Object[] lastKey, int pageSize, AccessContext accessContext,
+      CancellationSignal cancellationSignal) {
+
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("pageSize must be positive");
+    }
+    if (orderByElementKeys == null) {
+      orderByElementKeys = new String[0];
+    }
+    if (orderByDirections != null && orderByDirections.length != orderByElementKeys.length) {
+      throw new IllegalArgumentException(
+          "orderByDirections must be the same length as orderByElementKeys");
+    }
+
+    // the keys and their directions, with _id and _savepoint_timestamp appended
+    int nKeys = orderByElementKeys.length + 2;
+    String[] keys = new String[nKeys];
+    boolean[] descending = new boolean[nKeys];
+    OrderedColumns orderedColumns = getUserDefinedColumns(db, tableId);
+    for (int i = 0; i < orderByElementKeys.length; ++i) {
+      String elementKey = orderByElementKeys[i];
+      // these are spliced into the sql; only accept the columns of this table
+      boolean isColumn = ADMIN_COLUMNS.contains(elementKey);
+      if (!isColumn) {
+        for (ColumnDefinition cd : orderedColumns.getColumnDefinitions()) {
+          if (cd.isUnitOfRetention() && cd.getElementKey().equals(elementKey)) {
+            isColumn = true;
+            break;
+          }
+        }
+      }
+      if (!isColumn) {
+        throw new IllegalArgumentException(
+            "orderByElementKey " + elementKey + " is not a column of " + tableId);
+      }
+      keys[i] = elementKey;
+      String direction = (orderByDirections == null) ? null : orderByDirections[i];
+      if (direction == null || "ASC".equalsIgnoreCase(direction)) {
+        descending[i] = false;
+      } else if ("DESC".equalsIgnoreCase(direction)) {
+        descending[i] = true;
+      } else {
+        throw new IllegalArgumentException("orderByDirection must be ASC or DESC: " + direction);
+      }
+    }
+    keys[nKeys - 2] = DataTableColumns.ID;
+    keys[nKeys - 1] = DataTableColumns.SAVEPOINT_TIMESTAMP;
+
+    if (lastKey != null && lastKey.length != nKeys) {
+      throw new IllegalArgumentException("lastKey must have a value for each of the "
+          + "orderByElementKeys followed by the _id and _savepoint_timestamp");
+    }
+
+    StringBuilder b = new StringBuilder();
+    ArrayList<Object> bindArgs = new ArrayList<Object>();
+    b.append(K_SELECT_FROM).append(tableId);
+    boolean hasWhere = (whereClause != null && whereClause.trim().length() != 0);
+    if (hasWhere) {
+      b.append(K_WHERE).append("(").append(whereClause).append(")");
+      if (sqlBindArgs != null) {
+        Collections.addAll(bindArgs, sqlBindArgs);
+      }
+    }
+    if (lastKey != null) {
+      b.append(hasWhere ? S_AND : K_WHERE);
+      if (!descending[0] && lastKey[0] != null) {
+        // redundant, but lets an index on the leading key be used to seek
+        b.append(keys[0]).append(" >= ?").append(S_AND);
+        bindArgs.add(lastKey[0]);
+      }
+      // (k1 after v1) OR (k1 IS v1 AND k2 after v2) OR ...
+      // NULLs sort before all other values
+      b.append("(");
+      for (int i = 0; i < nKeys; ++i) {
+        if (i != 0) {
+          b.append(" OR ");
+        }
+        b.append("(");
+        for (int j = 0; j < i; ++j) {
+          b.append(keys[j]).append(" IS ?").append(S_AND);
+          bindArgs.add(lastKey[j]);
+        }
+        if (lastKey[i] == null) {
+          b.append(descending[i] ? "0" : keys[i] + S_IS_NOT_NULL);
+        } else if (descending[i]) {
+          b.append("(").append(keys[i]).append(" < ? OR ").append(keys[i]).append(S_IS_NULL)
+              .append(")");
+          bindArgs.add(lastKey[i]);
+        } else {
+          b.append(keys[i]).append(" > ?");
+          bindArgs.add(lastKey[i]);
+        }
+        b.append(")");
+      }
+      b.append(")");
+    }
+    // the page is only correct if its rows arrive in token order, so the order is
+    // repeated on the query that applies the row-level filtering
+    StringBuilder orderBy = new StringBuilder();
+    StringBuilder wrappedOrderBy = new StringBuilder();
+    for (int i = 0; i < nKeys; ++i) {
+      if (i != 0) {
+        orderBy.append(", ");
+        wrappedOrderBy.append(", ");
+      }
+      String direction = descending[i] ? " DESC" : " ASC";
+      orderBy.append(keys[i]).append(direction);
+      wrappedOrderBy.append("T.").append(keys[i]).append(direction);
+    }
+    b.append(" ORDER BY ").append(orderBy);
+
+    Cursor c = null;
+    try {
+      c = rawQuery(db, b.toString(), bindArgs.toArray(), new QueryBounds(pageSize, 0),
+          accessContext, wrappedOrderBy.toString(), cancellationSignal);
+      BaseTable table = buildBaseTable(db, c, tableId, accessContext.canCreateRow);
+      return table;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
   }
 
   /**
@@ -1947,9 +2171,7 @@ public final class ODKDatabaseImplUtils {
             K_KVS_TABLE_ID_EQUALS_PARAM, new Object[] { tableId });
       }
 
-      for (KeyValueStoreEntry e : metadata) {
-        replaceTableMetadata(db, e);
-      }
+      replaceTableMetadataEntries(db, metadata);
 
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
@@ -1961,6 +2183,55 @@ public final class ODKDatabaseImplUtils {
     }
   }
 
+  private static final String[] KVS_INSERT_COLUMNS = {
+      KeyValueStoreColumns.TABLE_ID, KeyValueStoreColumns.PARTITION, KeyValueStoreColumns.ASPECT,
+      KeyValueStoreColumns.KEY, KeyValueStoreColumns.VALUE_TYPE, KeyValueStoreColumns.VALUE };
+
+  /**
+   * Insert, update or delete a list of table-level metadata KVS entries, in order.
+   * Consecutive insert/updates share a single prepared statement, and each affected
+   * table's revision ID is updated once rather than once per entry.
+   * Must be called within a transaction.
+   *
+   * @param db
+   * @param metadata entries with a null or empty value are deleted.
+   */
+  private void replaceTableMetadataEntries(OdkConnectionInterface db,
+      List<KeyValueStoreEntry> metadata) {
+    ArrayList<Object[]> rows = new ArrayList<Object[]>(metadata.size());
+    ArrayList<String> tableIds = new ArrayList<String>();
+    for (KeyValueStoreEntry e : metadata) {
+      validateKVSEntry(db.getAppName(), e.tableId, e);
+      if (!tableIds.contains(e.tableId)) {
+        tableIds.add(e.tableId);
+      }
+      if (e.value == null || e.value.trim().length() == 0) {
+        // preserve ordering with respect to the pending insert/updates
+        if (!rows.isEmpty()) {
+          db.insertBatchWithOnConflict(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME,
+              KVS_INSERT_COLUMNS, rows, SQLiteConnectionBase.CONFLICT_REPLACE);
+          rows.clear();
+        }
+        deleteTableMetadata(db, e.tableId, e.partition, e.aspect, e.key);
+      } else {
+        rows.add(new Object[] { e.tableId, e.partition, e.aspect, e.key, e.type, e.value });
+      }
+    }
+    if (!rows.isEmpty()) {
+      db.insertBatchWithOnConflict(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME,
+          KVS_INSERT_COLUMNS, rows, SQLiteConnectionBase.CONFLICT_REPLACE);
+    }
+
+    // Update the table definition table with a new revision ID, essentially telling all caches
+    // of this table's metadata that they are dirty.
+    for (String tableId : tableIds) {
+      TreeMap<String, Object> metadataRev = new TreeMap<String, Object>();
+      metadataRev.put(TableDefinitionsColumns.REV_ID, UUID.randomUUID().toString());
+      db.update(DatabaseConstants.TABLE_DEFS_TABLE_NAME, metadataRev,
+          K_TABLE_DEFS_TABLE_ID_EQUALS_PARAM, new Object[] { tableId });
+    }
+  }
+
   public void replaceTableMetadataSubList(OdkConnectionInterface db, String tableId,
       String partition, String aspect, List<KeyValueStoreEntry> metadata) {
 
@@ -1991,9 +2262,7 @@ public final class ODKDatabaseImplUtils {
 
       db.delete(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME, whereClause, whereArgs);
 
-      for (KeyValueStoreEntry e : metadata) {
-        replaceTableMetadata(db, e);
-      }
+      replaceTableMetadataEntries(db, metadata);
 
       if (!dbWithinTransaction) {
         db.setTransactionSuccessful();
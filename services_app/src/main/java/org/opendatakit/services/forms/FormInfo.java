@@ -16,7 +16,9 @@ package org.opendatakit.services.forms;
 
 import android.database.Cursor;
 import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import org.opendatakit.database.utilities.CursorUtils;
 import org.opendatakit.logging.WebLogger;
@@ -25,13 +27,18 @@ import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * Class to hold information about a form. This holds the data fields that are
  * available in the Forms database as well as, if requested, the parsed formDef
  * object (via Jackson).
+ * <p>
+ * When constructed from the formDef.json file, only the settings section of
+ * the file is parsed and the formDef object is not retained.
  *
  * @author mitchellsundt@gmail.com
  *
@@ -58,6 +65,7 @@ public class FormInfo {
   // formDef.json file...
   public final File formDefFile;
   // the entire formDef, parsed using Jackson...
+  // (only when constructed from a Cursor with parseFormDef true)
   public final HashMap<String, Object> formDef;
 
   static final String FORMDEF_VALUE = "value";
@@ -173,171 +181,265 @@ public class FormInfo {
   }
 
   /**
-   *
-   * @param appName
-   * @param formDefFile
+   * Most parsed formDef settings retained by {@link #getFormInfo(String, File, String)}
    */
-  @SuppressWarnings("unchecked")
-  public FormInfo(String appName, File formDefFile) {
+  private static final int MAX_CACHED_FORM_DEF_SETTINGS = 64;
 
-    // save the appName
-    this.appName = appName;
-    // save the File of the formDef...
-    this.formDefFile = formDefFile;
+  /**
+   * md5 hash of a formDef.json to the settings parsed from it.
+   * Least recently used entries are evicted.
+   */
+  private static final Map<String, FormDefSettings> formDefSettingsCache =
+      Collections.synchronizedMap(new LinkedHashMap<String, FormDefSettings>(
+          MAX_CACHED_FORM_DEF_SETTINGS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FormDefSettings> eldest) {
+          return size() > MAX_CACHED_FORM_DEF_SETTINGS;
+        }
+      });
 
-    /**
-     * IMPORTANT: called for its side-effect
-     *  -- throws IllegalArgumentException if file is not under appName
-     */ 
-    ODKFileUtils.getRelativeFormPath(appName, formDefFile);
-    
-    // OK -- parse the formDef file.
-    HashMap<String, Object> om = null;
-    try {
-      om = ODKFileUtils.mapper.readValue(formDefFile, HashMap.class);
-    } catch (JsonParseException e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } catch (JsonMappingException e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } catch (IOException e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    }
-    formDef = om;
-    if (formDef == null) {
-      throw new IllegalArgumentException("File is not a json file! "
-          + formDefFile.getAbsolutePath());
-    }
+  /**
+   * The values that are extracted from the settings section of a formDef.json.
+   * These depend only upon the content of the file.
+   */
+  private static final class FormDefSettings {
+    final String settings;
+    final String formId;
+    final String formVersion;
+    final String tableId;
+    final String formTitle;
+    final String defaultLocale;
+    final String instanceName;
+
+    @SuppressWarnings("unchecked")
+    FormDefSettings(String appName, File formDefFile, Map<String, Object> settings) {
 
-    // /////////////////////////////////////////////////
-    // TODO: DEPENDENCY ALERT!!!
-    // TODO: DEPENDENCY ALERT!!!
-    // TODO: DEPENDENCY ALERT!!!
-    // TODO: DEPENDENCY ALERT!!!
-    // THIS ASSUMES A CERTAIN STRUCTURE FOR THE formDef.json
-    // file...
-    Map<String, Object> specification = (Map<String, Object>) formDef
-            .get(FORMDEF_SPECIFICATION_SECTION);
-    if (specification == null) {
-        throw new IllegalArgumentException("File is not a formdef json file! No specification element."
-            + formDefFile.getAbsolutePath());
+      try {
+        this.settings = ODKFileUtils.mapper.writeValueAsString(settings);
+      } catch (JsonProcessingException ex) {
+        WebLogger.getLogger(appName).printStackTrace(ex);
+        throw new IllegalArgumentException("Settings could not be re-serialized!");
       }
 
-    Map<String, Object> settings = (Map<String, Object>) specification
-        .get(FORMDEF_SETTINGS_SUBSECTION);
-    if (settings == null) {
-      throw new IllegalArgumentException("File is not a formdef json file! No settings section inside specification element."
-          + formDefFile.getAbsolutePath());
-    }
-    
-    try {
-      this.settings = ODKFileUtils.mapper.writeValueAsString(settings);
-    } catch (JsonProcessingException ex) {
-      WebLogger.getLogger(appName).printStackTrace(ex);
-      throw new IllegalArgumentException("Settings could not be re-serialized!");
-    }
-    
-    Map<String, Object> setting = null;
+      Map<String, Object> setting = null;
 
-    setting = (Map<String, Object>) settings.get(FORMDEF_FORM_ID);
-    if (setting != null) {
-      Object o = setting.get(FORMDEF_VALUE);
-      if (o == null || !(o instanceof String)) {
-        throw new IllegalArgumentException(
-            "formId is not specified or invalid in the formdef json file! "
-                + formDefFile.getAbsolutePath());
+      setting = (Map<String, Object>) settings.get(FORMDEF_FORM_ID);
+      if (setting != null) {
+        Object o = setting.get(FORMDEF_VALUE);
+        if (o == null || !(o instanceof String)) {
+          throw new IllegalArgumentException(
+              "formId is not specified or invalid in the formdef json file! "
+                  + formDefFile.getAbsolutePath());
+        }
+        formId = (String) o;
+      } else {
+        throw new IllegalArgumentException("formId is not specified in the formdef json file! "
+            + formDefFile.getAbsolutePath());
       }
-      formId = (String) o;
-    } else {
-      throw new IllegalArgumentException("formId is not specified in the formdef json file! "
-          + formDefFile.getAbsolutePath());
-    }
 
-    // formDef.json should always have a _default_locale entry.
-    setting = (Map<String, Object>) settings.get(FORMDEF_DEFAULT_LOCALE);
-    if (setting != null) {
-      Object o = setting.get(FORMDEF_VALUE);
-      if (o instanceof String) {
-        defaultLocale = (String) o;
+      // formDef.json should always have a _default_locale entry.
+      setting = (Map<String, Object>) settings.get(FORMDEF_DEFAULT_LOCALE);
+      if (setting != null) {
+        Object o = setting.get(FORMDEF_VALUE);
+        if (o instanceof String) {
+          defaultLocale = (String) o;
+        } else {
+          throw new IllegalArgumentException(FORMDEF_DEFAULT_LOCALE + " is invalid in the formdef json file! "
+              + formDefFile.getAbsolutePath());
+        }
       } else {
         throw new IllegalArgumentException(FORMDEF_DEFAULT_LOCALE + " is invalid in the formdef json file! "
             + formDefFile.getAbsolutePath());
       }
-    } else {
-      throw new IllegalArgumentException(FORMDEF_DEFAULT_LOCALE + " is invalid in the formdef json file! "
-          + formDefFile.getAbsolutePath());
-    }
-
 
-    setting = (Map<String, Object>) settings.get(FORMDEF_SURVEY_SETTINGS);
-    if ( setting != null) {
-      setting =(Map<String, Object>) setting.get(FORMDEF_DISPLAY_ELEMENT);
-      if ( setting != null && setting.containsKey(FORMDEF_TITLE_ELEMENT) ) {
-        Object o = setting.get(FORMDEF_TITLE_ELEMENT);
-        if ( o != null ) {
-          try {
-            formTitle = ODKFileUtils.mapper.writeValueAsString(o);
-          } catch (JsonProcessingException e) {
-            WebLogger.getLogger(appName).printStackTrace(e);
-            throw new IllegalArgumentException("formTitle is invalid in the formdef json file! "
-                + formDefFile.getAbsolutePath());
+      setting = (Map<String, Object>) settings.get(FORMDEF_SURVEY_SETTINGS);
+      if ( setting != null) {
+        setting =(Map<String, Object>) setting.get(FORMDEF_DISPLAY_ELEMENT);
+        if ( setting != null && setting.containsKey(FORMDEF_TITLE_ELEMENT) ) {
+          Object o = setting.get(FORMDEF_TITLE_ELEMENT);
+          if ( o != null ) {
+            try {
+              formTitle = ODKFileUtils.mapper.writeValueAsString(o);
+            } catch (JsonProcessingException e) {
+              WebLogger.getLogger(appName).printStackTrace(e);
+              throw new IllegalArgumentException("formTitle is invalid in the formdef json file! "
+                  + formDefFile.getAbsolutePath());
+            }
+          } else {
+            throw new IllegalArgumentException("display.title (form display name) is "
+                + "null for row 'survey' in the settings of formdef json file! "
+                  + formDefFile.getAbsolutePath());
           }
         } else {
-          throw new IllegalArgumentException("display.title (form display name) is "
-              + "null for row 'survey' in the settings of formdef json file! "
-                + formDefFile.getAbsolutePath());
+          throw new IllegalArgumentException("survey row's display.title (form display name) is not "
+              + "found on the settings sheet of formdef json file! "
+              + formDefFile.getAbsolutePath());
         }
       } else {
-        throw new IllegalArgumentException("survey row's display.title (form display name) is not "
-            + "found on the settings sheet of formdef json file! "
-            + formDefFile.getAbsolutePath());
+          throw new IllegalArgumentException("row for 'survey' is missing in "
+              + "the settings sheet of formdef json file! "
+                  + formDefFile.getAbsolutePath());
       }
-    } else {
-        throw new IllegalArgumentException("row for 'survey' is missing in "
-            + "the settings sheet of formdef json file! "
-                + formDefFile.getAbsolutePath());
+
+      instanceName = getSettingValue(settings, FORMDEF_INSTANCE_NAME);
+      formVersion = getSettingValue(settings, FORMDEF_FORM_VERSION);
+
+      String value = getSettingValue(settings, FORMDEF_TABLE_ID);
+      tableId = (value == null) ? formId : value;
     }
 
-    setting = (Map<String, Object>) settings.get(FORMDEF_INSTANCE_NAME);
-    if (setting != null) {
+    @SuppressWarnings("unchecked")
+    private static String getSettingValue(Map<String, Object> settings, String name) {
+      Map<String, Object> setting = (Map<String, Object>) settings.get(name);
+      if (setting == null) {
+        return null;
+      }
       Object o = setting.get(FORMDEF_VALUE);
       if (o == null) {
-        instanceName = null;
+        return null;
       } else if (o instanceof String) {
-        instanceName = (String) o;
+        return (String) o;
       } else {
-        instanceName = o.toString();
+        return o.toString();
       }
-    } else {
-      instanceName = null;
     }
+  }
 
-    setting = (Map<String, Object>) settings.get(FORMDEF_FORM_VERSION);
-    if (setting != null) {
-      Object o = setting.get(FORMDEF_VALUE);
-      if (o == null) {
-        formVersion = null;
-      } else if (o instanceof String) {
-        formVersion = (String) o;
-      } else {
-        formVersion = o.toString();
+  /**
+   * Read the specification.settings section of the formDef.json.
+   * <p>
+   * The file is read with a streaming parser and every other section is
+   * skipped rather than materialized, so only the (small) settings map is
+   * built. Parsing stops once the settings have been read.
+   *
+   * @param appName
+   * @param formDefFile
+   * @return the settings extracted from the formDef.json
+   */
+  @SuppressWarnings("unchecked")
+  private static FormDefSettings readFormDefSettings(String appName, File formDefFile) {
+
+    /**
+     * IMPORTANT: called for its side-effect
+     *  -- throws IllegalArgumentException if file is not under appName
+     */
+    ODKFileUtils.getRelativeFormPath(appName, formDefFile);
+
+    // /////////////////////////////////////////////////
+    // TODO: DEPENDENCY ALERT!!!
+    // TODO: DEPENDENCY ALERT!!!
+    // TODO: DEPENDENCY ALERT!!!
+    // TODO: DEPENDENCY ALERT!!!
+    // THIS ASSUMES A CERTAIN STRUCTURE FOR THE formDef.json
+    // file...
+    boolean foundSpecification = false;
+    Map<String, Object> settings = null;
+    JsonParser parser = null;
+    try {
+      parser = ODKFileUtils.mapper.getFactory().createParser(formDefFile);
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IllegalArgumentException("File is not a json file! "
+            + formDefFile.getAbsolutePath());
+      }
+      while (!foundSpecification && parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (FORMDEF_SPECIFICATION_SECTION.equals(name) && token == JsonToken.START_OBJECT) {
+          foundSpecification = true;
+          while (settings == null && parser.nextToken() == JsonToken.FIELD_NAME) {
+            String subsection = parser.getCurrentName();
+            token = parser.nextToken();
+            if (FORMDEF_SETTINGS_SUBSECTION.equals(subsection) && token == JsonToken.START_OBJECT) {
+              // preserve the ordering of the entries when re-serialized
+              settings = ODKFileUtils.mapper.readValue(parser, LinkedHashMap.class);
+            } else {
+              parser.skipChildren();
+            }
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } catch (JsonParseException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new IllegalArgumentException("File is not a json file! "
+          + formDefFile.getAbsolutePath());
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new IllegalArgumentException("File is not a json file! "
+          + formDefFile.getAbsolutePath());
+    } finally {
+      if (parser != null) {
+        try {
+          parser.close();
+        } catch (IOException e) {
+          // ignore
+        }
       }
-    } else {
-      formVersion = null;
     }
 
-    setting = (Map<String, Object>) settings.get(FORMDEF_TABLE_ID);
-    if (setting != null) {
-      Object o = setting.get(FORMDEF_VALUE);
-      if (o == null) {
-        tableId = formId;
-      } else if (o instanceof String) {
-        tableId = (String) o;
-      } else {
-        tableId = o.toString();
+    if (!foundSpecification) {
+      throw new IllegalArgumentException("File is not a formdef json file! No specification element."
+          + formDefFile.getAbsolutePath());
+    }
+    if (settings == null) {
+      throw new IllegalArgumentException("File is not a formdef json file! No settings section inside specification element."
+          + formDefFile.getAbsolutePath());
+    }
+    return new FormDefSettings(appName, formDefFile, settings);
+  }
+
+  /**
+   * Get the FormInfo for a formDef.json whose md5 hash is already known.
+   * The settings of a formDef.json that has been parsed before (under any
+   * appName or path) are reused rather than re-read from the file.
+   *
+   * @param appName
+   * @param formDefFile
+   * @param md5Hash the md5 hash of the formDef.json (ODKFileUtils.getMd5Hash)
+   * @return
+   */
+  public static FormInfo getFormInfo(String appName, File formDefFile, String md5Hash) {
+    FormDefSettings formDefSettings = (md5Hash == null) ? null :
+        formDefSettingsCache.get(md5Hash);
+    if (formDefSettings == null) {
+      formDefSettings = readFormDefSettings(appName, formDefFile);
+      if (md5Hash != null) {
+        formDefSettingsCache.put(md5Hash, formDefSettings);
       }
     } else {
-      tableId = formId;
+      // still verify that the file is under appName
+      ODKFileUtils.getRelativeFormPath(appName, formDefFile);
     }
+    return new FormInfo(appName, formDefFile, formDefSettings);
+  }
+
+  /**
+   * Read the settings of the formDef.json. The formDef itself is not retained
+   * (formDef is null).
+   *
+   * @param appName
+   * @param formDefFile
+   */
+  public FormInfo(String appName, File formDefFile) {
+    this(appName, formDefFile, readFormDefSettings(appName, formDefFile));
+  }
+
+  private FormInfo(String appName, File formDefFile, FormDefSettings formDefSettings) {
+
+    // save the appName
+    this.appName = appName;
+    // save the File of the formDef...
+    this.formDefFile = formDefFile;
+    this.formDef = null;
+
+    this.settings = formDefSettings.settings;
+    this.formId = formDefSettings.formId;
+    this.formVersion = formDefSettings.formVersion;
+    this.tableId = formDefSettings.tableId;
+    this.formTitle = formDefSettings.formTitle;
+    this.defaultLocale = formDefSettings.defaultLocale;
+    this.instanceName = formDefSettings.instanceName;
 
     lastModificationDate = formDefFile.lastModified();
     fileLength = formDefFile.length();
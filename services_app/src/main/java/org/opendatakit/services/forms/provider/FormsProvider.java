@@ -37,6 +37,7 @@ import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+import org.opendatakit.services.utilities.ProviderQueryBounds;
 import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.File;
@@ -50,6 +51,10 @@ import java.util.List;
  * <p>
  * The former uses the internal PK that Android generates for tables.
  * The later uses the user-specified tableId and formId.
+ * <p>
+ * A query may be bounded with the limit and offset query parameters of
+ * {@link ProviderQueryBounds}. Only the columns of the projection are read,
+ * so a form list that does not ask for the settings is never burdened by them.
  * /**
  * This class provides a read-only view onto the set of
  * forms within the ODK toolsuite.
@@ -73,7 +78,7 @@ public class FormsProvider extends ContentProvider {
     // IMPORTANT NOTE: the Application object is not yet created!
 
     // Used to ensure that the singleton has been initialized properly
-    AndroidConnectFactory.configure();
+    AndroidConnectFactory.configure(getContext());
 
     try {
       ODKFileUtils.verifyExternalStorageAvailability();
@@ -131,8 +136,7 @@ public class FormsProvider extends ContentProvider {
     }
 
     pf.appName = segments.get(0);
-    ODKFileUtils.verifyExternalStorageAvailability();
-    ODKFileUtils.assertDirectoryStructure(pf.appName);
+    // query() obtains a WebLogger, which does the storage checks; getType() does them itself.
 
     pf.tableId = null;
     pf.formId = null;
@@ -223,6 +227,9 @@ public class FormsProvider extends ContentProvider {
     List<String> segments = uri.getPathSegments();
 
     PatchedFilter pf = extractUriFeatures(uri, segments, null, null);
+    // never goes through WebLogger
+    ODKFileUtils.verifyExternalStorageAvailability();
+    ODKFileUtils.assertDirectoryStructure(pf.appName);
 
     if (pf.isNumericFormId || segments.size() == 3) {
       return FormsColumns.CONTENT_ITEM_TYPE;
@@ -241,6 +248,11 @@ public class FormsProvider extends ContentProvider {
     PatchedFilter pf = extractUriFeatures(uri, segments, where, whereArgs);
     WebLoggerIf log = WebLogger.getLogger(pf.appName);
 
+    // push any limit and offset down into the query; pages need a stable order
+    String limit = ProviderQueryBounds.getLimitClause(uri);
+    if (limit != null && TextUtils.isEmpty(sortOrder)) {
+      sortOrder = FormsColumns._ID;
+    }
 
     // Get the database and run the query
     DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
@@ -253,7 +265,7 @@ public class FormsProvider extends ContentProvider {
       updatePatchedFilter(db, pf);
 
       c = db.query(DatabaseConstants.FORMS_TABLE_NAME, projection, pf.whereId, pf.whereIdArgs,
-          null, null, sortOrder, null);
+          null, null, sortOrder, limit);
 
       if (c == null) {
         log.w(t, "Unable to query database");
@@ -16,7 +16,10 @@
 package org.opendatakit.services.instance.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.DataSetObserver;
 import android.database.SQLException;
@@ -41,6 +44,7 @@ import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 import org.opendatakit.services.utilities.ActiveUserAndLocale;
+import org.opendatakit.services.utilities.ChangeNotificationCoalescer;
 import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.File;
@@ -49,9 +53,11 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 public class InstanceProvider extends ContentProvider {
 
@@ -73,6 +79,12 @@ public class InstanceProvider extends ContentProvider {
 
   private static final HashMap<String, String> sInstancesProjectionMap;
 
+  /**
+   * The connection of the applyBatch() running on this thread, if any
+   */
+  private final ThreadLocal<OdkConnectionInterface> batchConnection =
+      new ThreadLocal<OdkConnectionInterface>();
+
   private class InvalidateMonitor extends DataSetObserver {
     String appName;
     DbHandle dbHandleName;
@@ -150,6 +162,15 @@ public class InstanceProvider extends ContentProvider {
     // _ID in UPLOADS_TABLE_NAME
     String instanceId = (segments.size() == 3 ? segments.get(2) : null);
 
+    OdkConnectionInterface batchDb = batchConnection.get();
+    if (batchDb != null) {
+      // an assert query of applyBatch(); it sees the batch's changes
+      internalUpdate(batchDb, uri, appName, tableId);
+      return internalQuery(batchDb, uri,
+          appName, tableId, instanceId,
+          projection, selection, selectionArgs, sortOrder);
+    }
+
     DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
 
     boolean success = false;
@@ -507,110 +528,21 @@ public class InstanceProvider extends ContentProvider {
     // _ID in UPLOADS_TABLE_NAME
     String instanceId = (segments.size() == 3 ? segments.get(2) : null);
 
+    OdkConnectionInterface batchDb = batchConnection.get();
+    if (batchDb != null) {
+      // part of applyBatch(), which commits and notifies
+      return deleteInstances(batchDb, uri, segments, appName, tableId, instanceId, where,
+          whereArgs);
+    }
+
     DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
     OdkConnectionInterface db = null;
-    List<IdStruct> idStructs = new ArrayList<IdStruct>();
+    int count = 0;
     try {
       // +1 referenceCount if db is returned (non-null)
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
       db.beginTransactionNonExclusive();
-
-      boolean success = false;
-      try {
-        success = ODKDatabaseImplUtils.get().hasTableId(db, tableId);
-      } catch (Exception e) {
-        WebLogger.getLogger(appName).printStackTrace(e);
-        throw new SQLException("Unknown URI (exception testing for tableId) " + uri);
-      }
-
-      if (success) {
-        // delete the entries matching the filter criteria
-        if (segments.size() == 2) {
-          where = "(" + where + ") AND (" + InstanceColumns.DATA_INSTANCE_ID + "=? )";
-          if (whereArgs != null) {
-            String[] args = new String[whereArgs.length + 1];
-            System.arraycopy(whereArgs, 0, args, 0, whereArgs.length);
-            args[whereArgs.length] = instanceId;
-            whereArgs = args;
-          } else {
-            whereArgs = new String[] { instanceId };
-          }
-        }
-
-        internalUpdate(db, uri, appName, tableId );
-
-        Cursor del = null;
-        try {
-          del = internalQuery(db,
-              uri,
-              appName, tableId, instanceId,
-              null, where, whereArgs, null);
-          del.moveToPosition(-1);
-          while (del.moveToNext()) {
-            String iId = CursorUtils.getIndexAsString(del,
-                del.getColumnIndex(InstanceColumns._ID));
-            String iIdDataTable = CursorUtils.getIndexAsString(del,
-                del.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
-            idStructs.add(new IdStruct(iId, iIdDataTable));
-            String path = ODKFileUtils.getInstanceFolder(appName, tableId, iIdDataTable);
-            File f = new File(path);
-            if (f.exists()) {
-              if (f.isDirectory()) {
-                ODKFileUtils.deleteDirectory(f);
-              } else {
-                f.delete();
-              }
-            }
-
-          }
-        } catch (IOException e) {
-          WebLogger.getLogger(appName).printStackTrace(e);
-          throw new IllegalArgumentException("Unable to delete instance directory: " + e.toString());
-        } finally {
-          if (del != null) {
-            del.close();
-          }
-        }
-      } else {
-        // delete anything we find, since the table doesn't exist
-        Cursor del = null;
-        try {
-          where = InstanceColumns.DATA_TABLE_TABLE_ID + "=?";
-          whereArgs = new String[] { tableId };
-          del = db.query(DatabaseConstants.UPLOADS_TABLE_NAME, null,
-              where, whereArgs, null, null, null, null);
-          del.moveToPosition(-1);
-          while (del.moveToNext()) {
-            String iId = CursorUtils.getIndexAsString(del,
-                del.getColumnIndex(InstanceColumns._ID));
-            String iIdDataTable = CursorUtils.getIndexAsString(del,
-                del.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
-            idStructs.add(new IdStruct(iId, iIdDataTable));
-            String path = ODKFileUtils.getInstanceFolder(appName, tableId, iIdDataTable);
-            File f = new File(path);
-            if (f.exists()) {
-              if (f.isDirectory()) {
-                ODKFileUtils.deleteDirectory(f);
-              } else {
-                f.delete();
-              }
-            }
-          }
-        } catch (IOException e) {
-          WebLogger.getLogger(appName).printStackTrace(e);
-          throw new IllegalArgumentException("Unable to delete instance directory: " + e.toString());
-        } finally {
-          if (del != null) {
-            del.close();
-          }
-        }
-      }
-
-      for (IdStruct idStruct : idStructs) {
-        db.delete(DatabaseConstants.UPLOADS_TABLE_NAME, InstanceColumns.DATA_INSTANCE_ID + "=?",
-            new String[] { idStruct.idUploadsTable });
-        db.delete(tableId, DATA_TABLE_ID_COLUMN + "=?", new String[] { idStruct.idDataTable });
-      }
+      count = deleteInstances(db, uri, segments, appName, tableId, instanceId, where, whereArgs);
       db.setTransactionSuccessful();
     } finally {
       if ( db != null ) {
@@ -629,12 +561,135 @@ public class InstanceProvider extends ContentProvider {
         }
       }
     }
-    getContext().getContentResolver().notifyChange(uri, null);
+    ChangeNotificationCoalescer.notifyChange(getContext(), appName,
+        ChangeNotificationCoalescer.getTableUri(uri, appName, tableId));
+    return count;
+  }
+
+  /**
+   * Delete the matching instances, and their instance folders, within the
+   * caller's transaction.
+   *
+   * @return the number of instances deleted
+   */
+  private int deleteInstances(OdkConnectionInterface db, Uri uri, List<String> segments,
+      String appName, String tableId, String instanceId, String where, String[] whereArgs) {
+
+    List<IdStruct> idStructs = new ArrayList<IdStruct>();
+    boolean success = false;
+    try {
+      success = ODKDatabaseImplUtils.get().hasTableId(db, tableId);
+    } catch (Exception e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new SQLException("Unknown URI (exception testing for tableId) " + uri);
+    }
+
+    if (success) {
+      // delete the entries matching the filter criteria
+      if (segments.size() == 2) {
+        where = "(" + where + ") AND (" + InstanceColumns.DATA_INSTANCE_ID + "=? )";
+        if (whereArgs != null) {
+          String[] args = new String[whereArgs.length + 1];
+          System.arraycopy(whereArgs, 0, args, 0, whereArgs.length);
+          args[whereArgs.length] = instanceId;
+          whereArgs = args;
+        } else {
+          whereArgs = new String[] { instanceId };
+        }
+      }
+
+      internalUpdate(db, uri, appName, tableId );
+
+      Cursor del = null;
+      try {
+        del = internalQuery(db,
+            uri,
+            appName, tableId, instanceId,
+            null, where, whereArgs, null);
+        del.moveToPosition(-1);
+        while (del.moveToNext()) {
+          String iId = CursorUtils.getIndexAsString(del,
+              del.getColumnIndex(InstanceColumns._ID));
+          String iIdDataTable = CursorUtils.getIndexAsString(del,
+              del.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
+          idStructs.add(new IdStruct(iId, iIdDataTable));
+          String path = ODKFileUtils.getInstanceFolder(appName, tableId, iIdDataTable);
+          File f = new File(path);
+          if (f.exists()) {
+            if (f.isDirectory()) {
+              ODKFileUtils.deleteDirectory(f);
+            } else {
+              f.delete();
+            }
+          }
+
+        }
+      } catch (IOException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        throw new IllegalArgumentException("Unable to delete instance directory: " + e.toString());
+      } finally {
+        if (del != null) {
+          del.close();
+        }
+      }
+    } else {
+      // delete anything we find, since the table doesn't exist
+      Cursor del = null;
+      try {
+        where = InstanceColumns.DATA_TABLE_TABLE_ID + "=?";
+        whereArgs = new String[] { tableId };
+        del = db.query(DatabaseConstants.UPLOADS_TABLE_NAME, null,
+            where, whereArgs, null, null, null, null);
+        del.moveToPosition(-1);
+        while (del.moveToNext()) {
+          String iId = CursorUtils.getIndexAsString(del,
+              del.getColumnIndex(InstanceColumns._ID));
+          String iIdDataTable = CursorUtils.getIndexAsString(del,
+              del.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
+          idStructs.add(new IdStruct(iId, iIdDataTable));
+          String path = ODKFileUtils.getInstanceFolder(appName, tableId, iIdDataTable);
+          File f = new File(path);
+          if (f.exists()) {
+            if (f.isDirectory()) {
+              ODKFileUtils.deleteDirectory(f);
+            } else {
+              f.delete();
+            }
+          }
+        }
+      } catch (IOException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        throw new IllegalArgumentException("Unable to delete instance directory: " + e.toString());
+      } finally {
+        if (del != null) {
+          del.close();
+        }
+      }
+    }
+
+    for (IdStruct idStruct : idStructs) {
+      db.delete(DatabaseConstants.UPLOADS_TABLE_NAME, InstanceColumns.DATA_INSTANCE_ID + "=?",
+          new String[] { idStruct.idUploadsTable });
+      db.delete(tableId, DATA_TABLE_ID_COLUMN + "=?", new String[] { idStruct.idDataTable });
+    }
     return idStructs.size();
   }
 
+  /**
+   * Record the upload status of one instance.
+   * <p>
+   * Uploaders that send several instances at once report each instance's
+   * status as soon as it is known, from whichever thread sent it. Calls are
+   * therefore not serialized on the provider: each runs on its own connection
+   * and takes the write lock up front, so concurrent updates are admitted one
+   * after another in arrival order instead of failing to upgrade a read
+   * transaction. Only the instance's own row is touched; its uploads entry
+   * exists because the instance was obtained from {@link #query}. Observers
+   * are notified through {@link ChangeNotificationCoalescer}, so a run of
+   * status updates to a table causes a single requery.
+   */
   @Override
-  public synchronized int update(@NonNull Uri uri, ContentValues cv, String where, String[] whereArgs) {
+  public int update(@NonNull Uri uri, ContentValues cv, String where, String[] whereArgs) {
     possiblyWaitForContentProviderDebugger();
 
     List<String> segments = uri.getPathSegments();
@@ -651,78 +706,167 @@ public class InstanceProvider extends ContentProvider {
     // _ID in UPLOADS_TABLE_NAME
     String instanceId = segments.get(2);
 
+    OdkConnectionInterface batchDb = batchConnection.get();
+    if (batchDb != null) {
+      // part of applyBatch(), which commits and notifies
+      return updateInstances(batchDb, uri, appName, tableId, instanceId, cv, where, whereArgs);
+    }
+
     DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
     OdkConnectionInterface db = null;
     int count = 0;
     try {
       // +1 referenceCount if db is returned (non-null)
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
-      db.beginTransactionNonExclusive();
-
-      boolean success = false;
-      try {
-        success = ODKDatabaseImplUtils.get().hasTableId(db, tableId);
-      } catch (Exception e) {
-        WebLogger.getLogger(appName).printStackTrace(e);
-        throw new SQLException("Unknown URI (exception testing for tableId) " + uri);
-      }
-      if (!success) {
-        throw new SQLException("Unknown URI (missing data table for tableId) " + uri);
+      db.beginTransactionExclusive();
+      count = updateInstances(db, uri, appName, tableId, instanceId, cv, where, whereArgs);
+      db.setTransactionSuccessful();
+    } finally {
+      if ( db != null ) {
+        try {
+          if (db.inTransaction()) {
+            db.endTransaction();
+          }
+        } finally {
+          try {
+            db.releaseReference();
+          } finally {
+            // this closes the connection
+            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
+                appName, dbHandleName);
+          }
+        }
       }
+    }
+    ChangeNotificationCoalescer.notifyChange(getContext(), appName,
+        ChangeNotificationCoalescer.getTableUri(uri, appName, tableId));
+    return count;
+  }
 
-      internalUpdate(db, uri, appName, tableId );
+  /**
+   * Apply the values to the matching instances within the caller's transaction.
+   *
+   * @return the number of instances updated
+   */
+  private int updateInstances(OdkConnectionInterface db, Uri uri, String appName,
+      String tableId, String instanceId, ContentValues cv, String where, String[] whereArgs) {
 
-      // run the query to get all the ids...
-      List<IdStruct> idStructs = new ArrayList<IdStruct>();
-      Cursor ref = null;
-      try {
-        // use this provider's query interface to get the set of ids that
-        // match (if any)
-        ref = internalQuery(db,
-            uri,
-            appName, tableId, instanceId,
-            null, where, whereArgs, null);
-        ref.moveToFirst();
-        if (ref.getCount() != 0) {
-          do {
-            String iId = CursorUtils.getIndexAsString(ref,
-                ref.getColumnIndex(InstanceColumns._ID));
-            String iIdDataTable = CursorUtils.getIndexAsString(ref,
-                ref.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
-            idStructs.add(new IdStruct(iId, iIdDataTable));
-          } while (ref.moveToNext());
-        }
-      } finally {
-        if (ref != null) {
-          ref.close();
-        }
+    int count = 0;
+    boolean success = false;
+    try {
+      success = ODKDatabaseImplUtils.get().hasTableId(db, tableId);
+    } catch (Exception e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new SQLException("Unknown URI (exception testing for tableId) " + uri);
+    }
+    if (!success) {
+      throw new SQLException("Unknown URI (missing data table for tableId) " + uri);
+    }
+
+    // run the query to get all the ids...
+    List<IdStruct> idStructs = new ArrayList<IdStruct>();
+    Cursor ref = null;
+    try {
+      // use this provider's query interface to get the set of ids that
+      // match (if any)
+      ref = internalQuery(db,
+          uri,
+          appName, tableId, instanceId,
+          null, where, whereArgs, null);
+      ref.moveToFirst();
+      if (ref.getCount() != 0) {
+        do {
+          String iId = CursorUtils.getIndexAsString(ref,
+              ref.getColumnIndex(InstanceColumns._ID));
+          String iIdDataTable = CursorUtils.getIndexAsString(ref,
+              ref.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
+          idStructs.add(new IdStruct(iId, iIdDataTable));
+        } while (ref.moveToNext());
       }
+    } finally {
+      if (ref != null) {
+        ref.close();
+      }
+    }
 
-      // update the values string...
-      if (cv.containsKey(InstanceColumns.XML_PUBLISH_STATUS)) {
-        Date xmlPublishDate = new Date();
-        cv.put(InstanceColumns.XML_PUBLISH_TIMESTAMP,
-            TableConstants.nanoSecondsFromMillis(xmlPublishDate.getTime()));
-        String xmlPublishStatus = cv.getAsString(InstanceColumns.XML_PUBLISH_STATUS);
-        if (!cv.containsKey(InstanceColumns.DISPLAY_SUBTEXT)) {
-          String text = getDisplaySubtext(xmlPublishStatus, xmlPublishDate);
-          cv.put(InstanceColumns.DISPLAY_SUBTEXT, text);
-        }
+    // update the values string...
+    if (cv.containsKey(InstanceColumns.XML_PUBLISH_STATUS)) {
+      Date xmlPublishDate = new Date();
+      cv.put(InstanceColumns.XML_PUBLISH_TIMESTAMP,
+          TableConstants.nanoSecondsFromMillis(xmlPublishDate.getTime()));
+      String xmlPublishStatus = cv.getAsString(InstanceColumns.XML_PUBLISH_STATUS);
+      if (!cv.containsKey(InstanceColumns.DISPLAY_SUBTEXT)) {
+        String text = getDisplaySubtext(xmlPublishStatus, xmlPublishDate);
+        cv.put(InstanceColumns.DISPLAY_SUBTEXT, text);
       }
+    }
+
+    Map<String,Object> values = new HashMap<String,Object>();
+    for ( String key : cv.keySet()) {
+      values.put(key, cv.get(key));
+    }
+
+    Object[] args = new String[1];
+    for (IdStruct idStruct : idStructs) {
+      args[0] = idStruct.idUploadsTable;
+      count += db.update(DatabaseConstants.UPLOADS_TABLE_NAME, values,
+          InstanceColumns._ID + "=?", args);
+    }
+    return count;
+  }
 
-      Map<String,Object> values = new HashMap<String,Object>();
-      for ( String key : cv.keySet()) {
-        values.put(key, cv.get(key));
+  /**
+   * Apply the operations in a single transaction and send one change
+   * notification for each table they touched once it has committed.
+   * <p>
+   * All operations must be for the same appName. If any operation fails, none
+   * of the database changes are kept (but instance folders that a delete has
+   * already removed are not restored).
+   */
+  @Override
+  public synchronized ContentProviderResult[] applyBatch(
+      @NonNull ArrayList<ContentProviderOperation> operations)
+      throws OperationApplicationException {
+    possiblyWaitForContentProviderDebugger();
+
+    if (operations.isEmpty()) {
+      return new ContentProviderResult[0];
+    }
+
+    String appName = null;
+    Set<Uri> tableUris = new HashSet<Uri>();
+    for (ContentProviderOperation operation : operations) {
+      Uri uri = operation.getUri();
+      List<String> segments = uri.getPathSegments();
+      if (segments.size() < 2 || segments.size() > 3) {
+        throw new OperationApplicationException("Unknown URI (too many segments!) " + uri);
+      }
+      if (appName == null) {
+        appName = segments.get(0);
+      } else if (!appName.equals(segments.get(0))) {
+        throw new OperationApplicationException(
+            "All operations of a batch must be for the same appName " + uri);
       }
+      tableUris.add(ChangeNotificationCoalescer.getTableUri(uri, appName, segments.get(1)));
+    }
+
+    ODKFileUtils.verifyExternalStorageAvailability();
+    ODKFileUtils.assertDirectoryStructure(appName);
 
-      Object[] args = new String[1];
-      for (IdStruct idStruct : idStructs) {
-        args[0] = idStruct.idUploadsTable;
-        count += db.update(DatabaseConstants.UPLOADS_TABLE_NAME, values,
-            InstanceColumns._ID + "=?", args);
+    ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
+    OdkConnectionInterface db = null;
+    try {
+      // +1 referenceCount if db is returned (non-null)
+      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
+      db.beginTransactionExclusive();
+      batchConnection.set(db);
+      for (int i = 0; i < operations.size(); ++i) {
+        results[i] = operations.get(i).apply(this, results, i);
       }
       db.setTransactionSuccessful();
     } finally {
+      batchConnection.remove();
       if ( db != null ) {
         try {
           if (db.inTransaction()) {
@@ -739,8 +883,10 @@ public class InstanceProvider extends ContentProvider {
         }
       }
     }
-    getContext().getContentResolver().notifyChange(uri, null);
-    return count;
+    for (Uri tableUri : tableUris) {
+      ChangeNotificationCoalescer.notifyChange(getContext(), appName, tableUri);
+    }
+    return results;
   }
 
   static {
@@ -19,6 +19,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Bundle;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import org.apache.commons.lang3.CharEncoding;
@@ -55,11 +56,13 @@ import org.opendatakit.services.R;
 import org.opendatakit.services.legacy.listeners.InstanceUploaderListener;
 import org.opendatakit.services.legacy.logic.InstanceUploadOutcome;
 import org.opendatakit.services.legacy.utilities.WebUtils;
+import org.opendatakit.services.submissions.provider.SubmissionProvider;
 import org.opendatakit.utilities.FileSet;
 import org.opendatakit.utilities.FileSet.MimeFile;
 import org.opendatakit.utilities.LocalizationUtils;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -69,13 +72,19 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Background task for uploading completed forms.
@@ -87,6 +96,13 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
   private static final String TAG = InstanceUploaderTask.class.getSimpleName();
   private static final String fail = "Error: ";
 
+  /**
+   * Number of instances that are uploaded at the same time. Each instance is
+   * sent by one thread, so that the parts of a submission that is split into
+   * several posts still reach the server in order.
+   */
+  private static final int MAX_CONCURRENT_UPLOADS = 3;
+
   private Application appContext;
   private InstanceUploaderListener mStateListener;
 
@@ -103,6 +119,19 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
     this.uploadTableId = uploadTableId;
   }
 
+  /**
+   * Records the outcome of an instance. Called from every upload thread.
+   *
+   * @param id
+   *          -- _ID in the InstanceColumns table.
+   * @param result
+   */
+  private void putResult(String id, String result) {
+    synchronized (mOutcome) {
+      mOutcome.mResults.put(id, result);
+    }
+  }
+
   /**
    * Uploads to urlString the submission identified by id with filepath of
    * instance
@@ -135,21 +164,21 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       u = url.toURI();
     } catch (MalformedURLException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put(id,
+      putResult(id,
           fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
       cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
       appContext.getContentResolver().update(toUpdate, cv, null, null);
       return true;
     } catch (URISyntaxException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put(id,
+      putResult(id,
           fail + "invalid uri: " + urlString + " :: details: " + e.getMessage());
       cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
       appContext.getContentResolver().update(toUpdate, cv, null, null);
       return true;
     } catch (UnsupportedEncodingException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put(id,
+      putResult(id,
           fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
       cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
       appContext.getContentResolver().update(toUpdate, cv, null, null);
@@ -196,7 +225,7 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
                 // Don't follow a redirection attempt to a
                 // different host.
                 // We can't tell if this is a spoof or not.
-                mOutcome.mResults.put(id, fail
+                putResult(id, fail
                     + "Unexpected redirection attempt to a different host: " + uNew.toString());
                 cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
                 appContext.getContentResolver().update(toUpdate, cv, null, null);
@@ -204,7 +233,7 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
               }
             } catch (Exception e) {
               WebLogger.getLogger(appName).printStackTrace(e);
-              mOutcome.mResults.put(id, fail + urlString + " " + e.getMessage());
+              putResult(id, fail + urlString + " " + e.getMessage());
               cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
               appContext.getContentResolver().update(toUpdate, cv, null, null);
               return true;
@@ -216,11 +245,8 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
 
           WebLogger.getLogger(appName).w(TAG, "Status code on Head request: " + statusCode);
           if (statusCode >= 200 && statusCode <= 299) {
-            mOutcome.mResults
-                .put(
-                    id,
-                    fail
-                        + "Invalid status code on Head request.  If you have a web proxy, you may need to login to your network. ");
+            putResult(id, fail
+                + "Invalid status code on Head request.  If you have a web proxy, you may need to login to your network. ");
             cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
             appContext.getContentResolver().update(toUpdate, cv, null, null);
             return true;
@@ -229,20 +255,20 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       } catch (ClientProtocolException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
-        mOutcome.mResults.put(id, fail + "Client Protocol Exception");
+        putResult(id, fail + "Client Protocol Exception");
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
       } catch (ConnectTimeoutException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
-        mOutcome.mResults.put(id, fail + "Connection Timeout");
+        putResult(id, fail + "Connection Timeout");
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
       } catch (UnknownHostException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
-        mOutcome.mResults.put(id, fail + e.getMessage() + " :: Network Connection Failed");
+        putResult(id, fail + e.getMessage() + " :: Network Connection Failed");
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
@@ -250,20 +276,20 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       } catch (SocketTimeoutException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
-        mOutcome.mResults.put(id, fail + "Connection Timeout");
+        putResult(id, fail + "Connection Timeout");
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
       } catch (HttpHostConnectException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
         WebLogger.getLogger(appName).e(TAG, e.toString());
-        mOutcome.mResults.put(id, fail + "Network Connection Refused");
+        putResult(id, fail + "Network Connection Refused");
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
       } catch (Exception e) {
         WebLogger.getLogger(appName).printStackTrace(e);
-        mOutcome.mResults.put(id, fail + "Generic Exception");
+        putResult(id, fail + "Generic Exception");
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
@@ -284,7 +310,7 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
     File instanceFile = instanceFiles.instanceFile;
 
     if (!instanceFile.exists()) {
-      mOutcome.mResults.put(id, fail + "instance XML file does not exist!");
+      putResult(id, fail + "instance XML file does not exist!");
       cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
       appContext.getContentResolver().update(toUpdate, cv, null, null);
       return true;
@@ -352,9 +378,9 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
         // If it wasn't, the submission has failed.
         if (responseCode != 201 && responseCode != 202) {
           if (responseCode == 200) {
-            mOutcome.mResults.put(id, fail + "Network login failure? Again?");
+            putResult(id, fail + "Network login failure? Again?");
           } else {
-            mOutcome.mResults.put(id, fail + response.getStatusLine().getReasonPhrase() + " ("
+            putResult(id, fail + response.getStatusLine().getReasonPhrase() + " ("
                 + responseCode + ") at " + urlString);
           }
           cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
@@ -363,7 +389,7 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
         }
       } catch (Exception e) {
         WebLogger.getLogger(appName).printStackTrace(e);
-        mOutcome.mResults.put(id, fail + "Generic Exception. " + e.getMessage());
+        putResult(id, fail + "Generic Exception. " + e.getMessage());
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
@@ -371,37 +397,130 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
     }
 
     // if it got here, it must have worked
-    mOutcome.mResults.put(id, appContext.getString(R.string.success));
+    putResult(id, appContext.getString(R.string.success));
     cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMITTED);
     appContext.getContentResolver().update(toUpdate, cv, null, null);
     return true;
   }
 
   /**
-   * Write's the data to the sdcard, and updates the instances content provider.
-   * In theory we don't have to write to disk, and this is where you'd add other
-   * methods.
+   * An instance whose upload status was read from the instances content provider
+   * and whose submission is to be written and sent.
+   */
+  private static final class PendingSubmission {
+    final Uri toUpdate;
+    final String id;
+    final String dataTableInstanceId;
+    final String submissionInstanceId;
+
+    PendingSubmission(Uri toUpdate, String id, String dataTableInstanceId,
+        String submissionInstanceId) {
+      this.toUpdate = toUpdate;
+      this.id = id;
+      this.dataTableInstanceId = dataTableInstanceId;
+      this.submissionInstanceId = submissionInstanceId;
+    }
+  }
+
+  /**
+   * Writes the submissions of all the pending instances to the sdcard with a
+   * single call to the submission provider (see
+   * {@link SubmissionProvider#METHOD_EXPORT_SUBMISSIONS}).
    *
-   * @param instanceId
-   * @param submissionInstanceId
+   * @param pending
+   * @return the absolute path of each instance's manifest, parallel to pending,
+   *         with null for the instances that could not be written
+   */
+  private String[] exportSubmissions(List<PendingSubmission> pending) {
+    String[] instanceIds = new String[pending.size()];
+    String[] submissionInstanceIds = new String[pending.size()];
+    for (int i = 0; i < pending.size(); ++i) {
+      instanceIds[i] = pending.get(i).dataTableInstanceId;
+      submissionInstanceIds[i] = pending.get(i).submissionInstanceId;
+    }
+
+    Bundle extras = new Bundle();
+    extras.putString(SubmissionProvider.EXTRA_TABLE_ID, uploadTableId);
+    extras.putStringArray(SubmissionProvider.EXTRA_INSTANCE_IDS, instanceIds);
+    extras.putStringArray(SubmissionProvider.EXTRA_SUBMISSION_INSTANCE_IDS,
+        submissionInstanceIds);
+    extras.putBoolean(SubmissionProvider.EXTRA_AS_XML, true);
+
+    Bundle result = appContext.getContentResolver().call(
+        Uri.parse(ProviderConsts.XML_SUBMISSION_URL_PREFIX),
+        SubmissionProvider.METHOD_EXPORT_SUBMISSIONS, appName, extras);
+    String[] manifestPaths = (result == null) ? null :
+        result.getStringArray(SubmissionProvider.RESULT_MANIFEST_PATHS);
+    if (manifestPaths == null || manifestPaths.length != pending.size()) {
+      return new String[pending.size()];
+    }
+    return manifestPaths;
+  }
+
+  /**
+   * Reads the manifest of one pending instance and uploads its submission.
+   * Its status is reported to the instances content provider when it is done.
+   *
+   * @param p
+   * @param manifestPath
+   *          -- absolute path of the manifest, or null if it could not be written
+   * @param urlString
+   * @param httpclient
+   * @param localContext
+   * @param uriRemap
+   * @return false if credentials are required and we should terminate
+   *         immediately.
+   */
+  private boolean uploadPendingSubmission(PendingSubmission p, String manifestPath,
+      String urlString, HttpClient httpclient, HttpContext localContext, Map<URI, URI> uriRemap) {
+
+    if (manifestPath == null) {
+      putResult(p.id, fail + "unable to obtain manifest: " + p.dataTableInstanceId);
+      return true;
+    }
+
+    FileSet instanceFiles;
+    try {
+      instanceFiles = constructSubmissionFiles(manifestPath);
+      // NOTE: /submission must not be translated! It is
+      // the well-known path on the server.
+
+      return uploadOneSubmission(urlString, p.toUpdate, p.id, p.submissionInstanceId,
+          instanceFiles, httpclient, localContext, uriRemap);
+    } catch (JsonParseException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      putResult(p.id, fail + "unable to obtain manifest: " + p.dataTableInstanceId
+          + " :: details: " + e.toString());
+    } catch (JsonMappingException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      putResult(p.id, fail + "unable to obtain manifest: " + p.dataTableInstanceId
+          + " :: details: " + e.toString());
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      putResult(p.id, fail + "unable to obtain manifest: " + p.dataTableInstanceId
+          + " :: details: " + e.toString());
+    }
+    return true;
+  }
+
+  /**
+   * Reads the manifest of a submission that was written to the sdcard.
+   *
+   * @param manifestPath
    * @return
    * @throws JsonParseException
    * @throws JsonMappingException
    * @throws IOException
    */
-  private FileSet constructSubmissionFiles(String instanceId, String submissionInstanceId)
+  private FileSet constructSubmissionFiles(String manifestPath)
       throws JsonParseException, JsonMappingException, IOException {
 
-    Uri manifest = Uri.parse(ProviderConsts.XML_SUBMISSION_URL_PREFIX + "/"
-        + URLEncoder.encode(appName, CharEncoding.UTF_8) + "/"
-        + URLEncoder.encode(uploadTableId, CharEncoding.UTF_8) + "/"
-        + URLEncoder.encode(instanceId, CharEncoding.UTF_8) + "/"
-        + URLEncoder.encode(submissionInstanceId, CharEncoding.UTF_8));
-
-    InputStream is = appContext.getContentResolver().openInputStream(manifest);
-
-    FileSet f = FileSet.parse(appName, is);
-    return f;
+    InputStream is = new FileInputStream(manifestPath);
+    try {
+      return FileSet.parse(appName, is);
+    } finally {
+      is.close();
+    }
   }
 
   /**
@@ -468,32 +587,31 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
 
     PropertiesSingleton props = CommonToolProperties.get(appContext, appName);
 
-    String urlString = null;
-    urlString = props.getProperty(CommonToolProperties.KEY_SYNC_SERVER_URL);
-    urlString = urlString + "/submission";
+    final String urlString = props.getProperty(CommonToolProperties.KEY_SYNC_SERVER_URL)
+        + "/submission";
     URI u = null;
     try {
       URL url = new URL(URLDecoder.decode(urlString, CharEncoding.UTF_8));
       u = url.toURI();
     } catch (MalformedURLException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put("unknown",
+      putResult("unknown",
           fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
       return mOutcome;
     } catch (URISyntaxException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put("unknown",
+      putResult("unknown",
           fail + "invalid uri: " + urlString + " :: details: " + e.getMessage());
       return mOutcome;
     } catch (UnsupportedEncodingException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put("unknown",
+      putResult("unknown",
           fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
       return mOutcome;
     }
 
-    CredentialsProvider credsProvider = new BasicCredentialsProvider();
-    CookieStore cookieStore = new BasicCookieStore();
+    final CredentialsProvider credsProvider = new BasicCredentialsProvider();
+    final CookieStore cookieStore = new BasicCookieStore();
 
     String authType = props.getProperty(CommonToolProperties.KEY_AUTHENTICATION_TYPE);
     if ( authType.equals(appContext.getString(R.string.credential_type_username_password))) {
@@ -502,22 +620,13 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       registerUsernamePassword(credsProvider, username, password, u.getHost());
     }
 
-    // context holds authentication state machine, so it cannot be
-    // shared across independent activities.
-    HttpClientContext localContext = HttpClientContext.create();
-
-    localContext.setCookieStore(cookieStore);
-    localContext.setCredentialsProvider(credsProvider);
-
-    CloseableHttpClient httpclient = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT);
-
-    Map<URI, URI> uriRemap = new HashMap<URI, URI>();
-
+    // read the status of every instance first, so that their submissions can
+    // be written with a single call to the submission provider
+    final List<PendingSubmission> pending = new ArrayList<PendingSubmission>();
     for (int i = 0; i < toUpload.length; ++i) {
       if (isCancelled()) {
         return mOutcome;
       }
-      publishProgress(i + 1, toUpload.length);
 
       Uri toUpdate = Uri.withAppendedPath(InstanceProviderAPI.CONTENT_URI, appName + "/"
           + uploadTableId + "/" + StringEscapeUtils.escapeHtml4(toUpload[i]));
@@ -546,33 +655,10 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
               submissionInstanceId = lastId;
             }
           }
-          c.close();
-
-          FileSet instanceFiles;
-          try {
-            instanceFiles = constructSubmissionFiles(dataTableInstanceId, submissionInstanceId);
-            // NOTE: /submission must not be translated! It is
-            // the well-known path on the server.
-
-            if (!uploadOneSubmission(urlString, toUpdate, id, submissionInstanceId, instanceFiles,
-                httpclient, localContext, uriRemap)) {
-              return mOutcome; // get credentials...
-            }
-          } catch (JsonParseException e) {
-            WebLogger.getLogger(appName).printStackTrace(e);
-            mOutcome.mResults.put(id, fail + "unable to obtain manifest: " + dataTableInstanceId
-                + " :: details: " + e.toString());
-          } catch (JsonMappingException e) {
-            WebLogger.getLogger(appName).printStackTrace(e);
-            mOutcome.mResults.put(id, fail + "unable to obtain manifest: " + dataTableInstanceId
-                + " :: details: " + e.toString());
-          } catch (IOException e) {
-            WebLogger.getLogger(appName).printStackTrace(e);
-            mOutcome.mResults.put(id, fail + "unable to obtain manifest: " + dataTableInstanceId
-                + " :: details: " + e.toString());
-          }
+          pending.add(new PendingSubmission(toUpdate, id, dataTableInstanceId,
+              submissionInstanceId));
         } else {
-          mOutcome.mResults.put("unknown", fail + "unable to retrieve instance information via: "
+          putResult("unknown", fail + "unable to retrieve instance information via: "
               + toUpdate.toString());
         }
       } finally {
@@ -582,6 +668,90 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       }
     }
 
+    if (pending.isEmpty()) {
+      return mOutcome;
+    }
+
+    String[] exported;
+    try {
+      exported = exportSubmissions(pending);
+    } catch (Exception e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      for (PendingSubmission p : pending) {
+        putResult(p.id, fail + "unable to obtain manifest: " + p.dataTableInstanceId
+            + " :: details: " + e.toString());
+      }
+      return mOutcome;
+    }
+    final String[] manifestPaths = exported;
+
+    // one client whose connection pool is shared by all the upload threads
+    final CloseableHttpClient httpclient = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT,
+        1, MAX_CONCURRENT_UPLOADS);
+
+    final Map<URI, URI> uriRemap = new ConcurrentHashMap<URI, URI>();
+
+    // each thread takes the next pending instance until there are none left
+    // or the server asks for credentials
+    final AtomicInteger nextIndex = new AtomicInteger();
+    final AtomicInteger doneCount = new AtomicInteger();
+    final AtomicBoolean credentialsRequired = new AtomicBoolean();
+
+    int threads = Math.min(MAX_CONCURRENT_UPLOADS, pending.size());
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> uploaders = new ArrayList<Future<?>>();
+      for (int t = 0; t < threads; ++t) {
+        uploaders.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            // context holds authentication state machine, so it cannot be
+            // shared across independent activities. The cookies and
+            // credentials are shared by all the threads.
+            HttpClientContext localContext = HttpClientContext.create();
+
+            localContext.setCookieStore(cookieStore);
+            localContext.setCredentialsProvider(credsProvider);
+
+            while (!isCancelled() && !credentialsRequired.get()) {
+              int i = nextIndex.getAndIncrement();
+              if (i >= pending.size()) {
+                return;
+              }
+              if (!uploadPendingSubmission(pending.get(i), manifestPaths[i], urlString,
+                  httpclient, localContext, uriRemap)) {
+                credentialsRequired.set(true); // get credentials...
+                return;
+              }
+              publishProgress(doneCount.incrementAndGet(), pending.size());
+            }
+          }
+        }));
+      }
+      for (Future<?> uploader : uploaders) {
+        try {
+          uploader.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw new IllegalStateException("Unable to upload the instances of " + uploadTableId,
+              cause);
+        }
+      }
+    } catch (InterruptedException e) {
+      // cancelled
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+      try {
+        httpclient.close();
+      } catch (IOException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+      }
+    }
+
     return mOutcome;
   }
 
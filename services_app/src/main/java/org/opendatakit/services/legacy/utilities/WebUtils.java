@@ -114,6 +114,28 @@ public final class WebUtils {
   }
 
   public static CloseableHttpClient createHttpClient(int timeout, int maxRedirects) {
+    return createHttpClientBuilder(timeout, maxRedirects).build();
+  }
+
+  /**
+   * Create an httpClient whose connection pool holds up to maxConnections
+   * connections, so that it can be shared by that many concurrent requests
+   * to the same server.
+   *
+   * @param timeout
+   * @param maxRedirects
+   * @param maxConnections
+   * @return CloseableHttpClient properly configured.
+   */
+  public static CloseableHttpClient createHttpClient(int timeout, int maxRedirects,
+      int maxConnections) {
+    return createHttpClientBuilder(timeout, maxRedirects)
+        .setMaxConnPerRoute(maxConnections)
+        .setMaxConnTotal(maxConnections)
+        .build();
+  }
+
+  private static HttpClientBuilder createHttpClientBuilder(int timeout, int maxRedirects) {
     // configure connection
     SocketConfig socketConfig = SocketConfig.copy(SocketConfig.DEFAULT)
         .setSoTimeout(2*timeout)
@@ -135,12 +157,9 @@ public final class WebUtils {
         .build();
 
     // setup client
-    CloseableHttpClient httpclient = HttpClientBuilder.create()
+    return HttpClientBuilder.create()
         .setDefaultSocketConfig(socketConfig)
-        .setDefaultRequestConfig(requestConfig)
-        .build();
-
-    return httpclient;
+        .setDefaultRequestConfig(requestConfig);
   }
 
   private void setOpenRosaHeaders(HttpRequest req) {
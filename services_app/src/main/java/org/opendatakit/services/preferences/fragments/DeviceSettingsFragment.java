@@ -34,6 +34,7 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.services.R;
+import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.preferences.activities.AppPropertiesActivity;
 import org.opendatakit.services.preferences.activities.IOdkAppPropertiesActivity;
 import org.opendatakit.utilities.MediaUtils;
@@ -53,6 +54,7 @@ public class DeviceSettingsFragment extends PreferenceFragment implements
 
   private CommonTranslationsLocaleScreen mDefaultTranslationPreference;
   private ListPreference mFontSizePreference;
+  private ListPreference mDatabaseMemoryProfilePreference;
 
   private CheckBoxPreference mShowSplashPreference;
   private PreferenceScreen mSplashPathPreference;
@@ -150,6 +152,39 @@ public class DeviceSettingsFragment extends PreferenceFragment implements
 
     mFontSizePreference.setEnabled(fontAvailable || adminMode);
 
+    mDatabaseMemoryProfilePreference = (ListPreference) findPreference(
+        AndroidConnectFactory.KEY_DATABASE_MEMORY_PROFILE);
+    {
+      String chosenProfile = props.getProperty(AndroidConnectFactory.KEY_DATABASE_MEMORY_PROFILE);
+      int index = (chosenProfile == null) ? -1 :
+          mDatabaseMemoryProfilePreference.findIndexOfValue(chosenProfile);
+      if (index == -1) {
+        index = 0; // default
+      }
+      mDatabaseMemoryProfilePreference.setValueIndex(index);
+      mDatabaseMemoryProfilePreference.setSummary(
+          mDatabaseMemoryProfilePreference.getEntries()[index]);
+    }
+
+    mDatabaseMemoryProfilePreference.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+
+      @Override
+      public boolean onPreferenceChange(Preference preference, Object newValue) {
+        int index = ((ListPreference) preference).findIndexOfValue(newValue.toString());
+        String entry = (String) ((ListPreference) preference).getEntries()[index];
+        preference.setSummary(entry);
+
+        // applied to database connections opened after this change
+        PropertiesSingleton props =
+            ((IOdkAppPropertiesActivity) DeviceSettingsFragment.this.getActivity()).getProps();
+        props.setProperties(Collections.singletonMap(AndroidConnectFactory
+            .KEY_DATABASE_MEMORY_PROFILE, newValue.toString()));
+        return true;
+      }
+    });
+
+    mDatabaseMemoryProfilePreference.setEnabled(!adminConfigured || adminMode);
+
     boolean splashAvailable =  !adminConfigured ||
         props.getBooleanProperty(CommonToolProperties.KEY_CHANGE_SPLASH_SETTINGS);
 
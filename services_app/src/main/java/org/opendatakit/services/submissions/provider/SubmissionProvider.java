@@ -19,9 +19,11 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.util.Xml;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import org.apache.commons.lang3.CharEncoding;
@@ -49,34 +51,24 @@ import org.opendatakit.services.utilities.EncryptionUtils;
 import org.opendatakit.services.utilities.EncryptionUtils.EncryptedFormInformation;
 import org.opendatakit.utilities.FileSet;
 import org.opendatakit.utilities.ODKFileUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Text;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import java.io.ByteArrayOutputStream;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Properties;
 
 /**
  * The WebKit does better if there is a content provider vending files to it.
@@ -97,6 +89,34 @@ public class SubmissionProvider extends ContentProvider {
   // namespace
   private static final String NEW_LINE = "\n";
 
+  /**
+   * {@link #call(String, String, Bundle)} method that writes the submission files of many
+   * instances of one table. The arg is the appName; the extras are:
+   * <ul>
+   * <li>{@link #EXTRA_TABLE_ID} the tableId</li>
+   * <li>{@link #EXTRA_INSTANCE_IDS} String[] of DataTableColumns._ID values</li>
+   * <li>{@link #EXTRA_SUBMISSION_INSTANCE_IDS} String[] of the instanceIDs to report in
+   * each submission (parallel to EXTRA_INSTANCE_IDS)</li>
+   * <li>{@link #EXTRA_AS_XML} optional; false to write submission.json (default true)</li>
+   * </ul>
+   * The result holds {@link #RESULT_MANIFEST_PATHS}, a String[] parallel to
+   * EXTRA_INSTANCE_IDS with the absolute path of each instance's manifest.json,
+   * or null for instances that were not found or could not be written. It is
+   * equivalent to calling openFile for each instance in turn.
+   */
+  public static final String METHOD_EXPORT_SUBMISSIONS = "exportSubmissions";
+  public static final String EXTRA_TABLE_ID = "tableId";
+  public static final String EXTRA_INSTANCE_IDS = "instanceIds";
+  public static final String EXTRA_SUBMISSION_INSTANCE_IDS = "submissionInstanceIds";
+  public static final String EXTRA_AS_XML = "asXml";
+  public static final String RESULT_MANIFEST_PATHS = "manifestPaths";
+
+  /**
+   * Number of instances fetched per query by the bulk export; keeps the bind
+   * arguments (plus those of the access filter) under SQLite's limit of 999.
+   */
+  private static final int MAX_INSTANCES_PER_QUERY = 500;
+
   /**
    * change to true expression if you want to debug this content provider
    */
@@ -152,32 +172,27 @@ public class SubmissionProvider extends ContentProvider {
   }
 
   @SuppressWarnings("unchecked")
-  private static int generateXmlHelper(Document d, Element data, int idx, String key,
-      Map<String, Object> values, WebLoggerIf logger) {
+  private static void generateXmlHelper(XmlSerializer serializer, String key,
+      Map<String, Object> values, WebLoggerIf logger) throws IOException {
     Object o = values.get(key);
 
-    Element e = d.createElement(key);
+    serializer.startTag(null, key);
 
     if (o == null) {
       logger.e(t, "Unexpected null value");
-    } else if (o instanceof Integer) {
-      Text txtNode = d.createTextNode(((Integer) o).toString());
-      e.appendChild(txtNode);
-    } else if (o instanceof Double) {
-      Text txtNode = d.createTextNode(((Double) o).toString());
-      e.appendChild(txtNode);
-    } else if (o instanceof Boolean) {
-      Text txtNode = d.createTextNode(((Boolean) o).toString());
-      e.appendChild(txtNode);
+    } else if (o instanceof Integer || o instanceof Long || o instanceof Double
+        || o instanceof Boolean) {
+      serializer.text(o.toString());
     } else if (o instanceof String) {
-      Text txtNode = d.createTextNode(((String) o));
-      e.appendChild(txtNode);
+      serializer.text((String) o);
     } else if (o instanceof List) {
       StringBuilder b = new StringBuilder();
       List<Object> al = (List<Object>) o;
       for (Object ob : al) {
         if (ob instanceof Integer) {
           b.append(((Integer) ob).toString());
+        } else if (ob instanceof Long) {
+          b.append(((Long) ob).toString());
         } else if (ob instanceof Double) {
           b.append(((Double) ob).toString());
         } else if (ob instanceof Boolean) {
@@ -189,24 +204,496 @@ public class SubmissionProvider extends ContentProvider {
         }
         b.append(" ");
       }
-      Text txtNode = d.createTextNode(b.toString().trim());
-      e.appendChild(txtNode);
+      serializer.text(b.toString().trim());
     } else if (o instanceof Map) {
       // it is an object...
       Map<String, Object> m = (Map<String, Object>) o;
-      int nidx = 0;
 
       ArrayList<String> entryNames = new ArrayList<String>();
       entryNames.addAll(m.keySet());
       Collections.sort(entryNames);
       for (String name : entryNames) {
-        nidx = generateXmlHelper(d, e, nidx, name, m, logger);
+        generateXmlHelper(serializer, name, m, logger);
       }
     } else {
       throw new IllegalArgumentException("Unexpected object type in XML submission serializer");
     }
-    data.appendChild(e);
-    return idx;
+    serializer.endTag(null, key);
+  }
+
+  /**
+   * Streams the XML submission of one row. Nothing is buffered beyond the
+   * serializer's own output buffer, so the document is never held in memory,
+   * whether it is written to submission.xml or into the encryption cipher.
+   */
+  private static final class XmlSubmissionWriter implements EncryptionUtils.SubmissionWriter {
+    private final String rootElementName;
+    private final String tableId;
+    /**
+     * meta elements in the OpenRosa namespace, in document order
+     */
+    private final LinkedHashMap<String, String> openRosaMeta = new LinkedHashMap<String, String>();
+    /**
+     * our extra meta elements (no namespace), in document order
+     */
+    private final LinkedHashMap<String, String> extraMeta = new LinkedHashMap<String, String>();
+    private final Map<String, Object> values;
+    private final WebLoggerIf logger;
+
+    XmlSubmissionWriter(String rootElementName, String tableId, Map<String, Object> values,
+        WebLoggerIf logger) {
+      this.rootElementName = (rootElementName == null) ? "data" : rootElementName;
+      this.tableId = tableId;
+      this.values = values;
+      this.logger = logger;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      XmlSerializer serializer = Xml.newSerializer();
+      serializer.setOutput(out, CharEncoding.UTF_8);
+      // no XML declaration -- do not call startDocument()
+
+      serializer.startTag(null, rootElementName);
+      serializer.attribute(null, "id", tableId);
+
+      serializer.setPrefix("jr", XML_OPENROSA_NAMESPACE);
+      serializer.startTag(XML_OPENROSA_NAMESPACE, "meta");
+      for (Map.Entry<String, String> entry : openRosaMeta.entrySet()) {
+        writeTextElement(serializer, XML_OPENROSA_NAMESPACE, entry.getKey(), entry.getValue());
+      }
+      // these are extra metadata tags...
+      for (Map.Entry<String, String> entry : extraMeta.entrySet()) {
+        writeTextElement(serializer, null, entry.getKey(), entry.getValue());
+      }
+      serializer.endTag(XML_OPENROSA_NAMESPACE, "meta");
+
+      ArrayList<String> entryNames = new ArrayList<String>();
+      entryNames.addAll(values.keySet());
+      Collections.sort(entryNames);
+      for (String name : entryNames) {
+        generateXmlHelper(serializer, name, values, logger);
+      }
+
+      serializer.endTag(null, rootElementName);
+      serializer.flush();
+    }
+
+    private static void writeTextElement(XmlSerializer serializer, String namespace,
+        String name, String value) throws IOException {
+      serializer.startTag(namespace, name);
+      if (value != null) {
+        serializer.text(value);
+      }
+      serializer.endTag(namespace, name);
+    }
+  }
+
+  /**
+   * The table-level settings used to generate submissions. These are the same
+   * for every instance of a table, so the bulk export reads them only once.
+   */
+  private static final class SubmissionTableSettings {
+    String xmlInstanceName = null;
+    String xmlRootElementName = null;
+    String xmlDeviceIdPropertyName = null;
+    String xmlUserIdPropertyName = null;
+    String xmlBase64RsaPublicKey = null;
+    OrderedColumns orderedDefns = null;
+    ODKDatabaseImplUtils.AccessContext accessContext = null;
+  }
+
+  private static SubmissionTableSettings getSubmissionTableSettings(OdkConnectionInterface db,
+      String tableId, ActiveUserAndLocale aul) {
+
+    SubmissionTableSettings settings = new SubmissionTableSettings();
+
+    // Get the table properties specific to XML submissions
+
+    Cursor c = null;
+    try {
+      c = db.query(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME, new String[] {
+          KeyValueStoreColumns.KEY, KeyValueStoreColumns.VALUE }, KeyValueStoreColumns.TABLE_ID
+          + "=? AND " + KeyValueStoreColumns.PARTITION + "=? AND "
+          + KeyValueStoreColumns.ASPECT + "=? AND " + KeyValueStoreColumns.KEY
+          + " IN (?,?,?,?,?)", new String[] { tableId, KeyValueStoreConstants.PARTITION_TABLE,
+          KeyValueStoreConstants.ASPECT_DEFAULT, KeyValueStoreConstants.XML_INSTANCE_NAME,
+          KeyValueStoreConstants.XML_ROOT_ELEMENT_NAME,
+          KeyValueStoreConstants.XML_DEVICE_ID_PROPERTY_NAME,
+          KeyValueStoreConstants.XML_USER_ID_PROPERTY_NAME,
+          KeyValueStoreConstants.XML_BASE64_RSA_PUBLIC_KEY }, null, null, null, null);
+      c.moveToFirst();
+
+      if (c.getCount() > 0) {
+        int idxKey = c.getColumnIndex(KeyValueStoreColumns.KEY);
+        int idxValue = c.getColumnIndex(KeyValueStoreColumns.VALUE);
+        do {
+          String key = c.getString(idxKey);
+          String value = c.getString(idxValue);
+          if (KeyValueStoreConstants.XML_INSTANCE_NAME.equals(key)) {
+            settings.xmlInstanceName = value;
+          } else if (KeyValueStoreConstants.XML_ROOT_ELEMENT_NAME.equals(key)) {
+            settings.xmlRootElementName = value;
+          } else if (KeyValueStoreConstants.XML_DEVICE_ID_PROPERTY_NAME.equals(key)) {
+            settings.xmlDeviceIdPropertyName = value;
+          } else if (KeyValueStoreConstants.XML_USER_ID_PROPERTY_NAME.equals(key)) {
+            settings.xmlUserIdPropertyName = value;
+          } else if (KeyValueStoreConstants.XML_BASE64_RSA_PUBLIC_KEY.equals(key)) {
+            settings.xmlBase64RsaPublicKey = value;
+          }
+        } while (c.moveToNext());
+      }
+    } finally {
+      if (c != null) {
+        c.close();
+      }
+    }
+
+    settings.orderedDefns = ODKDatabaseImplUtils.get().getUserDefinedColumns(db, tableId);
+
+    settings.accessContext = ODKDatabaseImplUtils.get().getAccessContext(db, tableId,
+        aul.activeUser, aul.rolesList);
+
+    return settings;
+  }
+
+  /**
+   * Write the submission (and its manifest) for the data row the cursor is
+   * positioned on. The row must be the most recent non-checkpoint record of
+   * its instance.
+   *
+   * @param c positioned on the row; not moved
+   * @param asXml true for submission.xml, false for submission.json
+   * @param appName
+   * @param tableId
+   * @param instanceId the DataTableColumns._ID of the row
+   * @param submissionInstanceId the instanceID to report in the submission
+   * @param settings
+   * @param propertyManager
+   * @param aul
+   * @param logger
+   * @return the manifest.json file, or null if the submission could not be encrypted
+   * @throws IOException
+   */
+  @SuppressWarnings("unchecked")
+  private static File writeSubmission(Cursor c, boolean asXml, String appName, String tableId,
+      String instanceId, String submissionInstanceId, SubmissionTableSettings settings,
+      PropertyManager propertyManager, ActiveUserAndLocale aul, WebLoggerIf logger)
+      throws IOException {
+
+    // Retrieve the values of the record to be emitted...
+
+    HashMap<String, Object> values = new HashMap<String, Object>();
+    FileSet freturn = new FileSet(appName);
+    StringBuilder b = new StringBuilder();
+
+    String datestamp = null;
+
+    String rowETag = null;
+    String defaultAccess = null;
+    String owner = null;
+    String groupReadOnly = null;
+    String groupModify = null;
+    String groupPrivileged = null;
+    String formId = null;
+    String locale = null;
+    String savepointType = null;
+    String savepointCreator = null;
+    String savepointTimestamp = null;
+    String instanceName = null;
+
+    // OK. we have the record -- work through all the terms
+    for (int i = 0; i < c.getColumnCount(); ++i) {
+      ColumnDefinition defn = null;
+      String columnName = c.getColumnName(i);
+      try {
+        defn = settings.orderedDefns.find(columnName);
+      } catch (IllegalArgumentException e) {
+        // ignore...
+      }
+      if (defn != null && !c.isNull(i)) {
+        if (settings.xmlInstanceName != null
+            && defn.getElementName().equals(settings.xmlInstanceName)) {
+          instanceName = CursorUtils.getIndexAsString(c, i);
+        }
+        // user-defined column
+        ElementType type = defn.getType();
+        ElementDataType dataType = type.getDataType();
+
+        logger.i(t, "element type: " + defn.getElementType());
+        if (dataType == ElementDataType.integer) {
+          Long value = CursorUtils.getIndexAsType(c, Long.class, i);
+          putElementValue(values, defn, value);
+        } else if (dataType == ElementDataType.number) {
+          Double value = CursorUtils.getIndexAsType(c, Double.class, i);
+          putElementValue(values, defn, value);
+        } else if (dataType == ElementDataType.bool) {
+          Long tmp = CursorUtils.getIndexAsType(c, Long.class, i);
+          Boolean value = tmp == null ? null : (tmp != 0);
+          putElementValue(values, defn, value);
+        } else if (type.getElementType().equals("date")) {
+          String value = CursorUtils.getIndexAsString(c, i);
+          String jrDatestamp = (value == null) ? null : (new SimpleDateFormat(
+              ISO8601_DATE_ONLY_FORMAT, Locale.US)).format(new Date(TableConstants
+              .milliSecondsFromNanos(value)));
+          putElementValue(values, defn, jrDatestamp);
+        } else if (type.getElementType().equals("dateTime")) {
+          String value = CursorUtils.getIndexAsString(c, i);
+          String jrDatestamp = (value == null) ? null : (new SimpleDateFormat(
+              ISO8601_DATE_FORMAT, Locale.US)).format(new Date(TableConstants
+              .milliSecondsFromNanos(value)));
+          putElementValue(values, defn, jrDatestamp);
+        } else if (type.getElementType().equals("time")) {
+          String value = CursorUtils.getIndexAsString(c, i);
+          putElementValue(values, defn, value);
+        } else if (dataType == ElementDataType.array) {
+          ArrayList<Object> al = CursorUtils.getIndexAsType(c, ArrayList.class,
+              i);
+          putElementValue(values, defn, al);
+        } else if (dataType == ElementDataType.string) {
+          String value = CursorUtils.getIndexAsString(c, i);
+          putElementValue(values, defn, value);
+        } else /* unrecognized */{
+          throw new IllegalStateException("unrecognized data type: "
+              + defn.getElementType());
+        }
+
+      } else if (columnName.equals(DataTableColumns.SAVEPOINT_TIMESTAMP)) {
+        savepointTimestamp = CursorUtils.getIndexAsString(c, i);
+      } else if (columnName.equals(DataTableColumns.ROW_ETAG)) {
+        rowETag = CursorUtils.getIndexAsString(c, i);
+      } else if (columnName.equals(DataTableColumns.DEFAULT_ACCESS)) {
+        defaultAccess = CursorUtils.getIndexAsString(c, i);
+      } else if (columnName.equals(DataTableColumns.ROW_OWNER)) {
+        owner = CursorUtils.getIndexAsString(c, i);
+      } else if (columnName.equals(DataTableColumns.FORM_ID)) {
+        formId = CursorUtils.getIndexAsString(c, i);
+      } else if (columnName.equals(DataTableColumns.LOCALE)) {
+        locale = CursorUtils.getIndexAsString(c, i);
+      } else if (columnName.equals(DataTableColumns.FORM_ID)) {
+        formId = CursorUtils.getIndexAsString(c, i);
+      } else if (columnName.equals(DataTableColumns.SAVEPOINT_TYPE)) {
+        savepointType = CursorUtils.getIndexAsString(c, i);
+      } else if (columnName.equals(DataTableColumns.SAVEPOINT_CREATOR)) {
+        savepointCreator = CursorUtils.getIndexAsString(c, i);
+      } else if (columnName.equals(DataTableColumns.GROUP_READ_ONLY)) {
+        groupReadOnly = CursorUtils.getIndexAsString(c, i);
+      } else if (columnName.equals(DataTableColumns.GROUP_MODIFY)) {
+        groupModify = CursorUtils.getIndexAsString(c, i);
+      } else if (columnName.equals(DataTableColumns.GROUP_PRIVILEGED)) {
+        groupPrivileged = CursorUtils.getIndexAsString(c, i);
+      }
+    }
+
+    // OK got all the values into the values map -- emit
+    // contents
+    File submissionXml = new File(ODKFileUtils.getInstanceFolder(appName, tableId,
+        instanceId), (asXml ? "submission.xml" : "submission.json"));
+    File manifest = new File(ODKFileUtils.getInstanceFolder(appName, tableId, instanceId),
+        "manifest.json");
+    submissionXml.delete();
+    manifest.delete();
+    freturn.instanceFile = submissionXml;
+
+    if (asXml) {
+      // Pre-processing -- collapse all geopoints into a
+      // string-valued representation
+      for (ColumnDefinition defn : settings.orderedDefns.getColumnDefinitions()) {
+        ElementType type = defn.getType();
+        ElementDataType dataType = type.getDataType();
+        if (dataType == ElementDataType.object
+            && (type.getElementType().equals("geopoint") || type.getElementType().equals(
+                "mimeUri"))) {
+          Map<String, Object> parent = null;
+          List<ColumnDefinition> parents = new ArrayList<ColumnDefinition>();
+          ColumnDefinition d = defn.getParent();
+          while (d != null) {
+            parents.add(d);
+            d = d.getParent();
+          }
+          parent = values;
+          for (int i = parents.size() - 1; i >= 0; --i) {
+            Object o = parent.get(parents.get(i).getElementName());
+            if (o == null) {
+              parent = null;
+              break;
+            }
+            parent = (Map<String, Object>) o;
+          }
+          if (parent != null) {
+            Object o = parent.get(defn.getElementName());
+            if (o != null) {
+              if (type.getElementType().equals("geopoint")) {
+                Map<String, Object> geopoint = (Map<String, Object>) o;
+                // OK. we have geopoint -- get the
+                // lat, long, alt, etc.
+                Double latitude = (Double) geopoint.get("latitude");
+                Double longitude = (Double) geopoint.get("longitude");
+                Double altitude = (Double) geopoint.get("altitude");
+                Double accuracy = (Double) geopoint.get("accuracy");
+                String gpt = "" + latitude + " " + longitude + " " + altitude + " "
+                    + accuracy;
+                parent.put(defn.getElementName(), gpt);
+              } else if (type.getElementType().equals("mimeUri")) {
+                Map<String, Object> mimeuri = (Map<String, Object>) o;
+                String uriFragment = (String) mimeuri.get("uriFragment");
+                String contentType = (String) mimeuri.get("contentType");
+
+                if (uriFragment != null) {
+                  File f = ODKFileUtils.getAsFile(appName, uriFragment);
+                  if (f.equals(manifest)) {
+                    throw new IllegalStateException(
+                        "Unexpected collision with manifest.json");
+                  }
+                  freturn.addAttachmentFile(f, contentType);
+                  parent.put(defn.getElementName(), f.getName());
+                }
+              } else {
+                throw new IllegalStateException("Unhandled transform case");
+              }
+            }
+          }
+        }
+      }
+
+      datestamp = (new SimpleDateFormat(ISO8601_DATE_FORMAT, Locale.US))
+          .format(new Date(TableConstants.milliSecondsFromNanos(savepointTimestamp)));
+
+      // For XML, we traverse the map as it is serialized
+      XmlSubmissionWriter xml = new XmlSubmissionWriter(settings.xmlRootElementName, tableId,
+          values, logger);
+      DynamicPropertiesCallback cb = new DynamicPropertiesCallback(appName,
+          tableId, instanceId, aul.activeUser, aul.locale);
+
+      xml.openRosaMeta.put("instanceID", submissionInstanceId);
+      if (settings.xmlDeviceIdPropertyName != null) {
+        String deviceId = propertyManager.getSingularProperty(settings.xmlDeviceIdPropertyName, cb);
+        if (deviceId != null) {
+          xml.openRosaMeta.put("deviceID", deviceId);
+        }
+      }
+      if (settings.xmlUserIdPropertyName != null) {
+        String userId = propertyManager.getSingularProperty(settings.xmlUserIdPropertyName, cb);
+        if (userId != null) {
+          xml.openRosaMeta.put("userID", userId);
+        }
+      }
+      xml.openRosaMeta.put("timeEnd", datestamp);
+
+      // these are extra metadata tags...
+      xml.extraMeta.put("instanceName",
+          (instanceName != null) ? instanceName : savepointTimestamp);
+      xml.extraMeta.put("rowID", instanceId);
+      xml.extraMeta.put("rowETag", rowETag);
+      xml.extraMeta.put("defaultAccess", defaultAccess);
+      xml.extraMeta.put("owner", owner);
+      xml.extraMeta.put("groupReadOnly", groupReadOnly);
+      xml.extraMeta.put("groupModify", groupModify);
+      xml.extraMeta.put("groupPrivileged", groupPrivileged);
+      xml.extraMeta.put("formID", formId);
+      xml.extraMeta.put("locale", locale);
+      xml.extraMeta.put("savepointType", savepointType);
+      xml.extraMeta.put("savepointCreator", savepointCreator);
+      xml.extraMeta.put("savepointTimestamp", savepointTimestamp);
+
+      freturn.instanceFile = submissionXml;
+
+      // see if the form is encrypted and we can
+      // encrypt it...
+      EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(
+          appName, tableId, settings.xmlBase64RsaPublicKey, instanceId);
+      if (formInfo != null) {
+        File submissionXmlEnc = new File(submissionXml.getParentFile(),
+            submissionXml.getName() + ".enc");
+        submissionXmlEnc.delete();
+        // if we are encrypting, the form cannot be
+        // reopened afterward
+        // and encrypt the submission (this is a
+        // one-way operation)...
+        // the plaintext submission is streamed into the cipher; it is
+        // never written to disk.
+        if (!EncryptionUtils.generateEncryptedSubmission(freturn, xml, submissionXml,
+            submissionXmlEnc, formInfo)) {
+          return null;
+        }
+        // at this point, the freturn object has
+        // been re-written with the encrypted media
+        // and xml files.
+      } else {
+        exportFile(xml, submissionXml, logger);
+      }
+
+    } else {
+      // Pre-processing -- collapse all mimeUri into filename
+      for (ColumnDefinition defn : settings.orderedDefns.getColumnDefinitions()) {
+        ElementType type = defn.getType();
+        ElementDataType dataType = type.getDataType();
+
+        if (dataType == ElementDataType.object && type.getElementType().equals("mimeUri")) {
+          Map<String, Object> parent = null;
+          List<ColumnDefinition> parents = new ArrayList<ColumnDefinition>();
+          ColumnDefinition d = defn.getParent();
+          while (d != null) {
+            parents.add(d);
+            d = d.getParent();
+          }
+          parent = values;
+          for (int i = parents.size() - 1; i >= 0; --i) {
+            Object o = parent.get(parents.get(i).getElementName());
+            if (o == null) {
+              parent = null;
+              break;
+            }
+            parent = (Map<String, Object>) o;
+          }
+          if (parent != null) {
+            Object o = parent.get(defn.getElementName());
+            if (o != null) {
+              if (dataType == ElementDataType.object
+                  && type.getElementType().equals("mimeUri")) {
+                Map<String, Object> mimeuri = (Map<String, Object>) o;
+                String uriFragment = (String) mimeuri.get("uriFragment");
+                String contentType = (String) mimeuri.get("contentType");
+                File f = ODKFileUtils.getAsFile(appName, uriFragment);
+                if (f.equals(manifest)) {
+                  throw new IllegalStateException("Unexpected collision with manifest.json");
+                }
+                freturn.addAttachmentFile(f, contentType);
+                parent.put(defn.getElementName(), f.getName());
+              } else {
+                throw new IllegalStateException("Unhandled transform case");
+              }
+            }
+          }
+        }
+      }
+
+      // For JSON, we construct the model, then emit model +
+      // meta + data
+      HashMap<String, Object> wrapper = new HashMap<String, Object>();
+      wrapper.put("tableId", tableId);
+      wrapper.put("instanceId", instanceId);
+      HashMap<String, Object> formDef = new HashMap<String, Object>();
+      formDef.put("table_id", tableId);
+      formDef.put("model", settings.orderedDefns.getDataModel());
+      wrapper.put("formDef", formDef);
+      wrapper.put("data", values);
+      wrapper.put("metadata", new HashMap<String, Object>());
+      HashMap<String, Object> elem = (HashMap<String, Object>) wrapper.get("metadata");
+      if (instanceName != null) {
+        elem.put("instanceName", instanceName);
+      }
+      elem.put("saved", "COMPLETE");
+      elem.put("timestamp", datestamp);
+
+      b.append(ODKFileUtils.mapper.writeValueAsString(wrapper));
+
+      // OK we have the document in the builder (b).
+      String doc = b.toString();
+      exportFile(doc, submissionXml, logger);
+    }
+    exportFile(freturn.serializeUriFragmentList(), manifest, logger);
+    return manifest;
   }
 
   /**
@@ -215,7 +702,6 @@ public class SubmissionProvider extends ContentProvider {
    *
    * where instanceId is the DataTableColumns._ID
    */
-  @SuppressWarnings("unchecked")
   @Override
   public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
 
@@ -266,60 +752,8 @@ public class SubmissionProvider extends ContentProvider {
         throw new SQLException("Unknown URI (missing data table for tableId) " + uri);
       }
 
-      // Get the table properties specific to XML submissions
-
-      String xmlInstanceName = null;
-      String xmlRootElementName = null;
-      String xmlDeviceIdPropertyName = null;
-      String xmlUserIdPropertyName = null;
-      String xmlBase64RsaPublicKey = null;
-
       try {
-
-        Cursor c = null;
-        try {
-          c = db.query(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME, new String[] {
-              KeyValueStoreColumns.KEY, KeyValueStoreColumns.VALUE }, KeyValueStoreColumns.TABLE_ID
-              + "=? AND " + KeyValueStoreColumns.PARTITION + "=? AND "
-              + KeyValueStoreColumns.ASPECT + "=? AND " + KeyValueStoreColumns.KEY
-              + " IN (?,?,?,?,?)", new String[] { tableId, KeyValueStoreConstants.PARTITION_TABLE,
-              KeyValueStoreConstants.ASPECT_DEFAULT, KeyValueStoreConstants.XML_INSTANCE_NAME,
-              KeyValueStoreConstants.XML_ROOT_ELEMENT_NAME,
-              KeyValueStoreConstants.XML_DEVICE_ID_PROPERTY_NAME,
-              KeyValueStoreConstants.XML_USER_ID_PROPERTY_NAME,
-              KeyValueStoreConstants.XML_BASE64_RSA_PUBLIC_KEY }, null, null, null, null);
-          c.moveToFirst();
-
-          if (c.getCount() > 0) {
-            int idxKey = c.getColumnIndex(KeyValueStoreColumns.KEY);
-            int idxValue = c.getColumnIndex(KeyValueStoreColumns.VALUE);
-            do {
-              String key = c.getString(idxKey);
-              String value = c.getString(idxValue);
-              if (KeyValueStoreConstants.XML_INSTANCE_NAME.equals(key)) {
-                xmlInstanceName = value;
-              } else if (KeyValueStoreConstants.XML_ROOT_ELEMENT_NAME.equals(key)) {
-                xmlRootElementName = value;
-              } else if (KeyValueStoreConstants.XML_DEVICE_ID_PROPERTY_NAME.equals(key)) {
-                xmlDeviceIdPropertyName = value;
-              } else if (KeyValueStoreConstants.XML_USER_ID_PROPERTY_NAME.equals(key)) {
-                xmlUserIdPropertyName = value;
-              } else if (KeyValueStoreConstants.XML_BASE64_RSA_PUBLIC_KEY.equals(key)) {
-                xmlBase64RsaPublicKey = value;
-              }
-            } while (c.moveToNext());
-          }
-        } finally {
-          c.close();
-          c = null;
-        }
-
-        OrderedColumns orderedDefns = ODKDatabaseImplUtils.get()
-            .getUserDefinedColumns(db, tableId);
-
-        // Retrieve the values of the record to be emitted...
-
-        HashMap<String, Object> values = new HashMap<String, Object>();
+        SubmissionTableSettings settings = getSubmissionTableSettings(db, tableId, aul);
 
         // issue query to retrieve the most recent non-checkpoint data record
         // for the instanceId
@@ -334,489 +768,184 @@ public class SubmissionProvider extends ContentProvider {
                    .append(DataTableColumns.SAVEPOINT_TYPE).append(" IS NOT NULL").append(")");
 
         String[] selectionArgs = new String[] { instanceId };
-        FileSet freturn = new FileSet(appName);
-
-        String datestamp = null;
 
+        Cursor c = null;
         try {
-
-          ODKDatabaseImplUtils.AccessContext accessContext =
-              ODKDatabaseImplUtils.get().getAccessContext(db, tableId, aul.activeUser,
-                  aul.rolesList);
-
           c = ODKDatabaseImplUtils.get().rawQuery(db, b.toString(), selectionArgs, null,
-              accessContext);
-          b.setLength(0);
+              settings.accessContext);
 
           if (c.moveToFirst() && c.getCount() == 1) {
-            String rowETag = null;
-            String defaultAccess = null;
-            String owner = null;
-            String groupReadOnly = null;
-            String groupModify = null;
-            String groupPrivileged = null;
-            String formId = null;
-            String locale = null;
-            String savepointType = null;
-            String savepointCreator = null;
-            String savepointTimestamp = null;
-            String instanceName = null;
-
-            // OK. we have the record -- work through all the terms
-            for (int i = 0; i < c.getColumnCount(); ++i) {
-              ColumnDefinition defn = null;
-              String columnName = c.getColumnName(i);
-              try {
-                defn = orderedDefns.find(columnName);
-              } catch (IllegalArgumentException e) {
-                // ignore...
-              }
-              if (defn != null && !c.isNull(i)) {
-                if (xmlInstanceName != null && defn.getElementName().equals(xmlInstanceName)) {
-                  instanceName = CursorUtils.getIndexAsString(c, i);
-                }
-                // user-defined column
-                ElementType type = defn.getType();
-                ElementDataType dataType = type.getDataType();
-
-                logger.i(t, "element type: " + defn.getElementType());
-                if (dataType == ElementDataType.integer) {
-                  Long value = CursorUtils.getIndexAsType(c, Long.class, i);
-                  putElementValue(values, defn, value);
-                } else if (dataType == ElementDataType.number) {
-                  Double value = CursorUtils.getIndexAsType(c, Double.class, i);
-                  putElementValue(values, defn, value);
-                } else if (dataType == ElementDataType.bool) {
-                  Long tmp = CursorUtils.getIndexAsType(c, Long.class, i);
-                  Boolean value = tmp == null ? null : (tmp != 0);
-                  putElementValue(values, defn, value);
-                } else if (type.getElementType().equals("date")) {
-                  String value = CursorUtils.getIndexAsString(c, i);
-                  String jrDatestamp = (value == null) ? null : (new SimpleDateFormat(
-                      ISO8601_DATE_ONLY_FORMAT, Locale.US)).format(new Date(TableConstants
-                      .milliSecondsFromNanos(value)));
-                  putElementValue(values, defn, jrDatestamp);
-                } else if (type.getElementType().equals("dateTime")) {
-                  String value = CursorUtils.getIndexAsString(c, i);
-                  String jrDatestamp = (value == null) ? null : (new SimpleDateFormat(
-                      ISO8601_DATE_FORMAT, Locale.US)).format(new Date(TableConstants
-                      .milliSecondsFromNanos(value)));
-                  putElementValue(values, defn, jrDatestamp);
-                } else if (type.getElementType().equals("time")) {
-                  String value = CursorUtils.getIndexAsString(c, i);
-                  putElementValue(values, defn, value);
-                } else if (dataType == ElementDataType.array) {
-                  ArrayList<Object> al = CursorUtils.getIndexAsType(c, ArrayList.class,
-                      i);
-                  putElementValue(values, defn, al);
-                } else if (dataType == ElementDataType.string) {
-                  String value = CursorUtils.getIndexAsString(c, i);
-                  putElementValue(values, defn, value);
-                } else /* unrecognized */{
-                  throw new IllegalStateException("unrecognized data type: "
-                      + defn.getElementType());
-                }
-
-              } else if (columnName.equals(DataTableColumns.SAVEPOINT_TIMESTAMP)) {
-                savepointTimestamp = CursorUtils.getIndexAsString(c, i);
-              } else if (columnName.equals(DataTableColumns.ROW_ETAG)) {
-                rowETag = CursorUtils.getIndexAsString(c, i);
-              } else if (columnName.equals(DataTableColumns.DEFAULT_ACCESS)) {
-                defaultAccess = CursorUtils.getIndexAsString(c, i);
-              } else if (columnName.equals(DataTableColumns.ROW_OWNER)) {
-                owner = CursorUtils.getIndexAsString(c, i);
-              } else if (columnName.equals(DataTableColumns.FORM_ID)) {
-                formId = CursorUtils.getIndexAsString(c, i);
-              } else if (columnName.equals(DataTableColumns.LOCALE)) {
-                locale = CursorUtils.getIndexAsString(c, i);
-              } else if (columnName.equals(DataTableColumns.FORM_ID)) {
-                formId = CursorUtils.getIndexAsString(c, i);
-              } else if (columnName.equals(DataTableColumns.SAVEPOINT_TYPE)) {
-                savepointType = CursorUtils.getIndexAsString(c, i);
-              } else if (columnName.equals(DataTableColumns.SAVEPOINT_CREATOR)) {
-                savepointCreator = CursorUtils.getIndexAsString(c, i);
-              } else if (columnName.equals(DataTableColumns.GROUP_READ_ONLY)) {
-                groupReadOnly = CursorUtils.getIndexAsString(c, i);
-              } else if (columnName.equals(DataTableColumns.GROUP_MODIFY)) {
-                groupModify = CursorUtils.getIndexAsString(c, i);
-              } else if (columnName.equals(DataTableColumns.GROUP_PRIVILEGED)) {
-                groupPrivileged = CursorUtils.getIndexAsString(c, i);
-              }
+            File manifest = writeSubmission(c, asXml, appName, tableId, instanceId,
+                submissionInstanceId, settings, propertyManager, aul, logger);
+            if (manifest == null) {
+              return null;
             }
+            return ParcelFileDescriptor.open(manifest, ParcelFileDescriptor.MODE_READ_ONLY);
+          }
+        } finally {
+          if (c != null && !c.isClosed()) {
+            c.close();
+            c = null;
+          }
+        }
 
-            // OK got all the values into the values map -- emit
-            // contents
-            b.setLength(0);
-            File submissionXml = new File(ODKFileUtils.getInstanceFolder(appName, tableId,
-                instanceId), (asXml ? "submission.xml" : "submission.json"));
-            File manifest = new File(ODKFileUtils.getInstanceFolder(appName, tableId, instanceId),
-                "manifest.json");
-            submissionXml.delete();
-            manifest.delete();
-            freturn.instanceFile = submissionXml;
-
-            if (asXml) {
-              // Pre-processing -- collapse all geopoints into a
-              // string-valued representation
-              for (ColumnDefinition defn : orderedDefns.getColumnDefinitions()) {
-                ElementType type = defn.getType();
-                ElementDataType dataType = type.getDataType();
-                if (dataType == ElementDataType.object
-                    && (type.getElementType().equals("geopoint") || type.getElementType().equals(
-                        "mimeUri"))) {
-                  Map<String, Object> parent = null;
-                  List<ColumnDefinition> parents = new ArrayList<ColumnDefinition>();
-                  ColumnDefinition d = defn.getParent();
-                  while (d != null) {
-                    parents.add(d);
-                    d = d.getParent();
-                  }
-                  parent = values;
-                  for (int i = parents.size() - 1; i >= 0; --i) {
-                    Object o = parent.get(parents.get(i).getElementName());
-                    if (o == null) {
-                      parent = null;
-                      break;
-                    }
-                    parent = (Map<String, Object>) o;
-                  }
-                  if (parent != null) {
-                    Object o = parent.get(defn.getElementName());
-                    if (o != null) {
-                      if (type.getElementType().equals("geopoint")) {
-                        Map<String, Object> geopoint = (Map<String, Object>) o;
-                        // OK. we have geopoint -- get the
-                        // lat, long, alt, etc.
-                        Double latitude = (Double) geopoint.get("latitude");
-                        Double longitude = (Double) geopoint.get("longitude");
-                        Double altitude = (Double) geopoint.get("altitude");
-                        Double accuracy = (Double) geopoint.get("accuracy");
-                        String gpt = "" + latitude + " " + longitude + " " + altitude + " "
-                            + accuracy;
-                        parent.put(defn.getElementName(), gpt);
-                      } else if (type.getElementType().equals("mimeUri")) {
-                        Map<String, Object> mimeuri = (Map<String, Object>) o;
-                        String uriFragment = (String) mimeuri.get("uriFragment");
-                        String contentType = (String) mimeuri.get("contentType");
-
-                        if (uriFragment != null) {
-                          File f = ODKFileUtils.getAsFile(appName, uriFragment);
-                          if (f.equals(manifest)) {
-                            throw new IllegalStateException(
-                                "Unexpected collision with manifest.json");
-                          }
-                          freturn.addAttachmentFile(f, contentType);
-                          parent.put(defn.getElementName(), f.getName());
-                        }
-                      } else {
-                        throw new IllegalStateException("Unhandled transform case");
-                      }
-                    }
-                  }
-                }
-              }
-
-              datestamp = (new SimpleDateFormat(ISO8601_DATE_FORMAT, Locale.US))
-                  .format(new Date(TableConstants.milliSecondsFromNanos(savepointTimestamp)));
-
-              // For XML, we traverse the map to serialize it
-              DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-              DocumentBuilder docBuilder = dbf.newDocumentBuilder();
-              
-              Document d = docBuilder.newDocument();
-
-              d.setXmlStandalone(true);
-              
-              Element e = d.createElement(
-                  (xmlRootElementName == null) ? "data" : xmlRootElementName);
-              d.appendChild(e);
-              e.setAttribute("id", tableId);
-              DynamicPropertiesCallback cb = new DynamicPropertiesCallback(appName,
-                  tableId, instanceId, aul.activeUser, aul.locale);
-
-              int idx = 0;
-              Element meta = d.createElementNS(XML_OPENROSA_NAMESPACE, "meta");
-              meta.setPrefix("jr");
-
-              Element v = d.createElementNS(XML_OPENROSA_NAMESPACE, "instanceID");
-              Text txtNode = d.createTextNode(submissionInstanceId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              if (xmlDeviceIdPropertyName != null) {
-                String deviceId = propertyManager.getSingularProperty(xmlDeviceIdPropertyName, cb);
-                if (deviceId != null) {
-                  v = d.createElementNS(XML_OPENROSA_NAMESPACE, "deviceID");
-                  txtNode = d.createTextNode(deviceId);
-                  v.appendChild(txtNode);
-                  meta.appendChild(v);
-                }
-              }
-              if (xmlUserIdPropertyName != null) {
-                String userId = propertyManager.getSingularProperty(xmlUserIdPropertyName, cb);
-                if (userId != null) {
-                  v = d.createElementNS(XML_OPENROSA_NAMESPACE, "userID");
-                  txtNode = d.createTextNode(userId);
-                  v.appendChild(txtNode);
-                  meta.appendChild(v);
-                }
-              }
-              v = d.createElementNS(XML_OPENROSA_NAMESPACE, "timeEnd");
-              txtNode = d.createTextNode(datestamp);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // these are extra metadata tags...
-              if (instanceName != null) {
-                v = d.createElement("instanceName");
-                txtNode = d.createTextNode(instanceName);
-                v.appendChild(txtNode);
-                meta.appendChild(v);
-              } else {
-                v = d.createElement("instanceName");
-                txtNode = d.createTextNode(savepointTimestamp);
-                v.appendChild(txtNode);
-                meta.appendChild(v);
-              }
-
-              // these are extra metadata tags...
-              // rowID
-              v = d.createElement("rowID");
-              txtNode = d.createTextNode(instanceId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // rowETag
-              v = d.createElement("rowETag");
-              if (rowETag != null) {
-                txtNode = d.createTextNode(rowETag);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
+      } catch (JsonParseException e) {
+        logger.printStackTrace(e);
+      } catch (JsonMappingException e) {
+        logger.printStackTrace(e);
+      } catch (IOException e) {
+        logger.printStackTrace(e);
+      }
 
-              // defaultAccess
-              v = d.createElement("defaultAccess");
-              if (defaultAccess != null) {
-                txtNode = d.createTextNode(defaultAccess);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
+    } finally {
+      if ( db != null ) {
+        try {
+          // release the reference...
+          // this does not necessarily close the db handle
+          // or terminate any pending transaction
+          db.releaseReference();
+        } finally {
+          // this will release the final reference and close the database
+          OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(appName,
+              dbHandleName);
+        }
+      }
+    }
+    return null;
+  }
 
-              // owner
-              v = d.createElement("owner");
-              if (owner != null) {
-                txtNode = d.createTextNode(owner);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
+  /**
+   * Bulk form of openFile for uploaders that send many instances at once. See
+   * {@link #METHOD_EXPORT_SUBMISSIONS}.
+   * <p>
+   * The connection, the table's XML settings, its column definitions and the
+   * access context are obtained once for the whole batch, and the instances
+   * are read with one query per {@link #MAX_INSTANCES_PER_QUERY} rows rather
+   * than a correlated subquery per instance.
+   */
+  @Override
+  public Bundle call(@NonNull String method, String arg, Bundle extras) {
 
-              // groupReadOnly
-              v = d.createElement("groupReadOnly");
-              if (groupReadOnly != null) {
-                txtNode = d.createTextNode(groupReadOnly);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
+    possiblyWaitForContentProviderDebugger();
 
-              // groupModify
-              v = d.createElement("groupModify");
-              if (groupModify != null) {
-                txtNode = d.createTextNode(groupModify);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
+    if (!METHOD_EXPORT_SUBMISSIONS.equals(method)) {
+      return super.call(method, arg, extras);
+    }
 
-              // groupPrivileged
-              v = d.createElement("groupPrivileged");
-              if (groupPrivileged != null) {
-                txtNode = d.createTextNode(groupPrivileged);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // formID
-              v = d.createElement("formID");
-              txtNode = d.createTextNode(formId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // locale
-              v = d.createElement("locale");
-              txtNode = d.createTextNode(locale);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // savepointType
-              v = d.createElement("savepointType");
-              txtNode = d.createTextNode(savepointType);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // savepointCreator
-              v = d.createElement("savepointCreator");
-              if (savepointCreator != null) {
-                txtNode = d.createTextNode(savepointCreator);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
+    final String appName = arg;
+    if (appName == null || extras == null) {
+      throw new IllegalArgumentException("appName and extras must be specified");
+    }
+    final String tableId = extras.getString(EXTRA_TABLE_ID);
+    final String[] instanceIds = extras.getStringArray(EXTRA_INSTANCE_IDS);
+    final String[] submissionInstanceIds = extras.getStringArray(EXTRA_SUBMISSION_INSTANCE_IDS);
+    final boolean asXml = extras.getBoolean(EXTRA_AS_XML, true);
+    if (tableId == null || instanceIds == null || submissionInstanceIds == null
+        || instanceIds.length != submissionInstanceIds.length) {
+      throw new IllegalArgumentException("tableId and parallel arrays of instanceIds and "
+          + "submissionInstanceIds must be specified");
+    }
 
-              // savepointTimestamp
-              v = d.createElement("savepointTimestamp");
-              txtNode = d.createTextNode(savepointTimestamp);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
+    PropertyManager propertyManager = new PropertyManager(getContext());
 
-              // and insert the meta block into the XML
+    ODKFileUtils.verifyExternalStorageAvailability();
+    ODKFileUtils.assertDirectoryStructure(appName);
+    WebLoggerIf logger = WebLogger.getLogger(appName);
 
-              e.appendChild(meta);
+    ActiveUserAndLocale aul =
+        ActiveUserAndLocale.getActiveUserAndLocale(getContext(), appName);
 
-              idx = 3;
-              ArrayList<String> entryNames = new ArrayList<String>();
-              entryNames.addAll(values.keySet());
-              Collections.sort(entryNames);
-              for (String name : entryNames) {
-                idx = generateXmlHelper(d, e, idx, name, values, logger);
-              }
+    // instanceId -> indexes into the request (an instanceId may be repeated)
+    HashMap<String, List<Integer>> requested = new HashMap<String, List<Integer>>();
+    for (int i = 0; i < instanceIds.length; ++i) {
+      List<Integer> indexes = requested.get(instanceIds[i]);
+      if (indexes == null) {
+        indexes = new ArrayList<Integer>();
+        requested.put(instanceIds[i], indexes);
+      }
+      indexes.add(i);
+    }
+    String[] manifestPaths = new String[instanceIds.length];
 
-              TransformerFactory factory = TransformerFactory.newInstance();
-              Transformer transformer = factory.newTransformer();
-              Properties outFormat = new Properties();
-              outFormat.setProperty( OutputKeys.INDENT, "no" );
-              outFormat.setProperty( OutputKeys.METHOD, "xml" );
-              outFormat.setProperty( OutputKeys.OMIT_XML_DECLARATION, "yes" );
-              outFormat.setProperty( OutputKeys.VERSION, "1.0" );
-              outFormat.setProperty( OutputKeys.ENCODING, "UTF-8" );
-              transformer.setOutputProperties( outFormat );
-
-              ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-              DOMSource domSource = new DOMSource( d.getDocumentElement() );
-              StreamResult result = new StreamResult( out );
-              transformer.transform( domSource, result );
-
-              out.flush();
-              out.close();
-
-              b.append(out.toString(CharEncoding.UTF_8));
-
-              // OK we have the document in the builder (b).
-              String doc = b.toString();
-
-              freturn.instanceFile = submissionXml;
-
-              // see if the form is encrypted and we can
-              // encrypt it...
-              EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(
-                  appName, tableId, xmlBase64RsaPublicKey, instanceId);
-              if (formInfo != null) {
-                File submissionXmlEnc = new File(submissionXml.getParentFile(),
-                    submissionXml.getName() + ".enc");
-                submissionXmlEnc.delete();
-                // if we are encrypting, the form cannot be
-                // reopened afterward
-                // and encrypt the submission (this is a
-                // one-way operation)...
-                if (!EncryptionUtils.generateEncryptedSubmission(freturn, doc, submissionXml,
-                    submissionXmlEnc, formInfo)) {
-                  return null;
-                }
-                // at this point, the freturn object has
-                // been re-written with the encrypted media
-                // and xml files.
-              } else {
-                exportFile(doc, submissionXml, logger);
-              }
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
+    OdkConnectionInterface db = null;
+    try {
+      // +1 referenceCount if db is returned (non-null)
+      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
 
-            } else {
-              // Pre-processing -- collapse all mimeUri into filename
-              for (ColumnDefinition defn : orderedDefns.getColumnDefinitions()) {
-                ElementType type = defn.getType();
-                ElementDataType dataType = type.getDataType();
-
-                if (dataType == ElementDataType.object && type.getElementType().equals("mimeUri")) {
-                  Map<String, Object> parent = null;
-                  List<ColumnDefinition> parents = new ArrayList<ColumnDefinition>();
-                  ColumnDefinition d = defn.getParent();
-                  while (d != null) {
-                    parents.add(d);
-                    d = d.getParent();
-                  }
-                  parent = values;
-                  for (int i = parents.size() - 1; i >= 0; --i) {
-                    Object o = parent.get(parents.get(i).getElementName());
-                    if (o == null) {
-                      parent = null;
-                      break;
-                    }
-                    parent = (Map<String, Object>) o;
-                  }
-                  if (parent != null) {
-                    Object o = parent.get(defn.getElementName());
-                    if (o != null) {
-                      if (dataType == ElementDataType.object
-                          && type.getElementType().equals("mimeUri")) {
-                        Map<String, Object> mimeuri = (Map<String, Object>) o;
-                        String uriFragment = (String) mimeuri.get("uriFragment");
-                        String contentType = (String) mimeuri.get("contentType");
-                        File f = ODKFileUtils.getAsFile(appName, uriFragment);
-                        if (f.equals(manifest)) {
-                          throw new IllegalStateException("Unexpected collision with manifest.json");
-                        }
-                        freturn.addAttachmentFile(f, contentType);
-                        parent.put(defn.getElementName(), f.getName());
-                      } else {
-                        throw new IllegalStateException("Unhandled transform case");
-                      }
-                    }
-                  }
-                }
-              }
+      boolean success = false;
+      try {
+        success = ODKDatabaseImplUtils.get().hasTableId(db, tableId);
+      } catch (Exception e) {
+        logger.printStackTrace(e);
+        throw new SQLException("Unknown tableId (exception testing for tableId) " + tableId);
+      }
+      if (!success) {
+        throw new SQLException("Unknown tableId (missing data table for tableId) " + tableId);
+      }
 
-              // For JSON, we construct the model, then emit model +
-              // meta + data
-              HashMap<String, Object> wrapper = new HashMap<String, Object>();
-              wrapper.put("tableId", tableId);
-              wrapper.put("instanceId", instanceId);
-              HashMap<String, Object> formDef = new HashMap<String, Object>();
-              formDef.put("table_id", tableId);
-              formDef.put("model", orderedDefns.getDataModel());
-              wrapper.put("formDef", formDef);
-              wrapper.put("data", values);
-              wrapper.put("metadata", new HashMap<String, Object>());
-              HashMap<String, Object> elem = (HashMap<String, Object>) wrapper.get("metadata");
-              if (instanceName != null) {
-                elem.put("instanceName", instanceName);
-              }
-              elem.put("saved", "COMPLETE");
-              elem.put("timestamp", datestamp);
+      SubmissionTableSettings settings = getSubmissionTableSettings(db, tableId, aul);
 
-              b.append(ODKFileUtils.mapper.writeValueAsString(wrapper));
+      ArrayList<String> distinctIds = new ArrayList<String>(requested.keySet());
+      for (int offset = 0; offset < distinctIds.size(); offset += MAX_INSTANCES_PER_QUERY) {
+        List<String> chunk = distinctIds.subList(offset,
+            Math.min(offset + MAX_INSTANCES_PER_QUERY, distinctIds.size()));
 
-              // OK we have the document in the builder (b).
-              String doc = b.toString();
-              exportFile(doc, submissionXml, logger);
-            }
-            exportFile(freturn.serializeUriFragmentList(), manifest, logger);
-            return ParcelFileDescriptor.open(manifest, ParcelFileDescriptor.MODE_READ_ONLY);
+        // the most recent non-checkpoint data record of each instanceId
+        StringBuilder b = new StringBuilder();
+        b.append("SELECT T.* FROM ").append(tableId).append(" as T JOIN (SELECT ")
+            .append(DataTableColumns.ID).append(", max(")
+            .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(") as _max_ts FROM ")
+            .append(tableId).append(" WHERE ")
+            .append(DataTableColumns.SAVEPOINT_TYPE).append(" IS NOT NULL AND ")
+            .append(DataTableColumns.ID).append(" IN (");
+        for (int i = 0; i < chunk.size(); ++i) {
+          b.append((i == 0) ? "?" : ",?");
+        }
+        b.append(") GROUP BY ").append(DataTableColumns.ID).append(") as V ON T.")
+            .append(DataTableColumns.ID).append("=V.").append(DataTableColumns.ID)
+            .append(" AND T.").append(DataTableColumns.SAVEPOINT_TIMESTAMP).append("=V._max_ts")
+            .append(" WHERE T.").append(DataTableColumns.SAVEPOINT_TYPE).append(" IS NOT NULL");
 
+        Cursor c = null;
+        try {
+          c = ODKDatabaseImplUtils.get().rawQuery(db, b.toString(), chunk.toArray(), null,
+              settings.accessContext);
+          if (!c.moveToFirst()) {
+            continue;
           }
+          int idxId = c.getColumnIndex(DataTableColumns.ID);
+          do {
+            String instanceId = c.getString(idxId);
+            List<Integer> indexes = requested.remove(instanceId);
+            if (indexes == null) {
+              // already written
+              continue;
+            }
+            for (int index : indexes) {
+              try {
+                File manifest = writeSubmission(c, asXml, appName, tableId, instanceId,
+                    submissionInstanceIds[index], settings, propertyManager, aul, logger);
+                if (manifest != null) {
+                  manifestPaths[index] = manifest.getAbsolutePath();
+                }
+              } catch (IOException e) {
+                logger.e(t, "Unable to write submission for " + tableId + " " + instanceId);
+                logger.printStackTrace(e);
+              } catch (IllegalStateException e) {
+                logger.e(t, "Unable to write submission for " + tableId + " " + instanceId);
+                logger.printStackTrace(e);
+              } catch (IllegalArgumentException e) {
+                logger.e(t, "Unable to write submission for " + tableId + " " + instanceId);
+                logger.printStackTrace(e);
+              }
+            }
+          } while (c.moveToNext());
         } finally {
           if (c != null && !c.isClosed()) {
             c.close();
-            c = null;
           }
         }
-
-      } catch (ParserConfigurationException e) {
-        logger.printStackTrace(e);
-      } catch (TransformerException e) {
-        logger.printStackTrace(e);
-      } catch (JsonParseException e) {
-        logger.printStackTrace(e);
-      } catch (JsonMappingException e) {
-        logger.printStackTrace(e);
-      } catch (IOException e) {
-        logger.printStackTrace(e);
       }
 
     } finally {
@@ -833,7 +962,10 @@ public class SubmissionProvider extends ContentProvider {
         }
       }
     }
-    return null;
+
+    Bundle result = new Bundle();
+    result.putStringArray(RESULT_MANIFEST_PATHS, manifestPaths);
+    return result;
   }
 
   /**
@@ -868,6 +1000,40 @@ public class SubmissionProvider extends ContentProvider {
     }
   }
 
+  /**
+   * This method streams the XML submission to disk.
+   *
+   * @param payload writes the submission
+   * @param outputFilePath the path to the file to write
+   * @param  logger a logger to write to, typically gotten with WebLogger.getWebLogger(appName)
+   * @return whether successful or not
+   */
+  private static boolean exportFile(EncryptionUtils.SubmissionWriter payload,
+      File outputFilePath, WebLoggerIf logger) {
+    OutputStream os = null;
+    try {
+      os = new BufferedOutputStream(new FileOutputStream(outputFilePath, false), 8192);
+      payload.writeTo(os);
+      os.flush();
+      os.close();
+      os = null;
+      return true;
+
+    } catch (IOException e) {
+      logger.e(t, "Error writing file");
+      logger.printStackTrace(e);
+      return false;
+    } finally {
+      if (os != null) {
+        try {
+          os.close();
+        } catch (IOException ex) {
+          logger.printStackTrace(ex);
+        }
+      }
+    }
+  }
+
   @Override
   public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
     return 0;
@@ -18,8 +18,10 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.RemoteException;
 import android.util.Log;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import org.opendatakit.aggregate.odktables.rest.KeyValueStoreConstants;
@@ -35,6 +37,8 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.properties.PropertyManager;
+import org.opendatakit.services.database.service.AidlDbExtensionInterface;
+import org.opendatakit.services.database.service.OdkDatabaseService;
 import org.opendatakit.services.sync.service.logic.Synchronizer;
 import org.opendatakit.services.sync.service.logic.Synchronizer.SynchronizerStatus;
 import org.opendatakit.sync.service.SyncOutcome;
@@ -430,6 +434,129 @@ public class SyncExecutionContext implements SynchronizerStatus {
     }
   }
 
+  private class ExtensionServiceConnectionWrapper implements ServiceConnection {
+
+    @Override public void onServiceConnected(ComponentName name, IBinder service) {
+
+      if (!name.getClassName().equals(IntentConsts.Database.DATABASE_SERVICE_CLASS)) {
+        WebLogger.getLogger(getAppName()).e(TAG, "Unrecognized service");
+        return;
+      }
+      synchronized (odkDbExtensionInterfaceBindComplete) {
+        odkDbExtensionInterface = (service == null) ? null :
+            AidlDbExtensionInterface.Stub.asInterface(service);
+        if (odkDbExtensionInterface != null) {
+          try {
+            // have our unfetched chunks discarded promptly if this process dies mid-sync
+            odkDbExtensionInterface.registerChunkClient(chunkClientToken);
+          } catch (RemoteException e) {
+            WebLogger.getLogger(getAppName()).w(TAG,
+                "Unable to register for the release of chunks: " + e.toString());
+          }
+        }
+
+        extensionActive = false;
+        odkDbExtensionInterfaceBindComplete.notify();
+      }
+    }
+
+    @Override public void onServiceDisconnected(ComponentName name) {
+      synchronized (odkDbExtensionInterfaceBindComplete) {
+        odkDbExtensionInterface = null;
+        extensionActive = false;
+        odkDbExtensionInterfaceBindComplete.notify();
+      }
+    }
+  }
+
+  private final ExtensionServiceConnectionWrapper odkDbExtensionServiceConnection =
+      new ExtensionServiceConnectionWrapper();
+  private final Object odkDbExtensionInterfaceBindComplete = new Object();
+  private AidlDbExtensionInterface odkDbExtensionInterface;
+  private final Binder chunkClientToken = new Binder();
+  private boolean extensionActive = false;
+
+  /**
+   * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+   */
+  private AidlDbExtensionInterface invokeBindExtensionService() throws InterruptedException {
+
+    Log.i(TAG, "Attempting or polling on bind to Database service extension interface");
+    Intent bind_intent = new Intent(OdkDatabaseService.ACTION_BIND_EXTENSION_INTERFACE);
+    bind_intent.setClassName(IntentConsts.Database.DATABASE_SERVICE_PACKAGE,
+        IntentConsts.Database.DATABASE_SERVICE_CLASS);
+
+    synchronized (odkDbExtensionInterfaceBindComplete) {
+      if ( !extensionActive ) {
+        extensionActive = true;
+        application.bindService(bind_intent, odkDbExtensionServiceConnection,
+            Context.BIND_AUTO_CREATE | Context.BIND_ADJUST_WITH_ACTIVITY);
+      }
+
+      odkDbExtensionInterfaceBindComplete.wait();
+
+      if (odkDbExtensionInterface != null) {
+        return odkDbExtensionInterface;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Begin a bulk session on the connection of the database handle: until
+   * endBulkSession, the commits made through it are not fsync'd.
+   *
+   * @param odkDbHandle the handle returned by getDatabase()
+   * @throws ServicesAvailabilityException
+   */
+  public void beginBulkSession(DbHandle odkDbHandle) throws ServicesAvailabilityException {
+    try {
+      getDatabaseExtensionService().privilegedBeginBulkSession(appName, odkDbHandle);
+    } catch (RemoteException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new ServicesAvailabilityException("Unable to begin bulk session: " + e.toString());
+    }
+  }
+
+  /**
+   * End the bulk session; returns once all of its commits are durable.
+   *
+   * @param odkDbHandle the handle passed to beginBulkSession()
+   * @throws ServicesAvailabilityException
+   */
+  public void endBulkSession(DbHandle odkDbHandle) throws ServicesAvailabilityException {
+    try {
+      getDatabaseExtensionService().privilegedEndBulkSession(appName, odkDbHandle);
+    } catch (RemoteException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw new ServicesAvailabilityException("Unable to end bulk session: " + e.toString());
+    }
+  }
+
+  private AidlDbExtensionInterface getDatabaseExtensionService() {
+
+    // block waiting for it to be bound...
+    for (;;) {
+      try {
+
+        synchronized (odkDbExtensionInterfaceBindComplete) {
+          if (odkDbExtensionInterface != null) {
+            return odkDbExtensionInterface;
+          }
+        }
+
+        // call method that waits on odkDbExtensionInterfaceBindComplete
+        AidlDbExtensionInterface extensionInterface = invokeBindExtensionService();
+        if ( extensionInterface != null ) {
+          return extensionInterface;
+        }
+
+      } catch (InterruptedException e) {
+        // expected if we are waiting. Ignore because we log bind attempt if spinning.
+      }
+    }
+  }
+
   public void resetMajorSyncSteps(int nMajorSyncSteps) {
     this.nMajorSyncSteps = nMajorSyncSteps;
     this.GRAINS_PER_MAJOR_SYNC_STEP = (OVERALL_PROGRESS_BAR_LENGTH / nMajorSyncSteps);
@@ -123,9 +123,15 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
 
     {
       DbHandle db = null;
+      boolean inBulkSession = false;
       try {
         db = sc.getDatabase();
 
+        // the batch is applied one row per transaction; do not fsync each of those commits.
+        // Ending the session makes them all durable before the dataETag is advanced.
+        sc.beginBulkSession(db);
+        inBulkSession = true;
+
         /**************************
          * PART 2: UPDATE THE DATA
          **************************/
@@ -311,8 +317,14 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
 
       } finally {
         if (db != null) {
-          sc.releaseDatabase(db);
-          db = null;
+          try {
+            if (inBulkSession) {
+              sc.endBulkSession(db);
+            }
+          } finally {
+            sc.releaseDatabase(db);
+            db = null;
+          }
         }
       }
     }
@@ -31,6 +31,7 @@ import org.opendatakit.provider.TableDefinitionsColumns;
 import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.utilities.ProviderQueryBounds;
 import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.File;
@@ -80,7 +81,7 @@ public class TablesProvider extends ContentProvider {
   public boolean onCreate() {
 
     // IMPORTANT NOTE: the Application object is not yet created!
-    AndroidConnectFactory.configure();
+    AndroidConnectFactory.configure(getContext());
 
     try {
       ODKFileUtils.verifyExternalStorageAvailability();
@@ -118,6 +119,12 @@ public class TablesProvider extends ContentProvider {
 
     String uriTableId = ((segments.size() == 2) ? segments.get(1) : null);
 
+    // push any limit and offset down into the query; pages need a stable order
+    String limit = ProviderQueryBounds.getLimitClause(uri);
+    if (limit != null && TextUtils.isEmpty(sortOrder)) {
+      sortOrder = TableDefinitionsColumns.TABLE_ID;
+    }
+
     // Modify the where clause to account for the presence of a tableId
     String whereId;
     String[] whereIdArgs;
@@ -148,7 +155,7 @@ public class TablesProvider extends ContentProvider {
       // +1 referenceCount if db is returned (non-null)
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
       c = db.query(DatabaseConstants.TABLE_DEFS_TABLE_NAME, projection, whereId, whereIdArgs,
-          null, null, sortOrder, null);
+          null, null, sortOrder, limit);
 
       if (c == null) {
         logger.w(t, "Unable to query database for appName: " + appName);
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.utilities;
+
+import android.content.Context;
+import android.net.Uri;
+import org.opendatakit.logging.WebLogger;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesce the change notifications that a content provider sends for a table.
+ * <p>
+ * An uploader reports the status of each instance as a separate update. Were
+ * each update to notify its observers, every open cursor on the table would be
+ * requeried once per instance. Instead, the first change to an (appName,
+ * tableId) schedules a single notification of the table's uri a short window
+ * later; changes made before it is sent are covered by it. Observers of the
+ * uris of individual rows are descendants of the table's uri and are notified
+ * along with it.
+ * <p>
+ * All notifications are sent from a single shared daemon thread.
+ */
+public final class ChangeNotificationCoalescer {
+
+  private static final String TAG = ChangeNotificationCoalescer.class.getSimpleName();
+
+  /**
+   * How long after the first change of a burst its notification is sent
+   */
+  public static final long COALESCING_WINDOW_MILLIS = 250L;
+
+  private static ScheduledExecutorService sExecutor = null;
+
+  /**
+   * The table uris that have a notification scheduled
+   */
+  private static final Set<String> pending =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private ChangeNotificationCoalescer() {
+  }
+
+  private static synchronized ScheduledExecutorService getExecutor() {
+    if (sExecutor == null) {
+      sExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, TAG);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return sExecutor;
+  }
+
+  /**
+   * @param uri     a uri of the provider
+   * @param appName
+   * @param tableId
+   * @return the uri of the provider for the given appName and tableId
+   */
+  public static Uri getTableUri(Uri uri, String appName, String tableId) {
+    return new Uri.Builder().scheme(uri.getScheme()).authority(uri.getAuthority())
+        .appendPath(appName).appendPath(tableId).build();
+  }
+
+  /**
+   * Notify the observers of the table, and of its rows, that it has changed.
+   * Call after the change has been committed.
+   *
+   * @param context
+   * @param appName
+   * @param tableUri the uri of the table, as returned by getTableUri()
+   */
+  public static void notifyChange(Context context, final String appName, final Uri tableUri) {
+    final String key = tableUri.toString();
+    if (!pending.add(key)) {
+      // the notification that is already scheduled covers this change
+      return;
+    }
+    final Context appContext = (context.getApplicationContext() == null) ?
+        context : context.getApplicationContext();
+    try {
+      getExecutor().schedule(new Runnable() {
+        @Override
+        public void run() {
+          // changes from here on schedule another notification
+          pending.remove(key);
+          try {
+            appContext.getContentResolver().notifyChange(tableUri, null);
+          } catch (Exception e) {
+            // swallow error if we can't notify of change...
+            WebLogger.getLogger(appName).e(TAG, "notifyChange failed");
+            WebLogger.getLogger(appName).printStackTrace(e);
+          }
+        }
+      }, COALESCING_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (RuntimeException e) {
+      pending.remove(key);
+      throw e;
+    }
+  }
+}
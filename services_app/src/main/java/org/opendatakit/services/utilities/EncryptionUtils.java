@@ -40,7 +40,7 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -49,18 +49,31 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.DigestOutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Utility class for encrypting submissions during the SaveToDiskTask.
@@ -96,9 +109,117 @@ public class EncryptionUtils {
   private static final String BASE64_ENCRYPTED_ELEMENT_SIGNATURE = "base64EncryptedElementSignature";
   private static final String NEW_LINE = "\n";
 
+  /**
+   * Size of the buffer with which a file is read, hashed and encrypted
+   */
+  private static final int ENCRYPTION_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Most attachments of a submission that are encrypted at the same time
+   */
+  private static final int MAX_ENCRYPTION_THREADS = 2;
+
+  private static ThreadPoolExecutor sEncryptionExecutor = null;
+
   private EncryptionUtils() {
   }
 
+  private static synchronized ThreadPoolExecutor getEncryptionExecutor() {
+    if (sEncryptionExecutor == null) {
+      int threads = Math.max(1,
+          Math.min(MAX_ENCRYPTION_THREADS, Runtime.getRuntime().availableProcessors()));
+      sEncryptionExecutor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "EncryptionUtils");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      sEncryptionExecutor.allowCoreThreadTimeOut(true);
+    }
+    return sEncryptionExecutor;
+  }
+
+  /**
+   * Produces the plaintext of a submission. The submission is written straight
+   * into the cipher stream, so it never needs to be held in memory.
+   */
+  public interface SubmissionWriter {
+    /**
+     * Write the UTF-8 encoded submission. The stream is closed by the caller.
+     *
+     * @param out
+     * @throws IOException
+     */
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /**
+   * The encryption state that is the same for every instance of a form: the
+   * parsed RSA public key and the providers that implement the ciphers.
+   * Looking these up (and decoding the key) costs more than encrypting a
+   * typical submission, so they are cached across instances. The symmetric
+   * key and IV remain per-instance.
+   */
+  static final class FormEncryptionContext {
+    final PublicKey rsaPublicKey;
+    final Base64Wrapper wrapper;
+    // resolved by the first cipher that is initialized, then reused
+    private volatile Provider asymmetricProvider = null;
+    private volatile Provider symmetricProvider = null;
+
+    FormEncryptionContext(PublicKey rsaPublicKey, Base64Wrapper wrapper) {
+      this.rsaPublicKey = rsaPublicKey;
+      this.wrapper = wrapper;
+    }
+
+    Cipher getAsymmetricCipher() throws NoSuchAlgorithmException, NoSuchPaddingException,
+        InvalidKeyException {
+      Provider provider = asymmetricProvider;
+      Cipher c = (provider == null) ? Cipher.getInstance(ASYMMETRIC_ALGORITHM) :
+          Cipher.getInstance(ASYMMETRIC_ALGORITHM, provider);
+      c.init(Cipher.ENCRYPT_MODE, rsaPublicKey);
+      if (provider == null) {
+        // the provider is only chosen once the cipher is initialized
+        asymmetricProvider = c.getProvider();
+      }
+      return c;
+    }
+
+    Cipher getSymmetricCipher(SecretKeySpec symmetricKey, IvParameterSpec iv)
+        throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+        InvalidAlgorithmParameterException {
+      Provider provider = symmetricProvider;
+      Cipher c = (provider == null) ? Cipher.getInstance(SYMMETRIC_ALGORITHM) :
+          Cipher.getInstance(SYMMETRIC_ALGORITHM, provider);
+      c.init(Cipher.ENCRYPT_MODE, symmetricKey, iv);
+      if (provider == null) {
+        symmetricProvider = c.getProvider();
+      }
+      return c;
+    }
+  }
+
+  /**
+   * Most forms whose encryption state is kept
+   */
+  private static final int MAX_CACHED_FORM_CONTEXTS = 16;
+
+  /**
+   * appName and base64 RSA public key to the encryption state of the form(s) using the key.
+   * Least recently used entries are evicted.
+   */
+  private static final Map<String, FormEncryptionContext> formContexts =
+      Collections.synchronizedMap(new LinkedHashMap<String, FormEncryptionContext>(
+          MAX_CACHED_FORM_CONTEXTS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FormEncryptionContext> eldest) {
+          return size() > MAX_CACHED_FORM_CONTEXTS;
+        }
+      });
+
   public static final class EncryptedFormInformation {
     public final String appName;
     public final String tableId;
@@ -111,15 +232,17 @@ public class EncryptionUtils {
     private int ivCounter = 0;
     public final StringBuilder elementSignatureSource = new StringBuilder();
     public final Base64Wrapper wrapper;
+    private final FormEncryptionContext formContext;
 
-    EncryptedFormInformation(String appName, String tableId, String xmlBase64RsaPublicKey, String instanceId, PublicKey rsaPublicKey,
-        Base64Wrapper wrapper) {
+    EncryptedFormInformation(String appName, String tableId, String xmlBase64RsaPublicKey, String instanceId,
+        FormEncryptionContext formContext) {
       this.appName = appName;
       this.tableId = tableId;
       this.instanceId = instanceId;
       this.base64EncryptedFileRsaPublicKey = xmlBase64RsaPublicKey;
-      this.rsaPublicKey = rsaPublicKey;
-      this.wrapper = wrapper;
+      this.formContext = formContext;
+      this.rsaPublicKey = formContext.rsaPublicKey;
+      this.wrapper = formContext.wrapper;
 
       // generate the symmetric key from random bits...
 
@@ -153,9 +276,8 @@ public class EncryptionUtils {
       // construct the base64-encoded RSA-encrypted symmetric key
       try {
         Cipher pkCipher;
-        pkCipher = Cipher.getInstance(ASYMMETRIC_ALGORITHM);
         // write AES key
-        pkCipher.init(Cipher.ENCRYPT_MODE, rsaPublicKey);
+        pkCipher = formContext.getAsymmetricCipher();
         byte[] pkEncryptedKey = pkCipher.doFinal(key);
         String alg = pkCipher.getAlgorithm();
         WebLogger.getLogger(appName).i(t, "AlgorithmUsed: " + alg);
@@ -204,6 +326,19 @@ public class EncryptionUtils {
       appendElementSignatureSource(file.getName() + "::" + md5Hash);
     }
 
+    /**
+     * @param file the plaintext file
+     * @param md5 the raw md5 digest of its contents
+     */
+    public void appendFileSignatureSource(File file, byte[] md5) {
+      // zero-padded, as getNakedMd5Hash does
+      String md5Hash = new BigInteger(1, md5).toString(16);
+      while (md5Hash.length() < 32) {
+        md5Hash = "0" + md5Hash;
+      }
+      appendElementSignatureSource(file.getName() + "::" + md5Hash);
+    }
+
     public String getBase64EncryptedElementSignature() {
       // Step 0: construct the text of the elements in
       // elementSignatureSource (done)
@@ -239,9 +374,8 @@ public class EncryptionUtils {
       // Step 2: construct the base64-encoded RSA-encrypted md5
       try {
         Cipher pkCipher;
-        pkCipher = Cipher.getInstance(ASYMMETRIC_ALGORITHM);
         // write AES key
-        pkCipher.init(Cipher.ENCRYPT_MODE, rsaPublicKey);
+        pkCipher = formContext.getAsymmetricCipher();
         byte[] pkEncryptedKey = pkCipher.doFinal(messageDigest);
         return wrapper.encodeToString(pkEncryptedKey);
 
@@ -273,9 +407,7 @@ public class EncryptionUtils {
       ++ivSeedArray[ivCounter % ivSeedArray.length];
       ++ivCounter;
       IvParameterSpec baseIv = new IvParameterSpec(ivSeedArray);
-      Cipher c = Cipher.getInstance(EncryptionUtils.SYMMETRIC_ALGORITHM);
-      c.init(Cipher.ENCRYPT_MODE, symmetricKey, baseIv);
-      return c;
+      return formContext.getSymmetricCipher(symmetricKey, baseIv);
     }
   }
 
@@ -306,6 +438,13 @@ public class EncryptionUtils {
       return null;
     }
 
+    final String contextKey = appName + "\n" + base64RsaPublicKey;
+    FormEncryptionContext formContext = formContexts.get(contextKey);
+    if (formContext != null) {
+      return new EncryptedFormInformation(appName, tableId, xmlBase64RsaPublicKey, instanceId,
+          formContext);
+    }
+
     int version = android.os.Build.VERSION.SDK_INT;
     if (version < 8) {
       WebLogger.getLogger(appName).e(t, "Phone does not support encryption.");
@@ -340,81 +479,91 @@ public class EncryptionUtils {
       WebLogger.getLogger(appName).e(t, "Invalid RSA public key.");
       return null;
     }
-    return new EncryptedFormInformation(appName, tableId, xmlBase64RsaPublicKey, instanceId, pk, wrapper);
+    formContext = new FormEncryptionContext(pk, wrapper);
+    formContexts.put(contextKey, formContext);
+    return new EncryptedFormInformation(appName, tableId, xmlBase64RsaPublicKey, instanceId,
+        formContext);
   }
 
-  private static void encryptFile(File file, File encryptedFile, EncryptedFormInformation formInfo)
-      throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
-      InvalidAlgorithmParameterException {
-
-    // add elementSignatureSource for this file...
-    formInfo.appendFileSignatureSource(file);
+  /**
+   * Read, hash and encrypt a file in a single pass.
+   *
+   * @param file the plaintext file
+   * @param encryptedFile the file to write
+   * @param c the initialized cipher for this file
+   * @param appName
+   * @return the md5 digest of the plaintext, for the element signature
+   */
+  private static byte[] encryptFile(File file, File encryptedFile, Cipher c, String appName)
+      throws IOException, NoSuchAlgorithmException {
 
     try {
-      Cipher c = formInfo.getCipher();
+      MessageDigest md = MessageDigest.getInstance("MD5");
 
-      OutputStream fout;
-      fout = new FileOutputStream(encryptedFile);
-      fout = new CipherOutputStream(fout, c);
-      InputStream fin;
-      fin = new FileInputStream(file);
-      byte[] buffer = new byte[2048];
-      int len = fin.read(buffer);
-      while (len != -1) {
-        fout.write(buffer, 0, len);
-        len = fin.read(buffer);
+      InputStream fin = null;
+      OutputStream fout = null;
+      try {
+        fin = new FileInputStream(file);
+        fout = new FileOutputStream(encryptedFile);
+        fout = new CipherOutputStream(fout, c);
+        byte[] buffer = new byte[ENCRYPTION_BUFFER_SIZE];
+        int len = fin.read(buffer);
+        while (len != -1) {
+          md.update(buffer, 0, len);
+          fout.write(buffer, 0, len);
+          len = fin.read(buffer);
+        }
+        fout.flush();
+      } finally {
+        try {
+          if (fin != null) {
+            fin.close();
+          }
+        } finally {
+          if (fout != null) {
+            fout.close();
+          }
+        }
       }
-      fin.close();
-      fout.flush();
-      fout.close();
-      WebLogger.getLogger(formInfo.appName).i(t, "Encrpyted:" + file.getName() + " -> " + encryptedFile.getName());
+      WebLogger.getLogger(appName).i(t, "Encrpyted:" + file.getName() + " -> " + encryptedFile.getName());
+      return md.digest();
     } catch (IOException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
+      WebLogger.getLogger(appName).printStackTrace(e);
       throw e;
     } catch (NoSuchAlgorithmException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
-      throw e;
-    } catch (NoSuchPaddingException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
-      throw e;
-    } catch (InvalidKeyException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
-      throw e;
-    } catch (InvalidAlgorithmParameterException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
+      WebLogger.getLogger(appName).printStackTrace(e);
       throw e;
     }
   }
 
-  private static void encryptIntoFile(String contents, File submissionFile, File encryptedFile,
-      EncryptedFormInformation formInfo) throws IOException, NoSuchAlgorithmException,
-      NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
-
-    // add elementSignatureSource for this file...
-    formInfo.appendSubmissionFileSignatureSource(contents, submissionFile);
+  private static void encryptIntoFile(SubmissionWriter contents, File submissionFile,
+      File encryptedFile, EncryptedFormInformation formInfo) throws IOException,
+      NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      InvalidAlgorithmParameterException {
 
     try {
       Cipher c = formInfo.getCipher();
+      MessageDigest md = MessageDigest.getInstance("MD5");
 
-      OutputStream fout;
-      fout = new FileOutputStream(encryptedFile);
-      fout = new CipherOutputStream(fout, c);
-      InputStream fin;
-      fin = new ByteArrayInputStream(contents.getBytes(CharEncoding.UTF_8));
-      byte[] buffer = new byte[2048];
-      int len = fin.read(buffer);
-      while (len != -1) {
-        fout.write(buffer, 0, len);
-        len = fin.read(buffer);
+      // the digest sees the plaintext on its way into the cipher
+      OutputStream fout = null;
+      try {
+        fout = new FileOutputStream(encryptedFile);
+        fout = new CipherOutputStream(fout, c);
+        fout = new BufferedOutputStream(fout, 8192);
+        fout = new DigestOutputStream(fout, md);
+        contents.writeTo(fout);
+        fout.flush();
+      } finally {
+        if (fout != null) {
+          fout.close();
+        }
       }
-      fin.close();
-      fout.flush();
-      fout.close();
+
+      // add elementSignatureSource for this file...
+      formInfo.appendFileSignatureSource(submissionFile, md.digest());
       WebLogger.getLogger(formInfo.appName).i(t, "Encrpyted: content -> " + encryptedFile.getName());
     } catch (IOException e) {
       WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: content -> " + encryptedFile.getName());
@@ -462,7 +611,7 @@ public class EncryptionUtils {
     return allSuccessful;
   }
 
-  private static List<MimeFile> encryptSubmissionFiles(FileSet fileSet, String submission,
+  private static List<MimeFile> encryptSubmissionFiles(FileSet fileSet, SubmissionWriter submission,
                                                        File submissionXml, File submissionXmlEnc, EncryptedFormInformation formInfo) {
 
     // encrypt files that do not end with ".enc"
@@ -475,22 +624,58 @@ public class EncryptionUtils {
       }
     }
     // encrypt here...
-    for (MimeFile f : filesToProcess) {
-      try {
-        File encryptedFile = new File(f.file.getParentFile(), f.file.getName() + ".enc");
-        encryptFile(f.file, encryptedFile, formInfo);
-        f.file = encryptedFile;
+    // The IVs are derived from the ivSeedArray in file order, and the
+    // signature lists the files in that same order, so both are done here,
+    // sequentially; only the reading, hashing and encrypting run in parallel.
+    List<File> encryptedFiles = new ArrayList<File>();
+    List<FutureTask<byte[]>> digests = new ArrayList<FutureTask<byte[]>>();
+    try {
+      for (MimeFile f : filesToProcess) {
+        final File file = f.file;
+        final File encryptedFile = new File(file.getParentFile(), file.getName() + ".enc");
+        final Cipher c = formInfo.getCipher();
+        final String appName = formInfo.appName;
+        FutureTask<byte[]> digest = new FutureTask<byte[]>(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws Exception {
+            return encryptFile(file, encryptedFile, c, appName);
+          }
+        });
+        encryptedFiles.add(encryptedFile);
+        digests.add(digest);
+        if (filesToProcess.size() == 1) {
+          digest.run();
+        } else {
+          getEncryptionExecutor().execute(digest);
+        }
+      }
+
+      for (int i = 0; i < filesToProcess.size(); ++i) {
+        MimeFile f = filesToProcess.get(i);
+        byte[] md5 = digests.get(i).get();
+        // add elementSignatureSource for this file...
+        formInfo.appendFileSignatureSource(f.file, md5);
+        f.file = encryptedFiles.get(i);
         f.contentType = APPLICATION_OCTET_STREAM;
-      } catch (IOException e) {
-        return null;
-      } catch (InvalidKeyException e) {
-        return null;
-      } catch (NoSuchAlgorithmException e) {
-        return null;
-      } catch (NoSuchPaddingException e) {
-        return null;
-      } catch (InvalidAlgorithmParameterException e) {
-        return null;
+      }
+    } catch (ExecutionException e) {
+      // already logged by encryptFile
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (InvalidKeyException e) {
+      return null;
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    } catch (NoSuchPaddingException e) {
+      return null;
+    } catch (InvalidAlgorithmParameterException e) {
+      return null;
+    } finally {
+      // does nothing to the tasks that have completed
+      for (FutureTask<byte[]> digest : digests) {
+        digest.cancel(false);
       }
     }
 
@@ -522,13 +707,13 @@ public class EncryptionUtils {
    * Does not delete any of the original files.
    *
    * @parma fileSet
-   * @param submission
+   * @param submission writes the plaintext submission.xml
    * @param submissionXml
    * @param submissionXmlEnc
    * @param formInfo
    * @return
    */
-  public static boolean generateEncryptedSubmission(FileSet fileSet, String submission,
+  public static boolean generateEncryptedSubmission(FileSet fileSet, SubmissionWriter submission,
       File submissionXml, File submissionXmlEnc, EncryptedFormInformation formInfo) {
 
     // Step 1: encrypt the submission and all the media files...
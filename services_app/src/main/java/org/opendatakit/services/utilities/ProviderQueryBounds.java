@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.utilities;
+
+import android.net.Uri;
+
+/**
+ * The row bounds that a content provider query may carry as query parameters
+ * of its uri, e.g.,
+ * <p>
+ * getFormsAuthority() / appName / tableId ?limit=50&offset=100
+ * <p>
+ * The bounds are handed to SQLite as the LIMIT clause of the query so that
+ * only the requested page of rows is read into the cursor.
+ */
+public final class ProviderQueryBounds {
+
+  /**
+   * Maximum number of rows to return
+   */
+  public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+  /**
+   * Number of leading rows to skip; only meaningful with a sort order
+   */
+  public static final String QUERY_PARAMETER_OFFSET = "offset";
+
+  private ProviderQueryBounds() {
+  }
+
+  /**
+   * Build the LIMIT clause (excluding the LIMIT itself) for the bounds in the uri.
+   *
+   * @param uri the uri of the query
+   * @return the LIMIT clause, or null if the uri does not specify a limit or offset
+   * @throws IllegalArgumentException if a bound is not a non-negative integer
+   */
+  public static String getLimitClause(Uri uri) {
+    try {
+      return getLimitClause(uri.getQueryParameter(QUERY_PARAMETER_LIMIT),
+          uri.getQueryParameter(QUERY_PARAMETER_OFFSET));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(e.getMessage() + " in URI " + uri);
+    }
+  }
+
+  /**
+   * Build the LIMIT clause (excluding the LIMIT itself) for the given bounds.
+   *
+   * @param limitValue  the value of the limit query parameter, or null
+   * @param offsetValue the value of the offset query parameter, or null
+   * @return the LIMIT clause, or null if neither a limit nor an offset is given
+   * @throws IllegalArgumentException if a bound is not a non-negative integer
+   */
+  static String getLimitClause(String limitValue, String offsetValue) {
+    long limit = getBound(QUERY_PARAMETER_LIMIT, limitValue);
+    long offset = getBound(QUERY_PARAMETER_OFFSET, offsetValue);
+    if (limit == -1L && offset == -1L) {
+      return null;
+    }
+    if (limit == -1L) {
+      // an offset requires a limit
+      limit = Long.MAX_VALUE;
+    }
+    if (offset <= 0L) {
+      return Long.toString(limit);
+    }
+    // the "offset,limit" form of the clause
+    return Long.toString(offset) + "," + Long.toString(limit);
+  }
+
+  private static long getBound(String parameter, String value) {
+    if (value == null) {
+      return -1L;
+    }
+    try {
+      long bound = Long.parseLong(value.trim());
+      if (bound >= 0L) {
+        return bound;
+      }
+    } catch (NumberFormatException e) {
+      // fall through
+    }
+    throw new IllegalArgumentException("Invalid " + parameter + " (" + value + ")");
+  }
+}
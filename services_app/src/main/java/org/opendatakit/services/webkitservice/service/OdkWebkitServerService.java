@@ -16,17 +16,24 @@
 package org.opendatakit.services.webkitservice.service;
 
 import android.app.Service;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import fi.iki.elonen.SimpleWebServer;
+import fi.iki.elonen.WebServerMetrics;
 import org.opendatakit.consts.WebkitServerConsts;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.webkitserver.service.WebkitServerInterface;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 public class OdkWebkitServerService extends Service {
 
@@ -41,14 +48,38 @@ public class OdkWebkitServerService extends Service {
     }
   }
 
+  /**
+   * service meta-data (in the AndroidManifest.xml) that, when true, serves
+   * connections through a single selector thread and a bounded worker pool
+   * rather than one thread per connection
+   */
+  private static final String META_DATA_NON_BLOCKING = "org.opendatakit.webkitserver.NON_BLOCKING";
+
+  /**
+   * Bind with this action to obtain the {@link WebkitServerExtensionInterface} rather than the
+   * WebkitServerInterface.
+   */
+  public static final String ACTION_BIND_EXTENSION_INTERFACE =
+      "org.opendatakit.services.webkitservice.service.BIND_EXTENSION_INTERFACE";
+
+  /**
+   * shared across restarts of the server so that counts cover the service lifetime
+   */
+  private final WebServerMetrics metrics = new WebServerMetrics();
+
+  private boolean useNonBlockingServer = false;
+
   private SimpleWebServer server = null;
   private volatile Thread webServer = null;
   private WebkitServiceInterface servInterface;
+  private WebkitServiceExtensionInterface extensionInterface;
 
   @Override
   public void onCreate() {
     super.onCreate();
     servInterface = new WebkitServiceInterface();
+    extensionInterface = new WebkitServiceExtensionInterface();
+    useNonBlockingServer = isNonBlockingServerConfigured();
 
     webServer = new Thread(null, new Runnable() {
       @Override
@@ -76,6 +107,9 @@ public class OdkWebkitServerService extends Service {
   @Override
   public IBinder onBind(Intent intent) {
     possiblyWaitForWebkitServerServiceDebugger();
+    if (intent != null && ACTION_BIND_EXTENSION_INTERFACE.equals(intent.getAction())) {
+      return extensionInterface;
+    }
     return servInterface;
   }
 
@@ -95,11 +129,24 @@ public class OdkWebkitServerService extends Service {
     super.onDestroy();
   }
 
+  private boolean isNonBlockingServerConfigured() {
+    try {
+      ServiceInfo info = getPackageManager().getServiceInfo(
+          new ComponentName(this, OdkWebkitServerService.class), PackageManager.GET_META_DATA);
+      return info.metaData != null && info.metaData.getBoolean(META_DATA_NON_BLOCKING, false);
+    } catch (PackageManager.NameNotFoundException e) {
+      Log.w(LOGTAG, "Unable to read service meta-data: " + e.toString());
+      return false;
+    }
+  }
+
   private synchronized void startServer() {
     if (server == null || !server.isAlive()) {
       stopServer();
       SimpleWebServer testing = new SimpleWebServer(WebkitServerConsts.HOSTNAME, WebkitServerConsts.PORT, new File(ODKFileUtils.getOdkFolder()).getAbsoluteFile(), false);
       //SimpleWebServer testing = new SimpleWebServer();
+      testing.setNonBlocking(useNonBlockingServer);
+      testing.setMetrics(metrics);
       try {
         testing.start();
         server = testing;
@@ -120,6 +167,28 @@ public class OdkWebkitServerService extends Service {
     }
   }
 
+  /**
+   * @return JSON serialization of the web server request counters and
+   * latency histograms (see {@link WebServerMetrics#snapshot()}).
+   */
+  private String getMetricsAsJson() {
+    try {
+      return ODKFileUtils.mapper.writeValueAsString(metrics.snapshot());
+    } catch (JsonProcessingException e) {
+      Log.e(LOGTAG, "Unable to serialize web server metrics: " + e.toString());
+      return "{}";
+    }
+  }
+
+  /**
+   * Reports the web server metrics via
+   * adb shell dumpsys activity service OdkWebkitServerService
+   */
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    writer.println(getMetricsAsJson());
+  }
+
   private class WebkitServiceInterface extends WebkitServerInterface.Stub {
 
     @Override
@@ -131,4 +200,18 @@ public class OdkWebkitServerService extends Service {
 
   }
 
+  private class WebkitServiceExtensionInterface extends WebkitServerExtensionInterface.Stub {
+
+    @Override
+    public String getMetrics() throws RemoteException {
+      return getMetricsAsJson();
+    }
+
+    @Override
+    public void resetMetrics() throws RemoteException {
+      metrics.reset();
+    }
+
+  }
+
 }
@@ -31,15 +31,21 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.logging.WebLoggerIf;
 import org.opendatakit.services.database.AppNameSharedStateContainer;
 import org.opendatakit.services.database.OperationLog;
+import org.opendatakit.services.database.OperationRing;
+import org.opendatakit.services.database.StatementMetrics;
 import org.opendatakit.utilities.ODKFileUtils;
 import org.sqlite.database.DatabaseErrorHandler;
 import org.sqlite.database.DefaultDatabaseErrorHandler;
 import org.sqlite.database.SQLException;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -103,6 +109,12 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
     */
    private static final boolean DEBUG_SQL_TIME = false;
 
+   /**
+    * True if the loaded libsqliteX.so provides nativeBindArguments. Libraries built before
+    * it was added do not; with them, each argument is bound with its own native call.
+    */
+   private static final boolean NATIVE_BIND_ARGUMENTS_AVAILABLE;
+
    static {
       // load the shared stlport library
       System.loadLibrary("stlport_shared");
@@ -110,6 +122,18 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
       System.loadLibrary("sqliteX");
 
       nativeInit();
+
+      NATIVE_BIND_ARGUMENTS_AVAILABLE = hasNativeBindArguments();
+   }
+
+   private static boolean hasNativeBindArguments() {
+      try {
+         return nativeHasBindArguments();
+      } catch (UnsatisfiedLinkError e) {
+         WebLogger.getContextLogger().i(TAG, "nativeBindArguments is not available; "
+             + "binding arguments one native call at a time");
+         return false;
+      }
    }
 
    /**
@@ -191,6 +215,9 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
        int index, String value);
    private static native void nativeBindBlob(long connectionPtr, long statementPtr,
        int index, byte[] value);
+   private static native void nativeBindArguments(long connectionPtr, long statementPtr,
+       int count, byte[] types, long[] longValues, double[] doubleValues, Object[] objectValues);
+   private static native boolean nativeHasBindArguments();
    private static native void nativeResetStatementAndClearBindings(
        long connectionPtr, long statementPtr);
    private static native void nativeExecute(long connectionPtr, long statementPtr);
@@ -373,7 +400,13 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
     * This can be accessed outside of locks
     * Thread safe.
     */
-   private final OperationLog mRecentOperations;
+   private final OperationRing mRecentOperations;
+
+   /**
+    * Latency histograms of the statements run against this appName's database.
+    * Thread safe.
+    */
+   private final StatementMetrics mStatementMetrics;
 
    // Error handler to be used when SQLite returns corruption errors.
    // This can be accessed outside of locks
@@ -397,8 +430,9 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
     * The native (C++) SQLiteConnection pointer.
     *
     * <em>Should be accessed within the mConnectionPtrMutex lock</em>
+    * (except by onCancel, hence volatile).
     */
-   private long mConnectionPtr = 0L;
+   private volatile long mConnectionPtr = 0L;
 
    /**
     * The number of times attachCancellationSignal has been called.
@@ -418,12 +452,27 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
     */
    private String mAllocationReference;
 
+   /**
+    * Page cache used while a bulk session is open (KiB; passed as a negative cache_size).
+    */
+   private static final long BULK_SESSION_CACHE_SIZE_KIB = 16L * 1024L;
+
+   /**
+    * True while a bulk session is open. The saved values are restored when it ends.
+    *
+    * <em>Should be accessed within the mConnectionPtrMutex lock</em>
+    */
+   private boolean mInBulkSession = false;
+   private long mSavedCacheSize;
+   private long mSavedTempStore;
+
    public SQLiteConnection(SQLiteDatabaseConfiguration configuration,
        OperationLog recentOperations,
        DatabaseErrorHandler errorHandler,
        String sessionQualifier) {
       mConfiguration = new SQLiteDatabaseConfiguration(configuration);
-      mRecentOperations = recentOperations;
+      mRecentOperations = recentOperations.openRing();
+      mStatementMetrics = recentOperations.getStatementMetrics();
       mErrorHandler = (errorHandler != null) ? errorHandler : new DefaultDatabaseErrorHandler();
       mSessionQualifier = sessionQualifier;
       mAllocationReference = mConfiguration.appName + " " + mSessionQualifier;
@@ -677,6 +726,8 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          Object[] result = null;
          final int cookie = mRecentOperations
              .beginOperation(mSessionQualifier, "executeForCursor", sql, bindArgs);
+         final long startNanos = System.nanoTime();
+         boolean failed = false;
          try {
             final PreparedStatement statement = mPreparedStatementCache.acquirePreparedStatement(sql);
             try {
@@ -691,11 +742,14 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
                mPreparedStatementCache.releasePreparedStatement(statement);
             }
          } catch (Throwable t) {
+            failed = true;
             mRecentOperations.failOperation(cookie, t);
             throw t;
          } finally {
-            mRecentOperations.endOperationDeferLogAdditional(cookie,
-                "countedRows=" + ((result != null) ? result.length-1 : 0));
+            // the first two entries of the result are the column names and types
+            final long rowCount = (result != null) ? Math.max(0, result.length - 2) : 0;
+            recordStatement(sql, startNanos, rowCount, 0, failed);
+            mRecentOperations.endOperation(cookie, "countedRows", rowCount);
          }
          if ( result != null && result.length > 0 ) {
             SQLiteMemoryCursor cursor = new SQLiteMemoryCursor(result);
@@ -881,6 +935,84 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
       endTransaction(null);
    }
 
+   /**
+    * Begin a bulk session on this connection. Until {@link #endBulkSession()} is called,
+    * commits are not fsync'd (synchronous=NORMAL), the page cache is enlarged, and
+    * temporary b-trees are kept in memory. A commit made during the session survives an
+    * application crash but may be lost on power failure until the session ends.
+    * <p>
+    * Does nothing if a bulk session is already open. Must not be called within a
+    * transaction. Changing temp_store drops any TEMP tables on this connection.
+    *
+    * @throws IllegalStateException if a transaction is open.
+    */
+   public void beginBulkSession() {
+      synchronized (mConnectionPtrMutex) {
+         if (mConnectionPtr == 0L) {
+            throw new SQLiteException("connection closed");
+         }
+         if (mInBulkSession) {
+            return;
+         }
+         if (mTransactionManager.hasTransaction()) {
+            throw new IllegalStateException("Cannot begin a bulk session within a transaction");
+         }
+         mSavedCacheSize = executeForLongImpl("PRAGMA cache_size", null, null);
+         mSavedTempStore = executeForLongImpl("PRAGMA temp_store", null, null);
+         setSyncMode("NORMAL");
+         executeImpl("PRAGMA cache_size=-" + BULK_SESSION_CACHE_SIZE_KIB, null, null);
+         executeImpl("PRAGMA temp_store=MEMORY", null, null);
+         mInBulkSession = true;
+      }
+   }
+
+   /**
+    * End the bulk session on this connection. Restores full durability, then runs a FULL
+    * checkpoint, which syncs the WAL and copies all of it into the database, making every
+    * commit of the session durable. Finally restores the prior cache_size and temp_store
+    * settings.
+    * <p>
+    * Does nothing if no bulk session is open. Must not be called within a transaction.
+    *
+    * @throws IllegalStateException if a transaction is open.
+    */
+   public void endBulkSession() {
+      synchronized (mConnectionPtrMutex) {
+         if (mConnectionPtr == 0L) {
+            throw new SQLiteException("connection closed");
+         }
+         if (!mInBulkSession) {
+            return;
+         }
+         if (mTransactionManager.hasTransaction()) {
+            throw new IllegalStateException("Cannot end a bulk session within a transaction");
+         }
+         mInBulkSession = false;
+         try {
+            setSyncMode(SQLiteGlobal.getWALSyncMode());
+            // waits (busy handler) for readers and writers so that the whole WAL is
+            // synced and copied; a PASSIVE checkpoint may copy (and sync) nothing.
+            long busy = executeForLongImpl("PRAGMA wal_checkpoint(FULL)", null, null);
+            if (busy != 0L) {
+               getLogger().w(TAG, "connection:" + getAppName() + " " + mSessionQualifier +
+                   " bulk session ended before the WAL could be fully checkpointed");
+            }
+         } finally {
+            executeImpl("PRAGMA cache_size=" + mSavedCacheSize, null, null);
+            executeImpl("PRAGMA temp_store=" + mSavedTempStore, null, null);
+         }
+      }
+   }
+
+   /**
+    * @return true if a bulk session is open on this connection.
+    */
+   public boolean inBulkSession() {
+      synchronized (mConnectionPtrMutex) {
+         return mInBulkSession;
+      }
+   }
+
    /**
     * Gets the database version.
     *
@@ -1198,6 +1330,62 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
       return executeForChangedRowCountImpl(sql.toString(), bindArgs, null);
    }
 
+   /**
+    * General method for inserting many rows that share the same set of columns.
+    * The INSERT statement is built and prepared once and then bound and stepped
+    * for each row.
+    *
+    * @param table the table to insert the rows into
+    * @param columns the names of the columns being supplied
+    * @param rows one array of column values per row, in the order of <code>columns</code>
+    * @param conflictAlgorithm for insert conflict resolver
+    * @return the number of rows inserted by each execution (0 if the row was
+    *         ignored because of {@link #CONFLICT_IGNORE})
+    */
+   public int[] insertBatchWithOnConflict(String table, String[] columns, List<Object[]> rows,
+       int conflictAlgorithm) {
+      if (columns == null || columns.length == 0) {
+         throw new IllegalArgumentException("Empty columns");
+      }
+
+      StringBuilder sql = new StringBuilder(120);
+      sql.append("INSERT");
+      sql.append(CONFLICT_VALUES[conflictAlgorithm]);
+      sql.append(" INTO ");
+      sql.append(table);
+      sql.append('(');
+      for (int i = 0; i < columns.length; i++) {
+         sql.append((i > 0) ? "," : "");
+         sql.append(columns[i]);
+      }
+      sql.append(") VALUES (");
+      for (int i = 0; i < columns.length; i++) {
+         sql.append((i > 0) ? ",?" : "?");
+      }
+      sql.append(')');
+
+      return executeBatchImpl(sql.toString(), rows, null);
+   }
+
+   /**
+    * Executes the same INSERT, UPDATE or DELETE statement once for each set of
+    * bind arguments. The statement is acquired from the prepared statement cache
+    * once and reset between executions, avoiding the per-row SQL construction and
+    * cache lookup of {@link #insertWithOnConflict} and {@link #updateWithOnConflict}.
+    * <p>
+    * The executions are not wrapped in a transaction. If one of them fails, the
+    * earlier ones are not undone; enclose the call in a transaction for atomicity.
+    *
+    * @param sql the SQL statement to execute
+    * @param bindArgsList one array of bind arguments per execution
+    * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+    * @return the number of rows changed by each execution
+    */
+   public int[] executeBatch(String sql, List<Object[]> bindArgsList,
+       CancellationSignal cancellationSignal) {
+      return executeBatchImpl(sql, bindArgsList, cancellationSignal);
+   }
+
    /**
     * Execute a single SQL statement that is NOT a SELECT/INSERT/UPDATE/DELETE.
     * <p>
@@ -1287,6 +1475,16 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
                   }
                }
 
+               if (mInBulkSession) {
+                  // make the session's commits durable before the connection goes away
+                  try {
+                     endBulkSession();
+                  } catch ( Throwable t ) {
+                     getLogger().w(TAG, "connection:" + getAppName() + " " + mSessionQualifier +
+                         " unable to end bulk session on close: " + t.toString());
+                  }
+               }
+
                // and now evict the now-released prepared statements
                mPreparedStatementCache.evictAll();
 
@@ -1300,6 +1498,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
                mRecentOperations.endOperation(cookie);
             }
          }
+         mRecentOperations.retire();
       }
    }
 
@@ -1326,7 +1525,8 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
 
          try {
             {
-               final long newValue = SQLiteGlobal.getDefaultPageSize();
+               final long newValue = (mConfiguration.pageSize != 0L) ?
+                   mConfiguration.pageSize : SQLiteGlobal.getDefaultPageSize();
                long value = executeForLongImpl("PRAGMA page_size", null, null);
                if (value != newValue) {
                   executeImpl("PRAGMA page_size=" + newValue, null, null);
@@ -1350,17 +1550,44 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
             }
 
             {
-               final long newValue = SQLiteGlobal.getWALAutoCheckpoint();
+               final long newValue = mConfiguration.walAutoCheckpoint;
                long value = executeForLongImpl("PRAGMA wal_autocheckpoint", null, null);
                if (value != newValue) {
                   executeForLongImpl("PRAGMA wal_autocheckpoint=" + newValue, null, null);
                }
             }
 
+            if (mConfiguration.cacheSizeKib != 0) {
+               // negative values are in KiB rather than pages
+               final long newValue = -((long) mConfiguration.cacheSizeKib);
+               long value = executeForLongImpl("PRAGMA cache_size", null, null);
+               if (value != newValue) {
+                  executeImpl("PRAGMA cache_size=" + newValue, null, null);
+               }
+            }
+
+            if (mConfiguration.mmapSize != 0L) {
+               final long newValue = mConfiguration.mmapSize;
+               long value = executeForLongImpl("PRAGMA mmap_size", null, null);
+               if (value != newValue) {
+                  // capped by SQLITE_MAX_MMAP_SIZE in the native library
+                  executeForLongImpl("PRAGMA mmap_size=" + newValue, null, null);
+               }
+            }
+
+            if (mConfiguration.tempStoreInMemory) {
+               executeImpl("PRAGMA temp_store=MEMORY", null, null);
+            }
+
             setLockingMode("NORMAL");
             setJournalMode("WAL");
             setSyncMode(SQLiteGlobal.getWALSyncMode());
             setBusyTimeout();
+
+            if (mConfiguration.queryOnly) {
+               // last, as the settings above may need to write to the database file
+               executeImpl("PRAGMA query_only=1", null, null);
+            }
          } catch ( Exception e ) {
             try {
                // release any prepared statements.
@@ -1440,13 +1667,16 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
    // However, it will only be called between calls to attachCancellationSignal and
    // detachCancellationSignal, while a statement is executing.  We can safely assume
    // that the SQLite connection is still alive.
+   //
+   // Do not take mConnectionPtrMutex here: the executing statement holds it for
+   // its entire run, so doing so would block the cancel until the statement had
+   // completed. The native cancel only sets a flag that the progress handler
+   // polls, and ignores a connection pointer it does not know about.
    @Override
    public void onCancel() {
-      synchronized (mConnectionPtrMutex) {
-         if (mConnectionPtr == 0L) {
-            throw new SQLiteException("connection closed");
-         }
-         nativeCancel(mConnectionPtr);
+      final long connectionPtr = mConnectionPtr;
+      if (connectionPtr != 0L) {
+         nativeCancel(connectionPtr);
       }
    }
 
@@ -1593,6 +1823,8 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          }
          final int cookie = mRecentOperations
              .beginOperation(mSessionQualifier, "executeImpl", sql, bindArgs);
+         final long startNanos = System.nanoTime();
+         boolean failed = false;
          try {
             final PreparedStatement statement = mPreparedStatementCache.acquirePreparedStatement(sql);
             try {
@@ -1607,9 +1839,11 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
                mPreparedStatementCache.releasePreparedStatement(statement);
             }
          } catch (Throwable t) {
+            failed = true;
             mRecentOperations.failOperation(cookie, t);
             throw t;
          } finally {
+            recordStatement(sql, startNanos, 0, 0, failed);
             mRecentOperations.endOperation(cookie);
          }
       }
@@ -1640,6 +1874,8 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          }
          final int cookie = mRecentOperations
              .beginOperation(mSessionQualifier, "executeForLongImpl", sql, bindArgs);
+         final long startNanos = System.nanoTime();
+         boolean failed = false;
          try {
             final PreparedStatement statement = mPreparedStatementCache.acquirePreparedStatement(sql);
             try {
@@ -1654,9 +1890,11 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
                mPreparedStatementCache.releasePreparedStatement(statement);
             }
          } catch (Throwable t) {
+            failed = true;
             mRecentOperations.failOperation(cookie, t);
             throw t;
          } finally {
+            recordStatement(sql, startNanos, failed ? 0 : 1, 0, failed);
             mRecentOperations.endOperation(cookie);
          }
       }
@@ -1687,6 +1925,8 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          }
          final int cookie = mRecentOperations
              .beginOperation(mSessionQualifier, "executeForStringImpl", sql, bindArgs);
+         final long startNanos = System.nanoTime();
+         boolean failed = false;
          try {
             final PreparedStatement statement = mPreparedStatementCache.acquirePreparedStatement(sql);
             try {
@@ -1701,9 +1941,11 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
                mPreparedStatementCache.releasePreparedStatement(statement);
             }
          } catch (Throwable t) {
+            failed = true;
             mRecentOperations.failOperation(cookie, t);
             throw t;
          } finally {
+            recordStatement(sql, startNanos, failed ? 0 : 1, 0, failed);
             mRecentOperations.endOperation(cookie);
          }
       }
@@ -1735,6 +1977,8 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          int changedRows = 0;
          final int cookie = mRecentOperations
              .beginOperation(mSessionQualifier, "executeForChangedRowCountImpl", sql, bindArgs);
+         final long startNanos = System.nanoTime();
+         boolean failed = false;
          try {
             final PreparedStatement statement = mPreparedStatementCache.acquirePreparedStatement(sql);
             try {
@@ -1750,10 +1994,12 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
                mPreparedStatementCache.releasePreparedStatement(statement);
             }
          } catch (Throwable t) {
+            failed = true;
             mRecentOperations.failOperation(cookie, t);
             throw t;
          } finally {
-            mRecentOperations.endOperationDeferLogAdditional(cookie, "changedRows=" + changedRows);
+            recordStatement(sql, startNanos, 0, changedRows, failed);
+            mRecentOperations.endOperation(cookie, "changedRows", changedRows);
          }
       }
    }
@@ -1784,6 +2030,8 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
 
          final int cookie = mRecentOperations
              .beginOperation(mSessionQualifier, "executeForLastInsertedRowIdImpl", sql, bindArgs);
+         final long startNanos = System.nanoTime();
+         boolean failed = false;
          try {
             final PreparedStatement statement = mPreparedStatementCache.acquirePreparedStatement(sql);
             try {
@@ -1798,14 +2046,147 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
                mPreparedStatementCache.releasePreparedStatement(statement);
             }
          } catch (Throwable t) {
+            failed = true;
             mRecentOperations.failOperation(cookie, t);
             throw t;
          } finally {
+            recordStatement(sql, startNanos, 0, failed ? 0 : 1, failed);
             mRecentOperations.endOperation(cookie);
          }
       }
    }
 
+   /**
+    * Executes a statement once for each set of bind arguments, returning the
+    * count of the number of rows changed by each execution.
+    *
+    * @param sql The SQL statement to execute.
+    * @param bindArgsList The arguments to bind for each execution.
+    * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+    * @return The number of rows that were changed by each execution.
+    *
+    * @throws SQLiteException if an error occurs, such as a syntax error
+    * or invalid number of bind arguments.
+    * @throws OperationCanceledException if the operation was canceled.
+    */
+   private int[] executeBatchImpl(String sql, List<Object[]> bindArgsList,
+       CancellationSignal cancellationSignal) {
+      if (sql == null) {
+         throw new IllegalArgumentException("sql must not be null.");
+      }
+      if (bindArgsList == null) {
+         throw new IllegalArgumentException("bindArgsList must not be null.");
+      }
+      synchronized (mConnectionPtrMutex) {
+         if (mConnectionPtr == 0L) {
+            throw new SQLiteException("connection closed");
+         }
+
+         final int[] changedRows = new int[bindArgsList.size()];
+         int executed = 0;
+         final int cookie = mRecentOperations
+             .beginOperation(mSessionQualifier, "executeBatchImpl", sql, null);
+         final long startNanos = System.nanoTime();
+         boolean failed = false;
+         try {
+            final PreparedStatement statement = mPreparedStatementCache.acquirePreparedStatement(sql);
+            try {
+               attachCancellationSignal(cancellationSignal);
+               try {
+                  for (Object[] bindArgs : bindArgsList) {
+                     if (executed != 0) {
+                        if (cancellationSignal != null) {
+                           cancellationSignal.throwIfCanceled();
+                        }
+                        nativeResetStatementAndClearBindings(mConnectionPtr, statement.mStatementPtr);
+                     }
+                     bindArguments(statement, bindArgs);
+                     changedRows[executed] =
+                         nativeExecuteForChangedRowCount(mConnectionPtr, statement.mStatementPtr);
+                     ++executed;
+                  }
+                  return changedRows;
+               } finally {
+                  detachCancellationSignal(cancellationSignal);
+               }
+            } finally {
+               mPreparedStatementCache.releasePreparedStatement(statement);
+            }
+         } catch (Throwable t) {
+            failed = true;
+            mRecentOperations.failOperation(cookie, t);
+            throw t;
+         } finally {
+            // a failed batch counts no rows, as a failed statement does; the operation log
+            // reports how many of its statements were executed
+            recordStatement(sql, startNanos, 0,
+                failed ? 0 : sumOf(changedRows, executed), failed);
+            mRecentOperations.endOperation(cookie, "executed", executed, changedRows.length);
+         }
+      }
+   }
+
+   private static long sumOf(int[] changedRows, int count) {
+      long sum = 0L;
+      for (int i = 0; i < count; ++i) {
+         sum += changedRows[i];
+      }
+      return sum;
+   }
+
+   /**
+    * Record an executed statement in the statement metrics and, if it was slow,
+    * log it with its query plan.
+    * <p>
+    * Caller MUST hold the mConnectionPtrMutex before calling this method
+    *
+    * @param sql
+    * @param startNanos   System.nanoTime() before the statement was prepared
+    * @param rowsReturned
+    * @param rowsChanged
+    * @param failed
+    */
+   private void recordStatement(String sql, long startNanos, long rowsReturned, long rowsChanged,
+       boolean failed) {
+      final long elapsedNanos = System.nanoTime() - startNanos;
+      if (mStatementMetrics.record(sql, elapsedNanos, rowsReturned, rowsChanged, failed)) {
+         logSlowStatement(sql, elapsedNanos, rowsReturned, rowsChanged);
+      }
+   }
+
+   /**
+    * Caller MUST hold the mConnectionPtrMutex before calling this method
+    */
+   private void logSlowStatement(String sql, long elapsedNanos, long rowsReturned,
+       long rowsChanged) {
+      StringBuilder b = new StringBuilder();
+      b.append("slow statement took ").append(elapsedNanos / 1000000L).append("ms, rows returned ")
+          .append(rowsReturned).append(" changed ").append(rowsChanged).append(": ")
+          .append(AppNameSharedStateContainer.trimSqlForDisplay(sql));
+      final int type = getSqlStatementType(sql);
+      if ((type == STATEMENT_SELECT || type == STATEMENT_UPDATE) && mConnectionPtr != 0L) {
+         // the plan does not depend on the bound values; leave the parameters unbound
+         long statementPtr = 0L;
+         try {
+            statementPtr = nativePrepareStatement(mConnectionPtr, "EXPLAIN QUERY PLAN " + sql);
+            Object[] plan = nativeExecuteForObjectArray(mConnectionPtr, statementPtr);
+            b.append("\n  query plan:");
+            // first two entries are the column names and types
+            for (int i = 2; plan != null && i < plan.length; ++i) {
+               Object[] row = (Object[]) plan[i];
+               b.append("\n    ").append(row[row.length - 1]);
+            }
+         } catch (Throwable t) {
+            b.append("\n  query plan unavailable: ").append(t.toString());
+         } finally {
+            if (statementPtr != 0L) {
+               nativeFinalizeStatement(mConnectionPtr, statementPtr);
+            }
+         }
+      }
+      getLogger().w(TAG, b.toString());
+   }
+
    private void attachCancellationSignal(CancellationSignal cancellationSignal) {
       if (cancellationSignal != null) {
          cancellationSignal.throwIfCanceled();
@@ -1854,6 +2235,37 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
       }
    }
 
+   /**
+    * Cleared by benchmarks to compare against binding each argument with its own native call.
+    */
+   private static volatile boolean sNativeBindArgumentsEnabled = true;
+
+   /**
+    * @return true if the loaded native library can bind all arguments in a single call
+    */
+   static boolean isNativeBindArgumentsAvailable() {
+      return NATIVE_BIND_ARGUMENTS_AVAILABLE;
+   }
+
+   /**
+    * Select between binding all arguments in a single native call (the default, when
+    * available) and binding each argument with its own native call. For benchmarking.
+    *
+    * @param enabled true to use nativeBindArguments when it is available
+    */
+   static void setNativeBindArgumentsEnabled(boolean enabled) {
+      sNativeBindArgumentsEnabled = enabled;
+   }
+
+   // Scratch arrays for nativeBindArguments. Guarded by mConnectionPtrMutex.
+   private byte[] mBindTypes = new byte[0];
+   private long[] mBindLongValues = new long[0];
+   private double[] mBindDoubleValues = new double[0];
+   private Object[] mBindObjectValues = new Object[0];
+
+   /**
+    * Caller must hold mConnectionPtrMutex.
+    */
    private void bindArguments(PreparedStatement statement, Object[] bindArgs) {
       final int count = bindArgs != null ? bindArgs.length : 0;
       if (count != statement.mNumParameters) {
@@ -1865,6 +2277,11 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          return;
       }
 
+      if (NATIVE_BIND_ARGUMENTS_AVAILABLE && sNativeBindArgumentsEnabled) {
+         bindArgumentsInOneCall(statement.mStatementPtr, bindArgs);
+         return;
+      }
+
       final long statementPtr = statement.mStatementPtr;
       for (int i = 0; i < count; i++) {
          final Object arg = bindArgs[i];
@@ -1898,6 +2315,68 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
       }
    }
 
+   /**
+    * Marshal the arguments into typed arrays and bind them all with a single
+    * JNI transition. Wide tables bind 100+ parameters per row, so this replaces
+    * 100+ native calls (each looking up the connection and statement) with one.
+    *
+    * Caller must hold mConnectionPtrMutex.
+    */
+   private void bindArgumentsInOneCall(long statementPtr, Object[] bindArgs) {
+      final int count = bindArgs.length;
+      if (mBindTypes.length < count) {
+         mBindTypes = new byte[count];
+         mBindLongValues = new long[count];
+         mBindDoubleValues = new double[count];
+         mBindObjectValues = new Object[count];
+      }
+      final byte[] types = mBindTypes;
+      final long[] longValues = mBindLongValues;
+      final double[] doubleValues = mBindDoubleValues;
+      final Object[] objectValues = mBindObjectValues;
+
+      for (int i = 0; i < count; i++) {
+         final Object arg = bindArgs[i];
+         int type = getTypeOfObject(arg);
+         switch (type) {
+         case Cursor.FIELD_TYPE_NULL:
+            break;
+         case Cursor.FIELD_TYPE_INTEGER:
+            longValues[i] = ((Number)arg).longValue();
+            break;
+         case Cursor.FIELD_TYPE_FLOAT:
+            doubleValues[i] = ((Number)arg).doubleValue();
+            break;
+         case Cursor.FIELD_TYPE_BLOB:
+            objectValues[i] = arg;
+            break;
+         case Cursor.FIELD_TYPE_STRING:
+         default:
+            if (arg instanceof Boolean) {
+               // Provide compatibility with legacy applications which may pass
+               // Boolean values in bind args.
+               type = Cursor.FIELD_TYPE_INTEGER;
+               longValues[i] = ((Boolean)arg).booleanValue() ? 1 : 0;
+            } else {
+               type = Cursor.FIELD_TYPE_STRING;
+               objectValues[i] = arg.toString();
+            }
+            break;
+         }
+         types[i] = (byte) type;
+      }
+
+      try {
+         nativeBindArguments(mConnectionPtr, statementPtr, count, types, longValues,
+             doubleValues, objectValues);
+      } finally {
+         // do not retain references to the caller's values
+         for (int i = 0; i < count; i++) {
+            objectValues[i] = null;
+         }
+      }
+   }
+
    /**
     * Dumps debugging information about this connection, in the case where the
     * caller might not actually own the connection.
@@ -1967,17 +2446,149 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
      }
    }
 
+   /**
+    * The prepared statement cache grows beyond the configured maxSqlCacheSize, up to this
+    * factor (and never past ADAPTIVE_MAX_SQL_CACHE_SIZE), when the working set of statements
+    * does not fit in it.
+    */
+   private static final int ADAPTIVE_SQL_CACHE_GROWTH_FACTOR = 4;
+
+   private static final int ADAPTIVE_MAX_SQL_CACHE_SIZE = 250;
+
+   /**
+    * Number of statement acquisitions over which the working set is measured.
+    */
+   private static final int SQL_CACHE_WORKING_SET_WINDOW = 1000;
+
+   private static final Pattern sDdlTargetPattern = Pattern.compile(
+       "^(?:CREATE|DROP|ALTER)\\s+(?:TEMP\\s+|TEMPORARY\\s+)?(?:UNIQUE\\s+)?"
+           + "(TABLE|INDEX|VIEW)\\s+(?:IF\\s+(?:NOT\\s+)?EXISTS\\s+)?"
+           + "([^\\s(]+)(?:\\s+ON\\s+([^\\s(]+))?", Pattern.CASE_INSENSITIVE);
+
+   /**
+    * Collapse runs of whitespace outside of quoted strings and identifiers so that
+    * statements that differ only in formatting share a cache entry. Statements
+    * containing comments are returned unchanged.
+    *
+    * @param sql
+    * @return the cache key for the statement
+    */
+   static String normalizeSql(String sql) {
+      final int len = sql.length();
+      boolean needed = (len != 0) &&
+          (Character.isWhitespace(sql.charAt(0)) || Character.isWhitespace(sql.charAt(len - 1)));
+      for (int i = 0; !needed && i < len; ++i) {
+         char ch = sql.charAt(i);
+         if (ch == '\n' || ch == '\r' || ch == '\t' ||
+             (ch == ' ' && i + 1 < len && sql.charAt(i + 1) == ' ')) {
+            needed = true;
+         }
+      }
+      if (!needed || sql.contains("--") || sql.contains("/*")) {
+         return sql;
+      }
+
+      StringBuilder b = new StringBuilder(len);
+      char quote = 0;
+      boolean pendingSpace = false;
+      for (int i = 0; i < len; ++i) {
+         char ch = sql.charAt(i);
+         if (quote != 0) {
+            b.append(ch);
+            if (ch == quote) {
+               quote = 0;
+            }
+         } else if (Character.isWhitespace(ch)) {
+            pendingSpace = (b.length() != 0);
+         } else {
+            if (pendingSpace) {
+               b.append(' ');
+               pendingSpace = false;
+            }
+            b.append(ch);
+            if (ch == '\'' || ch == '"' || ch == '`') {
+               quote = ch;
+            } else if (ch == '[') {
+               quote = ']';
+            }
+         }
+      }
+      return b.toString();
+   }
+
+   /**
+    * @param sql a DDL statement (cache key form)
+    * @return the lower-case name of the table whose statements the DDL may affect,
+    * or null if it cannot be determined.
+    */
+   static String getDdlTargetTable(String sql) {
+      Matcher m = sDdlTargetPattern.matcher(sql);
+      if (!m.find()) {
+         return null;
+      }
+      String target;
+      if (m.group(1).equalsIgnoreCase("INDEX")) {
+         // DROP INDEX does not name the table
+         target = m.group(3);
+      } else {
+         target = m.group(2);
+      }
+      if (target == null) {
+         return null;
+      }
+      // strip any schema qualifier and quoting
+      int dot = target.lastIndexOf('.');
+      if (dot != -1) {
+         target = target.substring(dot + 1);
+      }
+      target = target.replaceAll("[\"`\\[\\]']", "");
+      if (target.length() == 0) {
+         return null;
+      }
+      return target.toLowerCase(Locale.ENGLISH);
+   }
+
+   private static boolean isIdentifierChar(char ch) {
+      return Character.isLetterOrDigit(ch) || ch == '_' || ch == '$';
+   }
+
+   /**
+    * @param sql the statement
+    * @param table lower-case table name
+    * @return true if the table name appears as a whole identifier in the statement
+    */
+   static boolean referencesTable(String sql, String table) {
+      String lower = sql.toLowerCase(Locale.ENGLISH);
+      int idx = lower.indexOf(table);
+      while (idx != -1) {
+         int end = idx + table.length();
+         if ((idx == 0 || !isIdentifierChar(lower.charAt(idx - 1))) &&
+             (end == lower.length() || !isIdentifierChar(lower.charAt(end)))) {
+            return true;
+         }
+         idx = lower.indexOf(table, idx + 1);
+      }
+      return false;
+   }
+
    private final class PreparedStatementCache {
 
       private final class PreparedStatementCacheImpl {
 
          private final LinkedHashMapImpl map;
 
+         /**
+          * Keys of statements recently evicted to make space. A miss on one of
+          * these means the working set does not fit in the cache.
+          */
+         private final LinkedHashMap<String, Boolean> ghosts = new LinkedHashMap<String, Boolean>();
+
          /** Size of this cache in units. Not necessarily the number of elements. */
          private int size;
 
          private int hitCount;
          private int missCount;
+         private int evictionCount;
 
          /**
           * @param maxSize this is the maximum number of entries in the cache.
@@ -2012,6 +2623,29 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
              return null;
          }
 
+         /**
+          * Returns the value for {@code key} without affecting the hit and miss
+          * counts.
+          */
+         public final PreparedStatement peek(String key) {
+             if (key == null) {
+                 throw new NullPointerException("key == null");
+             }
+
+             synchronized (map) {
+                 return map.get(key);
+             }
+         }
+
+         /**
+          * @return true if {@code key} was recently evicted to make space.
+          */
+         public final boolean wasEvicted(String key) {
+             synchronized (map) {
+                 return ghosts.remove(key) != null;
+             }
+         }
+
          /**
           * Caches {@code value} for {@code key}. The value is moved to the head of
           * the queue. During this operation, up to two calls to entryRemoved(...) may be made.
@@ -2040,6 +2674,8 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
                  if (evictedValue != null) {
                      // hit maxSize -- no size correction
                      --size;
+                     ++evictionCount;
+                     addGhost(evictedKey);
                  }
                  map.evictedKey = null;
                  map.evictedStatement = null;
@@ -2054,6 +2690,15 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
              }
          }
 
+         private void addGhost(String key) {
+             ghosts.put(key, Boolean.TRUE);
+             if (ghosts.size() > ADAPTIVE_MAX_SQL_CACHE_SIZE) {
+                 Iterator<String> it = ghosts.keySet().iterator();
+                 it.next();
+                 it.remove();
+             }
+         }
+
          /**
           * Removes the entry for {@code key} if it exists. During this operation,
           * a call to entryRemoved(...) will be for any prior value mapped by {@code key}.
@@ -2076,6 +2721,52 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
              }
          }
 
+         /**
+          * Changes the maximum number of entries, evicting the least recently used
+          * entries if the cache is now over the limit.
+          */
+         public final void resize(int maxSize) {
+             Map<String, PreparedStatement> removed = new LinkedHashMap<String, PreparedStatement>();
+             synchronized (map) {
+                 map.maxCapacity = maxSize;
+                 Iterator<Map.Entry<String, PreparedStatement>> it = map.entrySet().iterator();
+                 while (map.size() >= maxSize && it.hasNext()) {
+                     Map.Entry<String, PreparedStatement> entry = it.next();
+                     removed.put(entry.getKey(), entry.getValue());
+                     it.remove();
+                     --size;
+                     ++evictionCount;
+                 }
+             }
+             for ( Map.Entry<String, PreparedStatement> entry : removed.entrySet() ) {
+                 entryRemoved(true, entry.getKey(), entry.getValue(), null);
+             }
+         }
+
+         /**
+          * Removes every entry whose SQL references the given table.
+          *
+          * @return the number of entries removed
+          */
+         public final int removeReferencing(String table) {
+             Map<String, PreparedStatement> removed = new LinkedHashMap<String, PreparedStatement>();
+             synchronized (map) {
+                 Iterator<Map.Entry<String, PreparedStatement>> it = map.entrySet().iterator();
+                 while (it.hasNext()) {
+                     Map.Entry<String, PreparedStatement> entry = it.next();
+                     if (referencesTable(entry.getKey(), table)) {
+                         removed.put(entry.getKey(), entry.getValue());
+                         it.remove();
+                         --size;
+                     }
+                 }
+             }
+             for ( Map.Entry<String, PreparedStatement> entry : removed.entrySet() ) {
+                 entryRemoved(false, entry.getKey(), entry.getValue(), null);
+             }
+             return removed.size();
+         }
+
          /**
           * Clear the cache, calling {@link #entryRemoved} on each removed entry.
           */
@@ -2085,6 +2776,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
            synchronized (map) {
              copied = snapshot();
              map.clear();
+             ghosts.clear();
              size = 0;
            }
            for ( Map.Entry<String, PreparedStatement> entry : copied.entrySet() ) {
@@ -2101,6 +2793,15 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
            }
          }
 
+         /**
+          * Returns the maximum number of entries in the cache.
+          */
+         public final int maxSize() {
+           synchronized (map) {
+             return map.maxCapacity;
+           }
+         }
+
          /**
           * Returns the number of times {@link #get} returned a value that was
           * already present in the cache.
@@ -2121,6 +2822,15 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
            }
          }
 
+         /**
+          * Returns the number of entries removed to make space.
+          */
+         public final int evictionCount() {
+           synchronized (map) {
+             return evictionCount;
+           }
+         }
+
          /**
           * Returns a copy of the current contents of the cache, ordered from least
           * recently accessed to most recently accessed.
@@ -2175,12 +2885,40 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
 
       private final PreparedStatementCacheImpl impl;
 
+      /** configured (minimum) and adaptive upper bound on the cache size */
+      private final int minSize;
+      private final int maxSize;
+
+      /** distinct cacheable statements acquired in the current window */
+      private final HashSet<String> windowKeys = new HashSet<String>();
+      private int windowAcquisitions = 0;
+
+      private int growCount = 0;
+      private int shrinkCount = 0;
+      private int ddlTargetedEvictionCount = 0;
+      private int ddlFullEvictionCount = 0;
+
       PreparedStatementCache(int size) {
          impl = new PreparedStatementCacheImpl(size);
+         minSize = size;
+         maxSize = Math.max(size,
+             Math.min(size * ADAPTIVE_SQL_CACHE_GROWTH_FACTOR, ADAPTIVE_MAX_SQL_CACHE_SIZE));
       }
 
       public void dump(StringBuilder b) {
          synchronized (impl) {
+            int hits = impl.hitCount();
+            int lookups = hits + impl.missCount();
+            b.append("  Prepared statement cache size: ").append(impl.size())
+                .append(" limit: ").append(impl.maxSize())
+                .append(" (").append(minSize).append("..").append(maxSize).append(")")
+                .append(" hitRate: ")
+                .append((lookups == 0) ? 0 : (100L * hits) / lookups).append("%")
+                .append(" evictions: ").append(impl.evictionCount())
+                .append(" grown: ").append(growCount)
+                .append(" shrunk: ").append(shrinkCount)
+                .append(" ddlTableEvictions: ").append(ddlTargetedEvictionCount)
+                .append(" ddlFullEvictions: ").append(ddlFullEvictionCount).append("\n");
             impl.dump(b);
          }
       }
@@ -2214,6 +2952,50 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          }
       }
 
+      /**
+       * Track the working set. Grow the cache when a recently evicted statement is
+       * needed again; shrink it (never below the configured size) when the number of
+       * distinct statements used over a window is well below the current limit.
+       *
+       * Caller must hold the impl lock.
+       */
+      private void adaptSize(String key, boolean missedRecentlyEvicted) {
+         int limit = impl.maxSize();
+         if (missedRecentlyEvicted && limit < maxSize) {
+            impl.resize(Math.min(maxSize, limit + Math.max(1, limit / 4)));
+            ++growCount;
+         }
+
+         windowKeys.add(key);
+         if (++windowAcquisitions >= SQL_CACHE_WORKING_SET_WINDOW) {
+            // the map holds at most limit-1 entries; keep headroom above the working set
+            int wanted = Math.max(minSize, windowKeys.size() + windowKeys.size() / 4 + 2);
+            if (wanted < impl.maxSize() / 2) {
+               impl.resize(wanted);
+               ++shrinkCount;
+            }
+            windowKeys.clear();
+            windowAcquisitions = 0;
+         }
+      }
+
+      /**
+       * A DDL statement is about to run. Discard the cached statements for the table
+       * it affects (or all of them, if that cannot be determined).
+       *
+       * Caller must hold the impl lock.
+       */
+      private void evictForDdl(String key) {
+         String table = getDdlTargetTable(key);
+         if (table == null) {
+            impl.evictAll();
+            ++ddlFullEvictionCount;
+         } else {
+            impl.removeReferencing(table);
+            ++ddlTargetedEvictionCount;
+         }
+      }
+
       /**
        * Caller must hold mConnectionPtrMutex before calling this method.
        *
@@ -2222,8 +3004,16 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
        */
       PreparedStatement acquirePreparedStatement(String sql) {
          synchronized (impl) {
+            final String key = normalizeSql(sql);
+            final int type = getSqlStatementType(key);
+            final boolean cacheable = isCacheable(type);
+
             // see if we have a not-in-use one already in the cache...
-            PreparedStatement existing = impl.get(sql);
+            PreparedStatement existing = impl.get(key);
+
+            if (cacheable) {
+               adaptSize(key, (existing == null) && impl.wasEvicted(key));
+            }
 
             if (existing != null && !existing.mInUse) {
                // we found one - mark it as in-use and return it
@@ -2237,27 +3027,26 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
             final long statementPtr = nativePrepareStatement(mConnectionPtr, sql);
             try {
                final int numParameters = nativeGetParameterCount(mConnectionPtr, statementPtr);
-               final int type = getSqlStatementType(sql);
                final boolean readOnly = nativeIsReadOnly(mConnectionPtr, statementPtr);
 
                if (type == STATEMENT_DDL ) {
-                  impl.evictAll();
+                  evictForDdl(key);
                }
 
                // and build up the statement.
-               statement = obtainPreparedStatement(sql, statementPtr, numParameters, type, readOnly);
+               statement = obtainPreparedStatement(key, statementPtr, numParameters, type, readOnly);
 
-               if ((existing == null) && isCacheable(type)) {
+               if ((existing == null) && cacheable) {
                   // put may trigger releasePreparedStatement()
-                  impl.put(sql, statement);
+                  impl.put(key, statement);
                }
             } catch (RuntimeException ex) {
                // Finalize the statement if an exception occurred and we did not add
                // it to the cache.  If it is already in the cache, then leave it there.
-               PreparedStatement ref = impl.get(sql);
-               if ( ref == statement ) {
+               PreparedStatement ref = impl.peek(key);
+               if ( ref != null && ref == statement ) {
                   // remove will trigger releasePreparedStatement()
-                  impl.remove(sql);
+                  impl.remove(key);
                } else {
                   nativeFinalizeStatement(mConnectionPtr, statementPtr);
                }
@@ -2274,7 +3063,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
        */
       void releasePreparedStatement(PreparedStatement statement) {
          synchronized (impl) {
-            PreparedStatement existing = impl.get(statement.mSql);
+            PreparedStatement existing = impl.peek(statement.mSql);
             if (existing == statement) {
                try {
                   if ( mConnectionPtr != 0L && statement.mStatementPtr != 0L ) {
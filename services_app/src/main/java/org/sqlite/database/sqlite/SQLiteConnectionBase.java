@@ -5,6 +5,7 @@ import android.os.CancellationSignal;
 import org.opendatakit.logging.WebLoggerIf;
 import org.sqlite.database.SQLException;
 
+import java.util.List;
 import java.util.Map;
 
 public abstract class SQLiteConnectionBase extends SQLiteClosable {
@@ -184,6 +185,12 @@ public abstract class SQLiteConnectionBase extends SQLiteClosable {
 
    public abstract boolean inTransaction();
 
+   public abstract void beginBulkSession();
+
+   public abstract void endBulkSession();
+
+   public abstract boolean inBulkSession();
+
    public abstract void setTransactionSuccessful();
 
    public abstract void endTransaction();
@@ -200,6 +207,12 @@ public abstract class SQLiteConnectionBase extends SQLiteClosable {
 
    public abstract void execSQL(String sql, Object[] bindArgs) throws SQLException;
 
+   public abstract int[] executeBatch(String sql, List<Object[]> bindArgsList,
+                                      CancellationSignal cancellationSignal);
+
+   public abstract int[] insertBatchWithOnConflict(String table, String[] columns,
+                                                   List<Object[]> rows, int conflictAlgorithm);
+
    public abstract Cursor rawQuery(String sql, Object[] selectionArgs, CancellationSignal cancellationSignal);
 
    public abstract Cursor query(String table, String[] columns, String selection,
@@ -71,8 +71,9 @@ public final class SQLiteDatabaseConfiguration {
     public int openFlags;
 
     /**
-     * The maximum size of the prepared statement cache for each database connection.
-     * Must be non-negative.
+     * The initial maximum size of the prepared statement cache for each database connection.
+     * Must be non-negative. The cache grows past this (up to 4x) when its working set
+     * does not fit, and shrinks back toward it when the working set drops.
      *
      * Default is 25.
      */
@@ -92,6 +93,50 @@ public final class SQLiteDatabaseConfiguration {
      */
     public boolean foreignKeyConstraintsEnabled;
 
+    /**
+     * The number of WAL pages after which a committing writer runs a checkpoint.
+     * Zero disables automatic checkpoints (a background checkpointer is then
+     * responsible for keeping the WAL in check).
+     *
+     * Default is {@link SQLiteGlobal#getWALAutoCheckpoint()}.
+     */
+    public int walAutoCheckpoint;
+
+    /**
+     * The page size used when the database file is created.
+     *
+     * Default is 0 (use {@link SQLiteGlobal#getDefaultPageSize()}).
+     */
+    public long pageSize;
+
+    /**
+     * The page cache size of each connection, in KiB.
+     *
+     * Default is 0 (leave SQLite's default).
+     */
+    public int cacheSizeKib;
+
+    /**
+     * The maximum number of bytes of the database file to memory-map.
+     *
+     * Default is 0 (memory-mapped I/O disabled).
+     */
+    public long mmapSize;
+
+    /**
+     * True if temporary tables and indices should be kept in memory.
+     *
+     * Default is false.
+     */
+    public boolean tempStoreInMemory;
+
+    /**
+     * True if the connection must not modify the database (PRAGMA query_only).
+     *
+     * Default is false.
+     */
+    public boolean queryOnly;
+
     /**
      * Creates a database configuration with the required parameters for opening a
      * database and default values for all other parameters.
@@ -120,6 +165,7 @@ public final class SQLiteDatabaseConfiguration {
       // Set default values for optional parameters.
       maxSqlCacheSize = 25;
       locale = Locale.getDefault();
+      walAutoCheckpoint = SQLiteGlobal.getWALAutoCheckpoint();
     }
 
     /**
@@ -189,6 +235,45 @@ public final class SQLiteDatabaseConfiguration {
     this.maxSqlCacheSize = cacheSize;
   }
 
+  /**
+   * Sets the WAL auto-checkpoint threshold (in pages) for connections opened
+   * with this configuration.
+   *
+   * @param pages the threshold; 0 disables automatic checkpoints.
+   */
+  public void setWalAutoCheckpoint(int pages) {
+    if (pages < 0) {
+      throw new IllegalArgumentException("expected a non-negative page count");
+    }
+    this.walAutoCheckpoint = pages;
+  }
+
+  /**
+   * Sets whether connections opened with this configuration reject any statement
+   * that would modify the database.
+   *
+   * @param queryOnly
+   */
+  public void setQueryOnly(boolean queryOnly) {
+    this.queryOnly = queryOnly;
+  }
+
+  /**
+   * Applies the page size, page cache, memory-map and temp_store settings of a
+   * memory profile. Must be called before the connection is opened.
+   *
+   * @param profile the profile, or null to leave the current settings.
+   */
+  public void applyMemoryProfile(SQLiteMemoryProfile profile) {
+    if (profile == null) {
+      return;
+    }
+    this.pageSize = profile.pageSize;
+    this.cacheSizeKib = profile.cacheSizeKib;
+    this.mmapSize = profile.mmapSize;
+    this.tempStoreInMemory = profile.tempStoreInMemory;
+  }
+
   /**
    * Sets the locale for this database.  Does nothing if this database has
    * the NO_LOCALIZED_COLLATORS flag set or was opened read only.
@@ -221,6 +306,12 @@ public final class SQLiteDatabaseConfiguration {
         maxSqlCacheSize = other.maxSqlCacheSize;
         locale = other.locale;
         foreignKeyConstraintsEnabled = other.foreignKeyConstraintsEnabled;
+        walAutoCheckpoint = other.walAutoCheckpoint;
+        pageSize = other.pageSize;
+        cacheSizeKib = other.cacheSizeKib;
+        mmapSize = other.mmapSize;
+        tempStoreInMemory = other.tempStoreInMemory;
+        queryOnly = other.queryOnly;
     }
 
     private static String stripPathForLogs(String path) {
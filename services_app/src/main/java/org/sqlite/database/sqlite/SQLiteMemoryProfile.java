@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.sqlite.database.sqlite;
+
+import java.util.Locale;
+
+/**
+ * Memory settings applied to each connection when it is opened, chosen by device class.
+ * Connections opened without a profile keep the SQLite defaults.
+ * <p>
+ * The page size only takes effect when the database file is created; the page cache,
+ * memory-mapped I/O window and temp_store apply to every connection opened with the
+ * profile. Memory-mapped I/O lets read-heavy connections (scans, content providers) read
+ * pages without copying them into the page cache. It is only used for databases on
+ * internal storage: an access to a mapped page of a file on removable or emulated
+ * external storage raises SIGBUS if the media goes away.
+ * <p>
+ * The ODK databases all live under the opendatakit folder on external storage, so
+ * AndroidOdkConnection drops the mmapSize of every profile for them and only the page
+ * size, page cache and temp_store take effect. The mmapSize applies only to a
+ * SQLiteDatabaseConfiguration for a file on internal storage.
+ */
+public enum SQLiteMemoryProfile {
+
+    /**
+     * Low-RAM devices (or small app heaps): no memory mapping, small page cache,
+     * temporary b-trees on disk.
+     */
+    LOW_RAM(4096L, 1024, 0L, false),
+
+    /**
+     * Typical phones. (The memory-mapped window is not used for the ODK databases; see above.)
+     */
+    STANDARD(0L, 4096, 32L * 1024L * 1024L, false),
+
+    /**
+     * Tablets and other large-memory devices. (The memory-mapped window is not used for the
+     * ODK databases; see above.)
+     */
+    LARGE(8192L, 16384, 256L * 1024L * 1024L, true);
+
+    /**
+     * Database page size; 0 to use the storage block size ({@link SQLiteGlobal#getDefaultPageSize()}).
+     */
+    public final long pageSize;
+
+    /**
+     * Page cache size per connection, in KiB.
+     */
+    public final int cacheSizeKib;
+
+    /**
+     * Maximum number of bytes of the database file to memory-map; 0 disables mmap.
+     * Ignored for databases on external storage, which includes every ODK database.
+     */
+    public final long mmapSize;
+
+    /**
+     * True to keep temporary tables and indices (e.g., for ORDER BY) in memory.
+     */
+    public final boolean tempStoreInMemory;
+
+    SQLiteMemoryProfile(long pageSize, int cacheSizeKib, long mmapSize,
+        boolean tempStoreInMemory) {
+        this.pageSize = pageSize;
+        this.cacheSizeKib = cacheSizeKib;
+        this.mmapSize = mmapSize;
+        this.tempStoreInMemory = tempStoreInMemory;
+    }
+
+    /**
+     * Choose a profile from the device characteristics.
+     *
+     * @param isLowRamDevice        ActivityManager.isLowRamDevice()
+     * @param memoryClassMb         ActivityManager.getMemoryClass()
+     * @param smallestScreenWidthDp Configuration.smallestScreenWidthDp
+     * @return the profile for this class of device
+     */
+    public static SQLiteMemoryProfile forDevice(boolean isLowRamDevice, int memoryClassMb,
+        int smallestScreenWidthDp) {
+        if (isLowRamDevice || memoryClassMb < 96) {
+            return LOW_RAM;
+        }
+        if (smallestScreenWidthDp >= 600 && memoryClassMb >= 192) {
+            return LARGE;
+        }
+        return STANDARD;
+    }
+
+    /**
+     * Interpret a device-settings value.
+     *
+     * @param value the setting; the name of a profile (any case)
+     * @return the named profile, or null if the setting does not name one
+     */
+    public static SQLiteMemoryProfile fromSetting(String value) {
+        if (value == null || value.length() == 0) {
+            return null;
+        }
+        try {
+            return valueOf(value.toUpperCase(Locale.US));
+        } catch (IllegalArgumentException e) {
+            // "default", "auto" or an unrecognized value
+            return null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.opendatakit.services.database;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Map;
+
+public class StatementMetricsTest extends TestCase {
+
+    public void testNormalizeReplacesLiterals() {
+        assertEquals("SELECT * FROM t1 WHERE a = ? AND b = ? AND c2 > ?",
+            StatementMetrics.normalize(
+                "SELECT *  FROM t1\n WHERE a = 'it''s' AND b = 42 AND c2 > 3.5"));
+    }
+
+    public void testNormalizeKeepsQuotedIdentifiers() {
+        assertEquals("SELECT \"col 1\", [x2] FROM \"T 9\" WHERE _id = ?",
+            StatementMetrics.normalize(
+                "SELECT \"col 1\", [x2] FROM \"T 9\" WHERE _id = 17"));
+    }
+
+    public void testNormalizeCollapsesPlaceholderLists() {
+        assertEquals("DELETE FROM t WHERE id IN (?,...)",
+            StatementMetrics.normalize("DELETE FROM t WHERE id IN (?, ?,?)"));
+        assertEquals(StatementMetrics.normalize("SELECT a FROM t WHERE id IN (1,2,3,4)"),
+            StatementMetrics.normalize("SELECT a FROM t WHERE id IN (?, ?)"));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testRecordGroupsByShape() {
+        StatementMetrics metrics = new StatementMetrics();
+        metrics.record("SELECT a FROM t WHERE id = 1", 2000000L, 1, 0, false);
+        metrics.record("SELECT a FROM t WHERE id = 2", 4000000L, 1, 0, false);
+        metrics.record("UPDATE t SET a = ? WHERE id = ?", 1000000L, 0, 3, true);
+
+        Map<String, Object> snapshot = metrics.snapshot();
+        assertEquals(3L, snapshot.get("statements"));
+        List<Map<String, Object>> shapes = (List<Map<String, Object>>) snapshot.get("shapes");
+        assertEquals(2, shapes.size());
+
+        // ordered by total time
+        Map<String, Object> select = shapes.get(0);
+        assertEquals("SELECT a FROM t WHERE id = ?", select.get("sql"));
+        assertEquals(2L, select.get("rowsReturned"));
+        assertEquals(2L, ((Map<String, Object>) select.get("latency")).get("count"));
+        assertEquals(6000L, ((Map<String, Object>) select.get("latency")).get("totalMicros"));
+
+        Map<String, Object> update = shapes.get(1);
+        assertEquals(3L, update.get("rowsChanged"));
+        assertEquals(1L, update.get("failed"));
+    }
+
+    public void testSlowStatementsAreReportedOncePerInterval() {
+        StatementMetrics metrics = new StatementMetrics();
+        metrics.setSlowQueryThresholdMillis(100L);
+        assertFalse(metrics.record("SELECT 1", 50000000L, 1, 0, false));
+        assertTrue(metrics.record("SELECT 1", 150000000L, 1, 0, false));
+        assertFalse(metrics.record("SELECT 1", 150000000L, 1, 0, false));
+        assertTrue(metrics.record("SELECT 2 FROM t", 150000000L, 1, 0, false));
+
+        metrics.setSlowQueryThresholdMillis(0L);
+        assertEquals(0L, metrics.getSlowQueryThresholdMillis());
+        assertFalse(metrics.record("SELECT 3 FROM u", Long.MAX_VALUE / 2L, 1, 0, false));
+    }
+}
@@ -0,0 +1,66 @@
+package org.opendatakit.services.database;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class WriteTransactionQueueTest extends TestCase {
+
+    private static final String APPNAME = "unittestWriteQueue";
+
+    public void testReleaseByNonOwnerIsIgnored() {
+        WriteTransactionQueue queue = new WriteTransactionQueue(APPNAME);
+        Object first = new Object();
+        Object second = new Object();
+
+        queue.acquire(first, "first");
+        assertTrue(queue.isOwner(first));
+        assertEquals("first", queue.getOwnerSessionQualifier());
+
+        queue.release(second);
+        assertTrue(queue.isOwner(first));
+
+        queue.release(first);
+        assertFalse(queue.isOwner(first));
+        assertNull(queue.getOwnerSessionQualifier());
+    }
+
+    public void testWritersAreAdmittedInArrivalOrder() throws InterruptedException {
+        final WriteTransactionQueue queue = new WriteTransactionQueue(APPNAME);
+        final List<Integer> admitted = Collections.synchronizedList(new ArrayList<Integer>());
+        final Object holder = new Object();
+        queue.acquire(holder, "holder");
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; ++i) {
+            final int id = i;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Object connection = new Object();
+                    queue.acquire(connection, "writer" + id);
+                    admitted.add(id);
+                    queue.release(connection);
+                }
+            });
+            threads.add(t);
+            t.start();
+            // wait for this writer to take its ticket before starting the next one
+            while (t.getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(5L);
+            }
+        }
+
+        assertTrue(admitted.isEmpty());
+        queue.release(holder);
+        for (Thread t : threads) {
+            t.join(5000L);
+        }
+        assertEquals(4, admitted.size());
+        for (int i = 0; i < 4; ++i) {
+            assertEquals(Integer.valueOf(i), admitted.get(i));
+        }
+    }
+}
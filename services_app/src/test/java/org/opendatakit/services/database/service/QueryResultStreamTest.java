@@ -0,0 +1,75 @@
+package org.opendatakit.services.database.service;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class QueryResultStreamTest extends TestCase {
+
+    private static final String[] COLUMNS = { "_id", "name", "\u00e9l\u00e9ment" };
+
+    private byte[] writeRows(String[][] rows, String error) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        QueryResultStream.writeHeader(out, COLUMNS, true);
+        for (String[] row : rows) {
+            QueryResultStream.writeRow(out, row);
+        }
+        if (error == null) {
+            QueryResultStream.writeEnd(out);
+        } else {
+            QueryResultStream.writeError(out, error);
+        }
+        return bytes.toByteArray();
+    }
+
+    public void testRoundTrip() throws IOException {
+        String[][] rows = {
+            { "1", "alpha", null },
+            { "2", "", "\u65e5\u672c\u8a9e" },
+        };
+        QueryResultStream.Reader reader =
+            new QueryResultStream.Reader(new ByteArrayInputStream(writeRows(rows, null)));
+
+        assertTrue(Arrays.equals(COLUMNS, reader.getColumns()));
+        assertTrue(reader.getEffectiveAccessCreateRow());
+        assertTrue(Arrays.equals(rows[0], reader.nextRow()));
+        assertTrue(Arrays.equals(rows[1], reader.nextRow()));
+        assertNull(reader.nextRow());
+        assertNull(reader.nextRow());
+    }
+
+    public void testErrorFrameIsReported() throws IOException {
+        String[][] rows = { { "1", "alpha", "beta" } };
+        QueryResultStream.Reader reader =
+            new QueryResultStream.Reader(new ByteArrayInputStream(writeRows(rows, "boom")));
+
+        assertNotNull(reader.nextRow());
+        try {
+            reader.nextRow();
+            fail("expected the writer failure to be reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("boom"));
+        }
+    }
+
+    public void testTruncatedStreamIsReported() throws IOException {
+        String[][] rows = { { "1", "alpha", "beta" } };
+        byte[] full = writeRows(rows, null);
+        byte[] truncated = Arrays.copyOf(full, full.length - 1);
+        QueryResultStream.Reader reader =
+            new QueryResultStream.Reader(new ByteArrayInputStream(truncated));
+
+        assertNotNull(reader.nextRow());
+        try {
+            reader.nextRow();
+            fail("expected truncation to be reported");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.opendatakit.services.utilities;
+
+import junit.framework.TestCase;
+
+public class ProviderQueryBoundsTest extends TestCase {
+
+    public void testNoBoundsHasNoLimitClause() {
+        assertNull(ProviderQueryBounds.getLimitClause(null, null));
+    }
+
+    public void testLimitOnly() {
+        assertEquals("50", ProviderQueryBounds.getLimitClause("50", null));
+        assertEquals("0", ProviderQueryBounds.getLimitClause("0", null));
+        assertEquals("7", ProviderQueryBounds.getLimitClause(" 7 ", null));
+    }
+
+    public void testLimitAndOffset() {
+        assertEquals("100,50", ProviderQueryBounds.getLimitClause("50", "100"));
+        // a zero offset is left out of the clause
+        assertEquals("50", ProviderQueryBounds.getLimitClause("50", "0"));
+    }
+
+    public void testOffsetWithoutLimitIsUnbounded() {
+        assertEquals("100," + Long.MAX_VALUE, ProviderQueryBounds.getLimitClause(null, "100"));
+        assertEquals(Long.toString(Long.MAX_VALUE),
+            ProviderQueryBounds.getLimitClause(null, "0"));
+    }
+
+    public void testNegativeBoundsAreRejected() {
+        assertInvalid("-1", null);
+        assertInvalid(null, "-5");
+        assertInvalid("10", "-1");
+    }
+
+    public void testNonNumericBoundsAreRejected() {
+        assertInvalid("ten", null);
+        assertInvalid(null, "");
+        assertInvalid("1.5", null);
+        assertInvalid("99999999999999999999", null);
+    }
+
+    private static void assertInvalid(String limit, String offset) {
+        try {
+            ProviderQueryBounds.getLimitClause(limit, offset);
+            fail("expected limit=" + limit + " offset=" + offset + " to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}